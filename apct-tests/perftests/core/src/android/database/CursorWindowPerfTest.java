@@ -16,6 +16,7 @@
 
 package android.database;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
@@ -47,6 +48,13 @@ public class CursorWindowPerfTest {
 
     private static SQLiteDatabase sDatabase;
 
+    private static final String SCAN_DB_NAME = CursorWindowPerfTest.class.toString() + "_scan";
+
+    // Enough rows of TableHelper.USER to span several cursor windows.
+    private static final int SCAN_ROW_COUNT = 50000;
+
+    private static SQLiteDatabase sScanDatabase;
+
     @BeforeClass
     public static void setup() {
         getContext().deleteDatabase(DB_NAME);
@@ -60,11 +68,26 @@ public class CursorWindowPerfTest {
             sDatabase.execSQL(insert, helper.createItem(0));
         }
 
+        getContext().deleteDatabase(SCAN_DB_NAME);
+        sScanDatabase = getContext().openOrCreateDatabase(SCAN_DB_NAME, Context.MODE_PRIVATE,
+                null);
+        sScanDatabase.execSQL(TableHelper.USER.createSql());
+        final String insert = TableHelper.USER.insertSql();
+        sScanDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < SCAN_ROW_COUNT; i++) {
+                sScanDatabase.execSQL(insert, TableHelper.USER.createItem(i));
+            }
+            sScanDatabase.setTransactionSuccessful();
+        } finally {
+            sScanDatabase.endTransaction();
+        }
     }
 
     @AfterClass
     public static void teardown() {
         getContext().deleteDatabase(DB_NAME);
+        getContext().deleteDatabase(SCAN_DB_NAME);
     }
 
     @Test
@@ -87,6 +110,132 @@ public class CursorWindowPerfTest {
         loadRowFromCursorWindow(TableHelper.USER, false);
     }
 
+    @Test
+    public void scanUser() {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            try (Cursor cursor = sScanDatabase.rawQuery(TableHelper.USER.readSql(), null)) {
+                scanAllRows(cursor);
+            }
+        }
+    }
+
+    @Test
+    public void scanUser_bulkCursor() {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // Same path as a cross-process query, without the binder in between.
+            BulkCursorToCursorAdaptor cursor = new BulkCursorToCursorAdaptor();
+            CursorToBulkCursorAdaptor adaptor = new CursorToBulkCursorAdaptor(
+                    sScanDatabase.rawQuery(TableHelper.USER.readSql(), null),
+                    cursor.getObserver(), SCAN_DB_NAME);
+            try {
+                cursor.initialize(adaptor.getBulkCursorDescriptor());
+                scanAllRows(cursor);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    @Test
+    public void readLongColumn_perCell() {
+        try (Cursor cursor = sScanDatabase.rawQuery(TableHelper.USER.readSql(), null)) {
+            final CursorWindow window = fillWindowForColumnRead((SQLiteCursor) cursor);
+            final int start = window.getStartPosition();
+            final int numRows = window.getNumRows();
+            final int column = cursor.getColumnIndexOrThrow("mBirthday");
+            final long[] values = new long[numRows];
+
+            BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = window.getLong(start + i, column);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readLongColumn_bulk() {
+        try (Cursor cursor = sScanDatabase.rawQuery(TableHelper.USER.readSql(), null)) {
+            final CursorWindow window = fillWindowForColumnRead((SQLiteCursor) cursor);
+            final int start = window.getStartPosition();
+            final int numRows = window.getNumRows();
+            final int column = cursor.getColumnIndexOrThrow("mBirthday");
+            final long[] values = new long[numRows];
+
+            BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                window.copyLongColumn(column, start, numRows, values, 0);
+            }
+        }
+    }
+
+    @Test
+    public void readDoubleColumn_perCell() {
+        try (Cursor cursor = sScanDatabase.rawQuery(TableHelper.USER.readSql(), null)) {
+            final CursorWindow window = fillWindowForColumnRead((SQLiteCursor) cursor);
+            final int start = window.getStartPosition();
+            final int numRows = window.getNumRows();
+            final int column = cursor.getColumnIndexOrThrow("mWeight");
+            final double[] values = new double[numRows];
+
+            BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = window.getDouble(start + i, column);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readDoubleColumn_bulk() {
+        try (Cursor cursor = sScanDatabase.rawQuery(TableHelper.USER.readSql(), null)) {
+            final CursorWindow window = fillWindowForColumnRead((SQLiteCursor) cursor);
+            final int start = window.getStartPosition();
+            final int numRows = window.getNumRows();
+            final int column = cursor.getColumnIndexOrThrow("mWeight");
+            final double[] values = new double[numRows];
+
+            BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                window.copyDoubleColumn(column, start, numRows, values, 0);
+            }
+        }
+    }
+
+    @Test
+    public void scanLongColumn_bulk() {
+        final long[] values = new long[SCAN_ROW_COUNT];
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            try (Cursor cursor = sScanDatabase.rawQuery(TableHelper.USER.readSql(), null)) {
+                final int column = cursor.getColumnIndexOrThrow("mBirthday");
+                assertEquals(SCAN_ROW_COUNT, ((SQLiteCursor) cursor).copyLongColumn(column, 0,
+                        SCAN_ROW_COUNT, values, 0));
+            }
+        }
+    }
+
+    private static CursorWindow fillWindowForColumnRead(SQLiteCursor cursor) {
+        cursor.getCount(); // load one window
+        CursorWindow window = cursor.getWindow();
+        assertTrue("must have enough rows", window.getNumRows() >= 1000);
+        return window;
+    }
+
+    private static void scanAllRows(Cursor cursor) {
+        TableHelper.CursorReader reader = TableHelper.USER.createReader(cursor);
+        int rows = 0;
+        while (cursor.moveToNext()) {
+            reader.read();
+            rows++;
+        }
+        assertEquals(SCAN_ROW_COUNT, rows);
+    }
+
     private void loadRowFromCursorWindow(TableHelper helper, boolean doubleRef) {
         try (Cursor cursor = sDatabase.rawQuery(helper.readSql(), new String[0])) {
             TableHelper.CursorReader reader = helper.createReader(cursor);
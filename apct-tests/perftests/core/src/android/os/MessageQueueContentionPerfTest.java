@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Phaser;
+
+/**
+ * Measures how long it takes a looper to receive and dispatch a burst of messages posted by
+ * many threads at once, with and without {@link MessageQueue#setConcurrentEnqueue}.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class MessageQueueContentionPerfTest {
+    private static final int MESSAGES_PER_PRODUCER = 100;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "producers={0}, concurrent={1}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] {
+                {4, false}, {4, true},
+                {16, false}, {16, true},
+                {32, false}, {32, true},
+        });
+    }
+
+    private final int mProducerCount;
+    private final boolean mConcurrent;
+
+    private HandlerThread mLooperThread;
+    private Handler mHandler;
+    private Thread[] mProducers;
+    private Phaser mStart;
+    private volatile boolean mStopped;
+    private volatile CountDownLatch mDone;
+
+    public MessageQueueContentionPerfTest(int producerCount, boolean concurrent) {
+        mProducerCount = producerCount;
+        mConcurrent = concurrent;
+    }
+
+    @Before
+    public void setUp() {
+        mLooperThread = new HandlerThread("MessageQueueContentionPerfTest");
+        mLooperThread.start();
+        mLooperThread.getLooper().getQueue().setConcurrentEnqueue(mConcurrent);
+
+        final int expected = mProducerCount * MESSAGES_PER_PRODUCER;
+        mHandler = new Handler(mLooperThread.getLooper()) {
+            private int mCount;
+
+            @Override
+            public void handleMessage(Message msg) {
+                if (++mCount == expected) {
+                    mCount = 0;
+                    mDone.countDown();
+                }
+            }
+        };
+
+        // The benchmark thread is one of the parties, and releases the producers for each
+        // burst by arriving.
+        mStart = new Phaser(mProducerCount + 1);
+        mProducers = new Thread[mProducerCount];
+        for (int i = 0; i < mProducerCount; i++) {
+            mProducers[i] = new Thread(() -> {
+                for (;;) {
+                    mStart.arriveAndAwaitAdvance();
+                    if (mStopped) {
+                        return;
+                    }
+                    for (int j = 0; j < MESSAGES_PER_PRODUCER; j++) {
+                        mHandler.sendEmptyMessage(j);
+                    }
+                }
+            });
+            mProducers[i].start();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStopped = true;
+        mStart.arriveAndAwaitAdvance();
+        for (Thread producer : mProducers) {
+            producer.join();
+        }
+        mLooperThread.quit();
+    }
+
+    @Test
+    public void timePostBurst() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mDone = new CountDownLatch(1);
+            mStart.arriveAndAwaitAdvance();
+            mDone.await();
+        }
+    }
+}
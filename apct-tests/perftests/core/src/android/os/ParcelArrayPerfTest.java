@@ -54,6 +54,12 @@ public class ParcelArrayPerfTest {
     private Parcel mIntParcel;
     private Parcel mLongParcel;
 
+    // Strings repeating a few package names, like the ones a list of ApplicationInfo or
+    // ResolveInfo writes.
+    private String[] mStringArray;
+    private Parcel mStringParcel;
+    private Parcel mPooledStringParcel;
+
     public ParcelArrayPerfTest(int size) {
         mSize = size;
     }
@@ -72,12 +78,44 @@ public class ParcelArrayPerfTest {
         mIntParcel.writeIntArray(mIntArray);
         mLongParcel = Parcel.obtain();
         mLongParcel.writeLongArray(mLongArray);
+
+        mStringArray = new String[mSize];
+        for (int i = 0; i < mSize; i++) {
+            mStringArray[i] = "com.android.package" + (i % 8);
+        }
+        mStringParcel = Parcel.obtain();
+        writeStrings(mStringParcel);
+        mPooledStringParcel = Parcel.obtain();
+        writePooledStrings(mPooledStringParcel);
+    }
+
+    private void writeStrings(Parcel p) {
+        for (int i = 0; i < mSize; i++) {
+            p.writeString(mStringArray[i]);
+        }
+    }
+
+    private void writePooledStrings(Parcel p) {
+        final PooledStringWriter writer = new PooledStringWriter(p);
+        writer.install();
+        writeStrings(p);
+        writer.finish();
+    }
+
+    private void readStrings(Parcel p) {
+        for (int i = 0; i < mSize; i++) {
+            p.readString();
+        }
     }
 
     @After
     public void tearDown() {
         mWriteParcel.recycle();
         mWriteParcel = null;
+        mStringParcel.recycle();
+        mStringParcel = null;
+        mPooledStringParcel.recycle();
+        mPooledStringParcel = null;
     }
 
     @Test
@@ -160,4 +198,43 @@ public class ParcelArrayPerfTest {
             mLongParcel.readLongArray(mLongArray);
         }
     }
+
+    @Test
+    public void timeWriteStrings() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mWriteParcel.setDataPosition(0);
+            writeStrings(mWriteParcel);
+        }
+    }
+
+    @Test
+    public void timeWritePooledStrings() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mWriteParcel.setDataPosition(0);
+            writePooledStrings(mWriteParcel);
+        }
+    }
+
+    @Test
+    public void timeReadStrings() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mStringParcel.setDataPosition(0);
+            readStrings(mStringParcel);
+        }
+    }
+
+    @Test
+    public void timeReadPooledStrings() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mPooledStringParcel.setDataPosition(0);
+            final PooledStringReader reader = new PooledStringReader(mPooledStringParcel);
+            reader.install();
+            readStrings(mPooledStringParcel);
+            reader.uninstall();
+        }
+    }
 }
@@ -33,19 +33,38 @@ public class ParcelPerfTest {
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
 
+    private static final int BUNDLE_KEY_COUNT = 100;
+
     private Parcel mParcel;
+    private Parcel mBundleParcel;
+    private String[] mBundleKeys;
 
     @Before
     public void setUp() {
         mParcel = Parcel.obtain();
         mParcel.setDataPosition(0);
         mParcel.setDataCapacity(8);
+
+        // Half strings and half ints, like the extras of a large Intent.
+        mBundleKeys = new String[BUNDLE_KEY_COUNT];
+        for (int i = 0; i < BUNDLE_KEY_COUNT; i++) {
+            mBundleKeys[i] = "key" + i;
+        }
+        final Bundle bundle = new Bundle();
+        for (int i = 0; i < BUNDLE_KEY_COUNT; i += 2) {
+            bundle.putString("key" + i, "value" + i);
+            bundle.putInt("key" + (i + 1), i + 1);
+        }
+        mBundleParcel = Parcel.obtain();
+        mBundleParcel.writeBundle(bundle);
     }
 
     @After
     public void tearDown() {
         mParcel.recycle();
         mParcel = null;
+        mBundleParcel.recycle();
+        mBundleParcel = null;
     }
 
     @Test
@@ -153,6 +172,67 @@ public class ParcelPerfTest {
         }
     }
 
+    @Test
+    public void timeReadBundleSingleString() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mBundleParcel.setDataPosition(0);
+            mBundleParcel.readBundle().getString("key50");
+        }
+    }
+
+    @Test
+    public void timeReadBundleSingleInt() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mBundleParcel.setDataPosition(0);
+            mBundleParcel.readBundle().getInt("key51");
+        }
+    }
+
+    @Test
+    public void timeReadBundleFewKeys() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mBundleParcel.setDataPosition(0);
+            final Bundle bundle = mBundleParcel.readBundle();
+            for (int i = 0; i < 4; i++) {
+                bundle.getString(mBundleKeys[i * 20]);
+            }
+        }
+    }
+
+    @Test
+    public void timeReadBundleAllKeys() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mBundleParcel.setDataPosition(0);
+            final Bundle bundle = mBundleParcel.readBundle();
+            for (int i = 0; i < BUNDLE_KEY_COUNT; i += 2) {
+                bundle.getString(mBundleKeys[i]);
+                bundle.getInt(mBundleKeys[i + 1]);
+            }
+        }
+    }
+
+    @Test
+    public void timeReadBundleMissingKey() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mBundleParcel.setDataPosition(0);
+            mBundleParcel.readBundle().getString("missing");
+        }
+    }
+
+    @Test
+    public void timeReadBundleUnparcel() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mBundleParcel.setDataPosition(0);
+            mBundleParcel.readBundle().size();
+        }
+    }
+
     @Test
     public void timeObtainRecycle() {
         // Use up the pooled instances.
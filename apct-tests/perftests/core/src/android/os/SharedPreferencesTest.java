@@ -16,6 +16,7 @@
 
 package android.os;
 
+import android.app.QueuedWork;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.perftests.utils.BenchmarkState;
@@ -31,6 +32,8 @@ import org.junit.runner.RunWith;
 @RunWith(AndroidJUnit4.class)
 @LargeTest
 public class SharedPreferencesTest {
+    private static final int LARGE_MAP_SIZE = 1000;
+
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
 
@@ -44,4 +47,64 @@ public class SharedPreferencesTest {
             prefs = context.getSharedPreferences("test", Context.MODE_PRIVATE);
         }
     }
+
+    @Test
+    public void timeCommitLargeMap() {
+        timeCommit("test_large", Context.MODE_PRIVATE);
+    }
+
+    @Test
+    public void timeCommitLargeMapWithLog() {
+        timeCommit("test_large_log", Context.MODE_PRIVATE | Context.MODE_SHARED_PREFERENCES_LOG);
+    }
+
+    @Test
+    public void timeApplyLargeMap() {
+        timeApply("test_large_apply", Context.MODE_PRIVATE);
+    }
+
+    @Test
+    public void timeApplyLargeMapWithLog() {
+        timeApply("test_large_apply_log",
+                Context.MODE_PRIVATE | Context.MODE_SHARED_PREFERENCES_LOG);
+    }
+
+    /** Measures committing a single changed key to a file holding many keys. */
+    private void timeCommit(String name, int mode) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final SharedPreferences prefs = getLargePreferences(name, mode);
+        int i = 0;
+        while (state.keepRunning()) {
+            prefs.edit().putInt("counter", i++).commit();
+        }
+        cleanup(name);
+    }
+
+    /** Measures applying a single changed key and waiting for it to be written. */
+    private void timeApply(String name, int mode) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final SharedPreferences prefs = getLargePreferences(name, mode);
+        int i = 0;
+        while (state.keepRunning()) {
+            prefs.edit().putInt("counter", i++).apply();
+            QueuedWork.waitToFinish();
+        }
+        cleanup(name);
+    }
+
+    private SharedPreferences getLargePreferences(String name, int mode) {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        context.deleteSharedPreferences(name);
+        final SharedPreferences prefs = context.getSharedPreferences(name, mode);
+        final SharedPreferences.Editor editor = prefs.edit();
+        for (int i = 0; i < LARGE_MAP_SIZE; i++) {
+            editor.putString("key" + i, "value of some length for key " + i);
+        }
+        editor.commit();
+        return prefs;
+    }
+
+    private void cleanup(String name) {
+        InstrumentationRegistry.getTargetContext().deleteSharedPreferences(name);
+    }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.content.Context;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.util.TypedValue;
+import android.view.ViewGroup.LayoutParams;
+import android.widget.CheckBox;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import com.android.perftests.core.R;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Compares inflating a list item from its XML with creating it through a
+ * {@link LayoutInflater.PrecompiledLayout}.
+ */
+@LargeTest
+public class LayoutInflaterPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Test
+    public void testInflateListItem() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final LayoutInflater inflater = LayoutInflater.from(context).cloneInContext(context);
+        final FrameLayout root = new FrameLayout(context);
+        while (state.keepRunning()) {
+            inflater.inflate(R.layout.test_list_item, root, false);
+        }
+    }
+
+    @Test
+    public void testInflatePrecompiledListItem() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final LayoutInflater inflater = LayoutInflater.from(context).cloneInContext(context);
+        inflater.setPrecompiledLayout(R.layout.test_list_item,
+                LayoutInflaterPerfTest::createListItem);
+        final FrameLayout root = new FrameLayout(context);
+        while (state.keepRunning()) {
+            inflater.inflate(R.layout.test_list_item, root, false);
+        }
+    }
+
+    /**
+     * The code a layout compiler would generate for test_list_item.xml.
+     */
+    private static View createListItem(Context context, ViewGroup root) {
+        final int dp8 = dipToPixels(context, 8);
+        final int dp48 = dipToPixels(context, 48);
+
+        final LinearLayout item = new LinearLayout(context);
+        item.setOrientation(LinearLayout.HORIZONTAL);
+        item.setPadding(dp8, dp8, dp8, dp8);
+        item.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT,
+                LayoutParams.WRAP_CONTENT));
+
+        final ImageView icon = new ImageView(context);
+        icon.setId(R.id.icon);
+        item.addView(icon, new LinearLayout.LayoutParams(dp48, dp48));
+
+        final LinearLayout text = new LinearLayout(context);
+        text.setOrientation(LinearLayout.VERTICAL);
+        text.setPaddingRelative(dp8, 0, 0, 0);
+        item.addView(text, new LinearLayout.LayoutParams(0, LayoutParams.WRAP_CONTENT, 1));
+
+        final TextView title = new TextView(context);
+        title.setId(R.id.title);
+        title.setSingleLine(true);
+        title.setTextSize(TypedValue.COMPLEX_UNIT_SP, 16);
+        text.addView(title, new LinearLayout.LayoutParams(LayoutParams.MATCH_PARENT,
+                LayoutParams.WRAP_CONTENT));
+
+        final TextView summary = new TextView(context);
+        summary.setId(R.id.summary);
+        summary.setMaxLines(2);
+        summary.setTextSize(TypedValue.COMPLEX_UNIT_SP, 14);
+        text.addView(summary, new LinearLayout.LayoutParams(LayoutParams.MATCH_PARENT,
+                LayoutParams.WRAP_CONTENT));
+
+        final CheckBox checkBox = new CheckBox(context);
+        checkBox.setId(R.id.checkbox);
+        item.addView(checkBox, new LinearLayout.LayoutParams(LayoutParams.WRAP_CONTENT,
+                LayoutParams.WRAP_CONTENT));
+        return item;
+    }
+
+    private static int dipToPixels(Context context, float dip) {
+        return (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, dip,
+                context.getResources().getDisplayMetrics());
+    }
+}
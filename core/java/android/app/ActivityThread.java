@@ -46,6 +46,7 @@ import android.content.res.CompatibilityInfo;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.content.res.Resources.Theme;
+import android.content.res.ResourcesImpl;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDebug;
 import android.database.sqlite.SQLiteDebug.DbStats;
@@ -1234,6 +1235,12 @@ public final class ActivityThread {
                 pw.print(assetAlloc);
             }
 
+            // Resource cache hit rates.
+            pw.println(" ");
+            pw.println(" Resource Caches");
+            ResourcesImpl.dumpCacheStats(pw, "  ");
+            AssetManager.dumpCacheStats(pw, "  ");
+
             // Unreachable native memory
             if (dumpUnreachable) {
                 boolean showContents = ((mBoundApplication != null)
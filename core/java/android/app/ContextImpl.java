@@ -438,6 +438,32 @@ class ContextImpl extends Context {
         }
     }
 
+    @Override
+    public void compactSharedPreferencesLogs() {
+        final File[] logs = getPreferencesDir().listFiles(
+                (dir, name) -> name.endsWith(".xml.log"));
+        if (logs == null) {
+            return;
+        }
+        for (File log : logs) {
+            final String logPath = log.getPath();
+            final File prefs = new File(logPath.substring(0, logPath.length() - ".log".length()));
+            final SharedPreferencesImpl sp;
+            synchronized (ContextImpl.class) {
+                sp = getSharedPreferencesCacheLocked().get(prefs);
+                if (sp == null) {
+                    // Not loaded by this process. Compact without caching the instance, whose
+                    // mode might not be the one the app uses, and keep the lock so that no
+                    // other instance for the file gets created meanwhile.
+                    new SharedPreferencesImpl(prefs, Context.MODE_PRIVATE).compactLog();
+                    continue;
+                }
+            }
+            // Compact outside the cache lock
+            sp.compactLog();
+        }
+    }
+
     /**
      * Try our best to migrate all files from source to target that match
      * requested prefix.
@@ -498,6 +524,7 @@ class ContextImpl extends Context {
         synchronized (ContextImpl.class) {
             final File prefs = getSharedPreferencesPath(name);
             final File prefsBackup = SharedPreferencesImpl.makeBackupFile(prefs);
+            final File prefsLog = SharedPreferencesImpl.makeLogFile(prefs);
 
             // Evict any in-memory caches
             final ArrayMap<File, SharedPreferencesImpl> cache = getSharedPreferencesCacheLocked();
@@ -505,9 +532,10 @@ class ContextImpl extends Context {
 
             prefs.delete();
             prefsBackup.delete();
+            prefsLog.delete();
 
             // We failed if files are still lingering
-            return !(prefs.exists() || prefsBackup.exists());
+            return !(prefs.exists() || prefsBackup.exists() || prefsLog.exists());
         }
     }
 
@@ -22,11 +22,14 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
 import android.os.StrictMode;
+import android.os.SystemProperties;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ExponentiallyBucketedHistogram;
 
+import java.io.PrintWriter;
 import java.util.LinkedList;
 
 /**
@@ -44,6 +47,11 @@ import java.util.LinkedList;
  *
  * The queued asynchronous work is performed on a separate, dedicated thread.
  *
+ * If the {@value #WAIT_DEADLINE_PROPERTY} system property is set, {@link #waitToFinish} doesn't
+ * run the work or the finishers on the calling thread. It has the dedicated thread process the
+ * work queued so far and waits for that at most the given number of milliseconds; work that
+ * isn't done by then keeps going in the background.
+ *
  * @hide
  */
 public class QueuedWork {
@@ -56,6 +64,9 @@ public class QueuedWork {
     /** If a {@link #waitToFinish()} takes more than {@value #MAX_WAIT_TIME_MILLIS} ms, warn */
     private static final long MAX_WAIT_TIME_MILLIS = 512;
 
+    /** Longest time in ms {@link #waitToFinish()} waits for the work; unbounded if <= 0 */
+    private static final String WAIT_DEADLINE_PROPERTY = "persist.sys.queued_work_deadline_ms";
+
     /** Lock for this class */
     private static final Object sLock = new Object();
 
@@ -84,6 +95,28 @@ public class QueuedWork {
     @GuardedBy("sLock")
     private static boolean sCanDelay = true;
 
+    /** Read along with the handler, as this class is preloaded in the zygote */
+    @GuardedBy("sLock")
+    private static long sWaitDeadlineMillis;
+
+    /** Number of work items ever {@link #queue queued} */
+    @GuardedBy("sLock")
+    private static long sQueuedCount;
+
+    /** Number of work items processed so far */
+    @GuardedBy("sLock")
+    private static long sProcessedCount;
+
+    /** Number of {@link #waitToFinish()} calls that gave up waiting at the deadline */
+    @GuardedBy("sLock")
+    private static int sNumDeadlinesMissed;
+
+    @GuardedBy("sLock")
+    private static long sTotalWaitTime;
+
+    @GuardedBy("sLock")
+    private static long sMaxWaitTime;
+
     /** Time (and number of instances) waited for work to get processed */
     @GuardedBy("sLock")
     private final static ExponentiallyBucketedHistogram
@@ -104,6 +137,7 @@ public class QueuedWork {
                 handlerThread.start();
 
                 sHandler = new QueuedWorkHandler(handlerThread.getLooper());
+                sWaitDeadlineMillis = SystemProperties.getLong(WAIT_DEADLINE_PROPERTY, 0);
             }
             return sHandler;
         }
@@ -153,6 +187,11 @@ public class QueuedWork {
         Handler handler = getHandler();
 
         synchronized (sLock) {
+            if (sWaitDeadlineMillis > 0) {
+                waitForQueuedWorkLocked(handler, startTime);
+                return;
+            }
+
             if (handler.hasMessages(QueuedWorkHandler.MSG_RUN)) {
                 // Delayed work will be processed at processPendingWork() below
                 handler.removeMessages(QueuedWorkHandler.MSG_RUN);
@@ -196,13 +235,94 @@ public class QueuedWork {
             long waitTime = System.currentTimeMillis() - startTime;
 
             if (waitTime > 0 || hadMessages) {
-                mWaitTimes.add(Long.valueOf(waitTime).intValue());
-                mNumWaits++;
+                addWaitTimeLocked(waitTime);
+            }
+        }
+    }
+
+    /**
+     * Have the dedicated thread process the work queued so far right away and wait for it, but
+     * no longer than {@link #sWaitDeadlineMillis}. Finishers are left alone; they are removed
+     * by the work itself once it is done.
+     */
+    @GuardedBy("sLock")
+    private static void waitForQueuedWorkLocked(Handler handler, long startTime) {
+        final long target = sQueuedCount;
+        if (sProcessedCount >= target) {
+            return;
+        }
 
-                if (DEBUG || mNumWaits % 1024 == 0 || waitTime > MAX_WAIT_TIME_MILLIS) {
-                    mWaitTimes.log(LOG_TAG, "waited: ");
+        handler.removeMessages(QueuedWorkHandler.MSG_RUN);
+        handler.sendEmptyMessage(QueuedWorkHandler.MSG_RUN);
+
+        // New work should not be delayed while somebody is waiting
+        sCanDelay = false;
+        try {
+            final long deadline = startTime + sWaitDeadlineMillis;
+            long now = startTime;
+            while (sProcessedCount < target && now < deadline) {
+                try {
+                    sLock.wait(deadline - now);
+                } catch (InterruptedException ignored) {
                 }
+                now = System.currentTimeMillis();
             }
+        } finally {
+            sCanDelay = true;
+        }
+
+        if (sProcessedCount < target) {
+            sNumDeadlinesMissed++;
+            Log.w(LOG_TAG, "Gave up waiting for " + (target - sProcessedCount)
+                    + " work items after " + sWaitDeadlineMillis + " ms");
+        }
+        addWaitTimeLocked(System.currentTimeMillis() - startTime);
+    }
+
+    @GuardedBy("sLock")
+    private static void addWaitTimeLocked(long waitTime) {
+        mWaitTimes.add(Long.valueOf(waitTime).intValue());
+        mNumWaits++;
+        sTotalWaitTime += waitTime;
+        sMaxWaitTime = Math.max(sMaxWaitTime, waitTime);
+
+        if (DEBUG || mNumWaits % 1024 == 0 || waitTime > MAX_WAIT_TIME_MILLIS) {
+            mWaitTimes.log(LOG_TAG, "waited: ");
+        }
+    }
+
+    /**
+     * Print how long this process waited in {@link #waitToFinish()}.
+     */
+    public static void dump(String prefix, PrintWriter pw) {
+        synchronized (sLock) {
+            pw.print(prefix); pw.println("QueuedWork:");
+            pw.print(prefix); pw.print("  waits="); pw.print(mNumWaits);
+            pw.print(" total="); pw.print(sTotalWaitTime);
+            pw.print("ms max="); pw.print(sMaxWaitTime);
+            pw.println("ms");
+            pw.print(prefix); pw.print("  deadline="); pw.print(sWaitDeadlineMillis);
+            pw.print("ms missed="); pw.print(sNumDeadlinesMissed);
+            pw.print(" pending="); pw.println(sQueuedCount - sProcessedCount);
+            mWaitTimes.dump(pw, prefix + "  waited: ");
+        }
+    }
+
+    /**
+     * Override the deadline read from {@value #WAIT_DEADLINE_PROPERTY}.
+     *
+     * @param deadlineMillis The new deadline; unbounded if <= 0
+     * @return The deadline that was in effect before
+     */
+    @VisibleForTesting
+    public static long setWaitDeadlineMillis(long deadlineMillis) {
+        // Make sure creating the handler doesn't override the deadline later on
+        getHandler();
+
+        synchronized (sLock) {
+            final long oldDeadlineMillis = sWaitDeadlineMillis;
+            sWaitDeadlineMillis = deadlineMillis;
+            return oldDeadlineMillis;
         }
     }
 
@@ -217,6 +337,7 @@ public class QueuedWork {
 
         synchronized (sLock) {
             sWork.add(work);
+            sQueuedCount++;
 
             if (shouldDelay && sCanDelay) {
                 handler.sendEmptyMessageDelayed(QueuedWorkHandler.MSG_RUN, DELAY);
@@ -255,7 +376,14 @@ public class QueuedWork {
 
             if (work.size() > 0) {
                 for (Runnable w : work) {
-                    w.run();
+                    try {
+                        w.run();
+                    } finally {
+                        synchronized (sLock) {
+                            sProcessedCount++;
+                            sLock.notifyAll();
+                        }
+                    }
                 }
 
                 if (DEBUG) {
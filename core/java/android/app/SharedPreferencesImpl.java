@@ -17,6 +17,7 @@
 package android.app;
 
 import android.annotation.Nullable;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
@@ -39,6 +40,12 @@ import com.google.android.collect.Maps;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -52,6 +59,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
 
 final class SharedPreferencesImpl implements SharedPreferences {
     private static final String TAG = "SharedPreferencesImpl";
@@ -61,12 +69,30 @@ final class SharedPreferencesImpl implements SharedPreferences {
     /** If a fsync takes more than {@value #MAX_FSYNC_DURATION_MILLIS} ms, warn */
     private static final long MAX_FSYNC_DURATION_MILLIS = 256;
 
+    private static final int LOG_MAGIC = 0x5350524c; // SPRL
+    private static final int LOG_VERSION = 1;
+
+    /**
+     * The log is folded back into the xml file once it grows past the size of the xml file,
+     * or past this many bytes for small files.
+     */
+    private static final long MIN_LOG_COMPACTION_BYTES = 16 * 1024;
+
+    private static final byte LOG_TYPE_REMOVE = 0;
+    private static final byte LOG_TYPE_STRING = 1;
+    private static final byte LOG_TYPE_INT = 2;
+    private static final byte LOG_TYPE_LONG = 3;
+    private static final byte LOG_TYPE_FLOAT = 4;
+    private static final byte LOG_TYPE_BOOLEAN = 5;
+    private static final byte LOG_TYPE_STRING_SET = 6;
+
     // Lock ordering rules:
     //  - acquire SharedPreferencesImpl.mLock before EditorImpl.mLock
     //  - acquire mWritingToDiskLock before EditorImpl.mLock
 
     private final File mFile;
     private final File mBackupFile;
+    private final File mLogFile;
     private final int mMode;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
@@ -103,10 +129,39 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final ExponentiallyBucketedHistogram mSyncTimes = new ExponentiallyBucketedHistogram(16);
     private int mNumSync = 0;
 
+    /**
+     * Whether changes are appended to {@link #mLogFile} rather than rewriting the whole xml
+     * file on every commit. Not used with {@link Context#MODE_MULTI_PROCESS}, as other
+     * processes only watch the xml file for changes.
+     */
+    private final boolean mLogEnabled;
+
+    /** Keys changed since the state was last written to disk. */
+    @GuardedBy("mWritingToDiskLock")
+    private final HashSet<String> mUnloggedKeys = new HashSet<>();
+
+    /** Whether the map was cleared since the state was last written to disk. */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean mUnloggedClear;
+
+    /**
+     * Bytes in the log that apply on top of the current xml file; 0 if the log needs to be
+     * started over, -1 if it can't be appended to and the xml file needs to be rewritten.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private long mLogBytes;
+
+    /** Whether a log file, possibly stale, exists and must go away with the next full write. */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean mLogFileExists;
+
     SharedPreferencesImpl(File file, int mode) {
         mFile = file;
         mBackupFile = makeBackupFile(file);
+        mLogFile = makeLogFile(file);
         mMode = mode;
+        mLogEnabled = (mode & Context.MODE_SHARED_PREFERENCES_LOG) != 0
+                && (mode & Context.MODE_MULTI_PROCESS) == 0;
         mLoaded = false;
         mMap = null;
         startLoadFromDisk();
@@ -141,6 +196,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         Map map = null;
         StructStat stat = null;
+        long logBytes = 0;
         try {
             stat = Os.stat(mFile.getPath());
             if (mFile.canRead()) {
@@ -159,6 +215,18 @@ final class SharedPreferencesImpl implements SharedPreferences {
             /* ignore */
         }
 
+        // The log is replayed even when not appending to it anymore, so that no changes are
+        // lost; the next write then folds them into the xml file.
+        if (map != null) {
+            logBytes = readLog(map, stat);
+        }
+        synchronized (mWritingToDiskLock) {
+            mLogBytes = logBytes;
+            mLogFileExists = mLogFile.exists();
+            mUnloggedKeys.clear();
+            mUnloggedClear = false;
+        }
+
         synchronized (mLock) {
             mLoaded = true;
             if (map != null) {
@@ -176,6 +244,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
         return new File(prefsFile.getPath() + ".bak");
     }
 
+    static File makeLogFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".log");
+    }
+
     void startReloadIfChangedUnexpectedly() {
         synchronized (mLock) {
             // TODO: wait for any pending writes to disk?
@@ -324,6 +396,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Nullable final List<String> keysModified;
         @Nullable final Set<OnSharedPreferenceChangeListener> listeners;
         final Map<String, Object> mapToWriteToDisk;
+        /** Keys changed by this commit; only tracked when logging changes. */
+        @Nullable final Set<String> keysChanged;
+        final boolean cleared;
+        /** Whether to rewrite the xml file even if unchanged, to fold the log into it. */
+        final boolean compactLog;
         final CountDownLatch writtenToDiskLatch = new CountDownLatch(1);
 
         @GuardedBy("mWritingToDiskLock")
@@ -332,11 +409,15 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         private MemoryCommitResult(long memoryStateGeneration, @Nullable List<String> keysModified,
                 @Nullable Set<OnSharedPreferenceChangeListener> listeners,
-                Map<String, Object> mapToWriteToDisk) {
+                Map<String, Object> mapToWriteToDisk, @Nullable Set<String> keysChanged,
+                boolean cleared, boolean compactLog) {
             this.memoryStateGeneration = memoryStateGeneration;
             this.keysModified = keysModified;
             this.listeners = listeners;
             this.mapToWriteToDisk = mapToWriteToDisk;
+            this.keysChanged = keysChanged;
+            this.cleared = cleared;
+            this.compactLog = compactLog;
         }
 
         void setDiskWriteResult(boolean wasWritten, boolean result) {
@@ -450,6 +531,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
             List<String> keysModified = null;
             Set<OnSharedPreferenceChangeListener> listeners = null;
             Map<String, Object> mapToWriteToDisk;
+            Set<String> keysChanged = null;
+            boolean cleared = false;
 
             synchronized (SharedPreferencesImpl.this.mLock) {
                 // We optimistically don't make a deep copy until
@@ -477,6 +560,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     if (mClear) {
                         if (!mMap.isEmpty()) {
                             changesMade = true;
+                            cleared = true;
                             mMap.clear();
                         }
                         mClear = false;
@@ -507,6 +591,12 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (hasListeners) {
                             keysModified.add(k);
                         }
+                        if (mLogEnabled) {
+                            if (keysChanged == null) {
+                                keysChanged = new HashSet<>();
+                            }
+                            keysChanged.add(k);
+                        }
                     }
 
                     mModified.clear();
@@ -519,7 +609,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 }
             }
             return new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
-                    mapToWriteToDisk);
+                    mapToWriteToDisk, keysChanged, cleared, false /* compactLog */);
         }
 
         public boolean commit() {
@@ -662,6 +752,13 @@ final class SharedPreferencesImpl implements SharedPreferences {
             startTime = System.currentTimeMillis();
         }
 
+        // Results are written in order, so these add up to the changes between the state on
+        // disk and the state of any result, including the ones that are skipped below.
+        if (mcr.keysChanged != null) {
+            mUnloggedKeys.addAll(mcr.keysChanged);
+        }
+        mUnloggedClear |= mcr.cleared;
+
         boolean fileExists = mFile.exists();
 
         if (DEBUG) {
@@ -676,7 +773,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
             boolean needsWrite = false;
 
             // Only need to write if the disk state is older than this commit
-            if (mDiskStateGeneration < mcr.memoryStateGeneration) {
+            if (mDiskStateGeneration < mcr.memoryStateGeneration || mcr.compactLog) {
                 if (isFromSyncCommit) {
                     needsWrite = true;
                 } else {
@@ -695,6 +792,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 return;
             }
 
+            if (mLogEnabled && !mcr.compactLog && appendToLog(mcr)) {
+                return;
+            }
+
             boolean backupFileExists = mBackupFile.exists();
 
             if (DEBUG) {
@@ -759,6 +860,15 @@ final class SharedPreferencesImpl implements SharedPreferences {
             // Writing was successful, delete the backup file if there is one.
             mBackupFile.delete();
 
+            // The new file has all the logged changes, and the log doesn't apply to it anymore.
+            if (mLogFileExists) {
+                mLogFile.delete();
+                mLogFileExists = false;
+            }
+            mLogBytes = 0;
+            mUnloggedKeys.clear();
+            mUnloggedClear = false;
+
             if (DEBUG) {
                 deleteTime = System.currentTimeMillis();
             }
@@ -801,4 +911,247 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
         mcr.setDiskWriteResult(false, false);
     }
+
+    /**
+     * Folds the log, if there is one, into the xml file, so that readers of the xml file such
+     * as backups see every change. Blocks until the file is written.
+     */
+    void compactLog() {
+        synchronized (mLock) {
+            awaitLoadedLocked();
+        }
+        synchronized (mWritingToDiskLock) {
+            if (!mLogFileExists) {
+                return;
+            }
+            final MemoryCommitResult mcr;
+            synchronized (mLock) {
+                // Commits made while the map is written copy it before changing it.
+                mDiskWritesInFlight++;
+                mcr = new MemoryCommitResult(mCurrentMemoryStateGeneration, null, null, mMap,
+                        null, false, true /* compactLog */);
+            }
+            writeToFile(mcr, true);
+            synchronized (mLock) {
+                mDiskWritesInFlight--;
+            }
+        }
+    }
+
+    /**
+     * Appends the values of the keys changed since the last disk write to the log.
+     *
+     * @return {@code true} if the changes were logged and {@code mcr} is complete;
+     *         {@code false} if the whole file needs to be written instead.
+     */
+    // Note: must hold mWritingToDiskLock
+    private boolean appendToLog(MemoryCommitResult mcr) {
+        if (mLogBytes < 0 || mUnloggedClear) {
+            return false;
+        }
+
+        final byte[] payload;
+        final long snapshotSize;
+        final StructTimespec snapshotTimestamp;
+        synchronized (mLock) {
+            snapshotSize = mStatSize;
+            snapshotTimestamp = mStatTimestamp;
+        }
+        if (snapshotTimestamp == null) {
+            return false;
+        }
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(mUnloggedKeys.size());
+            for (String key : mUnloggedKeys) {
+                out.writeUTF(key);
+                writeLogValue(out, mcr.mapToWriteToDisk.get(key));
+            }
+            out.flush();
+            payload = bytes.toByteArray();
+        } catch (IOException e) {
+            // Values that can't be logged, e.g. very long strings.
+            return false;
+        }
+
+        final boolean startLog = mLogBytes == 0;
+        final long recordBytes = payload.length + 8 /* length and checksum */;
+        if (mLogBytes + recordBytes > Math.max(snapshotSize, MIN_LOG_COMPACTION_BYTES)) {
+            // Time to compact.
+            return false;
+        }
+
+        FileOutputStream str = null;
+        long logBytes = mLogBytes;
+        try {
+            str = new FileOutputStream(mLogFile, !startLog /* append */);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(str));
+            if (startLog) {
+                out.writeInt(LOG_MAGIC);
+                out.writeInt(LOG_VERSION);
+                out.writeLong(snapshotSize);
+                out.writeLong(snapshotTimestamp.tv_sec);
+                out.writeLong(snapshotTimestamp.tv_nsec);
+                logBytes = out.size();
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(payload);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            logBytes += recordBytes;
+
+            final long writeTime = System.currentTimeMillis();
+            FileUtils.sync(str);
+            final long fsyncDuration = System.currentTimeMillis() - writeTime;
+            mSyncTimes.add((int) fsyncDuration);
+            mNumSync++;
+            if (DEBUG || mNumSync % 1024 == 0 || fsyncDuration > MAX_FSYNC_DURATION_MILLIS) {
+                mSyncTimes.log(TAG, "Time required to fsync " + mLogFile + ": ");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "appendToLog: Got exception:", e);
+            // The tail of the log is unknown now, so it can't be appended to anymore.
+            mLogBytes = -1;
+            mLogFileExists = true;
+            return false;
+        } finally {
+            IoUtils.closeQuietly(str);
+        }
+
+        if (startLog) {
+            ContextImpl.setFilePermissionsFromMode(mLogFile.getPath(), mMode, 0);
+        }
+        mLogBytes = logBytes;
+        mLogFileExists = true;
+        mUnloggedKeys.clear();
+        mDiskStateGeneration = mcr.memoryStateGeneration;
+        mcr.setDiskWriteResult(true, true);
+        return true;
+    }
+
+    /**
+     * Applies the changes logged on top of the xml file with the given stat to {@code map}.
+     *
+     * @return the number of bytes in the log if it can be appended to, 0 if there is no log
+     *         for this xml file, or -1 if the log is damaged and needs to be compacted.
+     */
+    private long readLog(Map map, StructStat stat) {
+        DataInputStream in = null;
+        long logBytes = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mLogFile)));
+            if (in.readInt() != LOG_MAGIC || in.readInt() != LOG_VERSION) {
+                Log.w(TAG, "Ignoring log with unknown format " + mLogFile);
+                return 0;
+            }
+            if (in.readLong() != stat.st_size || in.readLong() != stat.st_mtim.tv_sec
+                    || in.readLong() != stat.st_mtim.tv_nsec) {
+                // Left behind by a write of the xml file that got interrupted before the log
+                // was deleted; the xml file already has all of it.
+                return 0;
+            }
+            logBytes = 4 + 4 + 8 * 3;
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != in.readInt()) {
+                    throw new IOException("Checksum mismatch at " + logBytes);
+                }
+                final DataInputStream record = new DataInputStream(
+                        new ByteArrayInputStream(payload));
+                for (int count = record.readInt(); count > 0; count--) {
+                    final String key = record.readUTF();
+                    final Object value = readLogValue(record);
+                    if (value == null) {
+                        map.remove(key);
+                    } else {
+                        map.put(key, value);
+                    }
+                }
+                logBytes += length + 8;
+            }
+            return logBytes;
+        } catch (FileNotFoundException e) {
+            return 0;
+        } catch (IOException e) {
+            // A torn tail from a crash mid-append; keep what was readable.
+            Log.w(TAG, "Truncated log " + mLogFile + ": " + e);
+            return -1;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private static void writeLogValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(LOG_TYPE_REMOVE);
+        } else if (value instanceof String) {
+            out.writeByte(LOG_TYPE_STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(LOG_TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LOG_TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(LOG_TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(LOG_TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Set) {
+            final Set<String> set = (Set<String>) value;
+            out.writeByte(LOG_TYPE_STRING_SET);
+            out.writeInt(set.size());
+            for (String s : set) {
+                if (s == null) {
+                    throw new IOException("Can't log null in string set");
+                }
+                out.writeUTF(s);
+            }
+        } else {
+            throw new IOException("Can't log value of " + value.getClass());
+        }
+    }
+
+    private static Object readLogValue(DataInputStream in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case LOG_TYPE_REMOVE:
+                return null;
+            case LOG_TYPE_STRING:
+                return in.readUTF();
+            case LOG_TYPE_INT:
+                return in.readInt();
+            case LOG_TYPE_LONG:
+                return in.readLong();
+            case LOG_TYPE_FLOAT:
+                return in.readFloat();
+            case LOG_TYPE_BOOLEAN:
+                return in.readBoolean();
+            case LOG_TYPE_STRING_SET: {
+                final int size = in.readInt();
+                final HashSet<String> set = new HashSet<>(size);
+                for (int i = 0; i < size; i++) {
+                    set.add(in.readUTF());
+                }
+                return set;
+            }
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
 }
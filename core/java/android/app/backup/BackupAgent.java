@@ -158,6 +158,9 @@ public abstract class BackupAgent extends ContextWrapper {
         @Override
         public void run() {
             QueuedWork.waitToFinish();
+            // Backups read the preferences files, which don't have the changes that are
+            // still in their logs.
+            compactSharedPreferencesLogs();
             mLatch.countDown();
         }
     };
@@ -98,6 +98,8 @@ public class SharedPreferencesBackupHelper extends FileBackupHelperBase implemen
         // If a SharedPreference has an outstanding write in flight,
         // wait for it to finish flushing to disk.
         QueuedWork.waitToFinish();
+        // ... and for changes that were only logged to be folded into the files.
+        context.compactSharedPreferencesLogs();
 
         // make filenames for the prefGroups
         String[] prefGroups = mPrefGroups;
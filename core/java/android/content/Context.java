@@ -101,6 +101,7 @@ public abstract class Context {
             MODE_WORLD_READABLE,
             MODE_WORLD_WRITEABLE,
             MODE_MULTI_PROCESS,
+            MODE_SHARED_PREFERENCES_LOG,
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface PreferencesMode {}
@@ -218,6 +219,16 @@ public abstract class Context {
      */
     public static final int MODE_NO_LOCALIZED_COLLATORS = 0x0010;
 
+    /**
+     * SharedPreference loading flag: when set, commits append the changed keys to a log next
+     * to the preferences file instead of rewriting the whole file, which is only rewritten once
+     * the log has grown past its size. Ignored together with {@link #MODE_MULTI_PROCESS}.
+     *
+     * @see #getSharedPreferences
+     * @hide
+     */
+    public static final int MODE_SHARED_PREFERENCES_LOG = 0x0020;
+
     /** @hide */
     @IntDef(flag = true,
             value = {
@@ -817,6 +828,15 @@ public abstract class Context {
     /** @hide */
     public abstract void reloadSharedPreferences();
 
+    /**
+     * Folds the change logs of shared preferences written with
+     * {@link #MODE_SHARED_PREFERENCES_LOG} into their files, so that code reading the files
+     * directly, such as backups, sees every change. Blocks until the files are written.
+     *
+     * @hide
+     */
+    public abstract void compactSharedPreferencesLogs();
+
     /**
      * Open a private file associated with this Context's application package
      * for reading.
@@ -179,6 +179,12 @@ public class ContextWrapper extends Context {
         mBase.reloadSharedPreferences();
     }
 
+    /** @hide */
+    @Override
+    public void compactSharedPreferencesLogs() {
+        mBase.compactSharedPreferencesLogs();
+    }
+
     @Override
     public boolean moveSharedPreferencesFrom(Context sourceContext, String name) {
         return mBase.moveSharedPreferencesFrom(sourceContext, name);
@@ -20,6 +20,8 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.PooledStringReader;
+import android.os.PooledStringWriter;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -36,6 +38,10 @@ import java.util.List;
  * a different result if the class name encoded in the Parcelable is a Base type.
  * See b/17671747.
  *
+ * List elements often repeat the same package, class and permission names, so the
+ * strings of each parcel of elements are pooled: each distinct string is only written
+ * once per parcel, and read back as a single instance.
+ *
  * @hide
  */
 abstract class BaseParceledListSlice<T> implements Parcelable {
@@ -48,6 +54,12 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
      */
     private static final int MAX_IPC_SIZE = IBinder.MAX_IPC_SIZE;
 
+    /*
+     * Lists shorter than this are written without pooling their strings, which
+     * costs an index per distinct string.
+     */
+    private static final int MIN_POOLED_LIST_SIZE = 2;
+
     private final List<T> mList;
 
     private int mInlineCountLimit = Integer.MAX_VALUE;
@@ -67,24 +79,32 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
 
         Parcelable.Creator<?> creator = readParcelableCreator(p, loader);
         Class<?> listElementClass = null;
+        final boolean pooled = p.readInt() != 0;
 
         int i = 0;
-        while (i < N) {
-            if (p.readInt() == 0) {
-                break;
-            }
+        PooledStringReader stringReader = pooled ? startReadingStrings(p) : null;
+        try {
+            while (i < N) {
+                if (p.readInt() == 0) {
+                    break;
+                }
 
-            final T parcelable = readCreator(creator, p, loader);
-            if (listElementClass == null) {
-                listElementClass = parcelable.getClass();
-            } else {
-                verifySameType(listElementClass, parcelable.getClass());
-            }
+                final T parcelable = readCreator(creator, p, loader);
+                if (listElementClass == null) {
+                    listElementClass = parcelable.getClass();
+                } else {
+                    verifySameType(listElementClass, parcelable.getClass());
+                }
 
-            mList.add(parcelable);
+                mList.add(parcelable);
 
-            if (DEBUG) Log.d(TAG, "Read inline #" + i + ": " + mList.get(mList.size()-1));
-            i++;
+                if (DEBUG) Log.d(TAG, "Read inline #" + i + ": " + mList.get(mList.size()-1));
+                i++;
+            }
+        } finally {
+            if (stringReader != null) {
+                stringReader.uninstall();
+            }
         }
         if (i >= N) {
             return;
@@ -101,20 +121,39 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
                 Log.w(TAG, "Failure retrieving array; only received " + i + " of " + N, e);
                 return;
             }
-            while (i < N && reply.readInt() != 0) {
-                final T parcelable = readCreator(creator, reply, loader);
-                verifySameType(listElementClass, parcelable.getClass());
+            stringReader = pooled ? startReadingStrings(reply) : null;
+            try {
+                while (i < N && reply.readInt() != 0) {
+                    final T parcelable = readCreator(creator, reply, loader);
+                    verifySameType(listElementClass, parcelable.getClass());
 
-                mList.add(parcelable);
+                    mList.add(parcelable);
 
-                if (DEBUG) Log.d(TAG, "Read extra #" + i + ": " + mList.get(mList.size()-1));
-                i++;
+                    if (DEBUG) Log.d(TAG, "Read extra #" + i + ": " + mList.get(mList.size()-1));
+                    i++;
+                }
+            } finally {
+                if (stringReader != null) {
+                    stringReader.uninstall();
+                }
             }
             reply.recycle();
             data.recycle();
         }
     }
 
+    private static PooledStringReader startReadingStrings(Parcel p) {
+        final PooledStringReader reader = new PooledStringReader(p);
+        reader.install();
+        return reader;
+    }
+
+    private static PooledStringWriter startWritingStrings(Parcel p) {
+        final PooledStringWriter writer = new PooledStringWriter(p);
+        writer.install();
+        return writer;
+    }
+
     private T readCreator(Parcelable.Creator<?> creator, Parcel p, ClassLoader loader) {
         if (creator instanceof Parcelable.ClassLoaderCreator<?>) {
             Parcelable.ClassLoaderCreator<?> classLoaderCreator =
@@ -158,16 +197,26 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
         if (N > 0) {
             final Class<?> listElementClass = mList.get(0).getClass();
             writeParcelableCreator(mList.get(0), dest);
+            // Strings can't be pooled if something else is already rewriting them.
+            final boolean pooled = N >= MIN_POOLED_LIST_SIZE && !dest.hasReadWriteHelper();
+            dest.writeInt(pooled ? 1 : 0);
             int i = 0;
-            while (i < N && i < mInlineCountLimit && dest.dataSize() < MAX_IPC_SIZE) {
-                dest.writeInt(1);
+            PooledStringWriter stringWriter = pooled ? startWritingStrings(dest) : null;
+            try {
+                while (i < N && i < mInlineCountLimit && dest.dataSize() < MAX_IPC_SIZE) {
+                    dest.writeInt(1);
 
-                final T parcelable = mList.get(i);
-                verifySameType(listElementClass, parcelable.getClass());
-                writeElement(parcelable, dest, callFlags);
+                    final T parcelable = mList.get(i);
+                    verifySameType(listElementClass, parcelable.getClass());
+                    writeElement(parcelable, dest, callFlags);
 
-                if (DEBUG) Log.d(TAG, "Wrote inline #" + i + ": " + mList.get(i));
-                i++;
+                    if (DEBUG) Log.d(TAG, "Wrote inline #" + i + ": " + mList.get(i));
+                    i++;
+                }
+            } finally {
+                if (stringWriter != null) {
+                    stringWriter.finish();
+                }
             }
             if (i < N) {
                 dest.writeInt(0);
@@ -180,15 +229,23 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
                         }
                         int i = data.readInt();
                         if (DEBUG) Log.d(TAG, "Writing more @" + i + " of " + N);
-                        while (i < N && reply.dataSize() < MAX_IPC_SIZE) {
-                            reply.writeInt(1);
+                        final PooledStringWriter stringWriter =
+                                pooled ? startWritingStrings(reply) : null;
+                        try {
+                            while (i < N && reply.dataSize() < MAX_IPC_SIZE) {
+                                reply.writeInt(1);
 
-                            final T parcelable = mList.get(i);
-                            verifySameType(listElementClass, parcelable.getClass());
-                            writeElement(parcelable, reply, callFlags);
+                                final T parcelable = mList.get(i);
+                                verifySameType(listElementClass, parcelable.getClass());
+                                writeElement(parcelable, reply, callFlags);
 
-                            if (DEBUG) Log.d(TAG, "Wrote extra #" + i + ": " + mList.get(i));
-                            i++;
+                                if (DEBUG) Log.d(TAG, "Wrote extra #" + i + ": " + mList.get(i));
+                                i++;
+                            }
+                        } finally {
+                            if (stringWriter != null) {
+                                stringWriter.finish();
+                            }
                         }
                         if (i < N) {
                             if (DEBUG) Log.d(TAG, "Breaking @" + i + " of " + N);
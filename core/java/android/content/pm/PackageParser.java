@@ -101,7 +101,10 @@ import libcore.util.EmptyArray;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -1086,6 +1089,39 @@ public class PackageParser {
         return serialized;
     }
 
+    /** Leads the header that identifies the package file a cache entry was created from. */
+    private static final int CACHE_HEADER_MAGIC = 0x50504348; // PPCH
+
+    /**
+     * Returns the header stored in front of the cache entry for {@code packageFile}: its
+     * absolute path, modification time and size. An entry is only used while all three still
+     * match, so an entry is never mistaken for another package with the same cache key, nor
+     * used for a package that was replaced in a way that preserved its mod-time.
+     *
+     * @return the header, or {@code null} if {@code packageFile} can't be stat'ed.
+     */
+    private static byte[] getCacheHeader(File packageFile) {
+        final StructStat stat;
+        try {
+            stat = android.system.Os.stat(packageFile.getAbsolutePath());
+        } catch (ErrnoException ee) {
+            return null;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(CACHE_HEADER_MAGIC);
+            out.writeUTF(packageFile.getAbsolutePath());
+            out.writeLong(stat.st_mtime);
+            out.writeLong(stat.st_size);
+            out.flush();
+        } catch (IOException e) {
+            // Can't happen with an in-memory stream.
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
     /**
      * Given a {@code packageFile} and a {@code cacheFile} returns whether the
      * cache file is up to date based on the mod-time of both files.
@@ -1128,15 +1164,27 @@ public class PackageParser {
 
         final String cacheKey = getCacheKey(packageFile, flags);
         final File cacheFile = new File(mCacheDir, cacheKey);
+        final byte[] header = getCacheHeader(packageFile);
+        if (header == null) {
+            return null;
+        }
 
         try {
-            // If the cache is not up to date, return null.
-            if (!isCacheUpToDate(packageFile, cacheFile)) {
+            final byte[] bytes;
+            try {
+                bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+
+            // If the cache was created from another file, or the file changed since,
+            // return null.
+            if (bytes.length < header.length
+                    || !Arrays.equals(header, Arrays.copyOf(bytes, header.length))) {
                 return null;
             }
 
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            Package p = fromCacheEntry(bytes);
+            Package p = fromCacheEntry(Arrays.copyOfRange(bytes, header.length, bytes.length));
             if (mCallback != null) {
                 String[] overlayApks = mCallback.getOverlayApks(p.packageName);
                 if (overlayApks != null && overlayApks.length > 0) {
@@ -1177,13 +1225,15 @@ public class PackageParser {
                 }
             }
 
+            final byte[] header = getCacheHeader(packageFile);
             final byte[] cacheEntry = toCacheEntry(parsed);
 
-            if (cacheEntry == null) {
+            if (header == null || cacheEntry == null) {
                 return;
             }
 
             try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
+                fos.write(header);
                 fos.write(cacheEntry);
             } catch (IOException ioe) {
                 Slog.w(TAG, "Error writing cache entry.", ioe);
@@ -25,6 +25,7 @@ import android.content.pm.ActivityInfo;
 import android.content.res.Configuration.NativeConfig;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.SparseArray;
 import android.util.TypedValue;
 
@@ -33,7 +34,9 @@ import dalvik.annotation.optimization.FastNative;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.HashMap;
+import java.util.Objects;
 
 /**
  * Provides access to an application's raw asset files; see {@link Resources}
@@ -76,6 +79,35 @@ public final class AssetManager implements AutoCloseable {
 
     private final TypedValue mValue = new TypedValue();
     private final long[] mOffsets = new long[2];
+
+    /** Size of the direct-mapped cache of resource values, must be a power of two. */
+    private static final int VALUE_CACHE_SIZE = 128;
+    /** Maximum number of resource names whose identifier is cached. */
+    private static final int IDENTIFIER_CACHE_SIZE = 256;
+
+    // Values loaded by getResourceValue() for the current configuration, so that repeated
+    // lookups don't cross into native code.  Cleared when the configuration or the set of
+    // asset paths and overlays changes.  Protected by this.
+    private final int[] mCachedValueIds = new int[VALUE_CACHE_SIZE];
+    private final int[] mCachedValueKeys = new int[VALUE_CACHE_SIZE];
+    private final TypedValue[] mCachedValues = new TypedValue[VALUE_CACHE_SIZE];
+
+    // Identifiers found by getResourceIdentifier(), including names that weren't found.
+    // They don't depend on the configuration, only on the asset paths and overlays.
+    // Protected by this.
+    private final LruCache<IdentifierKey, Integer> mIdentifierCache =
+            new LruCache<>(IDENTIFIER_CACHE_SIZE);
+    // Reused to look up mIdentifierCache without allocating.  Protected by this.
+    private final IdentifierKey mTmpIdentifierKey = new IdentifierKey();
+
+    // Statistics of the caches above and of the calls into native code made to load values,
+    // styled attributes and XML, for all asset managers of the process.  They aren't
+    // protected by a lock shared between asset managers, so they are only approximate.
+    private static int sValueCacheHits;
+    private static int sValueCacheMisses;
+    private static int sIdentifierCacheHits;
+    private static int sIdentifierCacheMisses;
+    private static int sNativeCalls;
     
     // For communication with native code.
     private long mObject;
@@ -180,6 +212,7 @@ public final class AssetManager implements AutoCloseable {
     final CharSequence getResourceBagText(@StringRes int resId, int bagEntryId) {
         synchronized (this) {
             final TypedValue outValue = mValue;
+            sNativeCalls++;
             final int block = loadResourceBagValue(resId, bagEntryId, outValue, true);
             if (block < 0) {
                 return null;
@@ -223,6 +256,18 @@ public final class AssetManager implements AutoCloseable {
     final boolean getResourceValue(@AnyRes int resId, int densityDpi, @NonNull TypedValue outValue,
             boolean resolveRefs) {
         synchronized (this) {
+            final int index = (resId ^ (resId >>> 16)) & (VALUE_CACHE_SIZE - 1);
+            final int key = (densityDpi << 1) | (resolveRefs ? 1 : 0);
+            TypedValue cached = mCachedValues[index];
+            if (cached != null && mCachedValueIds[index] == resId
+                    && mCachedValueKeys[index] == key) {
+                sValueCacheHits++;
+                copyValue(cached, outValue);
+                return true;
+            }
+            sValueCacheMisses++;
+
+            sNativeCalls++;
             final int block = loadResourceValue(resId, (short) densityDpi, outValue, resolveRefs);
             if (block < 0) {
                 return false;
@@ -235,10 +280,61 @@ public final class AssetManager implements AutoCloseable {
             if (outValue.type == TypedValue.TYPE_STRING) {
                 outValue.string = mStringBlocks[block].get(outValue.data);
             }
+
+            if (cached == null) {
+                cached = mCachedValues[index] = new TypedValue();
+            }
+            copyValue(outValue, cached);
+            mCachedValueIds[index] = resId;
+            mCachedValueKeys[index] = key;
             return true;
         }
     }
 
+    private static void copyValue(TypedValue from, TypedValue to) {
+        to.setTo(from);
+        to.changingConfigurations = from.changingConfigurations;
+    }
+
+    /**
+     * Forgets the cached values, which belong to the previous configuration or set of
+     * asset paths.
+     */
+    private void clearValueCacheLocked() {
+        for (int i = 0; i < VALUE_CACHE_SIZE; i++) {
+            mCachedValues[i] = null;
+        }
+    }
+
+    /**
+     * Counts a call into native code made from outside of this class.
+     */
+    /*package*/ static void noteNativeCall() {
+        sNativeCalls++;
+    }
+
+    /**
+     * Returns how many times the asset managers of this process called into native code to
+     * load resource values, styled attributes or XML.  Cached lookups aren't counted.
+     * {@hide}
+     */
+    public static int getNativeCallCount() {
+        return sNativeCalls;
+    }
+
+    /**
+     * Prints the hit rates of the value and identifier caches of the asset managers of this
+     * process.
+     * {@hide}
+     */
+    public static void dumpCacheStats(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Values: cacheHits="); pw.print(sValueCacheHits);
+        pw.print(" misses="); pw.println(sValueCacheMisses);
+        pw.print(prefix); pw.print("Identifiers: cacheHits="); pw.print(sIdentifierCacheHits);
+        pw.print(" misses="); pw.println(sIdentifierCacheMisses);
+        pw.print(prefix); pw.print("Native calls: "); pw.println(sNativeCalls);
+    }
+
     /**
      * Retrieve the text array associated with a particular resource
      * identifier.
@@ -280,6 +376,7 @@ public final class AssetManager implements AutoCloseable {
      */
     final boolean getThemeValue(long theme, @AnyRes int resId, @NonNull TypedValue outValue,
             boolean resolveRefs) {
+        sNativeCalls++;
         final int block = loadThemeAttributeValue(theme, resId, outValue, resolveRefs);
         if (block < 0) {
             return false;
@@ -543,6 +640,7 @@ public final class AssetManager implements AutoCloseable {
             if (!mOpen) {
                 throw new RuntimeException("Assetmanager has been closed");
             }
+            sNativeCalls++;
             long xmlBlock = openXmlAssetNative(cookie, fileName);
             if (xmlBlock != 0) {
                 XmlBlock res = new XmlBlock(this, xmlBlock);
@@ -688,6 +786,8 @@ public final class AssetManager implements AutoCloseable {
         synchronized (this) {
             int res = addAssetPathNative(path, appAsLib);
             makeStringBlocks(mStringBlocks);
+            clearValueCacheLocked();
+            mIdentifierCache.evictAll();
             return res;
         }
     }
@@ -707,6 +807,8 @@ public final class AssetManager implements AutoCloseable {
         synchronized (this) {
             int res = addOverlayPathNative(idmapPath);
             makeStringBlocks(mStringBlocks);
+            clearValueCacheLocked();
+            mIdentifierCache.evictAll();
             return res;
         }
     }
@@ -779,18 +881,81 @@ public final class AssetManager implements AutoCloseable {
      * applications.
      * {@hide}
      */
-    public native final void setConfiguration(int mcc, int mnc, String locale,
+    public final void setConfiguration(int mcc, int mnc, String locale,
+            int orientation, int touchscreen, int density, int keyboard,
+            int keyboardHidden, int navigation, int screenWidth, int screenHeight,
+            int smallestScreenWidthDp, int screenWidthDp, int screenHeightDp,
+            int screenLayout, int uiMode, int colorMode, int majorVersion) {
+        synchronized (this) {
+            setConfigurationNative(mcc, mnc, locale, orientation, touchscreen, density,
+                    keyboard, keyboardHidden, navigation, screenWidth, screenHeight,
+                    smallestScreenWidthDp, screenWidthDp, screenHeightDp, screenLayout, uiMode,
+                    colorMode, majorVersion);
+            clearValueCacheLocked();
+        }
+    }
+
+    private native final void setConfigurationNative(int mcc, int mnc, String locale,
             int orientation, int touchscreen, int density, int keyboard,
             int keyboardHidden, int navigation, int screenWidth, int screenHeight,
             int smallestScreenWidthDp, int screenWidthDp, int screenHeightDp,
             int screenLayout, int uiMode, int colorMode, int majorVersion);
 
+    /**
+     * The arguments of a {@link #getResourceIdentifier} call, any of which may be null.
+     */
+    private static final class IdentifierKey {
+        String name;
+        String defType;
+        String defPackage;
+
+        IdentifierKey set(String name, String defType, String defPackage) {
+            this.name = name;
+            this.defType = defType;
+            this.defPackage = defPackage;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IdentifierKey)) {
+                return false;
+            }
+            final IdentifierKey other = (IdentifierKey) o;
+            return Objects.equals(name, other.name) && Objects.equals(defType, other.defType)
+                    && Objects.equals(defPackage, other.defPackage);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Objects.hashCode(name);
+            result = 31 * result + Objects.hashCode(defType);
+            result = 31 * result + Objects.hashCode(defPackage);
+            return result;
+        }
+    }
+
     /**
      * Retrieve the resource identifier for the given resource name.
      */
-    /*package*/ native final int getResourceIdentifier(String name,
-                                                       String defType,
-                                                       String defPackage);
+    /*package*/ final int getResourceIdentifier(String name, String defType, String defPackage) {
+        synchronized (this) {
+            final Integer cached = mIdentifierCache.get(
+                    mTmpIdentifierKey.set(name, defType, defPackage));
+            if (cached != null) {
+                sIdentifierCacheHits++;
+                return cached;
+            }
+            sIdentifierCacheMisses++;
+            sNativeCalls++;
+            final int id = getResourceIdentifierNative(name, defType, defPackage);
+            mIdentifierCache.put(new IdentifierKey().set(name, defType, defPackage), id);
+            return id;
+        }
+    }
+
+    private native final int getResourceIdentifierNative(String name, String defType,
+            String defPackage);
 
     /*package*/ native final String getResourceName(int resid);
     /*package*/ native final String getResourcePackageName(int resid);
@@ -56,6 +56,7 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.Locale;
 
@@ -105,6 +106,22 @@ public class ResourcesImpl {
     private static final LongSparseArray<android.content.res.ConstantState<ComplexColor>>
             sPreloadedComplexColors = new LongSparseArray<>();
 
+    /** Kinds of resources whose cache hits are counted, see {@link #getCacheHitCount}. */
+    public static final int CACHE_STATS_DRAWABLE = 0;
+    public static final int CACHE_STATS_COLOR_DRAWABLE = 1;
+    public static final int CACHE_STATS_COMPLEX_COLOR = 2;
+    private static final int CACHE_STATS_KINDS = 3;
+    private static final String[] CACHE_STATS_NAMES = {
+            "Drawables", "Color drawables", "Complex colors" };
+
+    // How often loads of each kind were served from the caches of a ResourcesImpl, from the
+    // resources preloaded by the zygote, or missed both.  Like the preloaded resources these
+    // aren't protected by a lock, so the counts are only approximate when resources are
+    // loaded on several threads at once.  Loads made while preloading aren't counted.
+    private static final int[] sCacheHits = new int[CACHE_STATS_KINDS];
+    private static final int[] sPreloadHits = new int[CACHE_STATS_KINDS];
+    private static final int[] sCacheMisses = new int[CACHE_STATS_KINDS];
+
     /** Lock object used to protect access to caches and configuration. */
     private final Object mAccessLock = new Object();
 
@@ -597,6 +614,8 @@ public class ResourcesImpl {
                 final Drawable cachedDrawable = caches.getInstance(key, wrapper, theme);
                 if (cachedDrawable != null) {
                     cachedDrawable.setChangingConfigurations(value.changingConfigurations);
+                    countCacheLookup(sCacheHits, isColorDrawable
+                            ? CACHE_STATS_COLOR_DRAWABLE : CACHE_STATS_DRAWABLE);
                     return cachedDrawable;
                 }
             }
@@ -610,6 +629,9 @@ public class ResourcesImpl {
                 cs = sPreloadedDrawables[mConfiguration.getLayoutDirection()].get(key);
             }
 
+            countCacheLookup(cs != null ? sPreloadHits : sCacheMisses, isColorDrawable
+                    ? CACHE_STATS_COLOR_DRAWABLE : CACHE_STATS_DRAWABLE);
+
             Drawable dr;
             boolean needsNewDrawableAfterCache = false;
             if (cs != null) {
@@ -682,6 +704,63 @@ public class ResourcesImpl {
         }
     }
 
+    private void countCacheLookup(int[] counts, int kind) {
+        if (!mPreloading) {
+            counts[kind]++;
+        }
+    }
+
+    /**
+     * Returns how many loads of the given kind of resource, one of the CACHE_STATS_
+     * constants, were served from the caches of a ResourcesImpl in this process.
+     */
+    public static int getCacheHitCount(int kind) {
+        return sCacheHits[kind];
+    }
+
+    /**
+     * Returns how many loads of the given kind of resource were served from the resources
+     * preloaded by the zygote.
+     */
+    public static int getPreloadHitCount(int kind) {
+        return sPreloadHits[kind];
+    }
+
+    /**
+     * Returns how many loads of the given kind of resource had to be decoded.
+     */
+    public static int getCacheMissCount(int kind) {
+        return sCacheMisses[kind];
+    }
+
+    /**
+     * Prints the hit rates of the resource caches of this process, and how many resources
+     * the zygote preloaded.
+     */
+    public static void dumpCacheStats(PrintWriter pw, String prefix) {
+        for (int kind = 0; kind < CACHE_STATS_KINDS; kind++) {
+            final int cacheHits = sCacheHits[kind];
+            final int preloadHits = sPreloadHits[kind];
+            final int misses = sCacheMisses[kind];
+            final int total = cacheHits + preloadHits + misses;
+            pw.print(prefix); pw.print(CACHE_STATS_NAMES[kind]);
+            pw.print(": loads="); pw.print(total);
+            pw.print(" cacheHits="); pw.print(cacheHits);
+            pw.print(" preloadHits="); pw.print(preloadHits);
+            pw.print(" misses="); pw.print(misses);
+            if (total > 0) {
+                pw.print(" hitRate="); pw.print((cacheHits + preloadHits) * 100 / total);
+                pw.print('%');
+            }
+            pw.println();
+        }
+        pw.print(prefix); pw.print("Preloaded: drawables(ltr/rtl)=");
+        pw.print(sPreloadedDrawables[0].size()); pw.print('/');
+        pw.print(sPreloadedDrawables[1].size());
+        pw.print(" colorDrawables="); pw.print(sPreloadedColorDrawables.size());
+        pw.print(" complexColors="); pw.println(sPreloadedComplexColors.size());
+    }
+
     private void cacheDrawable(TypedValue value, boolean isColorDrawable, DrawableCache caches,
             Resources.Theme theme, boolean usesTheme, long key, Drawable dr) {
         final Drawable.ConstantState cs = dr.getConstantState();
@@ -916,11 +995,14 @@ public class ResourcesImpl {
         final ConfigurationBoundResourceCache<ComplexColor> cache = mComplexColorCache;
         ComplexColor complexColor = cache.getInstance(key, wrapper, theme);
         if (complexColor != null) {
+            countCacheLookup(sCacheHits, CACHE_STATS_COMPLEX_COLOR);
             return complexColor;
         }
 
         final android.content.res.ConstantState<ComplexColor> factory =
                 sPreloadedComplexColors.get(key);
+        countCacheLookup(factory != null ? sPreloadHits : sCacheMisses,
+                CACHE_STATS_COMPLEX_COLOR);
 
         if (factory != null) {
             complexColor = factory.newInstance(wrapper, theme);
@@ -1020,6 +1102,8 @@ public class ResourcesImpl {
         ColorStateList csl;
         final android.content.res.ConstantState<ComplexColor> factory =
                 sPreloadedComplexColors.get(key);
+        countCacheLookup(factory != null ? sPreloadHits : sCacheMisses,
+                CACHE_STATS_COMPLEX_COLOR);
         if (factory != null) {
             return (ColorStateList) factory.newInstance();
         }
@@ -1307,6 +1391,7 @@ public class ResourcesImpl {
                 // out the attributes from the XML file (applying type information
                 // contained in the resources and such).
                 final XmlBlock.Parser parser = (XmlBlock.Parser) set;
+                AssetManager.noteNativeCall();
                 AssetManager.applyStyle(mTheme, defStyleAttr, defStyleRes,
                         parser != null ? parser.mParseState : 0,
                         attrs, attrs.length, array.mDataAddress, array.mIndicesAddress);
@@ -1329,6 +1414,7 @@ public class ResourcesImpl {
                 }
 
                 final TypedArray array = TypedArray.obtain(wrapper.getResources(), len);
+                AssetManager.noteNativeCall();
                 AssetManager.resolveAttrs(mTheme, 0, 0, values, attrs, array.mData, array.mIndices);
                 array.mTheme = wrapper;
                 array.mXml = null;
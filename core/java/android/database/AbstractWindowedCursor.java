@@ -87,6 +87,68 @@ public abstract class AbstractWindowedCursor extends AbstractCursor {
         return mWindow.getDouble(mPos, columnIndex);
     }
 
+    /**
+     * Copies the values of a column for a range of rows into an array, converting each
+     * value as {@link #getLong} does.  Each cursor window the rows span is copied with a
+     * single call, and the cursor is left on the last row copied.
+     *
+     * @param columnIndex The zero-based column index.
+     * @param position The position of the first row to copy.
+     * @param numRows The number of rows to copy.
+     * @param dest The array to copy the values into.
+     * @param destOffset The index in {@code dest} of the value of the first row.
+     * @return The number of rows copied, fewer than {@code numRows} if the cursor
+     * ran out of rows.
+     *
+     * @hide
+     */
+    public int copyLongColumn(int columnIndex, int position, int numRows, long[] dest,
+            int destOffset) {
+        int copied = 0;
+        while (copied < numRows && moveToPosition(position + copied)) {
+            checkPosition();
+            final int count = Math.min(numRows - copied,
+                    mWindow.getStartPosition() + mWindow.getNumRows() - mPos);
+            mWindow.copyLongColumn(columnIndex, mPos, count, dest, destOffset + copied);
+            copied += count;
+        }
+        if (copied > 0) {
+            moveToPosition(position + copied - 1);
+        }
+        return copied;
+    }
+
+    /**
+     * Copies the values of a column for a range of rows into an array, converting each
+     * value as {@link #getDouble} does.  Each cursor window the rows span is copied with a
+     * single call, and the cursor is left on the last row copied.
+     *
+     * @param columnIndex The zero-based column index.
+     * @param position The position of the first row to copy.
+     * @param numRows The number of rows to copy.
+     * @param dest The array to copy the values into.
+     * @param destOffset The index in {@code dest} of the value of the first row.
+     * @return The number of rows copied, fewer than {@code numRows} if the cursor
+     * ran out of rows.
+     *
+     * @hide
+     */
+    public int copyDoubleColumn(int columnIndex, int position, int numRows, double[] dest,
+            int destOffset) {
+        int copied = 0;
+        while (copied < numRows && moveToPosition(position + copied)) {
+            checkPosition();
+            final int count = Math.min(numRows - copied,
+                    mWindow.getStartPosition() + mWindow.getNumRows() - mPos);
+            mWindow.copyDoubleColumn(columnIndex, mPos, count, dest, destOffset + copied);
+            copied += count;
+        }
+        if (copied > 0) {
+            moveToPosition(position + copied - 1);
+        }
+        return copied;
+    }
+
     @Override
     public boolean isNull(int columnIndex) {
         checkPosition();
@@ -18,6 +18,10 @@ package android.database;
 
 import android.net.Uri;
 import android.os.*;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 
 
 /**
@@ -28,6 +32,15 @@ import android.os.*;
  * window to be filled and ensures it gets closed as needed during deactivation
  * and requeries.
  * </p>
+ * <p>
+ * Once the client asks for the window that starts right after the one it was last given,
+ * the adaptor assumes a forward scan and streams: it fills windows of its own straight from
+ * the cursor and fills the next window in the background while the client reads the current
+ * one. Streaming windows grow when rows turn out to be too wide to fill a window with a
+ * reasonable number of them, so that wide results need fewer refills.  Windows only grow,
+ * and are only filled ahead, while the windows of all adaptors in the process stay within a
+ * budget.
+ * </p>
  *
  * {@hide}
  */
@@ -51,6 +64,36 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
      * This field is only ever non-null when the window has actually be filled.
      */
     private CursorWindow mFilledWindow;
+    private int mFilledWindowSize;
+
+    // Streaming windows hold at least this many rows, unless that needs windows larger than
+    // the default size times STREAMING_MAX_WINDOW_SIZE_FACTOR.
+    private static final int STREAMING_MIN_ROWS_PER_WINDOW = 100;
+    private static final int STREAMING_MAX_WINDOW_SIZE_FACTOR = 8;
+
+    // Streaming windows only grow, and the next one is only filled ahead, while the windows of
+    // all adaptors in the process take up no more than the default size times this.
+    private static final int STREAMING_MAX_TOTAL_SIZE_FACTOR = 16;
+
+    private static final Object sWindowBytesLock = new Object();
+
+    /** Size of the windows held by all adaptors in the process. */
+    @GuardedBy("sWindowBytesLock")
+    private static long sWindowBytes;
+
+    /**
+     * The position right after the last window handed out, or -1 if the client isn't known
+     * to scan forward.
+     */
+    private int mNextPosition = -1;
+
+    /** The window the next streaming window is being filled into. */
+    private CursorWindow mPrefetchWindow;
+    private int mPrefetchWindowSize;
+    private boolean mPrefetchFilled;
+    private int mPrefetchGeneration;
+
+    private int mStreamingWindowSize;
 
     private static final class ContentObserverProxy extends ContentObserver {
         protected IContentObserver mRemote;
@@ -99,11 +142,53 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
         }
     }
 
+    private CursorWindow newWindow(int size) {
+        addWindowBytes(size);
+        return new CursorWindow(mProviderName, size);
+    }
+
+    private static void closeWindow(CursorWindow window, int size) {
+        window.close();
+        addWindowBytes(-size);
+    }
+
+    private static void addWindowBytes(int bytes) {
+        synchronized (sWindowBytesLock) {
+            sWindowBytes += bytes;
+        }
+    }
+
+    /** Returns whether another window of {@code size} fits in the streaming budget. */
+    private static boolean hasRoomForWindow(int size) {
+        final long maxBytes = (long) CursorWindow.getDefaultCursorWindowSize()
+                * STREAMING_MAX_TOTAL_SIZE_FACTOR;
+        synchronized (sWindowBytesLock) {
+            return sWindowBytes + size <= maxBytes;
+        }
+    }
+
+    /**
+     * Returns the size of the windows held by all adaptors in this process.
+     * @hide
+     */
+    @VisibleForTesting
+    public static long getWindowBytes() {
+        synchronized (sWindowBytesLock) {
+            return sWindowBytes;
+        }
+    }
+
     private void closeFilledWindowLocked() {
         if (mFilledWindow != null) {
-            mFilledWindow.close();
+            closeWindow(mFilledWindow, mFilledWindowSize);
             mFilledWindow = null;
         }
+        if (mPrefetchWindow != null) {
+            closeWindow(mPrefetchWindow, mPrefetchWindowSize);
+            mPrefetchWindow = null;
+        }
+        mPrefetchGeneration++;
+        mNextPosition = -1;
     }
 
     private void disposeLocked() {
@@ -158,24 +243,35 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
         synchronized (mLock) {
             throwIfCursorIsClosed();
 
-            if (!mCursor.moveToPosition(position)) {
-                closeFilledWindowLocked();
-                return null;
-            }
-
-            CursorWindow window = mCursor.getWindow();
-            if (window != null) {
-                closeFilledWindowLocked();
+            CursorWindow window;
+            if (position == mNextPosition && position < mCursor.getCount()) {
+                window = getStreamingWindowLocked(position);
             } else {
-                window = mFilledWindow;
-                if (window == null) {
-                    mFilledWindow = new CursorWindow(mProviderName);
+                if (!mCursor.moveToPosition(position)) {
+                    closeFilledWindowLocked();
+                    return null;
+                }
+
+                window = mCursor.getWindow();
+                if (window != null) {
+                    closeFilledWindowLocked();
+                } else {
                     window = mFilledWindow;
-                } else if (position < window.getStartPosition()
-                        || position >= window.getStartPosition() + window.getNumRows()) {
-                    window.clear();
+                    if (window == null) {
+                        mFilledWindowSize = CursorWindow.getDefaultCursorWindowSize();
+                        mFilledWindow = newWindow(mFilledWindowSize);
+                        window = mFilledWindow;
+                    } else if (position < window.getStartPosition()
+                            || position >= window.getStartPosition() + window.getNumRows()) {
+                        window.clear();
+                    }
+                    mCursor.fillWindow(position, window);
+                }
+
+                // Cursors that want every move can't be read ahead of the client.
+                if (!mCursor.getWantsAllOnMoveCalls()) {
+                    mNextPosition = window.getStartPosition() + window.getNumRows();
                 }
-                mCursor.fillWindow(position, window);
             }
 
             if (window != null) {
@@ -187,6 +283,97 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
         }
     }
 
+    /**
+     * Gets the window starting at {@code position} while streaming, and starts filling the
+     * window after it.
+     */
+    private CursorWindow getStreamingWindowLocked(int position) {
+        if (mStreamingWindowSize == 0) {
+            mStreamingWindowSize = CursorWindow.getDefaultCursorWindowSize();
+        }
+
+        CursorWindow window = mPrefetchWindow;
+        int windowSize = mPrefetchWindowSize;
+        mPrefetchWindow = null;
+        mPrefetchGeneration++;
+        if (window == null || !mPrefetchFilled || window.getStartPosition() != position) {
+            // The client caught up with the background fill, do it here.
+            if (window == null) {
+                if (!hasRoomForWindow(mStreamingWindowSize)) {
+                    // Too many large windows around, go back to the default size.
+                    mStreamingWindowSize = CursorWindow.getDefaultCursorWindowSize();
+                }
+                windowSize = mStreamingWindowSize;
+                window = newWindow(windowSize);
+            }
+            try {
+                fillStreamingWindowLocked(window, position);
+            } catch (RuntimeException e) {
+                closeWindow(window, windowSize);
+                throw e;
+            }
+        }
+
+        // The client lets go of the window it had when it gets this one, so that one can be
+        // filled next.
+        final CursorWindow recycled = mFilledWindow;
+        final int recycledSize = mFilledWindowSize;
+        mFilledWindow = window;
+        mFilledWindowSize = windowSize;
+        mNextPosition = position + window.getNumRows();
+
+        final int count = mCursor.getCount();
+        if (window.getNumRows() < STREAMING_MIN_ROWS_PER_WINDOW && mNextPosition < count) {
+            final int grownSize = Math.min(mStreamingWindowSize * 2,
+                    CursorWindow.getDefaultCursorWindowSize()
+                            * STREAMING_MAX_WINDOW_SIZE_FACTOR);
+            if (hasRoomForWindow(grownSize)) {
+                mStreamingWindowSize = grownSize;
+            }
+        }
+        if (recycled != null) {
+            if (recycledSize == mStreamingWindowSize && mNextPosition < count) {
+                mPrefetchWindow = recycled;
+            } else {
+                closeWindow(recycled, recycledSize);
+            }
+        }
+        if (mNextPosition < count) {
+            if (mPrefetchWindow == null && hasRoomForWindow(mStreamingWindowSize)) {
+                mPrefetchWindow = newWindow(mStreamingWindowSize);
+            }
+            if (mPrefetchWindow != null) {
+                mPrefetchWindowSize = mStreamingWindowSize;
+                schedulePrefetchLocked(mPrefetchWindow, mNextPosition);
+            }
+        }
+        return window;
+    }
+
+    private void fillStreamingWindowLocked(CursorWindow window, int position) {
+        window.clear();
+        mCursor.fillWindow(position, window);
+    }
+
+    private void schedulePrefetchLocked(final CursorWindow window, final int position) {
+        final int generation = ++mPrefetchGeneration;
+        mPrefetchFilled = false;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            synchronized (mLock) {
+                if (generation != mPrefetchGeneration || mCursor == null) {
+                    return;
+                }
+                try {
+                    fillStreamingWindowLocked(window, position);
+                    mPrefetchFilled = true;
+                } catch (RuntimeException e) {
+                    // Leave it to the client's request to fill the window and report the error.
+                    Log.w(TAG, "Unable to fill cursor window ahead of " + mProviderName, e);
+                }
+            }
+        });
+    }
+
     @Override
     public void onMove(int position) {
         synchronized (mLock) {
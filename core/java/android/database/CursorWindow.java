@@ -75,6 +75,10 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
     private static native double nativeGetDouble(long windowPtr, int row, int column);
     private static native void nativeCopyStringToBuffer(long windowPtr, int row, int column,
             CharArrayBuffer buffer);
+    private static native void nativeCopyLongColumn(long windowPtr, int column, int row,
+            int numRows, long[] dest, int destOffset);
+    private static native void nativeCopyDoubleColumn(long windowPtr, int column, int row,
+            int numRows, double[] dest, int destOffset);
 
     private static native boolean nativePutBlob(long windowPtr, byte[] value, int row, int column);
     private static native boolean nativePutString(long windowPtr, String value, int row, int column);
@@ -94,8 +98,35 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
      * @param name The name of the cursor window, or null if none.
      */
     public CursorWindow(String name) {
+        this(name, getDefaultCursorWindowSize());
+    }
+
+    /**
+     * Creates a new empty cursor window of the given size.
+     *
+     * @param name The name of the cursor window, or null if none.
+     * @param windowSizeBytes Size of the cursor window in bytes.
+     *
+     * @hide
+     */
+    public CursorWindow(String name, int windowSizeBytes) {
         mStartPos = 0;
         mName = name != null && name.length() != 0 ? name : "<unnamed>";
+        mWindowPtr = nativeCreate(mName, windowSizeBytes);
+        if (mWindowPtr == 0) {
+            throw new CursorWindowAllocationException("Cursor window allocation of " +
+                    (windowSizeBytes / 1024) + " kb failed. " + printStats());
+        }
+        mCloseGuard.open("close");
+        recordNewWindow(Binder.getCallingPid(), mWindowPtr);
+    }
+
+    /**
+     * Gets the size in bytes of cursor windows created without an explicit size.
+     *
+     * @hide
+     */
+    public static int getDefaultCursorWindowSize() {
         if (sCursorWindowSize < 0) {
             /** The cursor window size. resource xml file specifies the value in kB.
              * convert it to bytes here by multiplying with 1024.
@@ -103,13 +134,7 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
             sCursorWindowSize = Resources.getSystem().getInteger(
                 com.android.internal.R.integer.config_cursorWindowSize) * 1024;
         }
-        mWindowPtr = nativeCreate(mName, sCursorWindowSize);
-        if (mWindowPtr == 0) {
-            throw new CursorWindowAllocationException("Cursor window allocation of " +
-                    (sCursorWindowSize / 1024) + " kb failed. " + printStats());
-        }
-        mCloseGuard.open("close");
-        recordNewWindow(Binder.getCallingPid(), mWindowPtr);
+        return sCursorWindowSize;
     }
 
     /**
@@ -546,6 +571,63 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
         }
     }
 
+    /**
+     * Copies the values of a column for a range of rows into an array, converting each
+     * value as {@link #getLong} does, with a single native call for the whole range.
+     *
+     * @param column The zero-based column index.
+     * @param row The zero-based index of the first row to copy.
+     * @param numRows The number of rows to copy.
+     * @param dest The array to copy the values into.
+     * @param destOffset The index in {@code dest} of the value of the first row.
+     * @throws IllegalStateException if a row to copy isn't in the window.
+     * @throws ArrayIndexOutOfBoundsException if the values don't fit in {@code dest}.
+     *
+     * @hide
+     */
+    public void copyLongColumn(int column, int row, int numRows, long[] dest, int destOffset) {
+        checkColumnCopyBounds(numRows, dest.length, destOffset);
+        acquireReference();
+        try {
+            nativeCopyLongColumn(mWindowPtr, column, row - mStartPos, numRows, dest, destOffset);
+        } finally {
+            releaseReference();
+        }
+    }
+
+    /**
+     * Copies the values of a column for a range of rows into an array, converting each
+     * value as {@link #getDouble} does, with a single native call for the whole range.
+     *
+     * @param column The zero-based column index.
+     * @param row The zero-based index of the first row to copy.
+     * @param numRows The number of rows to copy.
+     * @param dest The array to copy the values into.
+     * @param destOffset The index in {@code dest} of the value of the first row.
+     * @throws IllegalStateException if a row to copy isn't in the window.
+     * @throws ArrayIndexOutOfBoundsException if the values don't fit in {@code dest}.
+     *
+     * @hide
+     */
+    public void copyDoubleColumn(int column, int row, int numRows, double[] dest,
+            int destOffset) {
+        checkColumnCopyBounds(numRows, dest.length, destOffset);
+        acquireReference();
+        try {
+            nativeCopyDoubleColumn(mWindowPtr, column, row - mStartPos, numRows, dest,
+                    destOffset);
+        } finally {
+            releaseReference();
+        }
+    }
+
+    private static void checkColumnCopyBounds(int numRows, int destLength, int destOffset) {
+        if (numRows < 0 || destOffset < 0 || destOffset > destLength - numRows) {
+            throw new ArrayIndexOutOfBoundsException("Can't copy " + numRows
+                    + " rows at offset " + destOffset + " of an array of length " + destLength);
+        }
+    }
+
     /**
      * Gets the value of the field at the specified row and column index as a
      * <code>short</code>.
@@ -35,6 +35,7 @@ import dalvik.system.CloseGuard;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 
@@ -103,6 +104,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private final PreparedStatementCache mPreparedStatementCache;
     private PreparedStatement mPreparedStatementPool;
 
+    // Hot statements of the pool to prepare once the connection has been acquired.
+    private List<String> mPrewarmStatements;
+
     // The recent operations log.
     private final OperationLog mRecentOperations = new OperationLog();
 
@@ -451,6 +455,42 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         return mPreparedStatementCache.get(sql) != null;
     }
 
+    // Called by SQLiteConnectionPool only.
+    // Sets the statements to prepare ahead of their first use on this connection, by
+    // prewarmPreparedStatements().
+    void setPrewarmStatements(List<String> sqls) {
+        mPrewarmStatements = sqls;
+    }
+
+    // Called by SQLiteConnectionPool only, without holding its lock, by the thread that
+    // acquired the connection.
+    // Prepares the statements set by setPrewarmStatements(), if any.  These compiles don't
+    // count as uses of the statements.
+    // Can't throw.
+    void prewarmPreparedStatements() {
+        final List<String> sqls = mPrewarmStatements;
+        if (sqls == null) {
+            return;
+        }
+        mPrewarmStatements = null;
+        final int count = Math.min(sqls.size(), mConfiguration.maxSqlCacheSize);
+        for (int i = 0; i < count; i++) {
+            final String sql = sqls.get(i);
+            if (mPreparedStatementCache.get(sql) != null) {
+                continue;
+            }
+            try {
+                releasePreparedStatement(acquirePreparedStatement(sql,
+                        false /*normalize*/, false /*countUse*/));
+            } catch (SQLiteException ex) {
+                // The schema might have changed; the statement will fail again when used.
+                if (DEBUG) {
+                    Log.d(TAG, "Could not prewarm statement: " + trimSqlForDisplay(sql), ex);
+                }
+            }
+        }
+    }
+
     /**
      * Gets the unique id of this connection.
      * @return The connection id.
@@ -501,7 +541,10 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             final PreparedStatement statement = acquirePreparedStatement(sql);
             try {
                 if (outStatementInfo != null) {
-                    outStatementInfo.numParameters = statement.mNumParameters;
+                    // The caller doesn't know about the literals that were turned into
+                    // parameters, it binds none.
+                    outStatementInfo.numParameters = statement.mNormalizedArgs != null
+                            ? 0 : statement.mNumParameters;
                     outStatementInfo.readOnly = statement.mReadOnly;
 
                     final int columnCount = nativeGetColumnCount(
@@ -875,18 +918,45 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     }
 
     private PreparedStatement acquirePreparedStatement(String sql) {
+        return acquirePreparedStatement(sql, mConfiguration.normalizeStatements,
+                true /*countUse*/);
+    }
+
+    // normalize: whether sql may be executed through its normalized form.
+    // countUse: whether the lookup counts in the statement statistics of the pool and
+    // toward making the statement hot.
+    private PreparedStatement acquirePreparedStatement(String sql, boolean normalize,
+            boolean countUse) {
         PreparedStatement statement = mPreparedStatementCache.get(sql);
         boolean skipCache = false;
         if (statement != null) {
             if (!statement.mInUse) {
+                if (countUse) {
+                    mPool.onPreparedStatementCacheLookup(true);
+                }
                 return statement;
             }
             // The statement is already in the cache but is in use (this statement appears
             // to be not only re-entrant but recursive!).  So prepare a new copy of the
             // statement but do not cache it.
             skipCache = true;
+        } else if (normalize) {
+            // Statements that only differ in the literal values they compare against never
+            // hit the cache; once such a statement shape recurs, share one statement for it.
+            final ArrayList<Object> literals = new ArrayList<>();
+            final String normalizedSql = SQLiteStatementNormalizer.normalize(sql, literals);
+            if (normalizedSql != null && mPool.isNormalizedStatementHot(normalizedSql)) {
+                statement = acquireNormalizedPreparedStatement(sql, normalizedSql);
+                if (statement != null) {
+                    statement.mNormalizedArgs = literals.toArray();
+                    return statement;
+                }
+            }
         }
 
+        if (countUse) {
+            mPool.onPreparedStatementCacheLookup(false);
+        }
         final long statementPtr = nativePrepareStatement(mConnectionPtr, sql);
         try {
             final int numParameters = nativeGetParameterCount(mConnectionPtr, statementPtr);
@@ -896,6 +966,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             if (!skipCache && isCacheable(type)) {
                 mPreparedStatementCache.put(sql, statement);
                 statement.mInCache = true;
+                if (countUse && readOnly && type == DatabaseUtils.STATEMENT_SELECT) {
+                    mPool.onReadOnlyStatementCompiled(sql);
+                }
             }
         } catch (RuntimeException ex) {
             // Finalize the statement if an exception occurred and we did not add
@@ -909,8 +982,71 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         return statement;
     }
 
+    /**
+     * Acquires the statement for the normalized form of {@code sql}, checking the first time
+     * it is compiled that it describes its result columns like the original statement does;
+     * column names of expressions are derived from their text.
+     *
+     * @return The statement, or null if the original statement should be used instead.
+     */
+    private PreparedStatement acquireNormalizedPreparedStatement(String sql,
+            String normalizedSql) {
+        final PreparedStatement cached = mPreparedStatementCache.get(normalizedSql);
+        if (cached != null && !cached.mInUse) {
+            mPool.onPreparedStatementCacheLookup(true);
+            return cached;
+        }
+
+        final PreparedStatement statement;
+        try {
+            // Already normalized.
+            statement = acquirePreparedStatement(normalizedSql, false /*normalize*/,
+                    true /*countUse*/);
+        } catch (SQLiteException ex) {
+            // A literal was somewhere SQLite doesn't take a parameter.
+            mPool.rejectNormalizedStatement(normalizedSql);
+            return null;
+        }
+        if (cached == null) {
+            final boolean sameColumnNames;
+            try {
+                sameColumnNames = hasSameColumnNames(sql, statement);
+            } catch (RuntimeException ex) {
+                releasePreparedStatement(statement);
+                throw ex;
+            }
+            if (!sameColumnNames) {
+                mPool.rejectNormalizedStatement(normalizedSql);
+                releasePreparedStatement(statement);
+                mPreparedStatementCache.remove(normalizedSql);
+                return null;
+            }
+        }
+        return statement;
+    }
+
+    private boolean hasSameColumnNames(String sql, PreparedStatement normalized) {
+        final long statementPtr = nativePrepareStatement(mConnectionPtr, sql);
+        try {
+            final int columnCount = nativeGetColumnCount(mConnectionPtr, statementPtr);
+            if (columnCount != nativeGetColumnCount(mConnectionPtr, normalized.mStatementPtr)) {
+                return false;
+            }
+            for (int i = 0; i < columnCount; i++) {
+                if (!nativeGetColumnName(mConnectionPtr, statementPtr, i).equals(
+                        nativeGetColumnName(mConnectionPtr, normalized.mStatementPtr, i))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            nativeFinalizeStatement(mConnectionPtr, statementPtr);
+        }
+    }
+
     private void releasePreparedStatement(PreparedStatement statement) {
         statement.mInUse = false;
+        statement.mNormalizedArgs = null;
         if (statement.mInCache) {
             try {
                 nativeResetStatementAndClearBindings(mConnectionPtr, statement.mStatementPtr);
@@ -978,6 +1114,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     }
 
     private void bindArguments(PreparedStatement statement, Object[] bindArgs) {
+        if (statement.mNormalizedArgs != null && (bindArgs == null || bindArgs.length == 0)) {
+            bindArgs = statement.mNormalizedArgs;
+        }
         final int count = bindArgs != null ? bindArgs.length : 0;
         if (count != statement.mNumParameters) {
             throw new SQLiteBindOrColumnIndexOutOfRangeException(
@@ -1249,6 +1388,10 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         // possible for SQLite calls to be re-entrant.  Consequently we need to prevent
         // in use statements from being finalized until they are no longer in use.
         public boolean mInUse;
+
+        // The literal values of the statement being executed, if it was acquired for a
+        // statement that got normalized.  Only set while in use.
+        public Object[] mNormalizedArgs;
     }
 
     private final class PreparedStatementCache
@@ -24,19 +24,24 @@ import android.os.Message;
 import android.os.OperationCanceledException;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.PrefixPrinter;
 import android.util.Printer;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ExponentiallyBucketedHistogram;
 
 import dalvik.system.CloseGuard;
 
 import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
 
 /**
@@ -82,12 +87,38 @@ public final class SQLiteConnectionPool implements Closeable {
     // and logging a message about the connection pool being busy.
     private static final long CONNECTION_POOL_BUSY_MILLIS = 30 * 1000; // 30 seconds
 
+    // Amount of time a request for a non-primary connection waits before an adaptive
+    // pool opens one more connection.
+    private static final long ADAPTIVE_POOL_GROW_WAIT_MILLIS = 20;
+
+    // Amount of time without contention after which an adaptive pool closes one of the
+    // connections it opened beyond its base size.
+    private static final long ADAPTIVE_POOL_SHRINK_IDLE_MILLIS = 10 * 1000; // 10 seconds
+
+    // Number of times a normalized statement shape needs to be seen before statements are
+    // executed in their normalized form.
+    private static final int NORMALIZED_STATEMENT_HOT_COUNT = 4;
+
+    // Number of times connections need to have compiled a read-only statement before it is
+    // prepared on newly opened connections.
+    private static final int PREWARM_STATEMENT_MIN_COUNT = 2;
+
+    // Number of statement shapes and hot statements tracked per pool.
+    private static final int MAX_TRACKED_STATEMENTS = 64;
+
+    // Number of hot read-only statements prepared on newly opened non-primary connections.
+    private static final int PREWARM_STATEMENT_COUNT = 8;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private final Object mLock = new Object();
     private final AtomicBoolean mConnectionLeaked = new AtomicBoolean();
     private final SQLiteDatabaseConfiguration mConfiguration;
     private int mMaxConnectionPoolSize;
+    // Pool size the adaptive pool shrinks back to, and the size it may grow to.
+    private int mBaseConnectionPoolSize;
+    private int mAdaptiveMaxConnectionPoolSize;
+    private long mLastContentionTime;
     private boolean mIsOpen;
     private int mNextConnectionId;
 
@@ -102,6 +133,36 @@ public final class SQLiteConnectionPool implements Closeable {
     @GuardedBy("mLock")
     private IdleConnectionHandler mIdleConnectionHandler;
 
+    // Time spent in acquireConnection, in milliseconds.
+    @GuardedBy("mLock")
+    private final ExponentiallyBucketedHistogram mAcquireWaitTimes =
+            new ExponentiallyBucketedHistogram(16);
+    @GuardedBy("mLock")
+    private long mAcquireCount;
+    @GuardedBy("mLock")
+    private long mAcquireWaitCount;
+    @GuardedBy("mLock")
+    private long mTotalAcquireWaitMillis;
+    @GuardedBy("mLock")
+    private long mMaxAcquireWaitMillis;
+    @GuardedBy("mLock")
+    private int mPoolGrowCount;
+    @GuardedBy("mLock")
+    private int mPoolShrinkCount;
+
+    // Prepared statement cache hits and misses of all connections of this pool.
+    private final AtomicLong mStatementCacheHits = new AtomicLong();
+    private final AtomicLong mStatementCacheMisses = new AtomicLong();
+
+    // Number of times each normalized statement shape was seen; negative if the shape
+    // can't be used in place of the original statements.
+    private final LruCache<String, Integer> mNormalizedStatements =
+            new LruCache<>(MAX_TRACKED_STATEMENTS);
+
+    // Number of times each read-only statement was compiled by any connection of this pool.
+    private final LruCache<String, Integer> mHotStatements =
+            new LruCache<>(MAX_TRACKED_STATEMENTS);
+
     // Describes what should happen to an acquired connection when it is returned to the pool.
     enum AcquiredConnectionStatus {
         // The connection should be returned to the pool as usual.
@@ -372,6 +433,7 @@ public final class SQLiteConnectionPool implements Closeable {
                 mIdleConnectionHandler.connectionAcquired(con);
             }
         }
+        con.prewarmPreparedStatements();
         return con;
     }
 
@@ -407,7 +469,8 @@ public final class SQLiteConnectionPool implements Closeable {
                     mAvailablePrimaryConnection = connection;
                 }
                 wakeConnectionWaitersLocked();
-            } else if (mAvailableNonPrimaryConnections.size() >= mMaxConnectionPoolSize - 1) {
+            } else if (mAvailableNonPrimaryConnections.size() >= mMaxConnectionPoolSize - 1
+                    || shrinkConnectionPoolLocked()) {
                 closeConnectionAndLogExceptionsLocked(connection);
             } else {
                 if (recycleConnectionLocked(connection, status)) {
@@ -490,8 +553,90 @@ public final class SQLiteConnectionPool implements Closeable {
     private SQLiteConnection openConnectionLocked(SQLiteDatabaseConfiguration configuration,
             boolean primaryConnection) {
         final int connectionId = mNextConnectionId++;
-        return SQLiteConnection.open(this, configuration,
+        final SQLiteConnection connection = SQLiteConnection.open(this, configuration,
                 connectionId, primaryConnection); // might throw
+        if (!primaryConnection) {
+            // Spare readers the cost of compiling the hot statements on first use.  They are
+            // compiled by the thread acquiring the connection, after releasing mLock.
+            connection.setPrewarmStatements(getHotStatements());
+        }
+        return connection;
+    }
+
+    // Called by SQLiteConnection only.
+    void onPreparedStatementCacheLookup(boolean hit) {
+        (hit ? mStatementCacheHits : mStatementCacheMisses).incrementAndGet();
+    }
+
+    // Called by SQLiteConnection only.
+    // Returns true if statements of the given normalized shape should be executed in that form.
+    boolean isNormalizedStatementHot(String normalizedSql) {
+        synchronized (mNormalizedStatements) {
+            final Integer count = mNormalizedStatements.get(normalizedSql);
+            if (count != null && count < 0) {
+                return false;
+            }
+            final int newCount = count != null ? count + 1 : 1;
+            mNormalizedStatements.put(normalizedSql, newCount);
+            return newCount >= NORMALIZED_STATEMENT_HOT_COUNT;
+        }
+    }
+
+    // Called by SQLiteConnection only.
+    void rejectNormalizedStatement(String normalizedSql) {
+        synchronized (mNormalizedStatements) {
+            mNormalizedStatements.put(normalizedSql, -1);
+        }
+    }
+
+    // Called by SQLiteConnection only.
+    void onReadOnlyStatementCompiled(String sql) {
+        synchronized (mHotStatements) {
+            final Integer count = mHotStatements.get(sql);
+            mHotStatements.put(sql, count != null ? count + 1 : 1);
+        }
+    }
+
+    /**
+     * Returns the read-only statements that connections of this pool compiled most often,
+     * which are prepared on newly opened non-primary connections, or null if there are none.
+     */
+    @VisibleForTesting
+    public List<String> getHotStatements() {
+        final Map<String, Integer> snapshot;
+        synchronized (mHotStatements) {
+            snapshot = mHotStatements.snapshot();
+        }
+        final ArrayList<Map.Entry<String, Integer>> entries = new ArrayList<>(snapshot.size());
+        for (Map.Entry<String, Integer> entry : snapshot.entrySet()) {
+            if (entry.getValue() >= PREWARM_STATEMENT_MIN_COUNT) {
+                entries.add(entry);
+            }
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        Collections.sort(entries, (a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        final int count = Math.min(entries.size(), PREWARM_STATEMENT_COUNT);
+        final ArrayList<String> sqls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sqls.add(entries.get(i).getKey());
+        }
+        return sqls;
+    }
+
+    /**
+     * Returns how many statements connections of this pool found in, or had to add to, their
+     * prepared statement caches.
+     */
+    @VisibleForTesting
+    public long getStatementCacheHitCount() {
+        return mStatementCacheHits.get();
+    }
+
+    @VisibleForTesting
+    public long getStatementCacheMissCount() {
+        return mStatementCacheMisses.get();
     }
 
     void onConnectionLeaked() {
@@ -667,6 +812,7 @@ public final class SQLiteConnectionPool implements Closeable {
                 connection = tryAcquirePrimaryConnectionLocked(connectionFlags); // might throw
             }
             if (connection != null) {
+                recordAcquireLocked(0);
                 return connection;
             }
 
@@ -712,6 +858,15 @@ public final class SQLiteConnectionPool implements Closeable {
             // Rethrow an exception from the wait, if we got one.
             long busyTimeoutMillis = CONNECTION_POOL_BUSY_MILLIS;
             long nextBusyTimeoutTime = waiter.mStartTime + busyTimeoutMillis;
+            long nextGrowTime = Long.MAX_VALUE;
+            if (!wantPrimaryConnection) {
+                synchronized (mLock) {
+                    if (mAdaptiveMaxConnectionPoolSize > mBaseConnectionPoolSize) {
+                        nextGrowTime = waiter.mStartTime + ADAPTIVE_POOL_GROW_WAIT_MILLIS;
+                        busyTimeoutMillis = ADAPTIVE_POOL_GROW_WAIT_MILLIS;
+                    }
+                }
+            }
             for (;;) {
                 // Detect and recover from connection leaks.
                 if (mConnectionLeaked.compareAndSet(true, false)) {
@@ -735,19 +890,22 @@ public final class SQLiteConnectionPool implements Closeable {
                     if (connection != null || ex != null) {
                         recycleConnectionWaiterLocked(waiter);
                         if (connection != null) {
+                            recordAcquireLocked(SystemClock.uptimeMillis() - waiter.mStartTime);
                             return connection;
                         }
                         throw ex; // rethrow!
                     }
 
                     final long now = SystemClock.uptimeMillis();
-                    if (now < nextBusyTimeoutTime) {
-                        busyTimeoutMillis = now - nextBusyTimeoutTime;
-                    } else {
+                    if (now >= nextBusyTimeoutTime) {
                         logConnectionPoolBusyLocked(now - waiter.mStartTime, connectionFlags);
-                        busyTimeoutMillis = CONNECTION_POOL_BUSY_MILLIS;
-                        nextBusyTimeoutTime = now + busyTimeoutMillis;
+                        nextBusyTimeoutTime = now + CONNECTION_POOL_BUSY_MILLIS;
                     }
+                    if (now >= nextGrowTime) {
+                        growConnectionPoolLocked(now);
+                        nextGrowTime = now + ADAPTIVE_POOL_GROW_WAIT_MILLIS;
+                    }
+                    busyTimeoutMillis = Math.min(nextBusyTimeoutTime, nextGrowTime) - now;
                 }
             }
         } finally {
@@ -1000,9 +1158,11 @@ public final class SQLiteConnectionPool implements Closeable {
     }
 
     private void setMaxConnectionPoolSizeLocked() {
+        mAdaptiveMaxConnectionPoolSize = 0;
         if (!mConfiguration.isInMemoryDb()
                 && (mConfiguration.openFlags & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) != 0) {
             mMaxConnectionPoolSize = SQLiteGlobal.getWALConnectionPoolSize();
+            mAdaptiveMaxConnectionPoolSize = mConfiguration.adaptiveMaxConnectionPoolSize;
         } else {
             // We don't actually need to always restrict the connection pool size to 1
             // for non-WAL databases.  There might be reasons to use connection pooling
@@ -1011,6 +1171,50 @@ public final class SQLiteConnectionPool implements Closeable {
             // For now, enabling connection pooling and using WAL are the same thing in the API.
             mMaxConnectionPoolSize = 1;
         }
+        mBaseConnectionPoolSize = mMaxConnectionPoolSize;
+    }
+
+    // Can't throw.
+    private void growConnectionPoolLocked(long now) {
+        mLastContentionTime = now;
+        if (mMaxConnectionPoolSize < mAdaptiveMaxConnectionPoolSize) {
+            mMaxConnectionPoolSize += 1;
+            mPoolGrowCount += 1;
+            // Let a waiter open the new connection.
+            wakeConnectionWaitersLocked();
+        }
+    }
+
+    /**
+     * Lowers the size of an adaptive pool by one if it grew and there was no contention for a
+     * while, so that the non-primary connection being released is closed.
+     */
+    // Can't throw.
+    private boolean shrinkConnectionPoolLocked() {
+        if (mMaxConnectionPoolSize <= mBaseConnectionPoolSize
+                || mConnectionWaiterQueue != null) {
+            return false;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (now - mLastContentionTime < ADAPTIVE_POOL_SHRINK_IDLE_MILLIS) {
+            return false;
+        }
+        mMaxConnectionPoolSize -= 1;
+        mPoolShrinkCount += 1;
+        // Give the remaining extra connections some more time.
+        mLastContentionTime = now;
+        return true;
+    }
+
+    // Can't throw.
+    private void recordAcquireLocked(long waitMillis) {
+        mAcquireCount += 1;
+        mAcquireWaitTimes.add((int) Math.min(waitMillis, Integer.MAX_VALUE));
+        if (waitMillis > 0) {
+            mAcquireWaitCount += 1;
+            mTotalAcquireWaitMillis += waitMillis;
+            mMaxAcquireWaitMillis = Math.max(mMaxAcquireWaitMillis, waitMillis);
+        }
     }
 
     /**
@@ -1076,6 +1280,19 @@ public final class SQLiteConnectionPool implements Closeable {
             printer.println("Connection pool for " + mConfiguration.path + ":");
             printer.println("  Open: " + mIsOpen);
             printer.println("  Max connections: " + mMaxConnectionPoolSize);
+            if (mAdaptiveMaxConnectionPoolSize > mBaseConnectionPoolSize) {
+                printer.println("  Adaptive pool: base=" + mBaseConnectionPoolSize
+                        + " max=" + mAdaptiveMaxConnectionPoolSize
+                        + " grew=" + mPoolGrowCount + " shrank=" + mPoolShrinkCount);
+            }
+            printer.println("  Acquired: " + mAcquireCount + " times, waited "
+                    + mAcquireWaitCount + " times for " + mTotalAcquireWaitMillis
+                    + " ms (max " + mMaxAcquireWaitMillis + " ms)");
+            printer.println(mAcquireWaitTimes.toString("  Acquire wait ms: "));
+            printer.println("  Prepared statement cache: hits=" + mStatementCacheHits.get()
+                    + " misses=" + mStatementCacheMisses.get()
+                    + " normalized shapes=" + mNormalizedStatements.size()
+                    + " hot statements=" + mHotStatements.size());
             if (mConfiguration.isLookasideConfigSet()) {
                 printer.println("  Lookaside config: sz=" + mConfiguration.lookasideSlotSize
                         + " cnt=" + mConfiguration.lookasideSlotCount);
@@ -160,6 +160,18 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         }
     }
 
+    /**
+     * Fills the window straight from the query instead of copying the rows through
+     * this cursor's own window.
+     */
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        if (position < 0 || position >= getCount()) {
+            return;
+        }
+        mQuery.fillWindow(window, position, position, false);
+    }
+
     @Override
     public int getColumnIndex(String columnName) {
         // Create mColumnNameMap on demand
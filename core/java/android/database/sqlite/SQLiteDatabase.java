@@ -262,7 +262,8 @@ public final class SQLiteDatabase extends SQLiteClosable {
 
     private SQLiteDatabase(final String path, final int openFlags,
             CursorFactory cursorFactory, DatabaseErrorHandler errorHandler,
-            int lookasideSlotSize, int lookasideSlotCount, long idleConnectionTimeoutMs) {
+            int lookasideSlotSize, int lookasideSlotCount, long idleConnectionTimeoutMs,
+            int adaptiveMaxConnectionPoolSize, boolean normalizeStatements) {
         mCursorFactory = cursorFactory;
         mErrorHandler = errorHandler != null ? errorHandler : new DefaultDatabaseErrorHandler();
         mConfigurationLocked = new SQLiteDatabaseConfiguration(path, openFlags);
@@ -285,6 +286,8 @@ public final class SQLiteDatabase extends SQLiteClosable {
             }
         }
         mConfigurationLocked.idleConnectionTimeoutMs = effectiveTimeoutMs;
+        mConfigurationLocked.adaptiveMaxConnectionPoolSize = adaptiveMaxConnectionPoolSize;
+        mConfigurationLocked.normalizeStatements = normalizeStatements;
     }
 
     @Override
@@ -720,7 +723,8 @@ public final class SQLiteDatabase extends SQLiteClosable {
         SQLiteDatabase db = new SQLiteDatabase(path, openParams.mOpenFlags,
                 openParams.mCursorFactory, openParams.mErrorHandler,
                 openParams.mLookasideSlotSize, openParams.mLookasideSlotCount,
-                openParams.mIdleConnectionTimeout);
+                openParams.mIdleConnectionTimeout, openParams.mAdaptiveMaxConnectionPoolSize,
+                openParams.mNormalizeStatements);
         db.open();
         return db;
     }
@@ -746,7 +750,8 @@ public final class SQLiteDatabase extends SQLiteClosable {
      */
     public static SQLiteDatabase openDatabase(@NonNull String path, @Nullable CursorFactory factory,
             @DatabaseOpenFlags int flags, @Nullable DatabaseErrorHandler errorHandler) {
-        SQLiteDatabase db = new SQLiteDatabase(path, flags, factory, errorHandler, -1, -1, -1);
+        SQLiteDatabase db = new SQLiteDatabase(path, flags, factory, errorHandler, -1, -1, -1, 0,
+                false);
         db.open();
         return db;
     }
@@ -2297,16 +2302,21 @@ public final class SQLiteDatabase extends SQLiteClosable {
         private final int mLookasideSlotSize;
         private final int mLookasideSlotCount;
         private long mIdleConnectionTimeout;
+        private final int mAdaptiveMaxConnectionPoolSize;
+        private final boolean mNormalizeStatements;
 
         private OpenParams(int openFlags, CursorFactory cursorFactory,
                 DatabaseErrorHandler errorHandler, int lookasideSlotSize, int lookasideSlotCount,
-                long idleConnectionTimeout) {
+                long idleConnectionTimeout, int adaptiveMaxConnectionPoolSize,
+                boolean normalizeStatements) {
             mOpenFlags = openFlags;
             mCursorFactory = cursorFactory;
             mErrorHandler = errorHandler;
             mLookasideSlotSize = lookasideSlotSize;
             mLookasideSlotCount = lookasideSlotCount;
             mIdleConnectionTimeout = idleConnectionTimeout;
+            mAdaptiveMaxConnectionPoolSize = adaptiveMaxConnectionPoolSize;
+            mNormalizeStatements = normalizeStatements;
         }
 
         /**
@@ -2372,6 +2382,28 @@ public final class SQLiteDatabase extends SQLiteClosable {
             return mIdleConnectionTimeout;
         }
 
+        /**
+         * Returns the number of connections up to which the connection pool may grow under
+         * contention, or 0 if the pool size is fixed.
+         *
+         * @see Builder#setAdaptiveConnectionPool(int)
+         * @hide
+         */
+        public int getAdaptiveMaxConnectionPoolSize() {
+            return mAdaptiveMaxConnectionPoolSize;
+        }
+
+        /**
+         * Returns true if SELECT statements that only differ in their literal values share one
+         * prepared statement.
+         *
+         * @see Builder#setStatementNormalizationEnabled(boolean)
+         * @hide
+         */
+        public boolean isStatementNormalizationEnabled() {
+            return mNormalizeStatements;
+        }
+
         /**
          * Creates a new instance of builder {@link Builder#Builder(OpenParams) initialized} with
          * {@code this} parameters.
@@ -2389,6 +2421,8 @@ public final class SQLiteDatabase extends SQLiteClosable {
             private int mLookasideSlotSize = -1;
             private int mLookasideSlotCount = -1;
             private long mIdleConnectionTimeout = -1;
+            private int mAdaptiveMaxConnectionPoolSize;
+            private boolean mNormalizeStatements;
             private int mOpenFlags;
             private CursorFactory mCursorFactory;
             private DatabaseErrorHandler mErrorHandler;
@@ -2402,6 +2436,8 @@ public final class SQLiteDatabase extends SQLiteClosable {
                 mOpenFlags = params.mOpenFlags;
                 mCursorFactory = params.mCursorFactory;
                 mErrorHandler = params.mErrorHandler;
+                mAdaptiveMaxConnectionPoolSize = params.mAdaptiveMaxConnectionPoolSize;
+                mNormalizeStatements = params.mNormalizeStatements;
             }
 
             /**
@@ -2533,6 +2569,47 @@ public final class SQLiteDatabase extends SQLiteClosable {
                 return this;
             }
 
+            /**
+             * Lets the connection pool of a database using write-ahead logging open more
+             * connections than the system default while requests for a connection have to wait,
+             * up to {@code maxConnectionPoolSize}. The extra connections are closed again once
+             * there is no more contention.
+             *
+             * <p>Has no effect unless {@link #ENABLE_WRITE_AHEAD_LOGGING} is set.
+             *
+             * @param maxConnectionPoolSize maximum number of connections, including the primary
+             * connection. Use 0 to keep the pool size fixed.
+             * @return same builder instance for chaining multiple calls into a single statement
+             * @hide
+             */
+            @NonNull
+            public Builder setAdaptiveConnectionPool(
+                    @IntRange(from = 0) int maxConnectionPoolSize) {
+                Preconditions.checkArgument(maxConnectionPoolSize >= 0,
+                        "max connection pool size cannot be negative");
+                mAdaptiveMaxConnectionPoolSize = maxConnectionPoolSize;
+                return this;
+            }
+
+            /**
+             * Lets SELECT statements that only differ in the literal values they compare
+             * against share one prepared statement. Once such a statement shape recurs, the
+             * literals are bound as parameters of the shared statement instead.
+             *
+             * <p>SQLite can't take bound values into account when planning a query, so a
+             * query that relies on a partial index or on the selectivity of a literal may get
+             * a slower plan. Only enable this for databases whose queries don't.
+             *
+             * @param enabled whether to share prepared statements between literal variants
+             * @return same builder instance for chaining multiple calls into a single statement
+             * @hide
+             */
+            @NonNull
+            public Builder setStatementNormalizationEnabled(boolean enabled) {
+                mNormalizeStatements = enabled;
+                return this;
+            }
+
             /**
              * Creates an instance of {@link OpenParams} with the options that were previously set
              * on this builder
@@ -2540,7 +2617,8 @@ public final class SQLiteDatabase extends SQLiteClosable {
             @NonNull
             public OpenParams build() {
                 return new OpenParams(mOpenFlags, mCursorFactory, mErrorHandler, mLookasideSlotSize,
-                        mLookasideSlotCount, mIdleConnectionTimeout);
+                        mLookasideSlotCount, mIdleConnectionTimeout,
+                        mAdaptiveMaxConnectionPoolSize, mNormalizeStatements);
             }
         }
     }
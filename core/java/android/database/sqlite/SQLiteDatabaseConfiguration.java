@@ -110,6 +110,20 @@ public final class SQLiteDatabaseConfiguration {
      */
     public long idleConnectionTimeoutMs = Long.MAX_VALUE;
 
+    /**
+     * The number of connections up to which the pool of a WAL database may grow while
+     * connection requests have to wait, shrinking back once the contention is gone.
+     * <p>If not larger than the default pool size, the pool size is fixed
+     */
+    public int adaptiveMaxConnectionPoolSize = 0;
+
+    /**
+     * True if SELECT statements that only differ in their literal values should share one
+     * prepared statement, with the literals bound as parameters.
+     * <p>Off by default, as it keeps SQLite from planning queries for the literal values
+     */
+    public boolean normalizeStatements;
+
     /**
      * Creates a database configuration with the required parameters for opening a
      * database and default values for all other parameters.
@@ -170,6 +184,8 @@ public final class SQLiteDatabaseConfiguration {
         lookasideSlotSize = other.lookasideSlotSize;
         lookasideSlotCount = other.lookasideSlotCount;
         idleConnectionTimeoutMs = other.idleConnectionTimeoutMs;
+        adaptiveMaxConnectionPoolSize = other.adaptiveMaxConnectionPoolSize;
+        normalizeStatements = other.normalizeStatements;
     }
 
     /**
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.database.DatabaseUtils;
+
+import java.util.ArrayList;
+
+/**
+ * Rewrites the literals compared against in a SELECT statement into bind parameters, so that
+ * statements that only differ in those values share one prepared statement.
+ * <p>
+ * Only numeric and string literals that directly follow a comparison operator are rewritten,
+ * as that is where binding a value is known to behave like the literal itself. Statements
+ * that already use bind parameters are left alone, since the order of the parameters would
+ * have to be merged with the caller's arguments.
+ * </p>
+ *
+ * @hide
+ */
+final class SQLiteStatementNormalizer {
+    private SQLiteStatementNormalizer() {
+    }
+
+    /**
+     * Normalizes a statement.
+     *
+     * @param sql The SQL statement.
+     * @param outArgs Receives the values of the rewritten literals, in parameter order.
+     * @return The statement with literals replaced by {@code ?}, or null if the statement
+     * has nothing to rewrite or can't be rewritten.
+     */
+    static String normalize(String sql, ArrayList<Object> outArgs) {
+        if (DatabaseUtils.getSqlStatementType(sql) != DatabaseUtils.STATEMENT_SELECT) {
+            return null;
+        }
+
+        final int length = sql.length();
+        StringBuilder builder = null;
+        int copied = 0;
+        boolean afterComparison = false;
+        int i = 0;
+        while (i < length) {
+            final char c = sql.charAt(i);
+            final int start = i;
+            if (c == '?' || c == ':' || c == '@' || c == '$') {
+                // Existing bind parameters.
+                return null;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                i = sql.indexOf('\n', i);
+                if (i < 0) {
+                    i = length;
+                }
+                continue;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                i = sql.indexOf("*/", i + 2);
+                if (i < 0) {
+                    return null;
+                }
+                i += 2;
+                continue;
+            } else if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            } else if (c == '=' || c == '<' || c == '>' || c == '!') {
+                while (i < length && "=<>!".indexOf(sql.charAt(i)) >= 0) {
+                    i++;
+                }
+                afterComparison = true;
+                continue;
+            }
+
+            Object literal = null;
+            if (c == '\'') {
+                final StringBuilder value = new StringBuilder();
+                i = readQuoted(sql, i, '\'', value);
+                if (i < 0) {
+                    return null;
+                }
+                literal = value.toString();
+            } else if (c == '"' || c == '`') {
+                i = readQuoted(sql, i, c, null);
+                if (i < 0) {
+                    return null;
+                }
+            } else if (c == '[') {
+                i = sql.indexOf(']', i);
+                if (i < 0) {
+                    return null;
+                }
+                i++;
+            } else if (isDigit(c) || (c == '.' && i + 1 < length && isDigit(sql.charAt(i + 1)))) {
+                if (c == '0' && i + 1 < length && (sql.charAt(i + 1) | 0x20) == 'x') {
+                    // Hex integer, keep as is.
+                    i += 2;
+                    while (i < length && isIdentifierPart(sql.charAt(i))) {
+                        i++;
+                    }
+                    afterComparison = false;
+                    continue;
+                }
+                i = readNumber(sql, i);
+                if (i < length && isIdentifierPart(sql.charAt(i))) {
+                    return null;
+                }
+                literal = parseNumber(sql.substring(start, i));
+            } else if (isIdentifierPart(c)) {
+                while (i < length && isIdentifierPart(sql.charAt(i))) {
+                    i++;
+                }
+                if (i - start == 1 && (c | 0x20) == 'x' && i < length && sql.charAt(i) == '\'') {
+                    // Blob literal, keep as is.
+                    i = readQuoted(sql, i, '\'', null);
+                    if (i < 0) {
+                        return null;
+                    }
+                }
+            } else {
+                i++;
+            }
+
+            if (literal != null && afterComparison) {
+                if (builder == null) {
+                    builder = new StringBuilder(length);
+                }
+                builder.append(sql, copied, start).append('?');
+                copied = i;
+                outArgs.add(literal);
+            }
+            afterComparison = false;
+        }
+
+        if (builder == null) {
+            return null;
+        }
+        builder.append(sql, copied, length);
+        return builder.toString();
+    }
+
+    /**
+     * Reads a quoted token where the quote character is escaped by doubling it.
+     *
+     * @return The index after the closing quote, or -1 if there is none.
+     */
+    private static int readQuoted(String sql, int start, char quote, StringBuilder outValue) {
+        final int length = sql.length();
+        int i = start + 1;
+        while (i < length) {
+            final char c = sql.charAt(i++);
+            if (c == quote) {
+                if (i < length && sql.charAt(i) == quote) {
+                    i++;
+                } else {
+                    return i;
+                }
+            }
+            if (outValue != null) {
+                outValue.append(c);
+            }
+        }
+        return -1;
+    }
+
+    private static int readNumber(String sql, int start) {
+        final int length = sql.length();
+        int i = start;
+        while (i < length && isDigit(sql.charAt(i))) {
+            i++;
+        }
+        if (i < length && sql.charAt(i) == '.') {
+            i++;
+            while (i < length && isDigit(sql.charAt(i))) {
+                i++;
+            }
+        }
+        if (i < length && (sql.charAt(i) | 0x20) == 'e') {
+            int j = i + 1;
+            if (j < length && (sql.charAt(j) == '+' || sql.charAt(j) == '-')) {
+                j++;
+            }
+            if (j < length && isDigit(sql.charAt(j))) {
+                i = j;
+                while (i < length && isDigit(sql.charAt(i))) {
+                    i++;
+                }
+            }
+        }
+        return i;
+    }
+
+    private static Object parseNumber(String number) {
+        try {
+            if (number.indexOf('.') < 0 && number.indexOf('e') < 0
+                    && number.indexOf('E') < 0) {
+                return Long.parseLong(number);
+            }
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            // Integers that don't fit a long are real numbers to SQLite; keep them as is.
+            return null;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+}
@@ -24,11 +24,13 @@ import android.util.MathUtils;
 import android.util.Slog;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -90,6 +92,18 @@ public class BaseBundle {
      */
     Parcel mParcelledData = null;
 
+    /**
+     * Index of the keys of mParcelledData scanned so far by the typed getters, so that
+     * reading one value doesn't unparcel the whole map.  Only valid for the Parcel it
+     * was built from.
+     */
+    @GuardedBy("this")
+    private ParcelledIndex mParcelledIndex;
+
+    // Returned by Parcel.readImmutableValueInternal() and readParcelledValue() when the
+    // caller has to unparcel and look in mMap instead.
+    private static final Object NOT_READ = new Object();
+
     /**
      * The ClassLoader used when unparcelling data from mParcelledData.
      */
@@ -240,6 +254,7 @@ public class BaseBundle {
                     + "clobber all data inside!", new Throwable());
         }
 
+        mParcelledIndex = null;
         if (isEmptyParcel(parcelledData)) {
             if (DEBUG) {
                 Log.d(TAG, "unparcel "
@@ -291,6 +306,113 @@ public class BaseBundle {
         }
     }
 
+    /**
+     * Number of values read straight from mParcelledData before the bundle is unparcelled
+     * after all; a caller reading many values is better served by the map.
+     */
+    private static final int MAX_PARCELLED_READS = 8;
+
+    private static final class ParcelledIndex {
+        final Parcel parcel;
+        final int count;
+        // Value offsets of the entries scanned so far, by key.
+        final ArrayMap<String, Integer> valueOffsets;
+        // Where the next entry to scan starts.
+        int nextOffset;
+        // Set when the next entry's value can't be skipped without unmarshalling it.
+        boolean stuck;
+        // Number of values read so far.
+        int reads;
+
+        ParcelledIndex(Parcel parcel, int count, int offset) {
+            this.parcel = parcel;
+            this.count = count;
+            valueOffsets = new ArrayMap<>(Math.min(count, 16));
+            nextOffset = offset;
+        }
+
+        int scanned() {
+            return valueOffsets.size();
+        }
+    }
+
+    /**
+     * Returns the value of {@code key} for getters of immutable types, reading it straight
+     * from the parcelled data when possible instead of unparcelling everything.
+     */
+    private Object getImmutableValue(String key) {
+        final Object value = readParcelledValue(key);
+        if (value != NOT_READ) {
+            return value;
+        }
+        unparcel();
+        return mMap.get(key);
+    }
+
+    /**
+     * Finds {@code key} in mParcelledData, scanning past the entries not indexed yet, and
+     * reads its value if it is null, a String or a boxed primitive.  Returns NOT_READ if
+     * the bundle isn't parcelled, if the value has another type, if finding it would
+     * mean unmarshalling other values, or once {@link #MAX_PARCELLED_READS} values have
+     * been read this way.
+     */
+    private Object readParcelledValue(String key) {
+        synchronized (this) {
+            final Parcel parcel = mParcelledData;
+            if (parcel == null || isEmptyParcel(parcel)) {
+                return NOT_READ;
+            }
+            try {
+                ParcelledIndex index = mParcelledIndex;
+                if (index == null || index.parcel != parcel) {
+                    parcel.setDataPosition(0);
+                    final int count = parcel.readInt();
+                    if (count < 0) {
+                        return NOT_READ;
+                    }
+                    index = mParcelledIndex = new ParcelledIndex(parcel, count,
+                            parcel.dataPosition());
+                }
+
+                if (++index.reads > MAX_PARCELLED_READS) {
+                    return NOT_READ;
+                }
+
+                Integer valueOffset = index.valueOffsets.get(key);
+                if (valueOffset == null) {
+                    if (index.stuck) {
+                        return NOT_READ;
+                    }
+                    parcel.setDataPosition(index.nextOffset);
+                    while (index.scanned() < index.count) {
+                        final String k = parcel.readString();
+                        final int offset = parcel.dataPosition();
+                        if (!parcel.skipValueInternal()) {
+                            index.stuck = true;
+                            return NOT_READ;
+                        }
+                        index.valueOffsets.put(k, offset);
+                        index.nextOffset = parcel.dataPosition();
+                        if (Objects.equals(k, key)) {
+                            valueOffset = offset;
+                            break;
+                        }
+                    }
+                    if (valueOffset == null) {
+                        // Every key has been seen, this one isn't there.
+                        return null;
+                    }
+                }
+
+                parcel.setDataPosition(valueOffset);
+                return parcel.readImmutableValueInternal(NOT_READ);
+            } finally {
+                // unparcel() reads from the current position.
+                parcel.setDataPosition(0);
+            }
+        }
+    }
+
     /**
      * @hide
      */
@@ -854,8 +976,7 @@ public class BaseBundle {
      * @return a boolean value
      */
     public boolean getBoolean(String key, boolean defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getImmutableValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -990,8 +1111,7 @@ public class BaseBundle {
      * @return an int value
      */
    public int getInt(String key, int defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getImmutableValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1024,8 +1144,7 @@ public class BaseBundle {
      * @return a long value
      */
     public long getLong(String key, long defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getImmutableValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1092,8 +1211,7 @@ public class BaseBundle {
      * @return a double value
      */
     public double getDouble(String key, double defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getImmutableValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1115,8 +1233,7 @@ public class BaseBundle {
      */
     @Nullable
     public String getString(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getImmutableValue(key);
         try {
             return (String) o;
         } catch (ClassCastException e) {
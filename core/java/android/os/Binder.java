@@ -136,6 +136,44 @@ public class Binder implements IBinder {
         return sTransactionTracker;
     }
 
+    /**
+     * Observer of the incoming transactions of this process, if any.
+     */
+    private static volatile TransactionObserver sObserver = null;
+
+    /**
+     * Sets the observer notified around every incoming transaction of this process.
+     *
+     * @hide
+     */
+    public static void setObserver(@Nullable TransactionObserver observer) {
+        sObserver = observer;
+    }
+
+    /**
+     * Observes the incoming transactions of a process, for example to profile them.
+     * Called on the binder thread executing the transaction, so implementations must be
+     * thread safe and cheap for the transactions they aren't interested in.
+     *
+     * @hide
+     */
+    public interface TransactionObserver {
+        /**
+         * Called before a transaction is dispatched to {@link Binder#onTransact}, with the
+         * calling identity of the transaction.
+         *
+         * @return An object passed back to {@link #transactionEnded}, or null to not be told
+         * when this transaction ends.
+         */
+        @Nullable Object transactionStarted(@NonNull Binder binder, int code, int flags);
+
+        /**
+         * Called once the transaction returned by {@link #transactionStarted} has been
+         * executed, before its reply is sent.
+         */
+        void transactionEnded(@NonNull Object session, int dataSize, int replySize);
+    }
+
     /** {@hide} */
     static volatile boolean sWarnOnBlocking = false;
 
@@ -690,6 +728,9 @@ public class Binder implements IBinder {
         // Log any exceptions as warnings, don't silently suppress them.
         // If the call was FLAG_ONEWAY then these exceptions disappear into the ether.
         final boolean tracingEnabled = Binder.isTracingEnabled();
+        final TransactionObserver observer = sObserver;
+        final Object session = observer != null
+                ? observer.transactionStarted(this, code, flags) : null;
         try {
             if (tracingEnabled) {
                 Trace.traceBegin(Trace.TRACE_TAG_ALWAYS, getClass().getName() + ":" + code);
@@ -715,6 +756,9 @@ public class Binder implements IBinder {
                 Trace.traceEnd(Trace.TRACE_TAG_ALWAYS);
             }
         }
+        if (session != null) {
+            observer.transactionEnded(session, data.dataSize(), reply.dataSize());
+        }
         checkParcel(this, code, reply, "Unreasonably large binder reply buffer");
         reply.recycle();
         data.recycle();
@@ -80,6 +80,9 @@ public final class Looper {
     /* If set, the looper will show a warning log if a message dispatch takes longer than time. */
     private long mSlowDispatchThresholdMs;
 
+    /* If set, the looper reports the timing of every message dispatch to the observer. */
+    private Observer mObserver;
+
      /** Initialize the current thread as a looper.
       * This gives you a chance to create handlers that then reference
       * this looper, before actually starting the loop. Be sure to call
@@ -154,6 +157,11 @@ public final class Looper {
 
             final long slowDispatchThresholdMs = me.mSlowDispatchThresholdMs;
 
+            // Read before dispatching, the message may be changed by its target.
+            final Observer observer = me.mObserver;
+            final long when = msg.when;
+            final long dispatchStartNanos = (observer == null) ? 0 : System.nanoTime();
+
             final long traceTag = me.mTraceTag;
             if (traceTag != 0 && Trace.isTagEnabled(traceTag)) {
                 Trace.traceBegin(traceTag, msg.target.getTraceName(msg));
@@ -177,6 +185,10 @@ public final class Looper {
                 }
             }
 
+            if (observer != null) {
+                observer.messageDispatched(msg, when, dispatchStartNanos, System.nanoTime());
+            }
+
             if (logging != null) {
                 logging.println("<<<<< Finished to " + msg.target + " " + msg.callback);
             }
@@ -248,6 +260,17 @@ public final class Looper {
         mSlowDispatchThresholdMs = slowDispatchThresholdMs;
     }
 
+    /**
+     * Sets an observer that is told about every message this looper dispatches.
+     * The observer is called on the looper's thread and must not allocate or block.
+     *
+     * @param observer The observer, or null to remove the current one.
+     * {@hide}
+     */
+    public void setObserver(@Nullable Observer observer) {
+        mObserver = observer;
+    }
+
     /**
      * Quits the looper.
      * <p>
@@ -341,4 +364,23 @@ public final class Looper {
         return "Looper (" + mThread.getName() + ", tid " + mThread.getId()
                 + ") {" + Integer.toHexString(System.identityHashCode(this)) + "}";
     }
+
+    /**
+     * Receives the timing of the messages dispatched by a {@link Looper}.
+     * {@hide}
+     */
+    public interface Observer {
+        /**
+         * Called on the looper's thread after a message was dispatched, before it is
+         * recycled.
+         *
+         * @param msg The message.
+         * @param when The uptime in milliseconds at which the message was due, or 0 if it
+         * was posted at the front of the queue.
+         * @param dispatchStartNanos {@link System#nanoTime} when the dispatch started.
+         * @param dispatchEndNanos {@link System#nanoTime} when the dispatch ended.
+         */
+        void messageDispatched(Message msg, long when, long dispatchStartNanos,
+                long dispatchEndNanos);
+    }
 }
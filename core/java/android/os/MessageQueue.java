@@ -28,6 +28,7 @@ import java.io.FileDescriptor;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Low-level class holding the list of messages to be dispatched by a
@@ -51,10 +52,17 @@ public final class MessageQueue {
     private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<IdleHandler>();
     private SparseArray<FileDescriptorRecord> mFileDescriptorRecords;
     private IdleHandler[] mPendingIdleHandlers;
-    private boolean mQuitting;
+    private volatile boolean mQuitting;
 
     // Indicates whether next() is blocked waiting in pollOnce() with a non-zero timeout.
-    private boolean mBlocked;
+    // Volatile because concurrent enqueues read it without holding the lock.
+    private volatile boolean mBlocked;
+
+    // Messages enqueued without taking the lock while concurrent enqueue is enabled, linked
+    // through Message.next in reverse order.  Moved into mMessages by whichever thread takes
+    // the lock next, usually the looper thread in next().
+    private final AtomicReference<Message> mInbox = new AtomicReference<>();
+    private volatile boolean mConcurrentEnqueue;
 
     // The next barrier token.
     // Barriers are indicated by messages with a null target whose arg1 field carries the token.
@@ -99,6 +107,7 @@ public final class MessageQueue {
      */
     public boolean isIdle() {
         synchronized (this) {
+            drainInboxLocked();
             final long now = SystemClock.uptimeMillis();
             return mMessages == null || now < mMessages.when;
         }
@@ -325,6 +334,8 @@ public final class MessageQueue {
             nativePollOnce(ptr, nextPollTimeoutMillis);
 
             synchronized (this) {
+                drainInboxLocked();
+
                 // Try to retrieve the next message.  Return if found.
                 final long now = SystemClock.uptimeMillis();
                 Message prevMsg = null;
@@ -374,6 +385,12 @@ public final class MessageQueue {
                 if (pendingIdleHandlerCount <= 0) {
                     // No idle handlers to run.  Loop and wait some more.
                     mBlocked = true;
+                    // A concurrent enqueue only wakes us if it sees mBlocked set, so look
+                    // at the inbox again now that it is: anything that arrived since the
+                    // drain above would otherwise wait for the timeout.
+                    if (mInbox.get() != null) {
+                        nextPollTimeoutMillis = 0;
+                    }
                     continue;
                 }
 
@@ -421,6 +438,7 @@ public final class MessageQueue {
             if (mQuitting) {
                 return;
             }
+            drainInboxLocked();
             mQuitting = true;
 
             if (safe) {
@@ -465,6 +483,8 @@ public final class MessageQueue {
         // Enqueue a new sync barrier token.
         // We don't need to wake the queue because the purpose of a barrier is to stall it.
         synchronized (this) {
+            // Messages enqueued before the barrier must stay ahead of it.
+            drainInboxLocked();
             final int token = mNextBarrierToken++;
             final Message msg = Message.obtain();
             msg.markInUse();
@@ -504,6 +524,7 @@ public final class MessageQueue {
         // Remove a sync barrier token from the queue.
         // If the queue is no longer stalled by a barrier then wake it.
         synchronized (this) {
+            drainInboxLocked();
             Message prev = null;
             Message p = mMessages;
             while (p != null && (p.target != null || p.arg1 != token)) {
@@ -540,7 +561,12 @@ public final class MessageQueue {
             throw new IllegalStateException(msg + " This message is already in use.");
         }
 
+        if (mConcurrentEnqueue) {
+            return enqueueMessageConcurrent(msg, when);
+        }
+
         synchronized (this) {
+            drainInboxLocked();
             if (mQuitting) {
                 IllegalStateException e = new IllegalStateException(
                         msg.target + " sending message to a Handler on a dead thread");
@@ -586,12 +612,115 @@ public final class MessageQueue {
         return true;
     }
 
+    /**
+     * Enables or disables concurrent enqueueing.  While enabled, messages are enqueued by
+     * pushing them onto a lock-free inbox instead of inserting them into the queue under
+     * its lock, so that threads posting at the same time don't contend with each other or
+     * with the looper.  The looper moves them into the queue in the order they were
+     * enqueued, so ordering, barriers and asynchronous messages behave as before.
+     *
+     * <p>A message enqueued while the looper is quitting may be dropped even though
+     * enqueueing it returned true.
+     *
+     * @hide
+     */
+    public void setConcurrentEnqueue(boolean enabled) {
+        synchronized (this) {
+            mConcurrentEnqueue = enabled;
+            drainInboxLocked();
+        }
+    }
+
+    private boolean enqueueMessageConcurrent(Message msg, long when) {
+        if (mQuitting) {
+            IllegalStateException e = new IllegalStateException(
+                    msg.target + " sending message to a Handler on a dead thread");
+            Log.w(TAG, e.getMessage(), e);
+            msg.recycle();
+            return false;
+        }
+
+        msg.markInUse();
+        msg.when = when;
+        Message head;
+        do {
+            head = mInbox.get();
+            msg.next = head;
+        } while (!mInbox.compareAndSet(head, msg));
+
+        // Only the message that makes the inbox non-empty may need to wake the looper; the
+        // ones behind it are drained along with it.  The looper checks the inbox again after
+        // setting mBlocked, so either it sees this message or we see it blocked.
+        if (head == null && mBlocked) {
+            synchronized (this) {
+                // The looper may have quit and disposed of mPtr in the meantime.
+                if (!mQuitting) {
+                    nativeWake(mPtr);
+                }
+            }
+        }
+        return true;
+    }
+
+    // Moves the messages of the inbox into the queue.  Messages that lost a race with
+    // quit() are recycled instead.
+    private void drainInboxLocked() {
+        Message stack = mInbox.getAndSet(null);
+        if (stack == null) {
+            return;
+        }
+
+        // Reverse the stack so that messages due at the same time stay in FIFO order.
+        Message msg = null;
+        while (stack != null) {
+            final Message n = stack.next;
+            stack.next = msg;
+            msg = stack;
+            stack = n;
+        }
+
+        // Messages are mostly enqueued in time order, so start looking for where each one
+        // goes from the previous one instead of from the head.
+        Message last = null;
+        while (msg != null) {
+            final Message n = msg.next;
+            if (mQuitting) {
+                msg.recycleUnchecked();
+            } else {
+                insertMessageLocked(msg, last);
+                last = msg;
+            }
+            msg = n;
+        }
+    }
+
+    // Inserts msg after the messages due at the same time or earlier, like enqueueMessage().
+    // The search starts at hint, a message in the queue, if it is not due after msg.
+    private void insertMessageLocked(Message msg, Message hint) {
+        final long when = msg.when;
+        Message p = mMessages;
+        if (p == null || when == 0 || when < p.when) {
+            msg.next = p;
+            mMessages = msg;
+            return;
+        }
+        Message prev = hint != null && hint.when <= when ? hint : p;
+        p = prev.next;
+        while (p != null && p.when <= when) {
+            prev = p;
+            p = p.next;
+        }
+        msg.next = p; // invariant: p == prev.next
+        prev.next = msg;
+    }
+
     boolean hasMessages(Handler h, int what, Object object) {
         if (h == null) {
             return false;
         }
 
         synchronized (this) {
+            drainInboxLocked();
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h && p.what == what && (object == null || p.obj == object)) {
@@ -609,6 +738,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainInboxLocked();
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h && p.callback == r && (object == null || p.obj == object)) {
@@ -626,6 +756,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainInboxLocked();
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h) {
@@ -643,6 +774,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainInboxLocked();
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -677,6 +809,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainInboxLocked();
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -711,6 +844,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainInboxLocked();
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -778,6 +912,7 @@ public final class MessageQueue {
 
     void dump(Printer pw, String prefix, Handler h) {
         synchronized (this) {
+            drainInboxLocked();
             long now = SystemClock.uptimeMillis();
             int n = 0;
             for (Message msg = mMessages; msg != null; msg = msg.next) {
@@ -794,6 +929,7 @@ public final class MessageQueue {
     void writeToProto(ProtoOutputStream proto, long fieldId) {
         final long messageQueueToken = proto.start(fieldId);
         synchronized (this) {
+            drainInboxLocked();
             for (Message msg = mMessages; msg != null; msg = msg.next) {
                 msg.writeToProto(proto, MessageQueueProto.MESSAGES);
             }
@@ -423,6 +423,16 @@ public final class Parcel {
         mReadWriteHelper = helper != null ? helper : ReadWriteHelper.DEFAULT;
     }
 
+    /**
+     * @return the {@link ReadWriteHelper} of this parcel, {@link ReadWriteHelper#DEFAULT} if none
+     * has been set.
+     *
+     * @hide
+     */
+    public ReadWriteHelper getReadWriteHelper() {
+        return mReadWriteHelper;
+    }
+
     /**
      * @return whether this parcel has a {@link ReadWriteHelper}.
      *
@@ -3147,6 +3157,103 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Advances past a value written by {@link #writeValue} without unmarshalling it.
+     * Returns false, leaving the position undefined, if the value's size can only be found
+     * by unmarshalling it, as for Parcelables, or if it runs past the end of the data.
+     */
+    /* package */ boolean skipValueInternal() {
+        final int type = readInt();
+        final int n;
+        switch (type) {
+            case VAL_NULL:
+                return true;
+            case VAL_STRING:
+                return skipStringInternal();
+            case VAL_INTEGER:
+            case VAL_SHORT:
+            case VAL_BOOLEAN:
+            case VAL_BYTE:
+            case VAL_FLOAT:
+                return skipBytesInternal(4);
+            case VAL_LONG:
+            case VAL_DOUBLE:
+                return skipBytesInternal(8);
+            case VAL_BYTEARRAY:
+                n = readInt();
+                return n < 0 || skipBytesInternal((n + 3L) & ~3L);
+            case VAL_INTARRAY:
+            case VAL_BOOLEANARRAY:
+                n = readInt();
+                return n < 0 || skipBytesInternal(4L * n);
+            case VAL_LONGARRAY:
+            case VAL_DOUBLEARRAY:
+                n = readInt();
+                return n < 0 || skipBytesInternal(8L * n);
+            case VAL_STRINGARRAY:
+                n = readInt();
+                for (int i = 0; i < n; i++) {
+                    if (!skipStringInternal()) {
+                        return false;
+                    }
+                }
+                return true;
+            case VAL_BUNDLE:
+            case VAL_PERSISTABLEBUNDLE:
+                // Same layout as BaseBundle.writeToParcelInner(): the magic number follows
+                // the length unless the bundle is null or empty.
+                n = readInt();
+                return n <= 0 || skipBytesInternal(4L + n);
+            default:
+                return false;
+        }
+    }
+
+    private boolean skipStringInternal() {
+        final int n = readInt();
+        // UTF-16 characters with a terminating null, padded to 4 bytes.
+        return n < 0 || skipBytesInternal(((n + 1L) * 2 + 3) & ~3L);
+    }
+
+    private boolean skipBytesInternal(long size) {
+        if (size > dataAvail()) {
+            return false;
+        }
+        setDataPosition(dataPosition() + (int) size);
+        return true;
+    }
+
+    /**
+     * Reads a value written by {@link #writeValue} if it is null, a String or a boxed
+     * primitive, values which can be handed out repeatedly without being kept.  Returns
+     * {@code unsupported}, leaving the position undefined, for any other type.
+     */
+    /* package */ Object readImmutableValueInternal(Object unsupported) {
+        final int type = readInt();
+        switch (type) {
+            case VAL_NULL:
+                return null;
+            case VAL_STRING:
+                return readString();
+            case VAL_INTEGER:
+                return readInt();
+            case VAL_SHORT:
+                return (short) readInt();
+            case VAL_BOOLEAN:
+                return readInt() == 1;
+            case VAL_BYTE:
+                return readByte();
+            case VAL_LONG:
+                return readLong();
+            case VAL_FLOAT:
+                return readFloat();
+            case VAL_DOUBLE:
+                return readDouble();
+            default:
+                return unsupported;
+        }
+    }
+
     /**
      * @hide For testing only.
      */
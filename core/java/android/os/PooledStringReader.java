@@ -18,11 +18,12 @@ package android.os;
 
 /**
  * Helper class for reading pooling strings from a Parcel.  It must be used
- * in conjunction with {@link android.os.PooledStringWriter}.  This really needs
- * to be pushed in to Parcel itself, but doing that is...  complicated.
+ * in conjunction with {@link android.os.PooledStringWriter}.  Like the writer, it
+ * can be installed on the Parcel with {@link #install()} so that
+ * {@link Parcel#readString} reads pooled strings until {@link #uninstall()}.
  * @hide
  */
-public class PooledStringReader {
+public class PooledStringReader extends Parcel.ReadWriteHelper {
     private final Parcel mIn;
 
     /**
@@ -30,12 +31,44 @@ public class PooledStringReader {
      */
     private final String[] mPool;
 
+    /**
+     * The ReadWriteHelper the Parcel had before {@link #install()}.
+     */
+    private Parcel.ReadWriteHelper mPreviousHelper;
+
     public PooledStringReader(Parcel in) {
         mIn = in;
         final int size = in.readInt();
+        // Each string enters the pool with at least an index and a length, don't let a
+        // corrupt or hostile size allocate more than that.
+        if (size < 0 || size > in.dataAvail() / 8) {
+            throw new BadParcelableException("Bad string pool size " + size);
+        }
         mPool = new String[size];
     }
 
+    /**
+     * Makes {@link Parcel#readString} on the Parcel read pooled strings until
+     * {@link #uninstall()}.
+     */
+    public void install() {
+        mPreviousHelper = mIn.getReadWriteHelper();
+        mIn.setReadWriteHelper(this);
+    }
+
+    /**
+     * Gives the Parcel back the ReadWriteHelper it had before {@link #install()}.
+     */
+    public void uninstall() {
+        mIn.setReadWriteHelper(mPreviousHelper);
+        mPreviousHelper = null;
+    }
+
+    @Override
+    public String readString(Parcel p) {
+        return readString();
+    }
+
     public int getStringCount() {
         return mPool.length;
     }
@@ -46,7 +79,7 @@ public class PooledStringReader {
             return mPool[idx];
         } else {
             idx = (-idx) - 1;
-            String str = mIn.readString();
+            String str = mIn.readStringNoHelper();
             mPool[idx] = str;
             return str;
         }
@@ -20,11 +20,13 @@ import java.util.HashMap;
 
 /**
  * Helper class for writing pooled strings into a Parcel.  It must be used
- * in conjunction with {@link android.os.PooledStringReader}.  This really needs
- * to be pushed in to Parcel itself, but doing that is...  complicated.
+ * in conjunction with {@link android.os.PooledStringReader}.  Strings can either
+ * be written explicitly with {@link #writeString(String)}, or the writer can be
+ * installed on the Parcel with {@link #install()} so that everything written with
+ * {@link Parcel#writeString} until {@link #finish()} is pooled.
  * @hide
  */
-public class PooledStringWriter {
+public class PooledStringWriter extends Parcel.ReadWriteHelper {
     private final Parcel mOut;
 
     /**
@@ -48,6 +50,11 @@ public class PooledStringWriter {
      */
     private int mNext;
 
+    /**
+     * Whether this writer is installed as the Parcel's ReadWriteHelper.
+     */
+    private boolean mInstalled;
+
     public PooledStringWriter(Parcel out) {
         mOut = out;
         mPool = new HashMap<>();
@@ -62,16 +69,37 @@ public class PooledStringWriter {
         } else {
             mPool.put(str, mNext);
             mOut.writeInt(-(mNext+1));
-            mOut.writeString(str);
+            mOut.writeStringNoHelper(str);
             mNext++;
         }
     }
 
+    /**
+     * Makes {@link Parcel#writeString} on the Parcel write pooled strings until
+     * {@link #finish()}.  The Parcel must not already have a ReadWriteHelper.
+     */
+    public void install() {
+        if (mOut.hasReadWriteHelper()) {
+            throw new IllegalStateException("Parcel already has a ReadWriteHelper");
+        }
+        mOut.setReadWriteHelper(this);
+        mInstalled = true;
+    }
+
+    @Override
+    public void writeString(Parcel p, String s) {
+        writeString(s);
+    }
+
     public int getStringCount() {
         return mPool.size();
     }
 
     public void finish() {
+        if (mInstalled) {
+            mOut.setReadWriteHelper(null);
+            mInstalled = false;
+        }
         final int pos = mOut.dataPosition();
         mOut.setDataPosition(mStart);
         mOut.writeInt(mNext);
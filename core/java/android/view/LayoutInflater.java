@@ -20,6 +20,7 @@ import android.annotation.LayoutRes;
 import android.annotation.Nullable;
 import android.annotation.SystemService;
 import android.content.Context;
+import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
@@ -29,6 +30,7 @@ import android.os.Message;
 import android.os.Trace;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.TypedValue;
 import android.util.Xml;
 import android.widget.FrameLayout;
@@ -84,6 +86,7 @@ public abstract class LayoutInflater {
     private Factory2 mFactory2;
     private Factory2 mPrivateFactory;
     private Filter mFilter;
+    private SparseArray<PrecompiledLayout> mPrecompiledLayouts;
 
     final Object[] mConstructorArgs = new Object[2];
 
@@ -165,6 +168,27 @@ public abstract class LayoutInflater {
         public View onCreateView(View parent, String name, Context context, AttributeSet attrs);
     }
 
+    /**
+     * Creates the view hierarchy of a layout resource in code, as generated at build time from
+     * its XML, so that inflating it needs neither parsing nor reflection.
+     * See {@link #setPrecompiledLayout}.
+     *
+     * @hide
+     */
+    public interface PrecompiledLayout {
+        /**
+         * Creates the root view of the layout and its children.
+         *
+         * @param context The context the views are created in.
+         * @param root The view the root view will be added to, if any, <em>note that this may be
+         * null</em>.  The root view should be given layout params of a type this view accepts,
+         * they are converted otherwise.
+         *
+         * @return The root view of the layout, which must not have a parent.
+         */
+        View createView(Context context, @Nullable ViewGroup root);
+    }
+
     private static class FactoryMerger implements Factory2 {
         private final Factory mF1, mF2;
         private final Factory2 mF12, mF22;
@@ -219,6 +243,9 @@ public abstract class LayoutInflater {
         mFactory2 = original.mFactory2;
         mPrivateFactory = original.mPrivateFactory;
         setFilter(original.mFilter);
+        if (original.mPrecompiledLayouts != null) {
+            mPrecompiledLayouts = original.mPrecompiledLayouts.clone();
+        }
     }
 
     /**
@@ -359,6 +386,33 @@ public abstract class LayoutInflater {
         }
     }
 
+    /**
+     * Backs a layout resource with a {@link PrecompiledLayout}, which {@link #inflate(int,
+     * ViewGroup, boolean)} then uses instead of the XML.  Clones of this LayoutInflater made
+     * afterwards keep it.
+     * <p>
+     * The precompiled layout isn't passed through the {@link Factory} and {@link Factory2} set on
+     * this LayoutInflater, it has to create the views those would.  It isn't used while a
+     * {@link Filter} is set, as it would bypass the filter.
+     *
+     * @param resource ID of the XML layout resource.
+     * @param layout The precompiled layout, or null to inflate the XML again.
+     *
+     * @hide
+     */
+    public void setPrecompiledLayout(@LayoutRes int resource, @Nullable PrecompiledLayout layout) {
+        if (layout == null) {
+            if (mPrecompiledLayouts != null) {
+                mPrecompiledLayouts.remove(resource);
+            }
+            return;
+        }
+        if (mPrecompiledLayouts == null) {
+            mPrecompiledLayouts = new SparseArray<>();
+        }
+        mPrecompiledLayouts.put(resource, layout);
+    }
+
     /**
      * Inflate a new view hierarchy from the specified xml resource. Throws
      * {@link InflateException} if there is an error.
@@ -412,6 +466,13 @@ public abstract class LayoutInflater {
      *         the inflated XML file.
      */
     public View inflate(@LayoutRes int resource, @Nullable ViewGroup root, boolean attachToRoot) {
+        if (mPrecompiledLayouts != null && mFilter == null) {
+            final PrecompiledLayout layout = mPrecompiledLayouts.get(resource);
+            if (layout != null) {
+                return inflatePrecompiled(layout, root, attachToRoot);
+            }
+        }
+
         final Resources res = getContext().getResources();
         if (DEBUG) {
             Log.d(TAG, "INFLATING from resource: \"" + res.getResourceName(resource) + "\" ("
@@ -451,6 +512,7 @@ public abstract class LayoutInflater {
     public View inflate(XmlPullParser parser, @Nullable ViewGroup root, boolean attachToRoot) {
         synchronized (mConstructorArgs) {
             Trace.traceBegin(Trace.TRACE_TAG_VIEW, "inflate");
+            final int nativeCalls = AssetManager.getNativeCallCount();
 
             final Context inflaterContext = mContext;
             final AttributeSet attrs = Xml.asAttributeSet(parser);
@@ -545,6 +607,9 @@ public abstract class LayoutInflater {
                 mConstructorArgs[0] = lastContext;
                 mConstructorArgs[1] = null;
 
+                // How often reading the attributes of this layout called into native code.
+                Trace.traceCounter(Trace.TRACE_TAG_VIEW, "inflate native calls",
+                        AssetManager.getNativeCallCount() - nativeCalls);
                 Trace.traceEnd(Trace.TRACE_TAG_VIEW);
             }
 
@@ -552,6 +617,31 @@ public abstract class LayoutInflater {
         }
     }
 
+    private View inflatePrecompiled(PrecompiledLayout layout, @Nullable ViewGroup root,
+            boolean attachToRoot) {
+        Trace.traceBegin(Trace.TRACE_TAG_VIEW, "inflatePrecompiled");
+        try {
+            final View temp = layout.createView(mContext, root);
+            if (root == null) {
+                return temp;
+            }
+            ViewGroup.LayoutParams params = temp.getLayoutParams();
+            if (params == null) {
+                params = root.generateDefaultLayoutParams();
+            } else if (!root.checkLayoutParams(params)) {
+                params = root.generateLayoutParams(params);
+            }
+            if (attachToRoot) {
+                root.addView(temp, params);
+                return root;
+            }
+            temp.setLayoutParams(params);
+            return temp;
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_VIEW);
+        }
+    }
+
     private static final ClassLoader BOOT_CLASS_LOADER = LayoutInflater.class.getClassLoader();
 
     private final boolean verifyClassLoader(Constructor<? extends View> constructor) {
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Binder;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples the incoming binder transactions of a process, and collects their latency, CPU
+ * time and parcel sizes per binder class, transaction code and calling UID.
+ * <p>
+ * Transactions that aren't sampled only cost a random number.  Kinds of calls are kept in
+ * a {@link BoundedStatsTable}, and kinds that no longer fit are counted together, so memory
+ * use doesn't grow with the number of callers.  Latencies are kept in histograms
+ * with power of two microsecond buckets, from which percentiles are estimated.
+ * </p>
+ */
+public class BinderCallsStats implements Binder.TransactionObserver {
+    private static final int MAX_ENTRIES = 512;
+
+    private static volatile BinderCallsStats sInstance;
+
+    private final int mSamplingInterval;
+
+    private static final class CallSession {
+        final Class<?> binderClass;
+        final int code;
+        final int callingUid;
+        final long startNanos;
+        final long startCpuMicros;
+
+        CallSession(Class<?> binderClass, int code, int callingUid) {
+            this.binderClass = binderClass;
+            this.code = code;
+            this.callingUid = callingUid;
+            startNanos = System.nanoTime();
+            startCpuMicros = SystemClock.currentThreadTimeMicro();
+        }
+    }
+
+    @VisibleForTesting
+    static final class Entry extends BoundedStatsTable.Entry {
+        final Class<?> binderClass;
+        final int code;
+        final int callingUid;
+
+        long totalLatencyMicros;
+        long maxLatencyMicros;
+        long totalCpuMicros;
+        long maxCpuMicros;
+        long totalRequestBytes;
+        long maxRequestBytes;
+        long totalReplyBytes;
+        long maxReplyBytes;
+        final long[] latencyHistogram = new long[LooperStats.NUM_BUCKETS];
+
+        Entry(Class<?> binderClass, int code, int callingUid) {
+            this.binderClass = binderClass;
+            this.code = code;
+            this.callingUid = callingUid;
+        }
+
+        @Override
+        boolean matches(Class<?> firstClass, Class<?> secondClass, int firstInt,
+                int secondInt) {
+            return binderClass == firstClass && code == firstInt && callingUid == secondInt;
+        }
+
+        void record(long latencyMicros, long cpuMicros, int requestBytes, int replyBytes) {
+            count++;
+            totalLatencyMicros += latencyMicros;
+            maxLatencyMicros = Math.max(maxLatencyMicros, latencyMicros);
+            latencyHistogram[LooperStats.bucketOf(latencyMicros)]++;
+            totalCpuMicros += cpuMicros;
+            maxCpuMicros = Math.max(maxCpuMicros, cpuMicros);
+            totalRequestBytes += requestBytes;
+            maxRequestBytes = Math.max(maxRequestBytes, requestBytes);
+            totalReplyBytes += replyBytes;
+            maxReplyBytes = Math.max(maxReplyBytes, replyBytes);
+        }
+
+        Entry copy() {
+            final Entry copy = new Entry(binderClass, code, callingUid);
+            copy.count = count;
+            copy.totalLatencyMicros = totalLatencyMicros;
+            copy.maxLatencyMicros = maxLatencyMicros;
+            copy.totalCpuMicros = totalCpuMicros;
+            copy.maxCpuMicros = maxCpuMicros;
+            copy.totalRequestBytes = totalRequestBytes;
+            copy.maxRequestBytes = maxRequestBytes;
+            copy.totalReplyBytes = totalReplyBytes;
+            copy.maxReplyBytes = maxReplyBytes;
+            System.arraycopy(latencyHistogram, 0, copy.latencyHistogram, 0,
+                    LooperStats.NUM_BUCKETS);
+            return copy;
+        }
+
+        /**
+         * Returns the upper bound of the histogram bucket holding the given percentile of
+         * the latencies, or -1 if it is in the last, unbounded, bucket.
+         */
+        long getLatencyPercentileMicros(int percentile) {
+            final long rank = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < LooperStats.NUM_BUCKETS - 1; i++) {
+                seen += latencyHistogram[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    @GuardedBy("this")
+    private final BoundedStatsTable<Entry> mEntries = new BoundedStatsTable<>(MAX_ENTRIES,
+            (binderClass, unused, code, callingUid) -> new Entry(binderClass, code, callingUid));
+
+    /**
+     * @param samplingInterval One in how many transactions, on average, to sample.
+     */
+    public BinderCallsStats(int samplingInterval) {
+        mSamplingInterval = Math.max(1, samplingInterval);
+    }
+
+    /**
+     * Starts sampling the incoming transactions of this process.
+     */
+    public static void start(int samplingInterval) {
+        final BinderCallsStats stats = new BinderCallsStats(samplingInterval);
+        sInstance = stats;
+        Binder.setObserver(stats);
+    }
+
+    /**
+     * Returns the instance passed to {@link Binder#setObserver} by {@link #start}, or null
+     * if sampling wasn't started.
+     */
+    public static BinderCallsStats getInstance() {
+        return sInstance;
+    }
+
+    @Override
+    public Object transactionStarted(Binder binder, int code, int flags) {
+        if (mSamplingInterval > 1
+                && ThreadLocalRandom.current().nextInt(mSamplingInterval) != 0) {
+            return null;
+        }
+        return new CallSession(binder.getClass(), code, Binder.getCallingUid());
+    }
+
+    @Override
+    public void transactionEnded(Object session, int dataSize, int replySize) {
+        final CallSession call = (CallSession) session;
+        final long latencyMicros = (System.nanoTime() - call.startNanos) / 1000;
+        final long cpuMicros = SystemClock.currentThreadTimeMicro() - call.startCpuMicros;
+        synchronized (this) {
+            mEntries.get(call.binderClass, null, call.code, call.callingUid)
+                    .record(latencyMicros, cpuMicros, dataSize, replySize);
+        }
+    }
+
+    /** Returns copies of the entries recorded so far, by descending total latency. */
+    @VisibleForTesting
+    synchronized ArrayList<Entry> getEntries() {
+        final ArrayList<Entry> entries = mEntries.getEntries();
+        for (int i = 0; i < entries.size(); i++) {
+            entries.set(i, entries.get(i).copy());
+        }
+        Collections.sort(entries,
+                (a, b) -> Long.compare(b.totalLatencyMicros, a.totalLatencyMicros));
+        return entries;
+    }
+
+    /** Forgets everything recorded so far. */
+    public synchronized void reset() {
+        mEntries.reset();
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        // getEntries() copies the counters so that printing doesn't hold up binder threads.
+        final ArrayList<Entry> entries = getEntries();
+        pw.print(prefix); pw.print("Sampling 1 in "); pw.print(mSamplingInterval);
+        pw.println(" calls; counts and totals are estimated, latency percentiles are"
+                + " histogram bucket upper bounds.");
+        for (Entry entry : entries) {
+            pw.print(prefix);
+            if (entry.binderClass == null) {
+                pw.print("<other>");
+            } else {
+                pw.print(entry.binderClass.getName()); pw.print('#');
+                pw.print(getTransactionName(entry.binderClass, entry.code));
+                pw.print(" uid="); pw.print(entry.callingUid);
+            }
+            pw.print(": calls~"); pw.print(entry.count * mSamplingInterval);
+            pw.print(" latency total~");
+            pw.print(entry.totalLatencyMicros * mSamplingInterval / 1000);
+            pw.print("ms avg="); pw.print(entry.totalLatencyMicros / entry.count);
+            pw.print("us max="); pw.print(entry.maxLatencyMicros); pw.println("us");
+            pw.print(prefix); pw.print("    latency p50<");
+            printPercentile(pw, entry, 50);
+            pw.print(" p90<"); printPercentile(pw, entry, 90);
+            pw.print(" p99<"); printPercentile(pw, entry, 99);
+            pw.print(" cpu avg="); pw.print(entry.totalCpuMicros / entry.count);
+            pw.print("us max="); pw.print(entry.maxCpuMicros);
+            pw.print("us request avg="); pw.print(entry.totalRequestBytes / entry.count);
+            pw.print("B max="); pw.print(entry.maxRequestBytes);
+            pw.print("B reply avg="); pw.print(entry.totalReplyBytes / entry.count);
+            pw.print("B max="); pw.print(entry.maxReplyBytes); pw.println("B");
+        }
+    }
+
+    private static void printPercentile(PrintWriter pw, Entry entry, int percentile) {
+        final long micros = entry.getLatencyPercentileMicros(percentile);
+        if (micros < 0) {
+            pw.print("inf");
+        } else {
+            pw.print(micros); pw.print("us");
+        }
+    }
+
+    /**
+     * Returns the name of the AIDL method of a transaction code, found from the
+     * TRANSACTION_ constants of the generated Stub class the binder class extends, or the
+     * code itself if there is none.
+     */
+    @VisibleForTesting
+    static String getTransactionName(Class<?> binderClass, int code) {
+        for (Class<?> c = binderClass; c != null; c = c.getSuperclass()) {
+            if (!c.getName().endsWith("$Stub")) {
+                continue;
+            }
+            try {
+                for (Field field : c.getDeclaredFields()) {
+                    if (field.getType() == int.class
+                            && Modifier.isStatic(field.getModifiers())
+                            && field.getName().startsWith("TRANSACTION_")) {
+                        field.setAccessible(true);
+                        if (field.getInt(null) == code) {
+                            return field.getName().substring("TRANSACTION_".length());
+                        }
+                    }
+                }
+            } catch (ReflectiveOperationException | SecurityException e) {
+                // Fall back to the code.
+            }
+            break;
+        }
+        return String.valueOf(code);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Fixed-size open-addressing table of statistics entries, keyed by a class, an optional
+ * second class and two ints.  Used by {@link LooperStats} and {@link BinderCallsStats}.
+ * <p>
+ * Looking up a key that has been seen before doesn't allocate.  Keys that no longer fit
+ * share an overflow entry, so memory use doesn't grow with the number of keys.  Callers
+ * synchronize access themselves.
+ * </p>
+ */
+final class BoundedStatsTable<E extends BoundedStatsTable.Entry> {
+    /** The statistics of one key. */
+    abstract static class Entry {
+        long count;
+
+        /** Whether this is the entry of the given key. */
+        abstract boolean matches(Class<?> firstClass, Class<?> secondClass, int firstInt,
+                int secondInt);
+    }
+
+    /** Creates the entry of a key; the overflow entry has null classes and zero ints. */
+    interface EntryFactory<E> {
+        E create(Class<?> firstClass, Class<?> secondClass, int firstInt, int secondInt);
+    }
+
+    private final Entry[] mEntries;
+    // Keys beyond this count go to the overflow entry, to keep probe sequences short.
+    private final int mMaxUsedEntries;
+    private final EntryFactory<E> mFactory;
+    private E mOverflowEntry;
+    private int mEntryCount;
+
+    /**
+     * @param size The number of slots, which must be a power of two.
+     */
+    BoundedStatsTable(int size, EntryFactory<E> factory) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Size must be a power of two: " + size);
+        }
+        mEntries = new Entry[size];
+        mMaxUsedEntries = size * 3 / 4;
+        mFactory = factory;
+        mOverflowEntry = factory.create(null, null, 0, 0);
+    }
+
+    /** Returns the entry of the given key, creating it if there is room. */
+    @SuppressWarnings("unchecked")
+    E get(Class<?> firstClass, Class<?> secondClass, int firstInt, int secondInt) {
+        int hash = (System.identityHashCode(firstClass) * 31 + firstInt) * 31 + secondInt;
+        if (secondClass != null) {
+            hash = hash * 31 + System.identityHashCode(secondClass);
+        }
+        // Spread the bits, identity hash codes are often aligned.
+        hash ^= (hash >>> 16);
+        final int mask = mEntries.length - 1;
+        for (int i = 0; i < mEntries.length; i++) {
+            final int index = (hash + i) & mask;
+            final Entry entry = mEntries[index];
+            if (entry == null) {
+                if (mEntryCount >= mMaxUsedEntries) {
+                    break;
+                }
+                mEntryCount++;
+                final E created = mFactory.create(firstClass, secondClass, firstInt, secondInt);
+                mEntries[index] = created;
+                return created;
+            }
+            if (entry.matches(firstClass, secondClass, firstInt, secondInt)) {
+                return (E) entry;
+            }
+        }
+        return mOverflowEntry;
+    }
+
+    /** Returns the entries in use, and the overflow entry last if anything went to it. */
+    @SuppressWarnings("unchecked")
+    ArrayList<E> getEntries() {
+        final ArrayList<E> entries = new ArrayList<>(mEntryCount + 1);
+        for (Entry entry : mEntries) {
+            if (entry != null) {
+                entries.add((E) entry);
+            }
+        }
+        if (mOverflowEntry.count > 0) {
+            entries.add(mOverflowEntry);
+        }
+        return entries;
+    }
+
+    /** Drops all entries. */
+    void reset() {
+        Arrays.fill(mEntries, null);
+        mEntryCount = 0;
+        mOverflowEntry = mFactory.create(null, null, 0, 0);
+    }
+}
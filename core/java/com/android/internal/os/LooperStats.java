@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Looper;
+import android.os.Message;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Collects the dispatch time and queue delay of the messages of a {@link Looper}, per
+ * handler class, callback class and message code.
+ * <p>
+ * Recording a message doesn't allocate once its kind has been seen: kinds are kept in a
+ * {@link BoundedStatsTable}, and kinds that no longer fit are counted together.
+ * Times are kept in histograms with power of two microsecond buckets.
+ * </p>
+ */
+public class LooperStats implements Looper.Observer {
+    private static final int MAX_ENTRIES = 256;
+
+    // Bucket i counts times in [2^(i-1), 2^i) microseconds; the last one everything above.
+    @VisibleForTesting
+    static final int NUM_BUCKETS = 20;
+
+    @VisibleForTesting
+    static final class Entry extends BoundedStatsTable.Entry {
+        final Class<?> handlerClass;
+        final Class<?> callbackClass;
+        final int what;
+
+        long totalDispatchMicros;
+        long maxDispatchMicros;
+        long totalDelayMicros;
+        long maxDelayMicros;
+        final long[] dispatchHistogram = new long[NUM_BUCKETS];
+        final long[] delayHistogram = new long[NUM_BUCKETS];
+
+        Entry(Class<?> handlerClass, Class<?> callbackClass, int what) {
+            this.handlerClass = handlerClass;
+            this.callbackClass = callbackClass;
+            this.what = what;
+        }
+
+        @Override
+        boolean matches(Class<?> firstClass, Class<?> secondClass, int firstInt,
+                int secondInt) {
+            return handlerClass == firstClass && callbackClass == secondClass
+                    && what == firstInt;
+        }
+
+        void record(long dispatchMicros, long delayMicros) {
+            count++;
+            totalDispatchMicros += dispatchMicros;
+            maxDispatchMicros = Math.max(maxDispatchMicros, dispatchMicros);
+            dispatchHistogram[bucketOf(dispatchMicros)]++;
+            totalDelayMicros += delayMicros;
+            maxDelayMicros = Math.max(maxDelayMicros, delayMicros);
+            delayHistogram[bucketOf(delayMicros)]++;
+        }
+
+        String getName() {
+            if (handlerClass == null) {
+                return "<other>";
+            }
+            final StringBuilder sb = new StringBuilder(handlerClass.getName());
+            if (callbackClass != null) {
+                sb.append(" {").append(callbackClass.getName()).append('}');
+            }
+            return sb.append(" what=").append(what).toString();
+        }
+    }
+
+    @GuardedBy("this")
+    private final BoundedStatsTable<Entry> mEntries = new BoundedStatsTable<>(MAX_ENTRIES,
+            (handlerClass, callbackClass, what, unused) ->
+                    new Entry(handlerClass, callbackClass, what));
+
+    @Override
+    public void messageDispatched(Message msg, long when, long dispatchStartNanos,
+            long dispatchEndNanos) {
+        final Class<?> handlerClass = msg.getTarget().getClass();
+        final Runnable callback = msg.getCallback();
+        final Class<?> callbackClass = callback != null ? callback.getClass() : null;
+        final long dispatchMicros = (dispatchEndNanos - dispatchStartNanos) / 1000;
+        // Uptime and System.nanoTime() share the same monotonic clock.
+        final long delayMicros = when != 0
+                ? Math.max(0, dispatchStartNanos / 1000 - when * 1000) : 0;
+        synchronized (this) {
+            mEntries.get(handlerClass, callbackClass, msg.what, 0)
+                    .record(dispatchMicros, delayMicros);
+        }
+    }
+
+    @VisibleForTesting
+    static int bucketOf(long micros) {
+        return Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /** Returns the entries recorded so far, by descending total dispatch time. */
+    @VisibleForTesting
+    synchronized ArrayList<Entry> getEntries() {
+        final ArrayList<Entry> entries = mEntries.getEntries();
+        Collections.sort(entries,
+                (a, b) -> Long.compare(b.totalDispatchMicros, a.totalDispatchMicros));
+        return entries;
+    }
+
+    /** Forgets everything recorded so far. */
+    public synchronized void reset() {
+        mEntries.reset();
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        final ArrayList<Entry> entries;
+        synchronized (this) {
+            // Copy the counters so that printing doesn't hold up the looper.
+            entries = new ArrayList<>();
+            for (Entry entry : getEntries()) {
+                final Entry copy = new Entry(entry.handlerClass, entry.callbackClass,
+                        entry.what);
+                copy.count = entry.count;
+                copy.totalDispatchMicros = entry.totalDispatchMicros;
+                copy.maxDispatchMicros = entry.maxDispatchMicros;
+                copy.totalDelayMicros = entry.totalDelayMicros;
+                copy.maxDelayMicros = entry.maxDelayMicros;
+                System.arraycopy(entry.dispatchHistogram, 0, copy.dispatchHistogram, 0,
+                        NUM_BUCKETS);
+                System.arraycopy(entry.delayHistogram, 0, copy.delayHistogram, 0,
+                        NUM_BUCKETS);
+                entries.add(copy);
+            }
+        }
+        for (Entry entry : entries) {
+            pw.print(prefix); pw.print(entry.getName());
+            pw.print(": count="); pw.print(entry.count);
+            pw.print(" dispatch total="); pw.print(entry.totalDispatchMicros / 1000);
+            pw.print("ms avg="); pw.print(entry.totalDispatchMicros / entry.count);
+            pw.print("us max="); pw.print(entry.maxDispatchMicros);
+            pw.print("us delay avg="); pw.print(entry.totalDelayMicros / entry.count);
+            pw.print("us max="); pw.print(entry.maxDelayMicros); pw.println("us");
+            dumpHistogram(pw, prefix + "    dispatch us: ", entry.dispatchHistogram);
+            dumpHistogram(pw, prefix + "    delay us:    ", entry.delayHistogram);
+        }
+    }
+
+    private static void dumpHistogram(PrintWriter pw, String prefix, long[] histogram) {
+        pw.print(prefix);
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            if (histogram[i] == 0) {
+                continue;
+            }
+            pw.print(i == NUM_BUCKETS - 1 ? ">=" : "<"); pw.print(1L << (i == NUM_BUCKETS - 1
+                    ? i - 1 : i));
+            pw.print(":"); pw.print(histogram[i]); pw.print(" ");
+        }
+        pw.println();
+    }
+}
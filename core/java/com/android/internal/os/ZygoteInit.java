@@ -374,6 +374,18 @@ public class ZygoteInit {
                 Log.i(TAG, "...preloaded " + N + " resources in "
                         + (SystemClock.uptimeMillis()-startTime) + "ms.");
 
+                startTime = SystemClock.uptimeMillis();
+                ar = mResources.obtainTypedArray(
+                        com.android.internal.R.array.preloaded_extra_drawables);
+                N = preloadDrawables(ar);
+                ar.recycle();
+                ar = mResources.obtainTypedArray(
+                        com.android.internal.R.array.preloaded_extra_color_state_lists);
+                N += preloadColorStateLists(ar);
+                ar.recycle();
+                Log.i(TAG, "...preloaded " + N + " extra resources in "
+                        + (SystemClock.uptimeMillis() - startTime) + "ms.");
+
                 if (mResources.getBoolean(
                         com.android.internal.R.bool.config_freeformWindowManagement)) {
                     startTime = SystemClock.uptimeMillis();
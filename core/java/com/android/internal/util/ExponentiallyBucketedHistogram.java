@@ -20,6 +20,7 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.util.Log;
 
+import java.io.PrintWriter;
 import java.util.Arrays;
 
 /**
@@ -71,6 +72,25 @@ public class ExponentiallyBucketedHistogram {
      * @param prefix A custom prefix that is printed in front of the histogram
      */
     public void log(@NonNull String tag, @Nullable CharSequence prefix) {
+        Log.d(tag, toString(prefix));
+    }
+
+    /**
+     * Print the histogram on a single line.
+     *
+     * @param pw     The writer to print to
+     * @param prefix A custom prefix that is printed in front of the histogram
+     */
+    public void dump(@NonNull PrintWriter pw, @Nullable CharSequence prefix) {
+        pw.println(toString(prefix));
+    }
+
+    /**
+     * Format the histogram as a single line.
+     *
+     * @param prefix A custom prefix that is printed in front of the histogram
+     */
+    public String toString(@Nullable CharSequence prefix) {
         StringBuilder builder = new StringBuilder(prefix);
         builder.append('[');
 
@@ -92,6 +112,6 @@ public class ExponentiallyBucketedHistogram {
         }
         builder.append("]");
 
-        Log.d(tag, builder.toString());
+        return builder.toString();
     }
 }
@@ -364,66 +364,135 @@ static void nativeCopyStringToBuffer(JNIEnv* env, jclass clazz, jlong windowPtr,
     }
 }
 
-static jlong nativeGetLong(JNIEnv* env, jclass clazz, jlong windowPtr,
-        jint row, jint column) {
-    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
-    LOG_WINDOW("Getting long for %d,%d from %p", row, column, window);
-
-    CursorWindow::FieldSlot* fieldSlot = window->getFieldSlot(row, column);
-    if (!fieldSlot) {
-        throwExceptionWithRowCol(env, row, column);
-        return 0;
-    }
-
+// Converts a field to a long the way nativeGetLong does.  Returns false with a pending
+// exception if the field can't be converted.
+static bool getFieldSlotAsLong(JNIEnv* env, CursorWindow* window,
+        CursorWindow::FieldSlot* fieldSlot, jlong* outValue) {
     int32_t type = window->getFieldSlotType(fieldSlot);
     if (type == CursorWindow::FIELD_TYPE_INTEGER) {
-        return window->getFieldSlotValueLong(fieldSlot);
+        *outValue = window->getFieldSlotValueLong(fieldSlot);
     } else if (type == CursorWindow::FIELD_TYPE_STRING) {
         size_t sizeIncludingNull;
         const char* value = window->getFieldSlotValueString(fieldSlot, &sizeIncludingNull);
-        return sizeIncludingNull > 1 ? strtoll(value, NULL, 0) : 0L;
+        *outValue = sizeIncludingNull > 1 ? strtoll(value, NULL, 0) : 0L;
     } else if (type == CursorWindow::FIELD_TYPE_FLOAT) {
-        return jlong(window->getFieldSlotValueDouble(fieldSlot));
+        *outValue = jlong(window->getFieldSlotValueDouble(fieldSlot));
     } else if (type == CursorWindow::FIELD_TYPE_NULL) {
-        return 0;
+        *outValue = 0;
     } else if (type == CursorWindow::FIELD_TYPE_BLOB) {
         throw_sqlite3_exception(env, "Unable to convert BLOB to long");
-        return 0;
+        return false;
     } else {
         throwUnknownTypeException(env, type);
-        return 0;
+        return false;
     }
+    return true;
 }
 
-static jdouble nativeGetDouble(JNIEnv* env, jclass clazz, jlong windowPtr,
-        jint row, jint column) {
-    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
-    LOG_WINDOW("Getting double for %d,%d from %p", row, column, window);
-
-    CursorWindow::FieldSlot* fieldSlot = window->getFieldSlot(row, column);
-    if (!fieldSlot) {
-        throwExceptionWithRowCol(env, row, column);
-        return 0.0;
-    }
-
+// Converts a field to a double the way nativeGetDouble does.  Returns false with a pending
+// exception if the field can't be converted.
+static bool getFieldSlotAsDouble(JNIEnv* env, CursorWindow* window,
+        CursorWindow::FieldSlot* fieldSlot, jdouble* outValue) {
     int32_t type = window->getFieldSlotType(fieldSlot);
     if (type == CursorWindow::FIELD_TYPE_FLOAT) {
-        return window->getFieldSlotValueDouble(fieldSlot);
+        *outValue = window->getFieldSlotValueDouble(fieldSlot);
     } else if (type == CursorWindow::FIELD_TYPE_STRING) {
         size_t sizeIncludingNull;
         const char* value = window->getFieldSlotValueString(fieldSlot, &sizeIncludingNull);
-        return sizeIncludingNull > 1 ? strtod(value, NULL) : 0.0;
+        *outValue = sizeIncludingNull > 1 ? strtod(value, NULL) : 0.0;
     } else if (type == CursorWindow::FIELD_TYPE_INTEGER) {
-        return jdouble(window->getFieldSlotValueLong(fieldSlot));
+        *outValue = jdouble(window->getFieldSlotValueLong(fieldSlot));
     } else if (type == CursorWindow::FIELD_TYPE_NULL) {
-        return 0.0;
+        *outValue = 0.0;
     } else if (type == CursorWindow::FIELD_TYPE_BLOB) {
         throw_sqlite3_exception(env, "Unable to convert BLOB to double");
-        return 0.0;
+        return false;
     } else {
         throwUnknownTypeException(env, type);
+        return false;
+    }
+    return true;
+}
+
+static jlong nativeGetLong(JNIEnv* env, jclass clazz, jlong windowPtr,
+        jint row, jint column) {
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+    LOG_WINDOW("Getting long for %d,%d from %p", row, column, window);
+
+    CursorWindow::FieldSlot* fieldSlot = window->getFieldSlot(row, column);
+    if (!fieldSlot) {
+        throwExceptionWithRowCol(env, row, column);
+        return 0;
+    }
+
+    jlong value;
+    return getFieldSlotAsLong(env, window, fieldSlot, &value) ? value : 0;
+}
+
+static jdouble nativeGetDouble(JNIEnv* env, jclass clazz, jlong windowPtr,
+        jint row, jint column) {
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+    LOG_WINDOW("Getting double for %d,%d from %p", row, column, window);
+
+    CursorWindow::FieldSlot* fieldSlot = window->getFieldSlot(row, column);
+    if (!fieldSlot) {
+        throwExceptionWithRowCol(env, row, column);
         return 0.0;
     }
+
+    jdouble value;
+    return getFieldSlotAsDouble(env, window, fieldSlot, &value) ? value : 0.0;
+}
+
+// Number of values converted on the stack before being copied to the Java array.
+static const jint COPY_COLUMN_CHUNK_SIZE = 256;
+
+static void nativeCopyLongColumn(JNIEnv* env, jclass clazz, jlong windowPtr,
+        jint column, jint row, jint numRows, jlongArray destObj, jint destOffset) {
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+    LOG_WINDOW("Copying %d longs from %d,%d of %p", numRows, row, column, window);
+
+    jlong values[COPY_COLUMN_CHUNK_SIZE];
+    for (jint done = 0; done < numRows; ) {
+        const jint count = numRows - done < COPY_COLUMN_CHUNK_SIZE
+                ? numRows - done : COPY_COLUMN_CHUNK_SIZE;
+        for (jint i = 0; i < count; i++) {
+            CursorWindow::FieldSlot* fieldSlot = window->getFieldSlot(row + done + i, column);
+            if (!fieldSlot) {
+                throwExceptionWithRowCol(env, row + done + i, column);
+                return;
+            }
+            if (!getFieldSlotAsLong(env, window, fieldSlot, &values[i])) {
+                return;
+            }
+        }
+        env->SetLongArrayRegion(destObj, destOffset + done, count, values);
+        done += count;
+    }
+}
+
+static void nativeCopyDoubleColumn(JNIEnv* env, jclass clazz, jlong windowPtr,
+        jint column, jint row, jint numRows, jdoubleArray destObj, jint destOffset) {
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+    LOG_WINDOW("Copying %d doubles from %d,%d of %p", numRows, row, column, window);
+
+    jdouble values[COPY_COLUMN_CHUNK_SIZE];
+    for (jint done = 0; done < numRows; ) {
+        const jint count = numRows - done < COPY_COLUMN_CHUNK_SIZE
+                ? numRows - done : COPY_COLUMN_CHUNK_SIZE;
+        for (jint i = 0; i < count; i++) {
+            CursorWindow::FieldSlot* fieldSlot = window->getFieldSlot(row + done + i, column);
+            if (!fieldSlot) {
+                throwExceptionWithRowCol(env, row + done + i, column);
+                return;
+            }
+            if (!getFieldSlotAsDouble(env, window, fieldSlot, &values[i])) {
+                return;
+            }
+        }
+        env->SetDoubleArrayRegion(destObj, destOffset + done, count, values);
+        done += count;
+    }
 }
 
 static jboolean nativePutBlob(JNIEnv* env, jclass clazz, jlong windowPtr,
@@ -543,6 +612,10 @@ static const JNINativeMethod sMethods[] =
             (void*)nativeGetDouble },
     { "nativeCopyStringToBuffer", "(JIILandroid/database/CharArrayBuffer;)V",
             (void*)nativeCopyStringToBuffer },
+    { "nativeCopyLongColumn", "(JIII[JI)V",
+            (void*)nativeCopyLongColumn },
+    { "nativeCopyDoubleColumn", "(JIII[DI)V",
+            (void*)nativeCopyDoubleColumn },
     { "nativePutBlob", "(J[BII)Z",
             (void*)nativePutBlob },
     { "nativePutString", "(JLjava/lang/String;II)Z",
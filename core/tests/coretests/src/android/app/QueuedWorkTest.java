@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the deadline of {@link QueuedWork#waitToFinish()}.
+ *
+ * <p>Run with:  bit FrameworksCoreTests:android.app.QueuedWorkTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class QueuedWorkTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private long mOldDeadlineMillis;
+
+    @Before
+    public void setUp() {
+        mOldDeadlineMillis = QueuedWork.setWaitDeadlineMillis(TIMEOUT_MS);
+    }
+
+    @After
+    public void tearDown() {
+        QueuedWork.setWaitDeadlineMillis(mOldDeadlineMillis);
+    }
+
+    @Test
+    public void testWorkDoneInOrderBeforeDeadline() {
+        final List<Integer> done = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final int item = i;
+            QueuedWork.queue(() -> {
+                synchronized (done) {
+                    done.add(item);
+                    threads.add(Thread.currentThread());
+                }
+            }, true);
+        }
+
+        // Doesn't sit out the delay of the delayed work either.
+        final long start = SystemClock.uptimeMillis();
+        QueuedWork.waitToFinish();
+        assertTrue(SystemClock.uptimeMillis() - start < TIMEOUT_MS);
+
+        synchronized (done) {
+            assertEquals(Arrays.asList(0, 1, 2, 3), done);
+            for (Thread thread : threads) {
+                assertNotSame(Thread.currentThread(), thread);
+            }
+        }
+    }
+
+    @Test
+    public void testGivesUpAtDeadline() throws Exception {
+        final long deadlineMillis = 100;
+        QueuedWork.setWaitDeadlineMillis(deadlineMillis);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Runnable finisher = () -> fail("Finisher run while waiting with a deadline");
+        QueuedWork.addFinisher(finisher);
+        try {
+            QueuedWork.queue(() -> {
+                try {
+                    release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                }
+                done.countDown();
+            }, false);
+
+            final long start = SystemClock.uptimeMillis();
+            QueuedWork.waitToFinish();
+            final long waited = SystemClock.uptimeMillis() - start;
+            assertTrue("Waited " + waited + " ms", waited < TIMEOUT_MS);
+            assertEquals(1, done.getCount());
+        } finally {
+            release.countDown();
+            QueuedWork.removeFinisher(finisher);
+        }
+
+        // The work keeps going in the background.
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(QueuedWork.hasPendingWork());
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.system.Os;
+import android.system.StructStat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Tests for the change log of {@link SharedPreferencesImpl}, used with
+ * {@link Context#MODE_SHARED_PREFERENCES_LOG}.
+ *
+ * <p>Run with:  bit FrameworksCoreTests:android.app.SharedPreferencesLogTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SharedPreferencesLogTest {
+    // The log format of SharedPreferencesImpl.
+    private static final int LOG_MAGIC = 0x5350524c;
+    private static final int LOG_VERSION = 1;
+    private static final byte LOG_TYPE_REMOVE = 0;
+    private static final byte LOG_TYPE_STRING = 1;
+    private static final byte LOG_TYPE_INT = 2;
+
+    private Context mContext;
+    private final ArrayList<String> mNames = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getContext();
+    }
+
+    @After
+    public void tearDown() {
+        for (String name : mNames) {
+            mContext.deleteSharedPreferences(name);
+        }
+    }
+
+    private String newName(String name) {
+        final String uniqueName = "SharedPreferencesLogTest_" + name + "_" + System.nanoTime();
+        mNames.add(uniqueName);
+        return uniqueName;
+    }
+
+    private File getFile(String name) {
+        return mContext.getSharedPreferencesPath(name);
+    }
+
+    private static File getLogFile(File prefs) {
+        return new File(prefs.getPath() + ".log");
+    }
+
+    /**
+     * Creates the xml file of preferences that haven't been loaded yet, with one int and one
+     * string value.
+     */
+    private String createPreferencesFile(String name) {
+        final String writtenName = newName(name + "_src");
+        final SharedPreferences.Editor editor =
+                mContext.getSharedPreferences(writtenName, 0).edit();
+        editor.putInt("int", 1);
+        editor.putString("removed", "value");
+        assertTrue(editor.commit());
+
+        // Renaming keeps the size and mtime the log header refers to.
+        final String loadedName = newName(name);
+        assertTrue(getFile(writtenName).renameTo(getFile(loadedName)));
+        return loadedName;
+    }
+
+    private static DataOutputStream openLog(File prefs, long size) throws Exception {
+        final StructStat stat = Os.stat(prefs.getPath());
+        final DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(getLogFile(prefs)));
+        out.writeInt(LOG_MAGIC);
+        out.writeInt(LOG_VERSION);
+        out.writeLong(size >= 0 ? size : stat.st_size);
+        out.writeLong(stat.st_mtim.tv_sec);
+        out.writeLong(stat.st_mtim.tv_nsec);
+        return out;
+    }
+
+    private static void writeRecord(DataOutputStream out, String key, byte type, Object value)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream record = new DataOutputStream(bytes);
+        record.writeInt(1);
+        record.writeUTF(key);
+        record.writeByte(type);
+        if (type == LOG_TYPE_STRING) {
+            record.writeUTF((String) value);
+        } else if (type == LOG_TYPE_INT) {
+            record.writeInt((Integer) value);
+        }
+        record.flush();
+        final byte[] payload = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+    }
+
+    @Test
+    public void testLogReplayedOnLoad() throws Exception {
+        final String name = createPreferencesFile("replay");
+        try (DataOutputStream out = openLog(getFile(name), -1)) {
+            writeRecord(out, "int", LOG_TYPE_INT, 2);
+            writeRecord(out, "string", LOG_TYPE_STRING, "logged");
+            writeRecord(out, "removed", LOG_TYPE_REMOVE, null);
+        }
+
+        final SharedPreferences prefs = mContext.getSharedPreferences(name, 0);
+        assertEquals(2, prefs.getInt("int", 0));
+        assertEquals("logged", prefs.getString("string", null));
+        assertFalse(prefs.contains("removed"));
+    }
+
+    @Test
+    public void testStaleLogIgnored() throws Exception {
+        final String name = createPreferencesFile("stale");
+        final File file = getFile(name);
+        // A header for a different xml file, as left behind by an interrupted rewrite.
+        try (DataOutputStream out = openLog(file, file.length() + 1)) {
+            writeRecord(out, "int", LOG_TYPE_INT, 2);
+        }
+
+        final SharedPreferences prefs = mContext.getSharedPreferences(name, 0);
+        assertEquals(1, prefs.getInt("int", 0));
+        assertEquals("value", prefs.getString("removed", null));
+    }
+
+    @Test
+    public void testTornTailKeepsCompleteRecords() throws Exception {
+        final String name = createPreferencesFile("torn");
+        final File file = getFile(name);
+        try (DataOutputStream out = openLog(file, -1)) {
+            writeRecord(out, "int", LOG_TYPE_INT, 2);
+            writeRecord(out, "string", LOG_TYPE_STRING, "logged");
+            // A record cut short by a crash while appending.
+            out.writeInt(100);
+            out.write(new byte[10]);
+        }
+
+        final SharedPreferences prefs = mContext.getSharedPreferences(name,
+                Context.MODE_SHARED_PREFERENCES_LOG);
+        assertEquals(2, prefs.getInt("int", 0));
+        assertEquals("logged", prefs.getString("string", null));
+
+        // The damaged log can't be appended to, so the next write rewrites the xml file.
+        assertTrue(prefs.edit().putInt("int", 3).commit());
+        assertFalse(getLogFile(file).exists());
+    }
+
+    @Test
+    public void testLogCompactedOnceLarge() throws Exception {
+        final String name = newName("compaction");
+        final File file = getFile(name);
+        final SharedPreferences prefs = mContext.getSharedPreferences(name,
+                Context.MODE_SHARED_PREFERENCES_LOG);
+        final char[] chars = new char[1024];
+        java.util.Arrays.fill(chars, 'x');
+        final String value = new String(chars);
+
+        // The first write creates the xml file, the next ones are logged until the log grows
+        // past 16K.
+        assertTrue(prefs.edit().putString("key0", value).commit());
+        assertFalse(getLogFile(file).exists());
+        final long xmlSize = file.length();
+        assertTrue(prefs.edit().putString("key1", value).commit());
+        assertTrue(getLogFile(file).exists());
+        assertEquals(xmlSize, file.length());
+
+        int i = 2;
+        while (getLogFile(file).exists()) {
+            assertTrue("Log never compacted", i < 32);
+            assertTrue(prefs.edit().putString("key" + i, value).commit());
+            i++;
+        }
+        assertTrue(i > 16);
+        assertTrue(file.length() > 16 * 1024);
+    }
+
+    @Test
+    public void testCompactSharedPreferencesLogs() throws Exception {
+        final String name = newName("backup");
+        final File file = getFile(name);
+        final SharedPreferences prefs = mContext.getSharedPreferences(name,
+                Context.MODE_SHARED_PREFERENCES_LOG);
+        assertTrue(prefs.edit().putInt("int", 1).commit());
+        assertTrue(prefs.edit().putInt("int", 2).commit());
+        assertTrue(getLogFile(file).exists());
+
+        // What backups do before reading the xml files.
+        mContext.compactSharedPreferencesLogs();
+        assertFalse(getLogFile(file).exists());
+
+        // A fresh load of the xml file alone has the logged change.
+        final String copyName = newName("backup_copy");
+        assertTrue(file.renameTo(getFile(copyName)));
+        assertEquals(2, mContext.getSharedPreferences(copyName, 0).getInt("int", 0));
+        assertNull(mContext.getSharedPreferences(copyName, 0).getString("string", null));
+    }
+}
@@ -129,6 +129,47 @@ public class ParceledListSliceTest extends TestCase {
         sendParcelStringList(list);
     }
 
+    public void testPooledStrings() throws Exception {
+        final String value = "com.android.example";
+        final List<String> list = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            list.add(new String(value));
+        }
+
+        Parcel parcel = Parcel.obtain();
+        StringParceledListSlice slice;
+        try {
+            parcel.writeParcelable(new StringParceledListSlice(list), 0);
+            // Each string after the first is only written as an index, instead of its
+            // UTF-16 characters.
+            assertTrue(parcel.dataSize() < list.size() * value.length());
+            parcel.setDataPosition(0);
+            slice = parcel.readParcelable(getClass().getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+
+        assertEquals(list, slice.getList());
+        assertSame(slice.getList().get(0), slice.getList().get(99));
+    }
+
+    public void testReadWriteHelperRestored() throws Exception {
+        final List<String> list = Collections.nCopies(10, "com.android.example");
+        final Parcel.ReadWriteHelper helper = new Parcel.ReadWriteHelper();
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(new StringParceledListSlice(list), 0);
+            parcel.setDataPosition(0);
+            parcel.setReadWriteHelper(helper);
+            StringParceledListSlice slice = parcel.readParcelable(getClass().getClassLoader());
+            assertEquals(list, slice.getList());
+            // The pooled strings were read without losing the helper of the outer reader.
+            assertSame(helper, parcel.getReadWriteHelper());
+        } finally {
+            parcel.recycle();
+        }
+    }
 
     /**
      * Test that only homogeneous elements may be unparceled.
@@ -170,6 +211,9 @@ public class ParceledListSliceTest extends TestCase {
         // to simulate an attack on ParceledListSlice.
         dest.writeString(BaseObject.class.getName());
 
+        // Strings aren't pooled.
+        dest.writeInt(0);
+
         for (int i = 0; i < listCount; i++) {
             // 1 means the item is present.
             dest.writeInt(1);
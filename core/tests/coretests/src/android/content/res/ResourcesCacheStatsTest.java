@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.res;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.util.TypedValue;
+
+import com.android.frameworks.coretests.R;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests for the caches and cache statistics of {@link ResourcesImpl} and {@link AssetManager}.
+ */
+@SmallTest
+public class ResourcesCacheStatsTest extends TestCase {
+    public void testDrawableCacheHitCounted() {
+        final Resources res = InstrumentationRegistry.getContext().getResources();
+        final int kind = ResourcesImpl.CACHE_STATS_DRAWABLE;
+
+        // Keep the first drawable reachable, the cache only holds weak references.
+        final Drawable first = res.getDrawable(R.drawable.test16x12, null);
+        final int hits = ResourcesImpl.getCacheHitCount(kind);
+        final int preloadHits = ResourcesImpl.getPreloadHitCount(kind);
+        final int misses = ResourcesImpl.getCacheMissCount(kind);
+
+        final Drawable second = res.getDrawable(R.drawable.test16x12, null);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(hits + 1, ResourcesImpl.getCacheHitCount(kind));
+        assertEquals(preloadHits, ResourcesImpl.getPreloadHitCount(kind));
+        assertEquals(misses, ResourcesImpl.getCacheMissCount(kind));
+    }
+
+    public void testResourceValueCached() {
+        final Resources res = InstrumentationRegistry.getContext().getResources();
+        final int id = R.dimen.resource_cache_test_generic;
+        final TypedValue first = new TypedValue();
+        res.getValue(id, first, true);
+
+        final int nativeCalls = AssetManager.getNativeCallCount();
+        final TypedValue second = new TypedValue();
+        res.getValue(id, second, true);
+        assertEquals(nativeCalls, AssetManager.getNativeCallCount());
+        assertEquals(first.type, second.type);
+        assertEquals(first.data, second.data);
+        assertEquals(first.assetCookie, second.assetCookie);
+        assertEquals(first.resourceId, second.resourceId);
+        assertEquals(first.changingConfigurations, second.changingConfigurations);
+    }
+
+    public void testIdentifierCached() {
+        final Context context = InstrumentationRegistry.getContext();
+        final Resources res = context.getResources();
+        final String packageName = context.getPackageName();
+        assertEquals(R.dimen.resource_cache_test_generic, res.getIdentifier(
+                "resource_cache_test_generic", "dimen", packageName));
+        assertEquals(0, res.getIdentifier("does_not_exist", "dimen", packageName));
+
+        // Names that weren't found are cached too.
+        final int nativeCalls = AssetManager.getNativeCallCount();
+        assertEquals(R.dimen.resource_cache_test_generic, res.getIdentifier(
+                "resource_cache_test_generic", "dimen", packageName));
+        assertEquals(0, res.getIdentifier("does_not_exist", "dimen", packageName));
+        assertEquals(nativeCalls, AssetManager.getNativeCallCount());
+    }
+
+    public void testDumpCacheStats() {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        ResourcesImpl.dumpCacheStats(pw, "  ");
+        pw.flush();
+        final String dump = sw.toString();
+        assertTrue(dump.contains("Drawables: loads="));
+        assertTrue(dump.contains("Complex colors: loads="));
+        assertTrue(dump.contains("Preloaded: drawables(ltr/rtl)="));
+
+        final StringWriter assetsWriter = new StringWriter();
+        final PrintWriter assetsPw = new PrintWriter(assetsWriter);
+        AssetManager.dumpCacheStats(assetsPw, "  ");
+        assetsPw.flush();
+        assertTrue(assetsWriter.toString().contains("Identifiers: cacheHits="));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the streaming windows of {@link CursorToBulkCursorAdaptor}.
+ */
+public class CursorToBulkCursorAdaptorTest extends TestCase {
+    private static final int ROW_COUNT = 1000;
+
+    /** Generates its rows; the generation column counts the requeries. */
+    private static final class GeneratedCursor extends AbstractCursor {
+        private final byte[] mBlob;
+        private int mGeneration;
+
+        GeneratedCursor(int blobSize) {
+            mBlob = new byte[blobSize];
+        }
+
+        @Override
+        public int getCount() {
+            return ROW_COUNT;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return new String[] { "_id", "generation", "data" };
+        }
+
+        @Override
+        public int getType(int column) {
+            return column == 2 ? FIELD_TYPE_BLOB : FIELD_TYPE_INTEGER;
+        }
+
+        @Override
+        public long getLong(int column) {
+            return column == 0 ? mPos : mGeneration;
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            return Long.toString(getLong(column));
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return mBlob;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return false;
+        }
+
+        @Override
+        public boolean requery() {
+            mGeneration++;
+            return super.requery();
+        }
+    }
+
+    private long mBaseWindowBytes;
+    private CursorToBulkCursorAdaptor mAdaptor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBaseWindowBytes = CursorToBulkCursorAdaptor.getWindowBytes();
+        // Enough rows fit in a window that streaming doesn't grow the windows.
+        final int blobSize = CursorWindow.getDefaultCursorWindowSize() / 200;
+        mAdaptor = new CursorToBulkCursorAdaptor(new GeneratedCursor(blobSize),
+                new ContentObserver(null).getContentObserver(), "test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAdaptor.close();
+        assertEquals(mBaseWindowBytes, CursorToBulkCursorAdaptor.getWindowBytes());
+        super.tearDown();
+    }
+
+    /**
+     * Gets the window at {@code position} as a remote client would, checks its rows and
+     * returns the position right after it.
+     */
+    private int readWindow(int position, int generation) {
+        final CursorWindow window = mAdaptor.getWindow(position);
+        try {
+            assertEquals(position, window.getStartPosition());
+            assertTrue(window.getNumRows() > 0);
+            for (int i = 0; i < window.getNumRows(); i++) {
+                final int row = position + i;
+                assertEquals(row, window.getLong(row, 0));
+                assertEquals(generation, window.getLong(row, 1));
+            }
+            return position + window.getNumRows();
+        } finally {
+            // Done by the binder reply parcel in a remote client.
+            window.releaseReference();
+        }
+    }
+
+    @MediumTest
+    public void testStreamedRows() {
+        int position = 0;
+        int windows = 0;
+        while (position < ROW_COUNT) {
+            position = readWindow(position, 0);
+            windows++;
+        }
+        assertEquals(ROW_COUNT, position);
+        assertTrue(windows > 2);
+    }
+
+    @MediumTest
+    public void testPrefetchDroppedOnRequery() {
+        int position = readWindow(0, 0);
+        // Streams, filling the window after this one ahead.
+        position = readWindow(position, 0);
+
+        assertEquals(ROW_COUNT, mAdaptor.requery(new ContentObserver(null).getContentObserver()));
+        while (position < ROW_COUNT) {
+            position = readWindow(position, 1);
+        }
+    }
+
+    @MediumTest
+    public void testPrefetchDroppedOnDeactivate() {
+        int position = readWindow(0, 0);
+        position = readWindow(position, 0);
+
+        mAdaptor.deactivate();
+        assertEquals(mBaseWindowBytes, CursorToBulkCursorAdaptor.getWindowBytes());
+
+        assertEquals(ROW_COUNT, mAdaptor.requery(new ContentObserver(null).getContentObserver()));
+        while (position < ROW_COUNT) {
+            position = readWindow(position, 1);
+        }
+    }
+
+    @MediumTest
+    public void testWindowsRecycled() {
+        final int windowSize = CursorWindow.getDefaultCursorWindowSize();
+        final CursorWindow[] windows = new CursorWindow[4];
+        int position = 0;
+        for (int i = 0; i < windows.length && position < ROW_COUNT; i++) {
+            windows[i] = mAdaptor.getWindow(position);
+            windows[i].releaseReference();
+            position = windows[i].getStartPosition() + windows[i].getNumRows();
+
+            // The window handed out and the one filled ahead.
+            assertTrue(CursorToBulkCursorAdaptor.getWindowBytes() - mBaseWindowBytes
+                    <= 2 * windowSize);
+        }
+
+        // Streaming alternates between two windows.
+        assertSame(windows[0], windows[2]);
+        assertSame(windows[1], windows[3]);
+    }
+}
@@ -106,4 +106,44 @@ public class CursorWindowTest extends TestCase implements PerformanceTestCase {
         assertTrue(window.putBlob(blob, 0, 6));
         assertTrue(Arrays.equals(blob, window.getBlob(0, 6)));
     }
+
+    @SmallTest
+    public void testCopyColumns() {
+        CursorWindow window = new CursorWindow("MyWindow");
+        window.setStartPosition(10);
+        assertTrue(window.setNumColumns(2));
+        for (int i = 0; i < 300; i++) {
+            assertTrue(window.allocRow());
+            assertTrue(window.putLong(i, 10 + i, 0));
+            assertTrue(window.putString(Double.toString(i + 0.5), 10 + i, 1));
+        }
+        assertTrue(window.allocRow());
+        assertTrue(window.putNull(310, 0));
+        assertTrue(window.putNull(310, 1));
+
+        long[] longs = new long[302];
+        window.copyLongColumn(0, 10, 301, longs, 1);
+        double[] doubles = new double[301];
+        window.copyDoubleColumn(1, 10, 301, doubles, 0);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(window.getLong(10 + i, 0), longs[1 + i]);
+            assertEquals(window.getDouble(10 + i, 1), doubles[i]);
+        }
+        assertEquals(0, longs[301]);
+        assertEquals(0.0, doubles[300]);
+
+        try {
+            window.copyLongColumn(0, 10, 301, longs, 2);
+            fail("expected ArrayIndexOutOfBoundsException");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            window.copyLongColumn(0, 10, 302, new long[302], 0);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        window.close();
+    }
 }
@@ -17,6 +17,7 @@
 package android.database.sqlite;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
@@ -32,6 +33,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Tests for {@link SQLiteConnectionPool}
@@ -88,4 +93,36 @@ public class SQLiteConnectionPoolTest {
         pool.close();
         thread.quit();
     }
+
+    @Test
+    public void testAdaptivePoolGrowsUnderContention() throws InterruptedException {
+        final SQLiteDatabaseConfiguration conf = new SQLiteDatabaseConfiguration(
+                mTestDatabase.getPath(), SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        final int baseSize = SQLiteGlobal.getWALConnectionPoolSize();
+        conf.adaptiveMaxConnectionPoolSize = baseSize + 1;
+        final SQLiteConnectionPool pool = SQLiteConnectionPool.open(conf);
+
+        // Take every connection the pool has by default.
+        final ArrayList<SQLiteConnection> connections = new ArrayList<>();
+        for (int i = 0; i < baseSize; i++) {
+            connections.add(pool.acquireConnection("pragma user_version", 0, null));
+        }
+
+        // Another request waits briefly, then gets a connection beyond the base size.
+        final AtomicReference<SQLiteConnection> extra = new AtomicReference<>();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread thread = new Thread(() -> {
+            extra.set(pool.acquireConnection("pragma user_version", 0, null));
+            acquired.countDown();
+        });
+        thread.start();
+        assertTrue("Pool should have grown", acquired.await(5, TimeUnit.SECONDS));
+        assertNotNull(extra.get());
+
+        pool.releaseConnection(extra.get());
+        for (SQLiteConnection connection : connections) {
+            pool.releaseConnection(connection);
+        }
+        pool.close();
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Tests for the prepared statement handling of {@link SQLiteConnection}
+ *
+ * <p>Run with:  bit FrameworksCoreTests:android.database.sqlite.SQLiteConnectionTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SQLiteConnectionTest {
+    private static final String SELECT_BY_ID = "SELECT v FROM t WHERE id = ?";
+
+    private File mTestDatabase;
+    private SQLiteConnectionPool mPool;
+
+    @Before
+    public void setup() {
+        final Context context = InstrumentationRegistry.getContext();
+        final SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+                context.getDatabasePath("connection_test"), null);
+        db.execSQL("CREATE TABLE t (id INTEGER PRIMARY KEY, v INTEGER)");
+        for (int i = 1; i <= 10; i++) {
+            db.execSQL("INSERT INTO t VALUES (?, ?)", new Object[] { i, i * 100 });
+        }
+        mTestDatabase = new File(db.getPath());
+        db.close();
+    }
+
+    @After
+    public void teardown() {
+        if (mPool != null) {
+            mPool.close();
+        }
+        SQLiteDatabase.deleteDatabase(mTestDatabase);
+    }
+
+    private SQLiteConnectionPool openPool(int openFlags, boolean normalizeStatements) {
+        final SQLiteDatabaseConfiguration conf = new SQLiteDatabaseConfiguration(
+                mTestDatabase.getPath(), openFlags);
+        conf.normalizeStatements = normalizeStatements;
+        mPool = SQLiteConnectionPool.open(conf);
+        return mPool;
+    }
+
+    private static long selectLiteral(SQLiteConnection connection, int id) {
+        return connection.executeForLong("SELECT v FROM t WHERE id = " + id, null, null);
+    }
+
+    @Test
+    public void testStatementsNotNormalizedByDefault() {
+        final SQLiteConnectionPool pool = openPool(0, false);
+        final SQLiteConnection connection = pool.acquireConnection(null, 0, null);
+        try {
+            final long hits = pool.getStatementCacheHitCount();
+            for (int id = 1; id <= 8; id++) {
+                assertEquals(id * 100, selectLiteral(connection, id));
+            }
+            assertEquals(hits, pool.getStatementCacheHitCount());
+        } finally {
+            pool.releaseConnection(connection);
+        }
+    }
+
+    @Test
+    public void testNormalizedStatementsShareOneStatement() {
+        final SQLiteConnectionPool pool = openPool(0, true);
+        final SQLiteConnection connection = pool.acquireConnection(null, 0, null);
+        try {
+            // Let the shape become hot.
+            for (int id = 1; id <= 4; id++) {
+                assertEquals(id * 100, selectLiteral(connection, id));
+            }
+
+            // Later variants reuse the normalized statement, with their own literal bound.
+            final long hits = pool.getStatementCacheHitCount();
+            final long misses = pool.getStatementCacheMissCount();
+            for (int id = 5; id <= 8; id++) {
+                assertEquals(id * 100, selectLiteral(connection, id));
+            }
+            assertEquals(hits + 4, pool.getStatementCacheHitCount());
+            assertEquals(misses, pool.getStatementCacheMissCount());
+        } finally {
+            pool.releaseConnection(connection);
+        }
+    }
+
+    @Test
+    public void testNewConnectionPrewarmsHotStatements() {
+        assumeTrue(SQLiteGlobal.getWALConnectionPoolSize() >= 4);
+        final SQLiteConnectionPool pool = openPool(
+                SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING, false);
+        final int flags = SQLiteConnectionPool.CONNECTION_FLAG_READ_ONLY;
+        assertNull(pool.getHotStatements());
+
+        // Compiling the statement on two connections makes it hot.
+        final SQLiteConnection first = pool.acquireConnection(SELECT_BY_ID, flags, null);
+        final SQLiteConnection second = pool.acquireConnection(SELECT_BY_ID, flags, null);
+        try {
+            assertEquals(100, first.executeForLong(SELECT_BY_ID, new Object[] { 1 }, null));
+            assertEquals(200, second.executeForLong(SELECT_BY_ID, new Object[] { 2 }, null));
+            assertNotNull(pool.getHotStatements());
+            assertTrue(pool.getHotStatements().contains(SELECT_BY_ID));
+
+            // A newly opened connection prepares it when acquired, without counting that as a
+            // use, and then finds it in its cache.
+            final long hits = pool.getStatementCacheHitCount();
+            final long misses = pool.getStatementCacheMissCount();
+            final SQLiteConnection third = pool.acquireConnection(SELECT_BY_ID, flags, null);
+            try {
+                assertEquals(misses, pool.getStatementCacheMissCount());
+                assertEquals(300, third.executeForLong(SELECT_BY_ID, new Object[] { 3 }, null));
+                assertEquals(hits + 1, pool.getStatementCacheHitCount());
+                assertEquals(misses, pool.getStatementCacheMissCount());
+            } finally {
+                pool.releaseConnection(third);
+            }
+        } finally {
+            pool.releaseConnection(second);
+            pool.releaseConnection(first);
+        }
+    }
+}
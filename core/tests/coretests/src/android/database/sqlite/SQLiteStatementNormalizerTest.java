@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link SQLiteStatementNormalizer}
+ *
+ * <p>Run with:  bit FrameworksCoreTests:android.database.sqlite.SQLiteStatementNormalizerTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SQLiteStatementNormalizerTest {
+
+    @Test
+    public void testRewritesComparedLiterals() {
+        final ArrayList<Object> args = new ArrayList<>();
+        assertEquals("SELECT a, 'x' FROM t WHERE id = ? AND name<>? AND v >= ?",
+                SQLiteStatementNormalizer.normalize(
+                        "SELECT a, 'x' FROM t WHERE id = 42 AND name<>'it''s' AND v >= 1.5",
+                        args));
+        assertEquals(Arrays.asList(42L, "it's", 1.5), args);
+    }
+
+    @Test
+    public void testKeepsOtherLiterals() {
+        final ArrayList<Object> args = new ArrayList<>();
+        assertEquals("SELECT * FROM t WHERE \"a=1\" = ? AND b = x'00' AND c = 0x10 LIMIT 10",
+                SQLiteStatementNormalizer.normalize(
+                        "SELECT * FROM t WHERE \"a=1\" = 'v' AND b = x'00' AND c = 0x10 LIMIT 10",
+                        args));
+        assertEquals(Arrays.asList("v"), args);
+    }
+
+    @Test
+    public void testNothingToRewrite() {
+        final ArrayList<Object> args = new ArrayList<>();
+        assertNull(SQLiteStatementNormalizer.normalize("SELECT * FROM t WHERE a = b", args));
+        assertNull(SQLiteStatementNormalizer.normalize("SELECT * FROM t LIMIT 5", args));
+        assertNull(SQLiteStatementNormalizer.normalize(
+                "SELECT * FROM t WHERE a = 99999999999999999999", args));
+        assertTrue(args.isEmpty());
+    }
+
+    @Test
+    public void testUnsupportedStatements() {
+        final ArrayList<Object> args = new ArrayList<>();
+        assertNull(SQLiteStatementNormalizer.normalize("SELECT * FROM t WHERE a = ?", args));
+        assertNull(SQLiteStatementNormalizer.normalize("SELECT * FROM t WHERE a = :a", args));
+        assertNull(SQLiteStatementNormalizer.normalize("UPDATE t SET a = 1 WHERE b = 2", args));
+        assertNull(SQLiteStatementNormalizer.normalize("SELECT * FROM t WHERE a = 'open", args));
+        assertTrue(args.isEmpty());
+    }
+}
@@ -137,4 +137,92 @@ public class BundleTest {
         checkBundle(b, withFd);
         p.recycle();
     }
+
+    @Test
+    public void testReadSingleValuesWithoutUnparcelling() throws Exception {
+        final Bundle nested = new Bundle();
+        nested.putInt("nested", 1);
+        final Bundle source = new Bundle();
+        source.putString("string", "abc");
+        source.putString("null", null);
+        source.putInt("int", 1);
+        source.putLong("long", 2L);
+        source.putDouble("double", 3.0);
+        source.putBoolean("boolean", true);
+        source.putByteArray("bytes", new byte[] {1, 2, 3});
+        source.putIntArray("ints", new int[] {1, 2});
+        source.putStringArray("strings", new String[] {"a", null, "bc"});
+        source.putBundle("bundle", nested);
+        source.putBundle("empty", new Bundle());
+
+        final Parcel p = Parcel.obtain();
+        source.writeToParcel(p, 0);
+        p.setDataPosition(0);
+        final Bundle b = new Bundle(p);
+        p.recycle();
+
+        assertEquals(1, b.getInt("int"));
+        assertEquals("abc", b.getString("string"));
+        assertEquals(null, b.getString("null", null));
+        assertEquals(2L, b.getLong("long"));
+        assertEquals(3.0, b.getDouble("double"), 0);
+        assertTrue(b.getBoolean("boolean"));
+        assertEquals(5, b.getInt("missing", 5));
+        // Wrong type, as when unparcelled.
+        assertEquals(7, b.getInt("string", 7));
+        assertTrue(b.isParcelled());
+
+        // Mutating unparcels everything, including what was skipped.
+        b.putInt("int", 4);
+        assertFalse(b.isParcelled());
+        assertEquals(4, b.getInt("int"));
+        assertEquals("abc", b.getString("string"));
+        assertEquals(3, b.getByteArray("bytes").length);
+        assertEquals("bc", b.getStringArray("strings")[2]);
+        assertEquals(1, b.getBundle("bundle").getInt("nested"));
+        assertEquals(12, b.keySet().size());
+    }
+
+    @Test
+    public void testReadSingleValuesPastParcelable() throws Exception {
+        final Parcel p = createBundleParcel(true);
+        final Bundle b = new Bundle(p);
+        p.recycle();
+
+        // Keys are written in hash order: "string", "fd", then "int".
+        assertEquals("abc", b.getString("string"));
+        assertTrue(b.isParcelled());
+        // Finding "int" means skipping the file descriptor, which can't be done without
+        // unparcelling.
+        assertEquals(1, b.getInt("int"));
+        assertFalse(b.isParcelled());
+        assertEquals("abc", b.getString("string"));
+    }
+
+    @Test
+    public void testUnparcelledAfterManyReads() throws Exception {
+        final Bundle source = new Bundle();
+        for (int i = 0; i < 20; i++) {
+            source.putInt("key" + i, i);
+        }
+        final Parcel p = Parcel.obtain();
+        source.writeToParcel(p, 0);
+        p.setDataPosition(0);
+        final Bundle b = new Bundle(p);
+        p.recycle();
+
+        // A few values are read from the parcel, and the same key can be read again.
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i, b.getInt("key" + i));
+        }
+        assertEquals(0, b.getInt("key0"));
+        assertTrue(b.isParcelled());
+
+        // Reading more is cheaper from the map.
+        assertEquals(19, b.getInt("key19"));
+        assertFalse(b.isParcelled());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, b.getInt("key" + i));
+        }
+    }
 }
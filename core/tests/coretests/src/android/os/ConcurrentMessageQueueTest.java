@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.support.test.filters.MediumTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link MessageQueue#setConcurrentEnqueue}.
+ */
+@MediumTest
+public class ConcurrentMessageQueueTest extends TestCase {
+    private HandlerThread mThread;
+    private MessageQueue mQueue;
+    private final ArrayList<Integer> mDispatched = new ArrayList<>();
+    private CountDownLatch mDone;
+    private Handler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("ConcurrentMessageQueueTest");
+        mThread.start();
+        mQueue = mThread.getLooper().getQueue();
+        mQueue.setConcurrentEnqueue(true);
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                synchronized (mDispatched) {
+                    mDispatched.add(msg.what);
+                }
+                mDone.countDown();
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    private void awaitDispatched(int... expected) throws Exception {
+        assertTrue(mDone.await(5, TimeUnit.SECONDS));
+        synchronized (mDispatched) {
+            assertEquals(expected.length, mDispatched.size());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], (int) mDispatched.get(i));
+            }
+        }
+    }
+
+    public void testMessageOrder() throws Exception {
+        mDone = new CountDownLatch(5);
+        final long now = SystemClock.uptimeMillis() + 100;
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(2), now + 1);
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(3), now + 2);
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(4), now + 2);
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(0), now);
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(1), now);
+        awaitDispatched(0, 1, 2, 3, 4);
+    }
+
+    public void testSyncBarrier() throws Exception {
+        mDone = new CountDownLatch(2);
+        mHandler.sendEmptyMessage(0);
+        final int token = mQueue.postSyncBarrier();
+        mHandler.sendEmptyMessage(1);
+        final Message async = mHandler.obtainMessage(2);
+        async.setAsynchronous(true);
+        mHandler.sendMessage(async);
+        awaitDispatched(0, 2);
+
+        mDone = new CountDownLatch(1);
+        mQueue.removeSyncBarrier(token);
+        awaitDispatched(0, 2, 1);
+    }
+
+    public void testHasAndRemoveMessages() throws Exception {
+        mDone = new CountDownLatch(1);
+        final int token = mQueue.postSyncBarrier();
+        mHandler.sendEmptyMessage(1);
+        mHandler.sendEmptyMessage(2);
+        assertTrue(mHandler.hasMessages(1));
+        mHandler.removeMessages(1);
+        assertFalse(mHandler.hasMessages(1));
+        assertTrue(mHandler.hasMessages(2));
+        mQueue.removeSyncBarrier(token);
+        awaitDispatched(2);
+    }
+}
@@ -24,6 +24,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.widget.FrameLayout;
 import com.android.frameworks.coretests.R;
 
 import java.util.Map;
@@ -127,6 +128,36 @@ public class InflateTest extends AndroidTestCase implements PerformanceTestCase
         inflateCachedTest(R.layout.layout_six);
     }
 
+    @SmallTest
+    public void testPrecompiledLayout() throws Exception {
+        final LayoutInflater inflater = mInflater.cloneInContext(mContext);
+        final View precompiled = new View(mContext);
+        precompiled.setLayoutParams(new ViewGroup.LayoutParams(10, 20));
+        inflater.setPrecompiledLayout(R.layout.layout_one, (context, root) -> precompiled);
+        assertSame(precompiled, inflater.inflate(R.layout.layout_one, null));
+
+        // Layout params are converted to the ones of the root.
+        final FrameLayout root = new FrameLayout(mContext);
+        assertSame(precompiled, inflater.inflate(R.layout.layout_one, root, false));
+        assertTrue(precompiled.getLayoutParams() instanceof FrameLayout.LayoutParams);
+        assertEquals(20, precompiled.getLayoutParams().height);
+        assertSame(root, inflater.inflate(R.layout.layout_one, root, true));
+        assertSame(root, precompiled.getParent());
+
+        // Clones keep the precompiled layouts, other layouts are still inflated from XML.
+        final LayoutInflater clone = inflater.cloneInContext(mContext);
+        root.removeAllViews();
+        assertSame(precompiled, clone.inflate(R.layout.layout_one, null));
+        assertNotSame(precompiled, clone.inflate(R.layout.layout_two, null));
+
+        // A filter must see the classes of all inflated views.
+        clone.setFilter(clazz -> true);
+        assertNotSame(precompiled, clone.inflate(R.layout.layout_one, null));
+
+        inflater.setPrecompiledLayout(R.layout.layout_one, null);
+        assertNotSame(precompiled, inflater.inflate(R.layout.layout_one, null));
+    }
+
 //    public void testLayoutTag() throws Exception {
 //        public void setUp
 //        (Context
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Process;
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+@SmallTest
+public class BinderCallsStatsTest extends TestCase {
+    private static class TestReceiver extends IResultReceiver.Stub {
+        @Override
+        public void send(int resultCode, Bundle resultData) {
+        }
+    }
+
+    public void testRecordsPerClassCodeAndUid() {
+        final BinderCallsStats stats = new BinderCallsStats(1);
+        final Binder binder = new TestReceiver();
+
+        stats.transactionEnded(stats.transactionStarted(binder, 1, 0), 100, 0);
+        stats.transactionEnded(stats.transactionStarted(binder, 1, 0), 300, 8);
+        stats.transactionEnded(stats.transactionStarted(binder, 2, 0), 50, 4);
+
+        final ArrayList<BinderCallsStats.Entry> entries = stats.getEntries();
+        assertEquals(2, entries.size());
+        BinderCallsStats.Entry first = entries.get(0);
+        BinderCallsStats.Entry second = entries.get(1);
+        if (first.code != 1) {
+            first = entries.get(1);
+            second = entries.get(0);
+        }
+        assertEquals(TestReceiver.class, first.binderClass);
+        assertEquals(Process.myUid(), first.callingUid);
+        assertEquals(2, first.count);
+        assertEquals(400, first.totalRequestBytes);
+        assertEquals(300, first.maxRequestBytes);
+        assertEquals(8, first.maxReplyBytes);
+        assertEquals(1, second.count);
+
+        stats.reset();
+        assertTrue(stats.getEntries().isEmpty());
+    }
+
+    public void testLatencyPercentiles() {
+        final BinderCallsStats.Entry entry = new BinderCallsStats.Entry(Binder.class, 1, 0);
+        for (int i = 0; i < 90; i++) {
+            entry.record(3, 0, 0, 0);
+        }
+        for (int i = 0; i < 10; i++) {
+            entry.record(1000, 0, 0, 0);
+        }
+        assertEquals(4, entry.getLatencyPercentileMicros(50));
+        assertEquals(4, entry.getLatencyPercentileMicros(90));
+        assertEquals(1024, entry.getLatencyPercentileMicros(99));
+    }
+
+    public void testGetTransactionName() {
+        assertEquals("send", BinderCallsStats.getTransactionName(TestReceiver.class,
+                IBinder.FIRST_CALL_TRANSACTION));
+        assertEquals("42", BinderCallsStats.getTransactionName(TestReceiver.class, 42));
+        assertEquals("1", BinderCallsStats.getTransactionName(Binder.class, 1));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+@SmallTest
+public class LooperStatsTest extends TestCase {
+    private static class TestHandler extends Handler {
+        TestHandler() {
+            super(Looper.getMainLooper());
+        }
+    }
+
+    public void testBucketOf() {
+        assertEquals(0, LooperStats.bucketOf(0));
+        assertEquals(1, LooperStats.bucketOf(1));
+        assertEquals(2, LooperStats.bucketOf(2));
+        assertEquals(2, LooperStats.bucketOf(3));
+        assertEquals(11, LooperStats.bucketOf(1024));
+        assertEquals(LooperStats.NUM_BUCKETS - 1, LooperStats.bucketOf(Long.MAX_VALUE));
+    }
+
+    public void testRecordsPerHandlerAndWhat() {
+        final LooperStats stats = new LooperStats();
+        final Handler handler = new TestHandler();
+        final long start = 1000L * 1000 * 1000;
+
+        stats.messageDispatched(Message.obtain(handler, 1), 900, start, start + 5000);
+        stats.messageDispatched(Message.obtain(handler, 1), 1000, start, start + 15000);
+        stats.messageDispatched(Message.obtain(handler, 2), 0, start, start + 1000);
+
+        final ArrayList<LooperStats.Entry> entries = stats.getEntries();
+        assertEquals(2, entries.size());
+
+        final LooperStats.Entry first = entries.get(0);
+        assertEquals(TestHandler.class, first.handlerClass);
+        assertEquals(1, first.what);
+        assertEquals(2, first.count);
+        assertEquals(20, first.totalDispatchMicros);
+        assertEquals(15, first.maxDispatchMicros);
+        // Due 100ms before the dispatch started, and right on time.
+        assertEquals(100 * 1000, first.maxDelayMicros);
+        assertEquals(100 * 1000, first.totalDelayMicros);
+
+        final LooperStats.Entry second = entries.get(1);
+        assertEquals(2, second.what);
+        assertEquals(1, second.count);
+        assertEquals(0, second.totalDelayMicros);
+
+        stats.reset();
+        assertTrue(stats.getEntries().isEmpty());
+    }
+}
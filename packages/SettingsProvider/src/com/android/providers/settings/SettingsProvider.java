@@ -687,6 +687,7 @@ public class SettingsProvider extends ContentProvider {
                 dumpSettingsLocked(globalSettings, pw);
                 pw.println();
                 globalSettings.dumpHistoricalOperations(pw);
+                globalSettings.dumpWriteStats(pw);
             }
         }
 
@@ -697,6 +698,7 @@ public class SettingsProvider extends ContentProvider {
             dumpSettingsLocked(secureSettings, pw);
             pw.println();
             secureSettings.dumpHistoricalOperations(pw);
+            secureSettings.dumpWriteStats(pw);
         }
 
         pw.println("SYSTEM SETTINGS (user " + userId + ")");
@@ -706,6 +708,7 @@ public class SettingsProvider extends ContentProvider {
             dumpSettingsLocked(systemSettings, pw);
             pw.println();
             systemSettings.dumpHistoricalOperations(pw);
+            systemSettings.dumpWriteStats(pw);
         }
     }
 
@@ -920,10 +923,8 @@ public class SettingsProvider extends ContentProvider {
         enforceSettingReadable(name, SETTINGS_TYPE_GLOBAL, UserHandle.getCallingUserId());
 
         // Get the value.
-        synchronized (mLock) {
-            return mSettingsRegistry.getSettingLocked(SETTINGS_TYPE_GLOBAL,
-                    UserHandle.USER_SYSTEM, name);
-        }
+        return mSettingsRegistry.getSettingFromSnapshot(SETTINGS_TYPE_GLOBAL,
+                UserHandle.USER_SYSTEM, name);
     }
 
     private boolean updateGlobalSetting(String name, String value, String tag,
@@ -1104,10 +1105,7 @@ public class SettingsProvider extends ContentProvider {
         }
 
         // Not the SSAID; do a straight lookup
-        synchronized (mLock) {
-            return mSettingsRegistry.getSettingLocked(SETTINGS_TYPE_SECURE,
-                    owningUserId, name);
-        }
+        return mSettingsRegistry.getSettingFromSnapshot(SETTINGS_TYPE_SECURE, owningUserId, name);
     }
 
     private boolean isNewSsaidSetting(String name) {
@@ -1340,9 +1338,7 @@ public class SettingsProvider extends ContentProvider {
         final int owningUserId = resolveOwningUserIdForSystemSettingLocked(callingUserId, name);
 
         // Get the value.
-        synchronized (mLock) {
-            return mSettingsRegistry.getSettingLocked(SETTINGS_TYPE_SYSTEM, owningUserId, name);
-        }
+        return mSettingsRegistry.getSettingFromSnapshot(SETTINGS_TYPE_SYSTEM, owningUserId, name);
     }
 
     private boolean insertSystemSetting(String name, String value, int requestingUserId) {
@@ -1896,7 +1892,17 @@ public class SettingsProvider extends ContentProvider {
         result.putString(Settings.NameValueTable.VALUE,
                 !setting.isNull() ? setting.getValue() : null);
 
-        mSettingsRegistry.mGenerationRegistry.addGenerationData(result, setting.getKey());
+        if (setting instanceof SettingsState.SnapshotSetting) {
+            // The value may be older than the current generation, so report the generation
+            // it was read at.
+            final Bundle generationData =
+                    ((SettingsState.SnapshotSetting) setting).getGenerationData();
+            if (generationData != null) {
+                result.putAll(generationData);
+            }
+        } else {
+            mSettingsRegistry.mGenerationRegistry.addGenerationData(result, setting.getKey());
+        }
         return result;
     }
 
@@ -2129,6 +2135,10 @@ public class SettingsProvider extends ContentProvider {
 
         private final SparseArray<SettingsState> mSettingsStates = new SparseArray<>();
 
+        /** Copy of mSettingsStates for readers that don't hold mLock. */
+        private volatile SparseArray<SettingsState> mReadableSettingsStates =
+                new SparseArray<>();
+
         private GenerationRegistry mGenerationRegistry;
 
         private final Handler mHandler;
@@ -2326,6 +2336,7 @@ public class SettingsProvider extends ContentProvider {
                 SettingsState settingsState = new SettingsState(getContext(), mLock,
                         getSettingsFile(key), key, maxBytesPerPackage, mHandlerThread.getLooper());
                 mSettingsStates.put(key, settingsState);
+                mReadableSettingsStates = mSettingsStates.clone();
             }
         }
 
@@ -2336,14 +2347,17 @@ public class SettingsProvider extends ContentProvider {
             final int systemKey = makeKey(SETTINGS_TYPE_SYSTEM, userId);
             final SettingsState systemSettingsState = mSettingsStates.get(systemKey);
             if (systemSettingsState != null) {
+                systemSettingsState.invalidateReadSnapshotLocked();
                 if (permanently) {
-                    mSettingsStates.remove(systemKey);
+                    removeSettingsStateLocked(systemKey);
                     systemSettingsState.destroyLocked(null);
                 } else {
                     systemSettingsState.destroyLocked(new Runnable() {
                         @Override
                         public void run() {
-                            mSettingsStates.remove(systemKey);
+                            synchronized (mLock) {
+                                removeSettingsStateLocked(systemKey);
+                            }
                         }
                     });
                 }
@@ -2353,14 +2367,17 @@ public class SettingsProvider extends ContentProvider {
             final int secureKey = makeKey(SETTINGS_TYPE_SECURE, userId);
             final SettingsState secureSettingsState = mSettingsStates.get(secureKey);
             if (secureSettingsState != null) {
+                secureSettingsState.invalidateReadSnapshotLocked();
                 if (permanently) {
-                    mSettingsStates.remove(secureKey);
+                    removeSettingsStateLocked(secureKey);
                     secureSettingsState.destroyLocked(null);
                 } else {
                     secureSettingsState.destroyLocked(new Runnable() {
                         @Override
                         public void run() {
-                            mSettingsStates.remove(secureKey);
+                            synchronized (mLock) {
+                                removeSettingsStateLocked(secureKey);
+                            }
                         }
                     });
                 }
@@ -2370,14 +2387,17 @@ public class SettingsProvider extends ContentProvider {
             final int ssaidKey = makeKey(SETTINGS_TYPE_SSAID, userId);
             final SettingsState ssaidSettingsState = mSettingsStates.get(ssaidKey);
             if (ssaidSettingsState != null) {
+                ssaidSettingsState.invalidateReadSnapshotLocked();
                 if (permanently) {
-                    mSettingsStates.remove(ssaidKey);
+                    removeSettingsStateLocked(ssaidKey);
                     ssaidSettingsState.destroyLocked(null);
                 } else {
                     ssaidSettingsState.destroyLocked(new Runnable() {
                         @Override
                         public void run() {
-                            mSettingsStates.remove(ssaidKey);
+                            synchronized (mLock) {
+                                removeSettingsStateLocked(ssaidKey);
+                            }
                         }
                     });
                 }
@@ -2452,6 +2472,47 @@ public class SettingsProvider extends ContentProvider {
             return success;
         }
 
+        private void removeSettingsStateLocked(int key) {
+            mSettingsStates.remove(key);
+            mReadableSettingsStates = mSettingsStates.clone();
+        }
+
+        /**
+         * Returns a setting from the read snapshot of its table. Only takes mLock if the
+         * table changed since the snapshot was taken, or isn't loaded yet.
+         */
+        public Setting getSettingFromSnapshot(int type, int userId, String name) {
+            final int key = makeKey(type, userId);
+            final SettingsState readableState = mReadableSettingsStates.get(key);
+            SettingsState.ReadSnapshot snapshot = readableState != null
+                    ? readableState.peekReadSnapshot() : null;
+            if (snapshot == null) {
+                synchronized (mLock) {
+                    final SettingsState settingsState = peekSettingsStateLocked(key);
+                    if (settingsState == null) {
+                        return null;
+                    }
+                    snapshot = settingsState.peekReadSnapshot();
+                    if (snapshot == null) {
+                        // Taken at the same time as the snapshot, so that clients never
+                        // cache a value with a generation that is newer than the value.
+                        final Bundle generationData = new Bundle();
+                        mGenerationRegistry.addGenerationData(generationData, key);
+                        snapshot = settingsState.getReadSnapshotLocked(
+                                !generationData.isEmpty() ? generationData : null);
+                    }
+                }
+            }
+            return snapshot.getSetting(name);
+        }
+
+        private void invalidateReadSnapshotLocked(int key) {
+            final SettingsState settingsState = mSettingsStates.get(key);
+            if (settingsState != null) {
+                settingsState.invalidateReadSnapshotLocked();
+            }
+        }
+
         public Setting getSettingLocked(int type, int userId, String name) {
             final int key = makeKey(type, userId);
 
@@ -2756,6 +2817,7 @@ public class SettingsProvider extends ContentProvider {
             Uri uri = getNotificationUriFor(key, name);
 
             mGenerationRegistry.incrementGeneration(key);
+            invalidateReadSnapshotLocked(key);
 
             mHandler.obtainMessage(MyHandler.MSG_NOTIFY_URI_CHANGED,
                     userId, 0, uri).sendToTarget();
@@ -2783,6 +2845,7 @@ public class SettingsProvider extends ContentProvider {
                                 profileId, 0, uri).sendToTarget();
                         final int key = makeKey(type, profileId);
                         mGenerationRegistry.incrementGeneration(key);
+                        invalidateReadSnapshotLocked(key);
 
                         mHandler.obtainMessage(MyHandler.MSG_NOTIFY_DATA_CHANGED).sendToTarget();
                     }
@@ -27,10 +27,12 @@ import android.content.pm.PackageManagerInternal;
 import android.content.pm.Signature;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.providers.settings.GlobalSettingsProto;
@@ -46,6 +48,7 @@ import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.LocalServices;
 
 import libcore.io.IoUtils;
@@ -55,6 +58,10 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -87,8 +94,29 @@ final class SettingsState {
 
     static final int SETTINGS_VERSION_NEW_ENCODING = 121;
 
-    private static final long WRITE_SETTINGS_DELAY_MILLIS = 200;
-    private static final long MAX_WRITE_SETTINGS_DELAY_MILLIS = 2000;
+    /**
+     * Settings are written once they haven't changed for this long, but no later than
+     * {@link #MAX_WRITE_SETTINGS_DELAY_MILLIS} after the first change that isn't written yet.
+     */
+    private static final long WRITE_SETTINGS_DELAY_MILLIS = SystemProperties.getLong(
+            "persist.sys.settings_write_delay", 200);
+    private static final long MAX_WRITE_SETTINGS_DELAY_MILLIS = SystemProperties.getLong(
+            "persist.sys.settings_max_write_delay", 2000);
+
+    /**
+     * Whether the state is persisted in the binary format. The binary state lives next to the
+     * XML file, see {@link #getBinaryStateFile}; turning this off writes XML again and drops
+     * the binary file.
+     */
+    private static final boolean USE_BINARY_STATE = SystemProperties.getBoolean(
+            "persist.sys.settings_binary_state", true);
+
+    /** Leads state files in the binary format. */
+    private static final int BINARY_STATE_MAGIC = 0x53455453; // SETS
+    private static final int BINARY_STATE_FORMAT_VERSION = 1;
+
+    /** Longest string written as a single modified UTF-8 chunk, at most 3 bytes per char. */
+    private static final int MAX_UTF_CHUNK_CHARS = 65535 / 3;
 
     public static final int MAX_BYTES_PER_APP_PACKAGE_UNLIMITED = -1;
     public static final int MAX_BYTES_PER_APP_PACKAGE_LIMITED = 20000;
@@ -164,6 +192,8 @@ final class SettingsState {
     @GuardedBy("mLock")
     private final File mStatePersistFile;
 
+    private final File mBinaryStatePersistFile;
+
     private final Setting mNullSetting = new Setting(null, null, false, null, null) {
         @Override
         public boolean isNull() {
@@ -183,6 +213,29 @@ final class SettingsState {
     @GuardedBy("mLock")
     private long mLastNotWrittenMutationTimeMillis;
 
+    @GuardedBy("mLock")
+    private long mLastMutationTimeMillis;
+
+    /** Whether the state is persisted in the binary format rather than as XML. */
+    @GuardedBy("mLock")
+    private boolean mUseBinaryFormat = USE_BINARY_STATE;
+
+    // Persistence stats, reported by dumpWriteStats().
+    @GuardedBy("mLock")
+    private int mPendingMutationCount;
+    @GuardedBy("mLock")
+    private long mWrittenMutationCount;
+    @GuardedBy("mLock")
+    private int mWriteCount;
+    @GuardedBy("mLock")
+    private long mWrittenBytes;
+    @GuardedBy("mLock")
+    private long mLastWrittenBytes;
+    @GuardedBy("mLock")
+    private long mTotalWriteTimeMillis;
+    @GuardedBy("mLock")
+    private long mMaxWriteTimeMillis;
+
     @GuardedBy("mLock")
     private boolean mDirty;
 
@@ -195,6 +248,13 @@ final class SettingsState {
     @GuardedBy("mLock")
     private int mNextHistoricalOpIdx;
 
+    /**
+     * Immutable view of mSettings that reads are served from without holding mLock. Dropped
+     * on every change and rebuilt, under mLock, by the next read. The Setting instances in
+     * mSettings are replaced rather than modified so that snapshots can share them.
+     */
+    private volatile ReadSnapshot mReadSnapshot;
+
     public SettingsState(Context context, Object lock, File file, int key,
             int maxBytesPerAppPackage, Looper looper) {
         // It is important that we use the same lock as the settings provider
@@ -203,6 +263,7 @@ final class SettingsState {
         mContext = context;
         mLock = lock;
         mStatePersistFile = file;
+        mBinaryStatePersistFile = getBinaryStateFile(file);
         mKey = key;
         mHandler = new MyHandler(looper);
         if (maxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_LIMITED) {
@@ -287,6 +348,29 @@ final class SettingsState {
         return mNullSetting;
     }
 
+    /**
+     * Returns the current read snapshot, or {@code null} if the settings changed since it was
+     * last built. May be called without holding the settings provider lock.
+     */
+    public ReadSnapshot peekReadSnapshot() {
+        return mReadSnapshot;
+    }
+
+    // The settings provider must hold its lock when calling here.
+    public ReadSnapshot getReadSnapshotLocked(Bundle generationData) {
+        ReadSnapshot snapshot = mReadSnapshot;
+        if (snapshot == null) {
+            snapshot = new ReadSnapshot(new ArrayMap<>(mSettings), generationData);
+            mReadSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    // The settings provider must hold its lock when calling here.
+    public void invalidateReadSnapshotLocked() {
+        mReadSnapshot = null;
+    }
+
     // The settings provider must hold its lock when calling here.
     public boolean updateSettingLocked(String name, String value, String tag,
             boolean makeValue, String packageName) {
@@ -326,10 +410,11 @@ final class SettingsState {
         Setting newState;
 
         if (oldState != null) {
-            if (!oldState.update(value, makeDefault, packageName, tag, false)) {
+            newState = new Setting(oldState);
+            if (!newState.update(value, makeDefault, packageName, tag, false)) {
                 return false;
             }
-            newState = oldState;
+            mSettings.put(name, newState);
         } else {
             newState = new Setting(name, value, makeDefault, packageName, tag);
             mSettings.put(name, newState);
@@ -348,6 +433,7 @@ final class SettingsState {
     // The settings provider must hold its lock when calling here.
     public void persistSyncLocked() {
         mHandler.removeMessages(MyHandler.MSG_PERSIST_SETTINGS);
+        mHandler.removeMessages(MyHandler.MSG_WRITE_DUE);
         doWriteState();
     }
 
@@ -375,15 +461,15 @@ final class SettingsState {
             return false;
         }
 
-        Setting setting = mSettings.get(name);
-
-        Setting oldSetting = new Setting(setting);
-        String oldValue = setting.getValue();
-        String oldDefaultValue = setting.getDefaultValue();
+        Setting oldSetting = mSettings.get(name);
+        String oldValue = oldSetting.getValue();
+        String oldDefaultValue = oldSetting.getDefaultValue();
 
+        Setting setting = new Setting(oldSetting);
         if (!setting.reset()) {
             return false;
         }
+        mSettings.put(name, setting);
 
         String newValue = setting.getValue();
         String newDefaultValue = setting.getDefaultValue();
@@ -401,6 +487,7 @@ final class SettingsState {
     // The settings provider must hold its lock when calling here.
     public void destroyLocked(Runnable callback) {
         mHandler.removeMessages(MyHandler.MSG_PERSIST_SETTINGS);
+        mHandler.removeMessages(MyHandler.MSG_WRITE_DUE);
         if (callback != null) {
             if (mDirty) {
                 // Do it without a delay.
@@ -532,6 +619,11 @@ final class SettingsState {
     }
 
     private void scheduleWriteIfNeededLocked() {
+        // Every change ends up here.
+        mReadSnapshot = null;
+        mLastMutationTimeMillis = SystemClock.uptimeMillis();
+        mPendingMutationCount++;
+
         // If dirty then we have a write already scheduled.
         if (!mDirty) {
             mDirty = true;
@@ -540,31 +632,63 @@ final class SettingsState {
     }
 
     private void writeStateAsyncLocked() {
-        final long currentTimeMillis = SystemClock.uptimeMillis();
-
-        if (mWriteScheduled) {
-            mHandler.removeMessages(MyHandler.MSG_PERSIST_SETTINGS);
+        if (!mWriteScheduled) {
+            mLastNotWrittenMutationTimeMillis = mLastMutationTimeMillis;
+            Message message = mHandler.obtainMessage(MyHandler.MSG_WRITE_DUE);
+            mHandler.sendMessageDelayed(message, WRITE_SETTINGS_DELAY_MILLIS);
+            mWriteScheduled = true;
+        }
+    }
 
-            // If enough time passed, write without holding off anymore.
-            final long timeSinceLastNotWrittenMutationMillis = currentTimeMillis
-                    - mLastNotWrittenMutationTimeMillis;
-            if (timeSinceLastNotWrittenMutationMillis >= MAX_WRITE_SETTINGS_DELAY_MILLIS) {
-                mHandler.obtainMessage(MyHandler.MSG_PERSIST_SETTINGS).sendToTarget();
-                return;
+    /**
+     * Holds off a scheduled write as long as settings are frequently changing, within the
+     * bound of {@link #MAX_WRITE_SETTINGS_DELAY_MILLIS}. Pushing the write back when it is due
+     * rather than on every change keeps mutations from churning the handler queue.
+     *
+     * @return whether the write was rescheduled.
+     */
+    private boolean deferWriteIfChanging() {
+        synchronized (mLock) {
+            if (!mWriteScheduled) {
+                return false;
+            }
+            final long currentTimeMillis = SystemClock.uptimeMillis();
+            final long writeTimeMillis = Math.min(
+                    mLastMutationTimeMillis + WRITE_SETTINGS_DELAY_MILLIS,
+                    mLastNotWrittenMutationTimeMillis + MAX_WRITE_SETTINGS_DELAY_MILLIS);
+            if (writeTimeMillis <= currentTimeMillis) {
+                return false;
             }
+            Message message = mHandler.obtainMessage(MyHandler.MSG_WRITE_DUE);
+            mHandler.sendMessageDelayed(message, writeTimeMillis - currentTimeMillis);
+            return true;
+        }
+    }
 
-            // Hold off a bit more as settings are frequently changing.
-            final long maxDelayMillis = Math.max(mLastNotWrittenMutationTimeMillis
-                    + MAX_WRITE_SETTINGS_DELAY_MILLIS - currentTimeMillis, 0);
-            final long writeDelayMillis = Math.min(WRITE_SETTINGS_DELAY_MILLIS, maxDelayMillis);
+    @VisibleForTesting
+    void setUseBinaryFormat(boolean useBinaryFormat) {
+        synchronized (mLock) {
+            mUseBinaryFormat = useBinaryFormat;
+        }
+    }
 
-            Message message = mHandler.obtainMessage(MyHandler.MSG_PERSIST_SETTINGS);
-            mHandler.sendMessageDelayed(message, writeDelayMillis);
-        } else {
-            mLastNotWrittenMutationTimeMillis = currentTimeMillis;
-            Message message = mHandler.obtainMessage(MyHandler.MSG_PERSIST_SETTINGS);
-            mHandler.sendMessageDelayed(message, WRITE_SETTINGS_DELAY_MILLIS);
-            mWriteScheduled = true;
+    public void dumpWriteStats(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Write stats");
+            pw.print(" format="); pw.print(mUseBinaryFormat ? "binary" : "xml");
+            pw.print(" writes="); pw.print(mWriteCount);
+            pw.print(" mutations="); pw.print(mWrittenMutationCount);
+            pw.print(" pending="); pw.println(mPendingMutationCount);
+            pw.print(" bytes="); pw.print(mWrittenBytes);
+            pw.print(" last="); pw.println(mLastWrittenBytes);
+            pw.print(" time="); TimeUtils.formatDuration(mTotalWriteTimeMillis, pw);
+            if (mWriteCount > 0) {
+                pw.print(" avg=");
+                TimeUtils.formatDuration(mTotalWriteTimeMillis / mWriteCount, pw);
+            }
+            pw.print(" max="); TimeUtils.formatDuration(mMaxWriteTimeMillis, pw);
+            pw.println();
+            pw.println();
         }
     }
 
@@ -572,12 +696,20 @@ final class SettingsState {
         boolean wroteState = false;
         final int version;
         final ArrayMap<String, Setting> settings;
+        final boolean useBinaryFormat;
+        final int mutationCount;
+        long writtenBytes = 0;
+        final long startTimeMillis;
 
         synchronized (mLock) {
             version = mVersion;
             settings = new ArrayMap<>(mSettings);
+            useBinaryFormat = mUseBinaryFormat;
+            mutationCount = mPendingMutationCount;
+            mPendingMutationCount = 0;
             mDirty = false;
             mWriteScheduled = false;
+            mHandler.removeMessages(MyHandler.MSG_WRITE_DUE);
         }
 
         synchronized (mWriteLock) {
@@ -585,37 +717,26 @@ final class SettingsState {
                 Slog.i(LOG_TAG, "[PERSIST START]");
             }
 
-            AtomicFile destination = new AtomicFile(mStatePersistFile);
+            startTimeMillis = SystemClock.uptimeMillis();
+            AtomicFile destination = new AtomicFile(
+                    useBinaryFormat ? mBinaryStatePersistFile : mStatePersistFile);
             FileOutputStream out = null;
             try {
                 out = destination.startWrite();
 
-                XmlSerializer serializer = Xml.newSerializer();
-                serializer.setOutput(out, StandardCharsets.UTF_8.name());
-                serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                        true);
-                serializer.startDocument(null, true);
-                serializer.startTag(null, TAG_SETTINGS);
-                serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
-
-                final int settingCount = settings.size();
-                for (int i = 0; i < settingCount; i++) {
-                    Setting setting = settings.valueAt(i);
-
-                    writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
-                            setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
-                            setting.getTag(), setting.isDefaultFromSystem());
-
-                    if (DEBUG_PERSISTENCE) {
-                        Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
-                                + setting.getValue());
-                    }
+                if (useBinaryFormat) {
+                    writeBinaryState(out, version, settings);
+                } else {
+                    writeXmlState(out, version, settings);
                 }
-
-                serializer.endTag(null, TAG_SETTINGS);
-                serializer.endDocument();
+                writtenBytes = out.getChannel().position();
                 destination.finishWrite(out);
 
+                // Only the file just written is kept, so that neither a stale binary file
+                // shadows newer XML nor is stale XML ever read in place of the binary state.
+                new AtomicFile(useBinaryFormat
+                        ? mStatePersistFile : mBinaryStatePersistFile).delete();
+
                 wroteState = true;
 
                 if (DEBUG_PERSISTENCE) {
@@ -630,10 +751,189 @@ final class SettingsState {
         }
 
         if (wroteState) {
+            final long writeTimeMillis = SystemClock.uptimeMillis() - startTimeMillis;
             synchronized (mLock) {
                 addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+                mWriteCount++;
+                mWrittenMutationCount += mutationCount;
+                mWrittenBytes += writtenBytes;
+                mLastWrittenBytes = writtenBytes;
+                mTotalWriteTimeMillis += writeTimeMillis;
+                mMaxWriteTimeMillis = Math.max(mMaxWriteTimeMillis, writeTimeMillis);
+            }
+        }
+    }
+
+    private void writeXmlState(FileOutputStream out, int version,
+            ArrayMap<String, Setting> settings) throws IOException {
+        XmlSerializer serializer = Xml.newSerializer();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
+                true);
+        serializer.startDocument(null, true);
+        serializer.startTag(null, TAG_SETTINGS);
+        serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
+
+        final int settingCount = settings.size();
+        for (int i = 0; i < settingCount; i++) {
+            Setting setting = settings.valueAt(i);
+
+            writeSingleSetting(version, serializer, setting.getId(), setting.getName(),
+                    setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
+                    setting.getTag(), setting.isDefaultFromSystem());
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
+                        + setting.getValue());
+            }
+        }
+
+        serializer.endTag(null, TAG_SETTINGS);
+        serializer.endDocument();
+    }
+
+    /**
+     * Writes the state in a compact binary form that is much cheaper to produce and parse
+     * than XML. Values are written verbatim, so no base64 encoding is needed for binary ones.
+     */
+    private static void writeBinaryState(FileOutputStream out, int version,
+            ArrayMap<String, Setting> settings) throws IOException {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(BINARY_STATE_MAGIC);
+        data.writeInt(BINARY_STATE_FORMAT_VERSION);
+        data.writeInt(version);
+
+        final int settingCount = settings.size();
+        int persistedCount = 0;
+        for (int i = 0; i < settingCount; i++) {
+            if (isPersistable(settings.valueAt(i))) {
+                persistedCount++;
+            }
+        }
+        data.writeInt(persistedCount);
+        for (int i = 0; i < settingCount; i++) {
+            Setting setting = settings.valueAt(i);
+            if (!isPersistable(setting)) {
+                // This shouldn't happen.
+                continue;
+            }
+            writeBinaryString(data, setting.getId());
+            writeBinaryString(data, setting.getName());
+            writeBinaryString(data, setting.getValue());
+            writeBinaryString(data, setting.getPackageName());
+            final String defaultValue = setting.getDefaultValue();
+            writeBinaryString(data, defaultValue);
+            if (defaultValue != null) {
+                data.writeBoolean(setting.isDefaultFromSystem());
+                writeBinaryString(data, setting.getTag());
+            }
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
+                        + setting.getValue());
             }
         }
+        data.flush();
+    }
+
+    /** The same settings {@link #writeSingleSetting} skips, which couldn't be read back. */
+    private static boolean isPersistable(Setting setting) {
+        return setting.getId() != null && setting.getName() != null
+                && setting.getPackageName() != null;
+    }
+
+    /**
+     * Returns the file the binary state is kept in for the XML state {@code file}. It has a
+     * name of its own so that nothing expecting XML ever finds binary state.
+     */
+    @VisibleForTesting
+    static File getBinaryStateFile(File file) {
+        final String name = file.getName();
+        final String baseName = name.endsWith(".xml")
+                ? name.substring(0, name.length() - ".xml".length()) : name;
+        return new File(file.getParentFile(), baseName + ".bin");
+    }
+
+    private void readBinaryStateLocked(DataInputStream in) throws IOException {
+        if (in.readInt() != BINARY_STATE_MAGIC) {
+            throw new IOException("Not a binary settings file");
+        }
+        final int formatVersion = in.readInt();
+        if (formatVersion != BINARY_STATE_FORMAT_VERSION) {
+            throw new IOException("Unknown binary settings format " + formatVersion);
+        }
+        mVersion = in.readInt();
+
+        final int settingCount = readBinaryLength(in);
+        for (int i = 0; i < settingCount; i++) {
+            String id = readBinaryString(in);
+            String name = readBinaryString(in);
+            String value = readBinaryString(in);
+            String packageName = readBinaryString(in);
+            String defaultValue = readBinaryString(in);
+            String tag = null;
+            boolean fromSystem = false;
+            if (defaultValue != null) {
+                fromSystem = in.readBoolean();
+                tag = readBinaryString(in);
+            }
+            mSettings.put(name, new Setting(name, value, defaultValue, packageName, tag,
+                    fromSystem, id));
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[RESTORED] " + name + "=" + value);
+            }
+        }
+    }
+
+    /**
+     * Writes a possibly null string of any length; {@link DataOutputStream#writeUTF} alone is
+     * limited to 64K encoded bytes.
+     */
+    private static void writeBinaryString(DataOutputStream out, String value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final int length = value.length();
+        out.writeInt(length);
+        for (int start = 0; start < length; start += MAX_UTF_CHUNK_CHARS) {
+            out.writeUTF(value.substring(start, Math.min(length, start + MAX_UTF_CHUNK_CHARS)));
+        }
+    }
+
+    private static String readBinaryString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        checkBinaryLength(in, length);
+        if (length <= MAX_UTF_CHUNK_CHARS) {
+            return in.readUTF();
+        }
+        final StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length) {
+            builder.append(in.readUTF());
+        }
+        return builder.toString();
+    }
+
+    private static int readBinaryLength(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        checkBinaryLength(in, length);
+        return length;
+    }
+
+    /**
+     * Checks a count read from binary state against what is left of the file, so that a
+     * damaged one fails the read instead of allocating for it. Every counted item takes at
+     * least a byte.
+     */
+    private static void checkBinaryLength(DataInputStream in, int length) throws IOException {
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid length " + length);
+        }
     }
 
     static void writeSingleSetting(int version, XmlSerializer serializer, String id,
@@ -704,6 +1004,9 @@ final class SettingsState {
     }
 
     private void readStateSyncLocked() {
+        if (readBinaryStateSyncLocked()) {
+            return;
+        }
         FileInputStream in;
         try {
             in = new AtomicFile(mStatePersistFile).openRead();
@@ -725,6 +1028,33 @@ final class SettingsState {
         }
     }
 
+    /**
+     * Reads the binary state, if there is any. As with the XML file, a backup left by an
+     * interrupted write is recovered by {@link AtomicFile}, and state that can't be read is
+     * fatal rather than silently replaced by older settings.
+     *
+     * @return whether the state was read, false if there is no binary state.
+     */
+    private boolean readBinaryStateSyncLocked() {
+        final AtomicFile binaryFile = new AtomicFile(mBinaryStatePersistFile);
+        FileInputStream in;
+        try {
+            in = binaryFile.openRead();
+        } catch (FileNotFoundException fnfe) {
+            return false;
+        }
+        try {
+            readBinaryStateLocked(new DataInputStream(new BufferedInputStream(in)));
+            return true;
+        } catch (IOException e) {
+            String message = "Failed reading settings file: " + mBinaryStatePersistFile;
+            Slog.wtf(LOG_TAG, message);
+            throw new IllegalStateException(message, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
     /**
      * Uses AtomicFile to check if the file or its backup exists.
      * @param file The file to check for existence
@@ -732,7 +1062,7 @@ final class SettingsState {
      */
     public static boolean stateFileExists(File file) {
         AtomicFile stateFile = new AtomicFile(file);
-        return stateFile.exists();
+        return stateFile.exists() || new AtomicFile(getBinaryStateFile(file)).exists();
     }
 
     private void parseStateLocked(XmlPullParser parser)
@@ -792,6 +1122,7 @@ final class SettingsState {
 
     private final class MyHandler extends Handler {
         public static final int MSG_PERSIST_SETTINGS = 1;
+        public static final int MSG_WRITE_DUE = 2;
 
         public MyHandler(Looper looper) {
             super(looper);
@@ -808,6 +1139,13 @@ final class SettingsState {
                     }
                 }
                 break;
+
+                case MSG_WRITE_DUE: {
+                    if (!deferWriteIfChanging()) {
+                        doWriteState();
+                    }
+                }
+                break;
             }
         }
     }
@@ -825,6 +1163,59 @@ final class SettingsState {
         }
     }
 
+    /**
+     * A point in time copy of the settings of this state, along with the generation data that
+     * was current when it was taken.
+     */
+    final class ReadSnapshot {
+        private final ArrayMap<String, Setting> mSnapshotSettings;
+        private final Bundle mGenerationData;
+
+        private ReadSnapshot(ArrayMap<String, Setting> settings, Bundle generationData) {
+            mSnapshotSettings = settings;
+            mGenerationData = generationData;
+        }
+
+        public SnapshotSetting getSetting(String name) {
+            Setting setting = !TextUtils.isEmpty(name) ? mSnapshotSettings.get(name) : null;
+            return setting != null
+                    ? new SnapshotSetting(setting, false, mGenerationData)
+                    : new SnapshotSetting(mNullSetting, true, mGenerationData);
+        }
+
+        /**
+         * @return the generation data matching this snapshot, {@code null} if the state isn't
+         *         tracked. Callers must not modify the returned bundle.
+         */
+        public Bundle getGenerationData() {
+            return mGenerationData;
+        }
+    }
+
+    /**
+     * A setting read from a {@link ReadSnapshot}, along with the generation data of the
+     * snapshot, since the current generation may already be newer than the value.
+     */
+    final class SnapshotSetting extends Setting {
+        private final boolean mIsNull;
+        private final Bundle mGenerationData;
+
+        private SnapshotSetting(Setting other, boolean isNull, Bundle generationData) {
+            super(other);
+            mIsNull = isNull;
+            mGenerationData = generationData;
+        }
+
+        @Override
+        public boolean isNull() {
+            return mIsNull;
+        }
+
+        public Bundle getGenerationData() {
+            return mGenerationData;
+        }
+    }
+
     class Setting {
         private String name;
         private String value;
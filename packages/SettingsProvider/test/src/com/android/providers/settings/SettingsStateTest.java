@@ -25,6 +25,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 
 public class SettingsStateTest extends AndroidTestCase {
@@ -47,6 +48,13 @@ public class SettingsStateTest extends AndroidTestCase {
             "日本語";
 
 
+    private File newStateFile() {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        file.delete();
+        SettingsState.getBinaryStateFile(file).delete();
+        return file;
+    }
+
     public void testIsBinary() {
         assertFalse(SettingsState.isBinary(" abc 日本語"));
 
@@ -122,8 +130,7 @@ public class SettingsStateTest extends AndroidTestCase {
      * Make sure settings can be written to a file and also can be read.
      */
     public void testReadWrite() {
-        final File file = new File(getContext().getCacheDir(), "setting.xml");
-        file.delete();
+        final File file = newStateFile();
         final Object lock = new Object();
 
         final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
@@ -148,12 +155,218 @@ public class SettingsStateTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * Settings written in the legacy XML format must still be readable, and get migrated to
+     * the binary format on the next write.
+     */
+    public void testMigrateXmlToBinary() {
+        final File file = newStateFile();
+        final Object lock = new Object();
+        final StringBuilder longValue = new StringBuilder();
+        while (longValue.length() < 70000) {
+            longValue.append(CRAZY_STRING);
+        }
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.setUseBinaryFormat(false);
+            ssWriter.insertSettingLocked("k1", CRAZY_STRING, null, false, "p1");
+            ssWriter.insertSettingLocked("k2", "v2", "tag", true, "p2");
+            ssWriter.persistSyncLocked();
+        }
+
+        final SettingsState ssMigrator = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals(CRAZY_STRING, ssMigrator.getSettingLocked("k1").getValue());
+            ssMigrator.insertSettingLocked("k3", longValue.toString(), null, false, "p3");
+            ssMigrator.persistSyncLocked();
+        }
+
+        // The XML file would only go stale, so it is dropped.
+        final File binaryFile = SettingsState.getBinaryStateFile(file);
+        assertEquals("setting.bin", binaryFile.getName());
+        assertTrue(binaryFile.exists());
+        assertFalse(file.exists());
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals(SettingsState.SETTINGS_VERSION_NEW_ENCODING,
+                    ssReader.getVersionLocked());
+            assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k1").getValue());
+            final SettingsState.Setting k2 = ssReader.getSettingLocked("k2");
+            assertEquals("v2", k2.getValue());
+            assertEquals("v2", k2.getDefaultValue());
+            assertEquals("tag", k2.getTag());
+            assertEquals(ssWriter.getSettingLocked("k2").isDefaultFromSystem(),
+                    k2.isDefaultFromSystem());
+            assertEquals("p2", k2.getPackageName());
+            assertEquals(longValue.toString(), ssReader.getSettingLocked("k3").getValue());
+        }
+    }
+
+    /**
+     * Writing XML again drops the binary state, so that it doesn't shadow the newer XML.
+     */
+    public void testMigrateBinaryToXml() {
+        final File file = newStateFile();
+        final File binaryFile = SettingsState.getBinaryStateFile(file);
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.setUseBinaryFormat(true);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.persistSyncLocked();
+        }
+        assertTrue(binaryFile.exists());
+        assertFalse(file.exists());
+
+        final SettingsState ssMigrator = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals("v1", ssMigrator.getSettingLocked("k1").getValue());
+            ssMigrator.setUseBinaryFormat(false);
+            ssMigrator.insertSettingLocked("k2", "v2", null, false, "p2");
+            ssMigrator.persistSyncLocked();
+        }
+        assertFalse(binaryFile.exists());
+        assertTrue(file.exists());
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals("v1", ssReader.getSettingLocked("k1").getValue());
+            assertEquals("v2", ssReader.getSettingLocked("k2").getValue());
+        }
+    }
+
+    /**
+     * Binary state that can't be read is fatal, as unreadable XML is, rather than replaced by
+     * older XML.
+     */
+    public void testCorruptBinaryStateNotReplacedByXml() throws Exception {
+        final File file = newStateFile();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.setUseBinaryFormat(false);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.persistSyncLocked();
+        }
+        final PrintStream os = new PrintStream(
+                new FileOutputStream(SettingsState.getBinaryStateFile(file)));
+        os.print("not settings");
+        os.close();
+
+        try {
+            new SettingsState(getContext(), lock, file, 1,
+                    SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+            fail("Corrupt binary state read");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * A damaged length fails the read instead of allocating for it.
+     */
+    public void testBinaryStateWithBadLength() throws Exception {
+        final File file = newStateFile();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.setUseBinaryFormat(true);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.persistSyncLocked();
+        }
+        // The setting count follows the magic, format version and state version.
+        final File binaryFile = SettingsState.getBinaryStateFile(file);
+        try (RandomAccessFile raf = new RandomAccessFile(binaryFile, "rw")) {
+            raf.seek(12);
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+
+        try {
+            new SettingsState(getContext(), lock, file, 1,
+                    SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+            fail("Damaged binary state read");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * The backup of the binary state left by an interrupted write is read instead of the
+     * partly written file.
+     */
+    public void testBinaryStateRestoredFromBackup() throws Exception {
+        final File file = newStateFile();
+        final File binaryFile = SettingsState.getBinaryStateFile(file);
+        final File backupFile = new File(binaryFile.getPath() + ".bak");
+        backupFile.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.setUseBinaryFormat(true);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.persistSyncLocked();
+        }
+        assertTrue(binaryFile.renameTo(backupFile));
+        final PrintStream os = new PrintStream(new FileOutputStream(binaryFile));
+        os.print("partly written");
+        os.close();
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals("v1", ssReader.getSettingLocked("k1").getValue());
+        }
+        assertFalse(backupFile.exists());
+    }
+
+    /**
+     * Settings without a package are skipped by the binary format, as they are by XML.
+     */
+    public void testBinaryStateSkipsSettingsWithoutPackage() {
+        final File file = newStateFile();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.setUseBinaryFormat(true);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, null);
+            ssWriter.insertSettingLocked("k2", "v2", null, false, "p2");
+            ssWriter.persistSyncLocked();
+        }
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertTrue(ssReader.getSettingLocked("k1").isNull());
+            assertEquals("v2", ssReader.getSettingLocked("k2").getValue());
+        }
+    }
+
     /**
      * In version 120, value "null" meant {code NULL}.
      */
     public void testUpgrade() throws Exception {
-        final File file = new File(getContext().getCacheDir(), "setting.xml");
-        file.delete();
+        final File file = newStateFile();
         final Object lock = new Object();
         final PrintStream os = new PrintStream(new FileOutputStream(file));
         os.print(
@@ -182,4 +395,33 @@ public class SettingsStateTest extends AndroidTestCase {
             assertEquals("p2", s.getPackageName());
         }
     }
+
+    public void testReadSnapshot() {
+        final File file = newStateFile();
+        final Object lock = new Object();
+
+        final SettingsState ss = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ss.insertSettingLocked("k1", "v1", null, false, "package");
+            final SettingsState.ReadSnapshot snapshot = ss.getReadSnapshotLocked(null);
+            assertSame(snapshot, ss.peekReadSnapshot());
+            assertEquals("v1", snapshot.getSetting("k1").getValue());
+            assertTrue(snapshot.getSetting("k2").isNull());
+
+            // A change drops the snapshot, but leaves the values it holds untouched.
+            ss.insertSettingLocked("k1", "v2", null, false, "package");
+            assertNull(ss.peekReadSnapshot());
+            assertEquals("v1", snapshot.getSetting("k1").getValue());
+            assertEquals("v2", ss.getReadSnapshotLocked(null).getSetting("k1").getValue());
+
+            ss.resetSettingLocked("k1");
+            assertNull(ss.peekReadSnapshot());
+            assertEquals(ss.getSettingLocked("k1").getValue(),
+                    ss.getReadSnapshotLocked(null).getSetting("k1").getValue());
+
+            ss.deleteSettingLocked("k1");
+            assertTrue(ss.getReadSnapshotLocked(null).getSetting("k1").isNull());
+        }
+    }
 }
@@ -23,13 +23,16 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 import android.net.Uri;
 import android.util.FastImmutableArraySet;
+import android.util.IntArray;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.MutableInt;
 import android.util.PrintWriterPrinter;
 import android.util.Slog;
@@ -57,6 +60,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
+        invalidateQueryCache();
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -194,6 +198,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     }
 
     void removeFilterInternal(F f) {
+        invalidateQueryCache();
         if (localLOGV) {
             Slog.v(TAG, "Removing filter: " + f);
             f.dump(new LogPrinter(Log.VERBOSE, TAG, Log.LOG_ID_SYSTEM), "      ");
@@ -382,6 +387,129 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             TAG, "Resolving type=" + resolvedType + " scheme=" + scheme
             + " defaultOnly=" + defaultOnly + " userId=" + userId + " of " + intent);
 
+        if (mQueryCache != null && !debug) {
+            final CachedMatches<F> matches = getCachedMatches(intent, resolvedType, scheme);
+            buildResolveListFromMatches(intent, defaultOnly, matches, finalList, userId);
+            filterResults(finalList);
+            sortResults(finalList);
+            return finalList;
+        }
+
+        final F[][] cuts = newCuts();
+        collectCuts(intent, resolvedType, scheme, debug, cuts);
+        FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        for (int i = 0; i < cuts.length; i++) {
+            if (cuts[i] != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, cuts[i], finalList, userId);
+            }
+        }
+        filterResults(finalList);
+        sortResults(finalList);
+
+        if (debug) {
+            Slog.v(TAG, "Final result list:");
+            for (int i=0; i<finalList.size(); i++) {
+                Slog.v(TAG, "  " + finalList.get(i));
+            }
+        }
+        return finalList;
+    }
+
+    /**
+     * Enables caching of the filters that match a given combination of intent action, type,
+     * data and categories, so that repeated queries for the same intent skip the index lookups
+     * and {@link IntentFilter#match}. State that can change without a filter being added or
+     * removed (stopped packages, package restriction, default-only, result de-duplication) is
+     * still evaluated on every query. Cached matches are dropped whenever a filter is added or
+     * removed.
+     *
+     * <p>Callers must serialize queries and filter changes, as they already do for the
+     * underlying lookup maps.</p>
+     */
+    public void enableQueryCache(int maxEntries) {
+        mQueryCache = new LruCache<>(maxEntries);
+    }
+
+    private void invalidateQueryCache() {
+        if (mQueryCache != null) {
+            mQueryCache.evictAll();
+        }
+    }
+
+    private CachedMatches<F> getCachedMatches(Intent intent, String resolvedType,
+            String scheme) {
+        final QueryKey key = new QueryKey(intent.getAction(), resolvedType, intent.getData(),
+                intent.getCategories());
+        CachedMatches<F> matches = mQueryCache.get(key);
+        if (matches != null) {
+            return matches;
+        }
+
+        final F[][] cuts = newCuts();
+        collectCuts(intent, resolvedType, scheme, false, cuts);
+        final FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        final ArrayList<F> filters = new ArrayList<F>();
+        final IntArray matchResults = new IntArray();
+        for (int i = 0; i < cuts.length; i++) {
+            final F[] src = cuts[i];
+            final int N = src != null ? src.length : 0;
+            F filter;
+            for (int j = 0; j < N && (filter = src[j]) != null; j++) {
+                final int match = filter.match(intent.getAction(), resolvedType, scheme,
+                        intent.getData(), categories, TAG);
+                if (match >= 0) {
+                    filters.add(filter);
+                    matchResults.add(match);
+                }
+            }
+        }
+        matches = new CachedMatches<F>(filters.toArray(newArray(filters.size())),
+                matchResults.toArray());
+        mQueryCache.put(key.copy(), matches);
+        return matches;
+    }
+
+    /**
+     * Equivalent of {@link #buildResolveList} for filters already known to match the intent.
+     * The remaining checks are applied in the same order, so the results are identical.
+     */
+    private void buildResolveListFromMatches(Intent intent, boolean defaultOnly,
+            CachedMatches<F> matches, List<R> dest, int userId) {
+        final String packageName = intent.getPackage();
+        final boolean excludingStopped = intent.isExcludingStopped();
+        final F[] filters = matches.filters;
+        for (int i = 0; i < filters.length; i++) {
+            final F filter = filters[i];
+            if (excludingStopped && isFilterStopped(filter, userId)) {
+                continue;
+            }
+            if (packageName != null && !isPackageForFilter(packageName, filter)) {
+                continue;
+            }
+            if (!allowFilterResult(filter, dest)) {
+                continue;
+            }
+            if (!defaultOnly || filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                final R oneResult = newResult(filter, matches.matchResults[i], userId);
+                if (oneResult != null) {
+                    dest.add(oneResult);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private F[][] newCuts() {
+        // firstType, secondType, thirdType and scheme cuts, in the order they are resolved.
+        return (F[][]) new IntentFilter[4][];
+    }
+
+    /**
+     * Looks up the arrays of candidate filters for the intent in the lookup maps.
+     */
+    private void collectCuts(Intent intent, String resolvedType, String scheme, boolean debug,
+            F[][] cuts) {
         F[] firstTypeCut = null;
         F[] secondTypeCut = null;
         F[] thirdTypeCut = null;
@@ -441,33 +569,10 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             if (debug) Slog.v(TAG, "Action list: " + Arrays.toString(firstTypeCut));
         }
 
-        FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
-        if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
-        }
-        if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
-        }
-        if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
-        }
-        if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
-        }
-        filterResults(finalList);
-        sortResults(finalList);
-
-        if (debug) {
-            Slog.v(TAG, "Final result list:");
-            for (int i=0; i<finalList.size(); i++) {
-                Slog.v(TAG, "  " + finalList.get(i));
-            }
-        }
-        return finalList;
+        cuts[0] = firstTypeCut;
+        cuts[1] = secondTypeCut;
+        cuts[2] = thirdTypeCut;
+        cuts[3] = schemeCut;
     }
 
     /**
@@ -806,6 +911,68 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     };
 
+    /**
+     * Key of {@link #mQueryCache}: the intent fields that {@link IntentFilter#match} looks at.
+     */
+    private static final class QueryKey {
+        final String action;
+        final String resolvedType;
+        final Uri data;
+        final Set<String> categories;
+        final int hashCode;
+
+        QueryKey(String action, String resolvedType, Uri data, Set<String> categories) {
+            this.action = action;
+            this.resolvedType = resolvedType;
+            this.data = data;
+            this.categories = categories;
+            this.hashCode = Objects.hash(action, resolvedType, data, categories);
+        }
+
+        /** Returns a key that doesn't share the (mutable) categories with the intent. */
+        QueryKey copy() {
+            return new QueryKey(action, resolvedType, data,
+                    categories != null ? new ArraySet<String>(categories) : null);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QueryKey)) {
+                return false;
+            }
+            final QueryKey other = (QueryKey) o;
+            return hashCode == other.hashCode
+                    && Objects.equals(action, other.action)
+                    && Objects.equals(resolvedType, other.resolvedType)
+                    && Objects.equals(data, other.data)
+                    && Objects.equals(categories, other.categories);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Filters matching a {@link QueryKey}, in resolution order, with their match results.
+     */
+    private static final class CachedMatches<F> {
+        final F[] filters;
+        final int[] matchResults;
+
+        CachedMatches(F[] filters, int[] matchResults) {
+            this.filters = filters;
+            this.matchResults = matchResults;
+        }
+    }
+
+    /**
+     * Filters matching recently queried intents; null unless {@link #enableQueryCache} was
+     * called.
+     */
+    private LruCache<QueryKey, CachedMatches<F>> mQueryCache;
+
     /**
      * All filters that have been registered.
      */
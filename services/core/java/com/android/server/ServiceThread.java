@@ -17,18 +17,41 @@
 package com.android.server;
 
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Process;
 import android.os.StrictMode;
+import android.os.SystemProperties;
 import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.LooperStats;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
 /**
  * Special handler thread that we create for system services that require their own loopers.
  */
 public class ServiceThread extends HandlerThread {
     private static final String TAG = "ServiceThread";
 
+    // Timing every message costs two clock reads and a lock per dispatch, so it is only
+    // done while debugging.
+    private static final boolean LOOPER_STATS_ENABLED =
+            SystemProperties.getBoolean("persist.sys.looper_stats", false);
+
+    // Lets the many binder threads posting to service threads enqueue without contending
+    // on the message queue lock.
+    private static final boolean CONCURRENT_ENQUEUE_ENABLED =
+            SystemProperties.getBoolean("persist.sys.looper_concurrent_enqueue", false);
+
+    @GuardedBy("sThreadsWithStats")
+    private static final ArrayList<ServiceThread> sThreadsWithStats = new ArrayList<>();
+
     private final boolean mAllowIo;
 
+    private LooperStats mLooperStats;
+
     public ServiceThread(String name, int priority, boolean allowIo) {
         super(name, priority);
         mAllowIo = allowIo;
@@ -43,6 +66,52 @@ public class ServiceThread extends HandlerThread {
             Slog.i(TAG, "Enabled StrictMode logging for " + getName() + " looper.");
         }
 
-        super.run();
+        try {
+            super.run();
+        } finally {
+            if (mLooperStats != null) {
+                synchronized (sThreadsWithStats) {
+                    sThreadsWithStats.remove(this);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onLooperPrepared() {
+        if (CONCURRENT_ENQUEUE_ENABLED) {
+            Looper.myQueue().setConcurrentEnqueue(true);
+        }
+        if (LOOPER_STATS_ENABLED) {
+            mLooperStats = new LooperStats();
+            Looper.myLooper().setObserver(mLooperStats);
+            synchronized (sThreadsWithStats) {
+                sThreadsWithStats.add(this);
+            }
+        }
+    }
+
+    /**
+     * Dumps the message dispatch statistics of all running service threads.
+     *
+     * @param reset Whether to clear the statistics after dumping them.
+     */
+    public static void dumpLooperStats(PrintWriter pw, boolean reset) {
+        final ArrayList<ServiceThread> threads;
+        synchronized (sThreadsWithStats) {
+            threads = new ArrayList<>(sThreadsWithStats);
+        }
+        if (threads.isEmpty()) {
+            pw.println("Looper stats are disabled (persist.sys.looper_stats)");
+            return;
+        }
+        for (int i = 0; i < threads.size(); i++) {
+            final ServiceThread thread = threads.get(i);
+            pw.print(thread.getName()); pw.println(":");
+            thread.mLooperStats.dump(pw, "  ");
+            if (reset) {
+                thread.mLooperStats.reset();
+            }
+        }
     }
 }
\ No newline at end of file
@@ -121,6 +121,7 @@ import static com.android.server.am.ActivityManagerDebugConfig.DEBUG_LRU;
 import static com.android.server.am.ActivityManagerDebugConfig.DEBUG_MU;
 import static com.android.server.am.ActivityManagerDebugConfig.DEBUG_NETWORK;
 import static com.android.server.am.ActivityManagerDebugConfig.DEBUG_OOM_ADJ;
+import static com.android.server.am.ActivityManagerDebugConfig.DEBUG_OOM_ADJ_INCREMENTAL;
 import static com.android.server.am.ActivityManagerDebugConfig.DEBUG_OOM_ADJ_REASON;
 import static com.android.server.am.ActivityManagerDebugConfig.DEBUG_PERMISSIONS_REVIEW;
 import static com.android.server.am.ActivityManagerDebugConfig.DEBUG_POWER;
@@ -377,6 +378,7 @@ import com.android.internal.messages.nano.SystemMessageProto.SystemMessage;
 import com.android.internal.notification.SystemNotificationChannels;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.os.BatteryStatsImpl;
+import com.android.internal.os.BinderCallsStats;
 import com.android.internal.os.IResultReceiver;
 import com.android.internal.os.ProcessCpuTracker;
 import com.android.internal.os.TransferPipe;
@@ -545,6 +547,9 @@ public class ActivityManagerService extends IActivityManager.Stub
     // Maximum number of persisted Uri grants a package is allowed
     static final int MAX_PERSISTED_URI_GRANTS = 128;
 
+    // Number of task snapshots after the requested one in recents to restore in the background.
+    static final int TASK_SNAPSHOT_PREFETCH_COUNT = 3;
+
     static final int MY_PID = myPid();
 
     static final String[] EMPTY_STRING_ARRAY = new String[0];
@@ -970,6 +975,9 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     final HashMap<IBinder, ReceiverList> mRegisteredReceivers = new HashMap<>();
 
+    /** Number of recently broadcast intents whose matching receivers are cached. */
+    static final int RECEIVER_QUERY_CACHE_SIZE = 128;
+
     /**
      * Resolver for broadcast intents to registered receivers.
      * Holds BroadcastFilter (subclass of IntentFilter).
@@ -2678,7 +2686,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         mAppOpsService = mInjector.getAppOpsService(null, null);
         mBatteryStatsService = null;
         mCompatModePackages = null;
-        mConstants = null;
+        mConstants = new ActivityManagerConstants(this, null);
         mGrantFile = null;
         mHandler = null;
         mHandlerThread = null;
@@ -2730,6 +2738,8 @@ public class ActivityManagerService extends IActivityManager.Stub
             sKillHandler = new KillHandler(sKillThread.getLooper());
         }
 
+        mReceiverResolver.enableQueryCache(RECEIVER_QUERY_CACHE_SIZE);
+
         mFgBroadcastQueue = new BroadcastQueue(this, mHandler,
                 "foreground", BROADCAST_FG_TIMEOUT, false);
         mBgBroadcastQueue = new BroadcastQueue(this, mHandler,
@@ -10316,6 +10326,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         final long ident = Binder.clearCallingIdentity();
         try {
             final TaskRecord task;
+            final int[] prefetchTaskIds;
             synchronized (this) {
                 task = mStackSupervisor.anyTaskForIdLocked(taskId,
                         MATCH_TASK_IN_STACKS_OR_RECENT_TASKS, INVALID_STACK_ID);
@@ -10323,14 +10334,40 @@ public class ActivityManagerService extends IActivityManager.Stub
                     Slog.w(TAG, "getTaskSnapshot: taskId=" + taskId + " not found");
                     return null;
                 }
+                prefetchTaskIds = reducedResolution ? getTasksAfterInRecentsLocked(task) : null;
             }
             // Don't call this while holding the lock as this operation might hit the disk.
-            return task.getSnapshot(reducedResolution);
+            final TaskSnapshot snapshot = task.getSnapshot(reducedResolution);
+            if (prefetchTaskIds != null) {
+                // Recents loads the snapshots from the most recent task on, warm the next ones.
+                mWindowManager.prefetchTaskSnapshots(prefetchTaskIds, task.userId);
+            }
+            return snapshot;
         } finally {
             Binder.restoreCallingIdentity(ident);
         }
     }
 
+    /**
+     * Returns the ids of the few tasks of the same user that follow {@param task} in the recent
+     * tasks, or null if there are none.
+     */
+    private int[] getTasksAfterInRecentsLocked(TaskRecord task) {
+        final int index = mRecentTasks.indexOf(task);
+        if (index < 0) {
+            return null;
+        }
+        final int[] taskIds = new int[TASK_SNAPSHOT_PREFETCH_COUNT];
+        int count = 0;
+        for (int i = index + 1; i < mRecentTasks.size() && count < taskIds.length; i++) {
+            final TaskRecord next = mRecentTasks.get(i);
+            if (next.userId == task.userId) {
+                taskIds[count++] = next.taskId;
+            }
+        }
+        return count == 0 ? null : Arrays.copyOf(taskIds, count);
+    }
+
     @Override
     public Bitmap getTaskDescriptionIcon(String filePath, int userId) {
         if (userId != UserHandle.getCallingUserId()) {
@@ -15253,6 +15290,19 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
             } else if ("locks".equals(cmd)) {
                 LockGuard.dump(fd, pw, args);
+            } else if ("looper-stats".equals(cmd)) {
+                ServiceThread.dumpLooperStats(pw, ArrayUtils.contains(args, "--reset"));
+            } else if ("binder-stats".equals(cmd)) {
+                final BinderCallsStats stats = BinderCallsStats.getInstance();
+                if (stats == null) {
+                    pw.println("Binder call stats are disabled"
+                            + " (persist.sys.binder_calls_stats_interval)");
+                } else {
+                    stats.dump(pw, "");
+                    if (ArrayUtils.contains(args, "--reset")) {
+                        stats.reset();
+                    }
+                }
             } else {
                 // Dumping a single activity?
                 if (!dumpActivity(fd, pw, cmd, args, opti, dumpAll, dumpVisibleStacksOnly,
@@ -20861,6 +20911,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         app.adjTarget = null;
         app.empty = false;
         app.cached = false;
+        app.cachedAdjSlotted = false;
 
         final int activitiesSize = app.activities.size();
 
@@ -21642,6 +21693,9 @@ public class ActivityManagerService extends IActivityManager.Stub
         // worry about this for max adj above, since max adj will always be used to
         // keep it out of the cached vaues.
         app.curAdj = app.modifyRawOomAdj(adj);
+        // Nothing raised it above the cached adj we were given, so it is the cached slot
+        // rather than one inherited from a client.
+        app.cachedAdjSlotted = app.curAdj >= cachedAdj;
         app.curSchedGroup = schedGroup;
         app.curProcState = procState;
         app.foregroundActivities = foregroundActivities;
@@ -22532,6 +22586,270 @@ public class ActivityManagerService extends IActivityManager.Stub
         return success;
     }
 
+    /**
+     * Hands out the cached adj slots to cached processes, from the most recently used one
+     * down the LRU list.  Processes holding activities and empty processes each step through
+     * the slots on their own; when there are more processes than slots, several processes
+     * share a slot.
+     */
+    static final class CachedAdjSlots {
+        private final int mCachedFactor;
+        private final int mEmptyFactor;
+        private int mStepCached;
+        private int mStepEmpty;
+        private int mCurCachedAdj = ProcessList.CACHED_APP_MIN_ADJ;
+        private int mNextCachedAdj = mCurCachedAdj + 1;
+        private int mCurEmptyAdj = ProcessList.CACHED_APP_MIN_ADJ;
+        private int mNextEmptyAdj = mCurEmptyAdj + 2;
+
+        CachedAdjSlots(int numCachedProcs, int numEmptyProcs) {
+            final int numSlots = (ProcessList.CACHED_APP_MAX_ADJ
+                    - ProcessList.CACHED_APP_MIN_ADJ + 1) / 2;
+            mEmptyFactor = Math.max(1, numEmptyProcs / numSlots);
+            mCachedFactor = Math.max(1, (numCachedProcs > 0 ? numCachedProcs : 1) / numSlots);
+        }
+
+        /** Assigns {@code app} the next slot for its process state. */
+        void assign(ProcessRecord app) {
+            app.cachedAdjSlotted = true;
+            switch (app.curProcState) {
+                case ActivityManager.PROCESS_STATE_CACHED_ACTIVITY:
+                case ActivityManager.PROCESS_STATE_CACHED_ACTIVITY_CLIENT:
+                    // This process is a cached process holding activities...
+                    // assign it the next cached value for that type, and then
+                    // step that cached level.
+                    app.curRawAdj = mCurCachedAdj;
+                    app.curAdj = app.modifyRawOomAdj(mCurCachedAdj);
+                    if (mCurCachedAdj != mNextCachedAdj) {
+                        mStepCached++;
+                        if (mStepCached >= mCachedFactor) {
+                            mStepCached = 0;
+                            mCurCachedAdj = mNextCachedAdj;
+                            mNextCachedAdj += 2;
+                            if (mNextCachedAdj > ProcessList.CACHED_APP_MAX_ADJ) {
+                                mNextCachedAdj = ProcessList.CACHED_APP_MAX_ADJ;
+                            }
+                        }
+                    }
+                    break;
+                default:
+                    // For everything else, assign next empty cached process
+                    // level and bump that up.  Note that this means that
+                    // long-running services that have dropped down to the
+                    // cached level will be treated as empty (since their process
+                    // state is still as a service), which is what we want.
+                    app.curRawAdj = mCurEmptyAdj;
+                    app.curAdj = app.modifyRawOomAdj(mCurEmptyAdj);
+                    if (mCurEmptyAdj != mNextEmptyAdj) {
+                        mStepEmpty++;
+                        if (mStepEmpty >= mEmptyFactor) {
+                            mStepEmpty = 0;
+                            mCurEmptyAdj = mNextEmptyAdj;
+                            mNextEmptyAdj += 2;
+                            if (mNextEmptyAdj > ProcessList.CACHED_APP_MAX_ADJ) {
+                                mNextEmptyAdj = ProcessList.CACHED_APP_MAX_ADJ;
+                            }
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Sizes the cached adj slots for a pass over the LRU list by the process counts of the
+     * previous pass.
+     */
+    private CachedAdjSlots newCachedAdjSlotsLocked() {
+        final int cachedProcessLimit = mConstants.CUR_MAX_CACHED_PROCESSES
+                - mConstants.CUR_MAX_EMPTY_PROCESSES;
+        int numEmptyProcs = mLruProcesses.size() - mNumNonCachedProcs - mNumCachedHiddenProcs;
+        if (numEmptyProcs > cachedProcessLimit) {
+            // If there are more empty processes than our limit on cached
+            // processes, then use the cached process limit for the factor.
+            // This ensures that the really old empty processes get pushed
+            // down to the bottom, so if we are running low on memory we will
+            // have a better chance at keeping around more cached processes
+            // instead of a gazillion empty processes.
+            numEmptyProcs = cachedProcessLimit;
+        }
+        return new CachedAdjSlots(mNumCachedHiddenProcs, numEmptyProcs);
+    }
+
+    /**
+     * Moves the cached processes to the slots a full update would give them at their current
+     * LRU positions, without recomputing their state.  An incremental update leaves a process
+     * that stayed cached in its old slot, and one that stopped being cached keeps the slots
+     * below it from moving up.
+     *
+     * <p>Only the processes that were handed a slot are moved.  A process sitting at a cached
+     * adj because a cached client is bound to it keeps its client's adj, which a full update
+     * would recompute if the client moved; this returns false in that case.</p>
+     *
+     * @param outChanged receives the processes whose adj changed and needs applying.
+     * @return false if a full update is needed to get the same result.
+     */
+    @VisibleForTesting
+    final boolean reassignCachedAdjSlotsLocked(ArrayList<ProcessRecord> outChanged) {
+        final CachedAdjSlots cachedAdjSlots = newCachedAdjSlotsLocked();
+        int numNonCachedProcs = 0;
+        int numCachedHiddenProcs = 0;
+        boolean slotsMoved = false;
+        boolean hasInheritedCachedAdj = false;
+        for (int i = mLruProcesses.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = mLruProcesses.get(i);
+            if (app.killedByAm || app.thread == null) {
+                continue;
+            }
+            if (app.cachedAdjSlotted) {
+                final int prevAdj = app.curAdj;
+                cachedAdjSlots.assign(app);
+                if (app.curAdj != prevAdj) {
+                    outChanged.add(app);
+                    slotsMoved = true;
+                }
+            } else if (app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ) {
+                hasInheritedCachedAdj = true;
+            }
+            switch (app.curProcState) {
+                case ActivityManager.PROCESS_STATE_CACHED_ACTIVITY:
+                case ActivityManager.PROCESS_STATE_CACHED_ACTIVITY_CLIENT:
+                    numCachedHiddenProcs++;
+                    break;
+                case ActivityManager.PROCESS_STATE_CACHED_EMPTY:
+                    break;
+                default:
+                    numNonCachedProcs++;
+                    break;
+            }
+        }
+        mNumNonCachedProcs = numNonCachedProcs;
+        mNumCachedHiddenProcs = numCachedHiddenProcs;
+        return !(slotsMoved && hasInheritedCachedAdj);
+    }
+
+    /**
+     * Maximum number of processes an incremental oom adj update may visit before it gives up
+     * and falls back to a full update.
+     */
+    static final int MAX_INCREMENTAL_OOM_ADJ_PROCS = 16;
+
+    /** Processes visited by the current incremental oom adj update; reused to avoid garbage. */
+    private final ArrayList<ProcessRecord> mTmpOomAdjProcs = new ArrayList<>();
+
+    /**
+     * Update the oom adj after a state change of {@code app}, recomputing only {@code app} and
+     * the processes whose importance it can raise, i.e. the hosts of the services it is bound
+     * to and the content providers it is connected to, transitively.
+     *
+     * <p>The cached processes are then moved to the slots of their LRU positions, as the
+     * caller has usually just moved {@code app} in the LRU list.  Falls back to
+     * {@link #updateOomAdjLocked()} whenever the change can affect state that only a full
+     * update maintains: a process becoming cached, which the process limits apply to, the
+     * per-uid states, a cached adj inherited from a client whose slot moved, or if too many
+     * processes are reachable.</p>
+     */
+    final void updateOomAdjIncrementalLocked(ProcessRecord app) {
+        if (app == null || app.thread == null || app.killedByAm) {
+            updateOomAdjLocked();
+            return;
+        }
+
+        final ArrayList<ProcessRecord> procs = mTmpOomAdjProcs;
+        procs.clear();
+        procs.add(app);
+        for (int i = 0; i < procs.size() && procs.size() <= MAX_INCREMENTAL_OOM_ADJ_PROCS;
+                i++) {
+            final ProcessRecord proc = procs.get(i);
+            for (int j = proc.connections.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.connections.valueAt(j).binding.service.app;
+                if (host != null && host != proc && !procs.contains(host)) {
+                    procs.add(host);
+                }
+            }
+            for (int j = proc.conProviders.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.conProviders.get(j).provider.proc;
+                if (host != null && host != proc && !procs.contains(host)) {
+                    procs.add(host);
+                }
+            }
+        }
+
+        boolean needFullUpdate = procs.size() > MAX_INCREMENTAL_OOM_ADJ_PROCS;
+        for (int i = 0; i < procs.size() && !needFullUpdate; i++) {
+            final ProcessRecord proc = procs.get(i);
+            if (proc.thread == null || proc.killedByAm) {
+                needFullUpdate = true;
+                break;
+            }
+            final boolean wasCached = proc.cached;
+            final int prevProcState = proc.curProcState;
+            updateOomAdjLocked(proc, false);
+            // Uid states are only aggregated by the full update. A process that became more
+            // important can't lower its uid's state, and only changes it if it beats it.
+            needFullUpdate = (proc.cached && !wasCached)
+                    || proc.curRawAdj == ProcessList.UNKNOWN_ADJ
+                    || proc.curProcState > prevProcState
+                    || (proc.uidRecord != null
+                            && proc.curProcState < proc.uidRecord.curProcState);
+        }
+        procs.clear();
+
+        if (needFullUpdate) {
+            updateOomAdjLocked();
+            return;
+        }
+        if (!reassignCachedAdjSlotsLocked(procs)) {
+            procs.clear();
+            updateOomAdjLocked();
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        for (int i = procs.size() - 1; i >= 0; i--) {
+            applyOomAdjLocked(procs.get(i), false, now, nowElapsed);
+        }
+        procs.clear();
+        if (DEBUG_OOM_ADJ_INCREMENTAL) {
+            verifyIncrementalOomAdjLocked(app);
+        }
+    }
+
+    /**
+     * Runs a full oom adj update and reports every process whose adj, process state or
+     * scheduling group differs from what the preceding incremental update left.
+     */
+    private void verifyIncrementalOomAdjLocked(ProcessRecord changed) {
+        final int N = mLruProcesses.size();
+        final int[] adjs = new int[N];
+        final int[] procStates = new int[N];
+        final int[] schedGroups = new int[N];
+        final ProcessRecord[] procs = new ProcessRecord[N];
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord proc = mLruProcesses.get(i);
+            procs[i] = proc;
+            adjs[i] = proc.curAdj;
+            procStates[i] = proc.curProcState;
+            schedGroups[i] = proc.curSchedGroup;
+        }
+        updateOomAdjLocked();
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord proc = procs[i];
+            if (proc.thread == null || proc.killedByAm) {
+                continue;
+            }
+            if (adjs[i] != proc.curAdj
+                    || procStates[i] != proc.curProcState
+                    || schedGroups[i] != proc.curSchedGroup) {
+                Slog.wtf(TAG_OOM_ADJ, "Incremental oom adj for change in " + changed
+                        + " left " + proc + " at adj=" + adjs[i] + " procState="
+                        + procStates[i] + " sched=" + schedGroups[i] + ", full update gives adj="
+                        + proc.curAdj + " procState=" + proc.curProcState + " sched="
+                        + proc.curSchedGroup);
+            }
+        }
+    }
+
     final void updateOomAdjLocked() {
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
@@ -22563,28 +22881,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         final int emptyProcessLimit = mConstants.CUR_MAX_EMPTY_PROCESSES;
         final int cachedProcessLimit = mConstants.CUR_MAX_CACHED_PROCESSES - emptyProcessLimit;
 
-        // Let's determine how many processes we have running vs.
-        // how many slots we have for background processes; we may want
-        // to put multiple processes in a slot of there are enough of
-        // them.
-        int numSlots = (ProcessList.CACHED_APP_MAX_ADJ
-                - ProcessList.CACHED_APP_MIN_ADJ + 1) / 2;
-        int numEmptyProcs = N - mNumNonCachedProcs - mNumCachedHiddenProcs;
-        if (numEmptyProcs > cachedProcessLimit) {
-            // If there are more empty processes than our limit on cached
-            // processes, then use the cached process limit for the factor.
-            // This ensures that the really old empty processes get pushed
-            // down to the bottom, so if we are running low on memory we will
-            // have a better chance at keeping around more cached processes
-            // instead of a gazillion empty processes.
-            numEmptyProcs = cachedProcessLimit;
-        }
-        int emptyFactor = numEmptyProcs/numSlots;
-        if (emptyFactor < 1) emptyFactor = 1;
-        int cachedFactor = (mNumCachedHiddenProcs > 0 ? mNumCachedHiddenProcs : 1)/numSlots;
-        if (cachedFactor < 1) cachedFactor = 1;
-        int stepCached = 0;
-        int stepEmpty = 0;
+        final CachedAdjSlots cachedAdjSlots = newCachedAdjSlotsLocked();
         int numCached = 0;
         int numEmpty = 0;
         int numTrimming = 0;
@@ -22594,10 +22891,6 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         // First update the OOM adjustment for each of the
         // application processes based on their current state.
-        int curCachedAdj = ProcessList.CACHED_APP_MIN_ADJ;
-        int nextCachedAdj = curCachedAdj+1;
-        int curEmptyAdj = ProcessList.CACHED_APP_MIN_ADJ;
-        int nextEmptyAdj = curEmptyAdj+2;
         for (int i=N-1; i>=0; i--) {
             ProcessRecord app = mLruProcesses.get(i);
             if (!app.killedByAm && app.thread != null) {
@@ -22607,53 +22900,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 // If we haven't yet assigned the final cached adj
                 // to the process, do that now.
                 if (app.curAdj >= ProcessList.UNKNOWN_ADJ) {
-                    switch (app.curProcState) {
-                        case ActivityManager.PROCESS_STATE_CACHED_ACTIVITY:
-                        case ActivityManager.PROCESS_STATE_CACHED_ACTIVITY_CLIENT:
-                            // This process is a cached process holding activities...
-                            // assign it the next cached value for that type, and then
-                            // step that cached level.
-                            app.curRawAdj = curCachedAdj;
-                            app.curAdj = app.modifyRawOomAdj(curCachedAdj);
-                            if (DEBUG_LRU && false) Slog.d(TAG_LRU, "Assigning activity LRU #" + i
-                                    + " adj: " + app.curAdj + " (curCachedAdj=" + curCachedAdj
-                                    + ")");
-                            if (curCachedAdj != nextCachedAdj) {
-                                stepCached++;
-                                if (stepCached >= cachedFactor) {
-                                    stepCached = 0;
-                                    curCachedAdj = nextCachedAdj;
-                                    nextCachedAdj += 2;
-                                    if (nextCachedAdj > ProcessList.CACHED_APP_MAX_ADJ) {
-                                        nextCachedAdj = ProcessList.CACHED_APP_MAX_ADJ;
-                                    }
-                                }
-                            }
-                            break;
-                        default:
-                            // For everything else, assign next empty cached process
-                            // level and bump that up.  Note that this means that
-                            // long-running services that have dropped down to the
-                            // cached level will be treated as empty (since their process
-                            // state is still as a service), which is what we want.
-                            app.curRawAdj = curEmptyAdj;
-                            app.curAdj = app.modifyRawOomAdj(curEmptyAdj);
-                            if (DEBUG_LRU && false) Slog.d(TAG_LRU, "Assigning empty LRU #" + i
-                                    + " adj: " + app.curAdj + " (curEmptyAdj=" + curEmptyAdj
-                                    + ")");
-                            if (curEmptyAdj != nextEmptyAdj) {
-                                stepEmpty++;
-                                if (stepEmpty >= emptyFactor) {
-                                    stepEmpty = 0;
-                                    curEmptyAdj = nextEmptyAdj;
-                                    nextEmptyAdj += 2;
-                                    if (nextEmptyAdj > ProcessList.CACHED_APP_MAX_ADJ) {
-                                        nextEmptyAdj = ProcessList.CACHED_APP_MAX_ADJ;
-                                    }
-                                }
-                            }
-                            break;
-                    }
+                    cachedAdjSlots.assign(app);
                 }
 
                 applyOomAdjLocked(app, true, now, nowElapsed);
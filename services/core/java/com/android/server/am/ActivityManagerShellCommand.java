@@ -2648,6 +2648,8 @@ final class ActivityManagerShellCommand extends ShellCommand {
             pw.println("    s[ervices] [COMP_SPEC ...]: service state");
             pw.println("    as[sociations]: tracked app associations");
             pw.println("    settings: currently applied config settings");
+            pw.println("    looper-stats [--reset]: service thread message dispatch stats");
+            pw.println("    binder-stats [--reset]: sampled incoming binder call stats");
             pw.println("    service [COMP_SPEC]: service client-side state");
             pw.println("    package [PACKAGE_NAME]: all state related to given package");
             pw.println("    all: dump all activities");
@@ -30,6 +30,7 @@ import android.app.ActivityManager;
 import android.app.AppGlobals;
 import android.app.AppOpsManager;
 import android.app.BroadcastOptions;
+import android.app.IApplicationThread;
 import android.app.PendingIntent;
 import android.content.ComponentName;
 import android.content.IIntentReceiver;
@@ -152,6 +153,27 @@ public final class BroadcastQueue {
      */
     int mPendingBroadcastRecvIndex;
 
+    /**
+     * Calls into registered receivers that have passed all checks under the activity manager
+     * lock, but are made by performDeferredReceives() once the lock has been released.
+     */
+    final ArrayList<DeferredDelivery> mDeferredDeliveries = new ArrayList<>();
+
+    /**
+     * Set while a thread in performDeferredReceives() makes the calls it took from
+     * mDeferredDeliveries.  While it is set, or mDeferredDeliveries isn't empty,
+     * performReceiveLocked() queues its call behind those instead of making it, so that
+     * none is overtaken and the activity manager lock never waits for them.
+     */
+    boolean mDeliveringDeferred;
+
+    /**
+     * Time processNextBroadcast() spent waiting to acquire the activity manager lock.
+     */
+    int mLockWaitCount;
+    long mLockWaitTotalTime;
+    long mLockWaitMaxTime;
+
     static final int BROADCAST_INTENT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG;
     static final int BROADCAST_TIMEOUT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG + 1;
 
@@ -179,6 +201,45 @@ public final class BroadcastQueue {
         }
     }
 
+    /**
+     * A call into a registered receiver captured under the activity manager lock.
+     */
+    static final class DeferredDelivery {
+        final ProcessRecord app;
+        final IApplicationThread thread;
+        /** The ordered broadcast waiting on this call, to move on if the call fails. */
+        final BroadcastRecord record;
+        final BroadcastFilter filter;
+        final IIntentReceiver receiver;
+        final Intent intent;
+        final int resultCode;
+        final String data;
+        final Bundle extras;
+        final boolean ordered;
+        final boolean sticky;
+        final int sendingUser;
+        final int processState;
+        boolean failed;
+
+        DeferredDelivery(ProcessRecord app, IIntentReceiver receiver, Intent intent,
+                int resultCode, String data, Bundle extras, boolean ordered, boolean sticky,
+                int sendingUser, BroadcastRecord record, BroadcastFilter filter) {
+            this.app = app;
+            this.thread = app != null ? app.thread : null;
+            this.record = record;
+            this.filter = filter;
+            this.receiver = receiver;
+            this.intent = intent;
+            this.resultCode = resultCode;
+            this.data = data;
+            this.extras = extras;
+            this.ordered = ordered;
+            this.sticky = sticky;
+            this.sendingUser = sendingUser;
+            this.processState = app != null ? app.repProcState : 0;
+        }
+    }
+
     private final class AppNotResponding implements Runnable {
         private final ProcessRecord mApp;
         private final String mAnnotation;
@@ -286,7 +347,7 @@ public final class BroadcastQueue {
         app.curReceivers.add(r);
         app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_RECEIVER);
         mService.updateLruProcessLocked(app, false, null);
-        mService.updateOomAdjLocked();
+        mService.updateOomAdjIncrementalLocked(app);
 
         // Tell the application to launch this receiver.
         r.intent.setComponent(r.curComponent);
@@ -482,6 +543,14 @@ public final class BroadcastQueue {
     void performReceiveLocked(ProcessRecord app, IIntentReceiver receiver,
             Intent intent, int resultCode, String data, Bundle extras,
             boolean ordered, boolean sticky, int sendingUser) throws RemoteException {
+        if ((mDeliveringDeferred || !mDeferredDeliveries.isEmpty())
+                && (app == null || app.thread != null)) {
+            // Calls into receivers are being made without the lock held, this one has to
+            // follow them.
+            deferReceiveLocked(app, receiver, intent, resultCode, data, extras, ordered,
+                    sticky, sendingUser, null, null);
+            return;
+        }
         // Send the intent to the receiver asynchronously using one-way binder calls.
         if (app != null) {
             if (app.thread != null) {
@@ -514,6 +583,98 @@ public final class BroadcastQueue {
         }
     }
 
+    /**
+     * Queues a call into a registered receiver, to be made by performDeferredReceives().
+     * For an ordered broadcast, {@code r} and {@code filter} are the broadcast and the
+     * receiver it waits on, otherwise null.
+     */
+    void deferReceiveLocked(ProcessRecord app, IIntentReceiver receiver, Intent intent,
+            int resultCode, String data, Bundle extras, boolean ordered, boolean sticky,
+            int sendingUser, BroadcastRecord r, BroadcastFilter filter) {
+        mDeferredDeliveries.add(new DeferredDelivery(app, receiver, intent, resultCode, data,
+                extras, ordered, sticky, sendingUser, r, filter));
+    }
+
+    /**
+     * Makes the calls queued in mDeferredDeliveries, in order, without the activity manager
+     * lock held unless the caller holds it.  If another thread is already making them, that
+     * thread also makes the ones queued here.  Processes that can't be reached are crashed
+     * under the lock afterwards, and an ordered broadcast waiting on a failed call moves on to
+     * its next receiver, as it does when the call fails under the lock.
+     */
+    void performDeferredReceives() {
+        ArrayList<DeferredDelivery> deliveries;
+        synchronized (mService) {
+            if (mDeliveringDeferred) {
+                return;
+            }
+            deliveries = takeDeferredDeliveriesLocked();
+        }
+        try {
+            while (deliveries != null) {
+                for (int i = 0; i < deliveries.size(); i++) {
+                    final DeferredDelivery d = deliveries.get(i);
+                    try {
+                        if (d.thread != null) {
+                            d.thread.scheduleRegisteredReceiver(d.receiver, d.intent,
+                                    d.resultCode, d.data, d.extras, d.ordered, d.sticky,
+                                    d.sendingUser, d.processState);
+                        } else {
+                            d.receiver.performReceive(d.intent, d.resultCode, d.data,
+                                    d.extras, d.ordered, d.sticky, d.sendingUser);
+                        }
+                    } catch (RemoteException e) {
+                        Slog.w(TAG, "Failure sending broadcast " + d.intent, e);
+                        d.failed = true;
+                    }
+                }
+                synchronized (mService) {
+                    for (int i = 0; i < deliveries.size(); i++) {
+                        final DeferredDelivery d = deliveries.get(i);
+                        if (!d.failed) {
+                            continue;
+                        }
+                        if (d.app != null && d.app.thread == d.thread) {
+                            Slog.w(TAG, "Can't deliver broadcast to " + d.app.processName
+                                    + " (pid " + d.app.pid + "). Crashing it.");
+                            d.app.scheduleCrash("can't deliver broadcast");
+                        }
+                        if (d.record != null && d.record.curFilter == d.filter) {
+                            // Still waiting on this receiver, which will never finish.
+                            finishReceiverLocked(d.record, d.record.resultCode,
+                                    d.record.resultData, d.record.resultExtras,
+                                    d.record.resultAbort, false);
+                            scheduleBroadcastsLocked();
+                        }
+                    }
+                    deliveries = takeDeferredDeliveriesLocked();
+                }
+            }
+        } finally {
+            if (deliveries != null) {
+                // Left early; whatever is still queued goes out with the next broadcast.
+                synchronized (mService) {
+                    mDeliveringDeferred = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the queued calls, or returns null and clears mDeliveringDeferred if there are
+     * none.
+     */
+    private ArrayList<DeferredDelivery> takeDeferredDeliveriesLocked() {
+        if (mDeferredDeliveries.isEmpty()) {
+            mDeliveringDeferred = false;
+            return null;
+        }
+        final ArrayList<DeferredDelivery> deliveries = new ArrayList<>(mDeferredDeliveries);
+        mDeferredDeliveries.clear();
+        mDeliveringDeferred = true;
+        return deliveries;
+    }
+
     private void deliverToRegisteredReceiverLocked(BroadcastRecord r,
             BroadcastFilter filter, boolean ordered, int index) {
         boolean skip = false;
@@ -699,6 +860,15 @@ public final class BroadcastQueue {
                 if (ordered) {
                     skipReceiverLocked(r);
                 }
+            } else if ((!ordered || mDeliveringDeferred || !mDeferredDeliveries.isEmpty())
+                    && (filter.receiverList.app == null
+                            || filter.receiverList.app.thread != null)) {
+                // Made by processNextBroadcast() once it has released the lock.  An ordered
+                // broadcast is only deferred when it has to follow calls already queued.
+                deferReceiveLocked(filter.receiverList.app, filter.receiverList.receiver,
+                        new Intent(r.intent), r.resultCode, r.resultData, r.resultExtras,
+                        r.ordered, r.initialSticky, r.userId, ordered ? r : null,
+                        ordered ? filter : null);
             } else {
                 performReceiveLocked(filter.receiverList.app, filter.receiverList.receiver,
                         new Intent(r.intent), r.resultCode, r.resultData,
@@ -818,7 +988,22 @@ public final class BroadcastQueue {
     }
 
     final void processNextBroadcast(boolean fromMsg) {
+        dispatchNextBroadcast(fromMsg);
+        // The calls into registered receivers of parallel broadcasts are made here, without
+        // the activity manager lock held unless the caller holds it.
+        performDeferredReceives();
+    }
+
+    private void dispatchNextBroadcast(boolean fromMsg) {
+        final long lockStart = SystemClock.uptimeMillis();
         synchronized(mService) {
+            final long lockWait = SystemClock.uptimeMillis() - lockStart;
+            mLockWaitCount++;
+            mLockWaitTotalTime += lockWait;
+            if (lockWait > mLockWaitMaxTime) {
+                mLockWaitMaxTime = lockWait;
+            }
+
             BroadcastRecord r;
 
             if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "processNextBroadcast ["
@@ -836,6 +1021,7 @@ public final class BroadcastQueue {
             while (mParallelBroadcasts.size() > 0) {
                 r = mParallelBroadcasts.remove(0);
                 r.dispatchTime = SystemClock.uptimeMillis();
+                r.lockWaitTime += lockWait;
                 r.dispatchClockTime = System.currentTimeMillis();
 
                 if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
@@ -994,6 +1180,7 @@ public final class BroadcastQueue {
             // Keep track of when this receiver started, and make sure there
             // is a timeout message pending to kill it if need be.
             r.receiverTime = SystemClock.uptimeMillis();
+            r.lockWaitTime += lockWait;
             if (recIdx == 0) {
                 r.dispatchTime = r.receiverTime;
                 r.dispatchClockTime = System.currentTimeMillis();
@@ -1745,6 +1932,19 @@ public final class BroadcastQueue {
             } while (ringIndex != lastIndex);
         }
 
+        if (dumpPackage == null && mLockWaitCount > 0) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.println("  Lock waits [" + mQueueName + "]:");
+            pw.print("    count="); pw.print(mLockWaitCount);
+            pw.print(" total="); TimeUtils.formatDuration(mLockWaitTotalTime, pw);
+            pw.print(" avg="); TimeUtils.formatDuration(mLockWaitTotalTime / mLockWaitCount, pw);
+            pw.print(" max="); TimeUtils.formatDuration(mLockWaitMaxTime, pw);
+            pw.println();
+        }
+
         return needSep;
     }
 }
@@ -65,6 +65,7 @@ final class BroadcastRecord extends Binder {
     long dispatchClockTime; // the clock time the dispatch started
     long receiverTime;      // when current receiver started for timeouts.
     long finishTime;        // when we finished the broadcast.
+    long lockWaitTime;      // time dispatch spent waiting for the activity manager lock.
     int resultCode;         // current result code value.
     String resultData;      // current result data value.
     Bundle resultExtras;    // current result extra data values.
@@ -141,6 +142,10 @@ final class BroadcastRecord extends Binder {
             pw.print(" receiverTime="); TimeUtils.formatDuration(receiverTime, now, pw);
         }
         pw.println("");
+        if (lockWaitTime != 0) {
+            pw.print(prefix); pw.print("lockWaitTime=");
+                    TimeUtils.formatDuration(lockWaitTime, pw); pw.println();
+        }
         if (anrCount != 0) {
             pw.print(prefix); pw.print("anrCount="); pw.println(anrCount);
         }
@@ -277,6 +282,7 @@ final class BroadcastRecord extends Binder {
         dispatchClockTime = from.dispatchClockTime;
         receiverTime = from.receiverTime;
         finishTime = from.finishTime;
+        lockWaitTime = from.lockWaitTime;
         resultCode = from.resultCode;
         resultData = from.resultData;
         resultExtras = from.resultExtras;
@@ -152,6 +152,7 @@ final class ProcessRecord {
     boolean reportLowMemory;    // Set to true when waiting to report low mem
     boolean empty;              // Is this an empty background process?
     boolean cached;             // Is this a cached process?
+    boolean cachedAdjSlotted;   // Was curAdj handed out as a cached slot, not computed?
     String adjType;             // Debugging: primary thing impacting oom_adj.
     int adjTypeCode;            // Debugging: adj code to report to app.
     Object adjSource;           // Debugging: option dependent object.
@@ -46,13 +46,17 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.FactoryTest;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
 import android.util.Slog;
@@ -60,6 +64,7 @@ import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.IndentingPrintWriter;
@@ -131,6 +136,9 @@ public final class ContentService extends IContentService.Stub {
 
     private final ObserverNode mRootNode = new ObserverNode("");
 
+    private final ObserverDispatcher mObserverDispatcher = new ObserverDispatcher(mRootNode,
+            BackgroundThread.getHandler().getLooper(), ObserverDispatcher.BATCH_WINDOW_MS);
+
     private SyncManager mSyncManager = null;
     private final Object mSyncManagerLock = new Object();
 
@@ -240,6 +248,8 @@ public final class ContentService extends IContentService.Stub {
                 pw.print(" Total number of nodes: "); pw.println(counts[0]);
                 pw.print(" Total number of observers: "); pw.println(counts[1]);
             }
+            pw.println();
+            mObserverDispatcher.dump(pw);
 
             synchronized (mCache) {
                 pw.println();
@@ -368,6 +378,7 @@ public final class ContentService extends IContentService.Stub {
             mRootNode.removeObserverLocked(observer);
             if (false) Log.v(TAG, "Unregistered observer " + observer);
         }
+        mObserverDispatcher.removeObserver(observer);
     }
 
     /**
@@ -423,28 +434,7 @@ public final class ContentService extends IContentService.Stub {
             }
             final int numCalls = calls.size();
             for (int i=0; i<numCalls; i++) {
-                ObserverCall oc = calls.get(i);
-                try {
-                    oc.mObserver.onChange(oc.mSelfChange, uri, userHandle);
-                    if (DEBUG) Slog.d(TAG, "Notified " + oc.mObserver + " of " + "update at "
-                            + uri);
-                } catch (RemoteException ex) {
-                    synchronized (mRootNode) {
-                        Log.w(TAG, "Found dead observer, removing");
-                        IBinder binder = oc.mObserver.asBinder();
-                        final ArrayList<ObserverNode.ObserverEntry> list
-                                = oc.mNode.mObservers;
-                        int numList = list.size();
-                        for (int j=0; j<numList; j++) {
-                            ObserverNode.ObserverEntry oe = list.get(j);
-                            if (oe.observer.asBinder() == binder) {
-                                list.remove(j);
-                                j--;
-                                numList--;
-                            }
-                        }
-                    }
-                }
+                mObserverDispatcher.dispatch(calls.get(i), uri, userHandle);
             }
             if ((flags&ContentResolver.NOTIFY_SYNC_TO_NETWORK) != 0) {
                 SyncManager syncManager = getSyncManager();
@@ -487,18 +477,209 @@ public final class ContentService extends IContentService.Stub {
      */
     public static final class ObserverCall {
         final ObserverNode mNode;
+        final ObserverNode.ObserverEntry mEntry;
         final IContentObserver mObserver;
         final boolean mSelfChange;
         final int mObserverUserId;
 
-        ObserverCall(ObserverNode node, IContentObserver observer, boolean selfChange, int observerUserId) {
+        ObserverCall(ObserverNode node, ObserverNode.ObserverEntry entry, boolean selfChange,
+                int observerUserId) {
             mNode = node;
-            mObserver = observer;
+            mEntry = entry;
+            mObserver = entry.observer;
             mSelfChange = selfChange;
             mObserverUserId = observerUserId;
         }
     }
 
+    /**
+     * Delivers change notifications to observers.  The first notification for an observer
+     * is delivered right away; notifications for it that follow within the batch window are
+     * held back and delivered together in one callback, so that bulk provider writes don't
+     * cost a binder transaction per changed uri.
+     *
+     * <p>All callbacks are made on the dispatcher's looper, in the order their notifications
+     * arrived, and callbacks that haven't been made yet are dropped when the observer is
+     * unregistered.
+     *
+     * Hide this class since it is not part of api,
+     * but current unittest framework requires it to be public
+     * @hide
+     */
+    public static final class ObserverDispatcher {
+        static final long BATCH_WINDOW_MS = 20;
+        private static final int MAX_BATCH_SIZE = 100;
+
+        private final ObserverNode mRootNode;
+        private final Handler mHandler;
+        private final long mBatchWindowMs;
+
+        /** Observers in a batch window, keyed by binder. */
+        @GuardedBy("this")
+        private final ArrayMap<IBinder, Batch> mBatches = new ArrayMap<>();
+
+        @GuardedBy("this")
+        private long mNotificationCount;
+        @GuardedBy("this")
+        private long mCallbackCount;
+        @GuardedBy("this")
+        private long mBatchedCallbackCount;
+        @GuardedBy("this")
+        private int mMaxBatchSize;
+
+        public ObserverDispatcher(ObserverNode rootNode, Looper looper, long batchWindowMs) {
+            mRootNode = rootNode;
+            mHandler = new Handler(looper);
+            mBatchWindowMs = batchWindowMs;
+        }
+
+        private final class Batch implements Runnable {
+            final IContentObserver mObserver;
+            final ArrayList<Uri> mUris = new ArrayList<>();
+            final ArraySet<ObserverNode.ObserverEntry> mEntries = new ArraySet<>();
+            boolean mSelfChange;
+            int mUserId;
+
+            Batch(IContentObserver observer) {
+                mObserver = observer;
+            }
+
+            @Override
+            public void run() {
+                synchronized (ObserverDispatcher.this) {
+                    if (mUris.isEmpty()) {
+                        // Nothing arrived within the window, the next notification can go
+                        // out right away.
+                        mBatches.remove(mObserver.asBinder());
+                        return;
+                    }
+                    postDeliveryLocked(mObserver, mSelfChange, takeUrisLocked(this), mUserId);
+                    postBatchLocked(this);
+                }
+            }
+        }
+
+        /** A callback to make, posted in the order the notifications arrived. */
+        private final class Delivery implements Runnable {
+            final IContentObserver mObserver;
+            final boolean mSelfChange;
+            final Uri[] mUris;
+            final int mUserId;
+
+            Delivery(IContentObserver observer, boolean selfChange, Uri[] uris, int userId) {
+                mObserver = observer;
+                mSelfChange = selfChange;
+                mUris = uris;
+                mUserId = userId;
+            }
+
+            @Override
+            public void run() {
+                deliver(mObserver, mSelfChange, mUris, mUserId);
+            }
+        }
+
+        public void dispatch(ObserverCall call, Uri uri, int userId) {
+            final IBinder binder = call.mObserver.asBinder();
+            synchronized (this) {
+                mNotificationCount++;
+                Batch batch = mBatches.get(binder);
+                if (batch == null) {
+                    // Open a batch window for the notifications that follow this one.
+                    batch = new Batch(call.mObserver);
+                    mBatches.put(binder, batch);
+                    postDeliveryLocked(call.mObserver, call.mSelfChange, new Uri[] { uri },
+                            userId);
+                    postBatchLocked(batch);
+                    call.mEntry.callbackCount++;
+                    mCallbackCount++;
+                    return;
+                }
+                if (!batch.mUris.isEmpty() && (batch.mSelfChange != call.mSelfChange
+                        || batch.mUserId != userId
+                        || batch.mUris.size() >= MAX_BATCH_SIZE)) {
+                    // Can't be delivered together, send what is pending first.
+                    postDeliveryLocked(call.mObserver, batch.mSelfChange,
+                            takeUrisLocked(batch), batch.mUserId);
+                }
+                batch.mSelfChange = call.mSelfChange;
+                batch.mUserId = userId;
+                if (!batch.mUris.contains(uri)) {
+                    batch.mUris.add(uri);
+                }
+                batch.mEntries.add(call.mEntry);
+            }
+        }
+
+        /**
+         * Drops the notifications that haven't been delivered to {@code observer} yet.
+         */
+        public void removeObserver(IContentObserver observer) {
+            final IBinder binder = observer.asBinder();
+            synchronized (this) {
+                mBatches.remove(binder);
+                mHandler.removeCallbacksAndMessages(binder);
+            }
+        }
+
+        @GuardedBy("this")
+        private void postBatchLocked(Batch batch) {
+            mHandler.postAtTime(batch, batch.mObserver.asBinder(),
+                    SystemClock.uptimeMillis() + mBatchWindowMs);
+        }
+
+        @GuardedBy("this")
+        private void postDeliveryLocked(IContentObserver observer, boolean selfChange,
+                Uri[] uris, int userId) {
+            // Posted under the lock, so the callbacks queue up in the order of the
+            // notifications.
+            mHandler.postAtTime(new Delivery(observer, selfChange, uris, userId),
+                    observer.asBinder(), SystemClock.uptimeMillis());
+        }
+
+        @GuardedBy("this")
+        private Uri[] takeUrisLocked(Batch batch) {
+            final Uri[] uris = batch.mUris.toArray(new Uri[batch.mUris.size()]);
+            batch.mUris.clear();
+            for (int i = batch.mEntries.size() - 1; i >= 0; i--) {
+                batch.mEntries.valueAt(i).callbackCount++;
+            }
+            batch.mEntries.clear();
+            mCallbackCount++;
+            mBatchedCallbackCount++;
+            mMaxBatchSize = Math.max(mMaxBatchSize, uris.length);
+            return uris;
+        }
+
+        private void deliver(IContentObserver observer, boolean selfChange, Uri[] uris,
+                int userId) {
+            try {
+                if (uris.length == 1) {
+                    observer.onChange(selfChange, uris[0], userId);
+                } else {
+                    observer.onChangeBatch(selfChange, uris, userId);
+                }
+                if (DEBUG) Slog.d(TAG, "Notified " + observer + " of " + uris.length
+                        + " updates");
+            } catch (RemoteException ex) {
+                Log.w(TAG, "Found dead observer, removing");
+                synchronized (mRootNode) {
+                    mRootNode.removeObserverLocked(observer);
+                }
+                removeObserver(observer);
+            }
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println("Observer notifications:");
+            pw.print("  notifications="); pw.print(mNotificationCount);
+            pw.print(" callbacks="); pw.print(mCallbackCount);
+            pw.print(" batched="); pw.print(mBatchedCallbackCount);
+            pw.print(" max batch size="); pw.print(mMaxBatchSize);
+            pw.print(" observers in batch window="); pw.println(mBatches.size());
+        }
+    }
+
     @Override
     public void requestSync(Account account, String authority, Bundle extras) {
         Bundle.setDefusable(extras, true);
@@ -1254,6 +1435,12 @@ public final class ContentService extends IContentService.Stub {
             private final int userHandle;
             private final Object observersLock;
 
+            // Notifications matched by this entry, and callbacks that delivered them.
+            @GuardedBy("observersLock")
+            int notifyCount;
+            // Written by ObserverDispatcher, read without a lock by dump.
+            int callbackCount;
+
             public ObserverEntry(IContentObserver o, boolean n, Object observersLock,
                                  int _uid, int _pid, int _userHandle) {
                 this.observersLock = observersLock;
@@ -1283,8 +1470,10 @@ public final class ContentService extends IContentService.Stub {
                 pw.print(pid); pw.print(" uid=");
                 pw.print(uid); pw.print(" user=");
                 pw.print(userHandle); pw.print(" target=");
-                pw.println(Integer.toHexString(System.identityHashCode(
+                pw.print(Integer.toHexString(System.identityHashCode(
                         observer != null ? observer.asBinder() : null)));
+                pw.print(" notified="); pw.print(notifyCount);
+                pw.print(" callbacks="); pw.println(callbackCount);
             }
         }
 
@@ -1293,7 +1482,7 @@ public final class ContentService extends IContentService.Stub {
         public static final int DELETE_TYPE = 2;
 
         private String mName;
-        private ArrayList<ObserverNode> mChildren = new ArrayList<ObserverNode>();
+        private final ArrayMap<String, ObserverNode> mChildren = new ArrayMap<>();
         private ArrayList<ObserverEntry> mObservers = new ArrayList<ObserverEntry>();
 
         public ObserverNode(String name) {
@@ -1325,7 +1514,7 @@ public final class ContentService extends IContentService.Stub {
                 }
                 for (int i=0; i<mChildren.size(); i++) {
                     counts[0]++;
-                    mChildren.get(i).dumpLocked(fd, pw, args, innerName, prefix,
+                    mChildren.valueAt(i).dumpLocked(fd, pw, args, innerName, prefix,
                             counts, pidCounts);
                 }
             }
@@ -1373,36 +1562,30 @@ public final class ContentService extends IContentService.Stub {
             if (segment == null) {
                 throw new IllegalArgumentException("Invalid Uri (" + uri + ") used for observer");
             }
-            int N = mChildren.size();
-            for (int i = 0; i < N; i++) {
-                ObserverNode node = mChildren.get(i);
-                if (node.mName.equals(segment)) {
-                    node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
-                            observersLock, uid, pid, userHandle);
-                    return;
-                }
+            ObserverNode node = mChildren.get(segment);
+            if (node != null) {
+                node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
+                        observersLock, uid, pid, userHandle);
+                return;
             }
 
             // No child found, create one
-            ObserverNode node = new ObserverNode(segment);
-            mChildren.add(node);
+            node = new ObserverNode(segment);
+            mChildren.put(segment, node);
             node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
                     observersLock, uid, pid, userHandle);
         }
 
         public boolean removeObserverLocked(IContentObserver observer) {
-            int size = mChildren.size();
-            for (int i = 0; i < size; i++) {
-                boolean empty = mChildren.get(i).removeObserverLocked(observer);
+            for (int i = mChildren.size() - 1; i >= 0; i--) {
+                boolean empty = mChildren.valueAt(i).removeObserverLocked(observer);
                 if (empty) {
-                    mChildren.remove(i);
-                    i--;
-                    size--;
+                    mChildren.removeAt(i);
                 }
             }
 
             IBinder observerBinder = observer.asBinder();
-            size = mObservers.size();
+            int size = mObservers.size();
             for (int i = 0; i < size; i++) {
                 ObserverEntry entry = mObservers.get(i);
                 if (entry.observer.asBinder() == observerBinder) {
@@ -1461,7 +1644,8 @@ public final class ContentService extends IContentService.Stub {
                     if (DEBUG) Slog.d(TAG, "Reporting to " + entry.observer + ": leaf=" + leaf
                             + " flags=" + Integer.toHexString(flags)
                             + " desc=" + entry.notifyForDescendants);
-                    calls.add(new ObserverCall(this, entry.observer, selfChange,
+                    entry.notifyCount++;
+                    calls.add(new ObserverCall(this, entry, selfChange,
                             UserHandle.getUserId(entry.uid)));
                 }
             }
@@ -1489,16 +1673,17 @@ public final class ContentService extends IContentService.Stub {
                         flags, targetUserHandle, calls);
             }
 
-            int N = mChildren.size();
-            for (int i = 0; i < N; i++) {
-                ObserverNode node = mChildren.get(i);
-                if (segment == null || node.mName.equals(segment)) {
+            if (segment != null) {
+                ObserverNode node = mChildren.get(segment);
+                if (node != null) {
                     // We found the child,
                     node.collectObserversLocked(uri, index + 1, observer,
                             observerWantsSelfNotifications, flags, targetUserHandle, calls);
-                    if (segment != null) {
-                        break;
-                    }
+                }
+            } else {
+                for (int i = 0; i < mChildren.size(); i++) {
+                    mChildren.valueAt(i).collectObserversLocked(uri, index + 1, observer,
+                            observerWantsSelfNotifications, flags, targetUserHandle, calls);
                 }
             }
         }
@@ -74,6 +74,10 @@ public final class JobStore {
 
     /** Threshold to adjust how often we want to write to the db. */
     private static final int MAX_OPS_BEFORE_WRITE = 1;
+    /** How long a scheduled write waits for more changes to batch with. */
+    private static final long WRITE_COALESCE_DELAY_MS = 500;
+    /** Upper bound on how long a change may stay unwritten while changes keep arriving. */
+    private static final long MAX_WRITE_DELAY_MS = 2000;
 
     final Object mLock;
     final JobSet mJobSet; // per-caller-uid tracking
@@ -84,9 +88,14 @@ public final class JobStore {
     private boolean mRtcGood;
 
     private int mDirtyOperations;
+    /** Elapsed time of the first change that has not been written yet. */
+    private long mFirstDirtyElapsed;
 
     private static final Object sSingletonLock = new Object();
+    /** Legacy xml jobs file, only read to migrate to {@link #mBinaryJobsFile}. */
     private final AtomicFile mJobsFile;
+    private final AtomicFile mBinaryJobsFile;
+    private boolean mUseBinaryFormat = true;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -126,6 +135,7 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mBinaryJobsFile = new AtomicFile(new File(jobDir, "jobs.bin"));
 
         mJobSet = new JobSet();
 
@@ -140,7 +150,8 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
+        mXmlTimestamp = mBinaryJobsFile.exists()
+                ? mBinaryJobsFile.getLastModifiedTime() : mJobsFile.getLastModifiedTime();
         mRtcGood = (System.currentTimeMillis() > mXmlTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
@@ -298,16 +309,24 @@ public final class JobStore {
 
     /**
      * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * track incremental changes. Writes are delayed by {@link #WRITE_COALESCE_DELAY_MS} so that
+     * bursts of changes share a single write, but never beyond {@link #MAX_WRITE_DELAY_MS}
+     * after the first unwritten change.
      */
     private void maybeWriteStatusToDiskAsync() {
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        if (mDirtyOperations == 0) {
+            mFirstDirtyElapsed = nowElapsed;
+        }
         mDirtyOperations++;
         if (mDirtyOperations >= MAX_OPS_BEFORE_WRITE) {
+            final long delay = Math.max(0, Math.min(WRITE_COALESCE_DELAY_MS,
+                    mFirstDirtyElapsed + MAX_WRITE_DELAY_MS - nowElapsed));
             if (DEBUG) {
-                Slog.v(TAG, "Writing jobs to disk.");
+                Slog.v(TAG, "Writing jobs to disk in " + delay + "ms.");
             }
             mIoHandler.removeCallbacks(mWriteRunnable);
-            mIoHandler.post(mWriteRunnable);
+            mIoHandler.postDelayed(mWriteRunnable, delay);
         }
     }
 
@@ -316,6 +335,19 @@ public final class JobStore {
         new ReadJobMapFromDiskRunnable(jobSet, rtcGood).run();
     }
 
+    /** Synchronously writes the current jobs, bypassing the write coalescing. */
+    @VisibleForTesting
+    public void writeStatusToDiskForTesting() {
+        mIoHandler.removeCallbacks(mWriteRunnable);
+        mWriteRunnable.run();
+    }
+
+    /** Selects whether jobs are written in the binary format or the legacy xml format. */
+    @VisibleForTesting
+    public void setUseBinaryFormatForTesting(boolean useBinaryFormat) {
+        mUseBinaryFormat = useBinaryFormat;
+    }
+
     /**
      * Runnable that writes {@link #mJobSet} out to xml.
      * NOTE: This Runnable locks on mLock
@@ -326,6 +358,8 @@ public final class JobStore {
             final long startElapsed = SystemClock.elapsedRealtime();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
             synchronized (mLock) {
+                // Anything changed after this point schedules another write.
+                mDirtyOperations = 0;
                 // Clone the jobs so we can release the lock before writing.
                 mJobSet.forEachJob(new JobStatusFunctor() {
                     @Override
@@ -336,13 +370,51 @@ public final class JobStore {
                     }
                 });
             }
-            writeJobsMapImpl(storeCopy);
+            if (mUseBinaryFormat) {
+                writeJobsMapBinaryImpl(storeCopy);
+            } else {
+                writeJobsMapImpl(storeCopy);
+            }
             if (DEBUG) {
                 Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
                         - startElapsed) + "ms");
             }
         }
 
+        private void writeJobsMapBinaryImpl(List<JobStatus> jobList) {
+            try {
+                final byte[] data = JobStoreBinaryFormat.writeJobs(jobList);
+                FileOutputStream fos = mBinaryJobsFile.startWrite();
+                fos.write(data);
+                mBinaryJobsFile.finishWrite(fos);
+                // Migration to the binary format is complete.
+                mJobsFile.delete();
+            } catch (IOException e) {
+                if (DEBUG) {
+                    Slog.v(TAG, "Error writing out job data.", e);
+                }
+            } finally {
+                countSavedJobs(jobList);
+            }
+        }
+
+        private void countSavedJobs(List<JobStatus> jobList) {
+            int numSystemJobs = 0;
+            int numSyncJobs = 0;
+            for (int i = 0; i < jobList.size(); i++) {
+                final JobStatus jobStatus = jobList.get(i);
+                if (jobStatus.getUid() == Process.SYSTEM_UID) {
+                    numSystemJobs++;
+                    if (isSyncJob(jobStatus)) {
+                        numSyncJobs++;
+                    }
+                }
+            }
+            mPersistInfo.countAllJobsSaved = jobList.size();
+            mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
+            mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
+        }
+
         private void writeJobsMapImpl(List<JobStatus> jobList) {
             int numJobs = 0;
             int numSystemJobs = 0;
@@ -383,7 +455,7 @@ public final class JobStore {
                 FileOutputStream fos = mJobsFile.startWrite();
                 fos.write(baos.toByteArray());
                 mJobsFile.finishWrite(fos);
-                mDirtyOperations = 0;
+                mBinaryJobsFile.delete();
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -536,7 +608,7 @@ public final class JobStore {
      *     allowable runtime for the job, and {@code second} is the "deadline" time at which
      *     the job becomes overdue.
      */
-    private static Pair<Long, Long> convertRtcBoundsToElapsed(Pair<Long, Long> rtcTimes,
+    static Pair<Long, Long> convertRtcBoundsToElapsed(Pair<Long, Long> rtcTimes,
             long nowElapsed) {
         final long nowWallclock = System.currentTimeMillis();
         final long earliest = (rtcTimes.first > JobStatus.NO_EARLIEST_RUNTIME)
@@ -548,6 +620,35 @@ public final class JobStore {
         return Pair.create(earliest, latest);
     }
 
+    /**
+     * As a sanity check, cap the recreated run time of a periodic job to be no later than
+     * flex+period from now. This is the latest the periodic could be pushed out. This could
+     * happen if the periodic ran early (at flex time before period), and then the device
+     * rebooted.
+     */
+    static Pair<Long, Long> clampPeriodicRuntimes(int uid, Pair<Long, Long> elapsedRuntimes,
+            long elapsedNow, long periodMillis, long flexMillis) {
+        if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
+            final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
+                    + periodMillis;
+            final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
+                    - flexMillis;
+            Slog.w(TAG,
+                    String.format("Periodic job for uid='%d' persisted run-time is" +
+                                    " too big [%s, %s]. Clamping to [%s,%s]",
+                            uid,
+                            DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
+                            DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
+                            DateUtils.formatElapsedTime(
+                                    clampedEarlyRuntimeElapsed / 1000),
+                            DateUtils.formatElapsedTime(
+                                    clampedLateRuntimeElapsed / 1000))
+            );
+            return Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
+        }
+        return elapsedRuntimes;
+    }
+
     private static boolean isSyncJob(JobStatus status) {
         return com.android.server.content.SyncJobService.class.getName()
                 .equals(status.getServiceComponent().getClassName());
@@ -577,9 +678,18 @@ public final class JobStore {
             int numSyncJobs = 0;
             try {
                 List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+                byte[] binaryData = null;
+                FileInputStream fis = null;
+                if (mBinaryJobsFile.exists()) {
+                    binaryData = mBinaryJobsFile.readFully();
+                } else {
+                    // Not migrated yet; the next write converts to the binary format.
+                    fis = mJobsFile.openRead();
+                }
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
+                    jobs = binaryData != null
+                            ? JobStoreBinaryFormat.readJobs(binaryData, rtcGood)
+                            : readJobMapImpl(fis, rtcGood);
                     if (jobs != null) {
                         long now = SystemClock.elapsedRealtime();
                         IActivityManager am = ActivityManager.getService();
@@ -599,7 +709,9 @@ public final class JobStore {
                         }
                     }
                 }
-                fis.close();
+                if (fis != null) {
+                    fis.close();
+                }
             } catch (FileNotFoundException e) {
                 if (DEBUG) {
                     Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
@@ -764,29 +876,8 @@ public final class JobStore {
                     val = parser.getAttributeValue(null, "flex");
                     final long flexMillis = (val != null) ? Long.valueOf(val) : periodMillis;
                     jobBuilder.setPeriodic(periodMillis, flexMillis);
-                    // As a sanity check, cap the recreated run time to be no later than flex+period
-                    // from now. This is the latest the periodic could be pushed out. This could
-                    // happen if the periodic ran early (at flex time before period), and then the
-                    // device rebooted.
-                    if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
-                        final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
-                                + periodMillis;
-                        final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
-                                - flexMillis;
-                        Slog.w(TAG,
-                                String.format("Periodic job for uid='%d' persisted run-time is" +
-                                                " too big [%s, %s]. Clamping to [%s,%s]",
-                                        uid,
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedEarlyRuntimeElapsed / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedLateRuntimeElapsed / 1000))
-                        );
-                        elapsedRuntimes =
-                                Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
-                    }
+                    elapsedRuntimes = clampPeriodicRuntimes(uid, elapsedRuntimes, elapsedNow,
+                            periodMillis, flexMillis);
                 } catch (NumberFormatException e) {
                     Slog.d(TAG, "Error reading periodic execution criteria, skipping.");
                     return null;
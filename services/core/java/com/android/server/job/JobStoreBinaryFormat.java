@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.util.Pair;
+import android.util.Slog;
+
+import com.android.server.job.controllers.JobStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of the persisted jobs, used in place of jobs.xml.
+ * <p>The file is a header followed by one length-prefixed record per job, so that a record
+ * that fails validation on read can be skipped without losing the rest of the jobs. Times are
+ * stored in wall-clock time exactly like the xml format, and converted back to the elapsed
+ * timebase on read with the same rules.</p>
+ */
+final class JobStoreBinaryFormat {
+    private static final String TAG = "JobStore";
+    private static final boolean DEBUG = JobSchedulerService.DEBUG;
+
+    private static final int MAGIC = 0x4a4f4253; // JOBS
+    /**
+     * Version of the binary schema. Version 2 stores strings as a length and their UTF-8 bytes,
+     * as modified UTF-8 can't hold more than 64K bytes.
+     */
+    private static final int VERSION = 2;
+
+    /** Same nesting limit the xml writer applies to extras. */
+    private static final int MAX_BUNDLE_DEPTH = 10;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING_ARRAY = 6;
+    private static final byte TYPE_INT_ARRAY = 7;
+    private static final byte TYPE_LONG_ARRAY = 8;
+    private static final byte TYPE_DOUBLE_ARRAY = 9;
+    private static final byte TYPE_BOOLEAN_ARRAY = 10;
+    private static final byte TYPE_BUNDLE = 11;
+
+    private JobStoreBinaryFormat() {
+    }
+
+    static byte[] writeJobs(List<JobStatus> jobList) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(256 * jobList.size() + 12);
+        final DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(jobList.size());
+
+        final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+        final DataOutputStream record = new DataOutputStream(recordBytes);
+        final long nowRTC = System.currentTimeMillis();
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        for (int i = 0; i < jobList.size(); i++) {
+            final JobStatus jobStatus = jobList.get(i);
+            recordBytes.reset();
+            writeJob(record, jobStatus, nowRTC, nowElapsed);
+            record.flush();
+            out.writeInt(recordBytes.size());
+            recordBytes.writeTo(out);
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    static List<JobStatus> readJobs(byte[] data, boolean rtcIsGood) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a binary jobs file");
+        }
+        final int version = in.readInt();
+        if (version != VERSION) {
+            Slog.d(TAG, "Invalid version number " + version + ", aborting jobs file read.");
+            return null;
+        }
+        final int count = in.readInt();
+        final List<JobStatus> jobs = new ArrayList<>(count);
+        final long elapsedNow = SystemClock.elapsedRealtime();
+        for (int i = 0; i < count; i++) {
+            final byte[] recordBytes = new byte[readLength(in)];
+            in.readFully(recordBytes);
+            try {
+                final JobStatus job = readJob(
+                        new DataInputStream(new ByteArrayInputStream(recordBytes)),
+                        rtcIsGood, elapsedNow);
+                if (DEBUG) {
+                    Slog.d(TAG, "Read out " + job);
+                }
+                jobs.add(job);
+            } catch (IOException | IllegalArgumentException e) {
+                Slog.d(TAG, "Error reading job from file, skipping.", e);
+            }
+        }
+        return jobs;
+    }
+
+    private static void writeJob(DataOutputStream out, JobStatus jobStatus, long nowRTC,
+            long nowElapsed) throws IOException {
+        final JobInfo job = jobStatus.getJob();
+        out.writeInt(jobStatus.getJobId());
+        writeString(out, jobStatus.getServiceComponent().getPackageName());
+        writeString(out, jobStatus.getServiceComponent().getClassName());
+        writeNullableString(out, jobStatus.getSourcePackageName());
+        writeNullableString(out, jobStatus.getSourceTag());
+        out.writeInt(jobStatus.getSourceUserId());
+        out.writeInt(jobStatus.getUid());
+        out.writeInt(jobStatus.getPriority());
+        out.writeInt(jobStatus.getFlags());
+        out.writeLong(jobStatus.getLastSuccessfulRunTime());
+        out.writeLong(jobStatus.getLastFailedRunTime());
+
+        // Constraints.
+        out.writeInt(job.getNetworkType());
+        out.writeBoolean(job.isRequireCharging());
+        out.writeBoolean(job.isRequireDeviceIdle());
+        out.writeBoolean(job.isRequireBatteryNotLow());
+        out.writeBoolean(job.isRequireStorageNotLow());
+
+        // Execution criteria.
+        out.writeBoolean(job.isPeriodic());
+        if (job.isPeriodic()) {
+            out.writeLong(job.getIntervalMillis());
+            out.writeLong(job.getFlexMillis());
+        }
+        // As in the xml format, keep the original wall clock times if we still have them.
+        final Pair<Long, Long> utcJobTimes = jobStatus.getPersistedUtcTimes();
+        long delayWallclock = JobStatus.NO_EARLIEST_RUNTIME;
+        if (jobStatus.hasTimingDelayConstraint()) {
+            delayWallclock = (utcJobTimes == null)
+                    ? nowRTC + (jobStatus.getEarliestRunTime() - nowElapsed)
+                    : utcJobTimes.first;
+        }
+        long deadlineWallclock = JobStatus.NO_LATEST_RUNTIME;
+        if (jobStatus.hasDeadlineConstraint()) {
+            deadlineWallclock = (utcJobTimes == null)
+                    ? nowRTC + (jobStatus.getLatestRunTimeElapsed() - nowElapsed)
+                    : utcJobTimes.second;
+        }
+        out.writeLong(delayWallclock);
+        out.writeLong(deadlineWallclock);
+        final boolean customBackoff =
+                job.getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
+                || job.getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY;
+        out.writeBoolean(customBackoff);
+        if (customBackoff) {
+            out.writeInt(job.getBackoffPolicy());
+            out.writeLong(job.getInitialBackoffMillis());
+        }
+
+        writeBundle(out, job.getExtras(), MAX_BUNDLE_DEPTH);
+    }
+
+    private static JobStatus readJob(DataInputStream in, boolean rtcIsGood, long elapsedNow)
+            throws IOException {
+        final int jobId = in.readInt();
+        final ComponentName cname = new ComponentName(readString(in), readString(in));
+        final JobInfo.Builder jobBuilder = new JobInfo.Builder(jobId, cname);
+        jobBuilder.setPersisted(true);
+        final String sourcePackageName = readNullableString(in);
+        final String sourceTag = readNullableString(in);
+        final int sourceUserId = in.readInt();
+        final int uid = in.readInt();
+        jobBuilder.setPriority(in.readInt());
+        jobBuilder.setFlags(in.readInt());
+        final long lastSuccessfulRunTime = in.readLong();
+        final long lastFailedRunTime = in.readLong();
+
+        jobBuilder.setRequiredNetworkType(in.readInt());
+        jobBuilder.setRequiresCharging(in.readBoolean());
+        jobBuilder.setRequiresDeviceIdle(in.readBoolean());
+        jobBuilder.setRequiresBatteryNotLow(in.readBoolean());
+        jobBuilder.setRequiresStorageNotLow(in.readBoolean());
+
+        final boolean periodic = in.readBoolean();
+        final long periodMillis = periodic ? in.readLong() : 0;
+        final long flexMillis = periodic ? in.readLong() : 0;
+        final Pair<Long, Long> rtcRuntimes = Pair.create(in.readLong(), in.readLong());
+        Pair<Long, Long> elapsedRuntimes =
+                JobStore.convertRtcBoundsToElapsed(rtcRuntimes, elapsedNow);
+        if (periodic) {
+            jobBuilder.setPeriodic(periodMillis, flexMillis);
+            elapsedRuntimes = JobStore.clampPeriodicRuntimes(uid, elapsedRuntimes, elapsedNow,
+                    periodMillis, flexMillis);
+        } else {
+            if (elapsedRuntimes.first != JobStatus.NO_EARLIEST_RUNTIME) {
+                jobBuilder.setMinimumLatency(elapsedRuntimes.first - elapsedNow);
+            }
+            if (elapsedRuntimes.second != JobStatus.NO_LATEST_RUNTIME) {
+                jobBuilder.setOverrideDeadline(elapsedRuntimes.second - elapsedNow);
+            }
+        }
+        if (in.readBoolean()) {
+            final int backoffPolicy = in.readInt();
+            jobBuilder.setBackoffCriteria(in.readLong(), backoffPolicy);
+        }
+
+        final PersistableBundle extras = readBundle(in);
+        jobBuilder.setExtras(extras != null ? extras : new PersistableBundle());
+
+        return new JobStatus(
+                jobBuilder.build(), uid, sourcePackageName, sourceUserId, sourceTag,
+                elapsedRuntimes.first, elapsedRuntimes.second,
+                lastSuccessfulRunTime, lastFailedRunTime,
+                (rtcIsGood) ? null : rtcRuntimes);
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeString(out, value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a byte or element count, checking it against what is left of the input so that a
+     * damaged length can't make us allocate a bogus array. Every element takes at least a byte.
+     */
+    private static int readLength(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    private static void writeBundle(DataOutputStream out, PersistableBundle bundle, int maxDepth)
+            throws IOException {
+        if (bundle == null || maxDepth <= 0) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bundle.size());
+        for (String key : bundle.keySet()) {
+            writeString(out, key);
+            writeValue(out, bundle.get(key), maxDepth);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object v, int maxDepth)
+            throws IOException {
+        if (v == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (v instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) v);
+        } else if (v instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) v);
+        } else if (v instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) v);
+        } else if (v instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) v);
+        } else if (v instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) v);
+        } else if (v instanceof String[]) {
+            final String[] array = (String[]) v;
+            out.writeByte(TYPE_STRING_ARRAY);
+            out.writeInt(array.length);
+            for (String s : array) {
+                writeNullableString(out, s);
+            }
+        } else if (v instanceof int[]) {
+            final int[] array = (int[]) v;
+            out.writeByte(TYPE_INT_ARRAY);
+            out.writeInt(array.length);
+            for (int value : array) {
+                out.writeInt(value);
+            }
+        } else if (v instanceof long[]) {
+            final long[] array = (long[]) v;
+            out.writeByte(TYPE_LONG_ARRAY);
+            out.writeInt(array.length);
+            for (long value : array) {
+                out.writeLong(value);
+            }
+        } else if (v instanceof double[]) {
+            final double[] array = (double[]) v;
+            out.writeByte(TYPE_DOUBLE_ARRAY);
+            out.writeInt(array.length);
+            for (double value : array) {
+                out.writeDouble(value);
+            }
+        } else if (v instanceof boolean[]) {
+            final boolean[] array = (boolean[]) v;
+            out.writeByte(TYPE_BOOLEAN_ARRAY);
+            out.writeInt(array.length);
+            for (boolean value : array) {
+                out.writeBoolean(value);
+            }
+        } else if (v instanceof PersistableBundle) {
+            out.writeByte(TYPE_BUNDLE);
+            writeBundle(out, (PersistableBundle) v, maxDepth - 1);
+        } else {
+            throw new IOException("Unsupported extras value type " + v.getClass());
+        }
+    }
+
+    private static PersistableBundle readBundle(DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        if (size > in.available()) {
+            throw new IOException("Invalid bundle size " + size);
+        }
+        final PersistableBundle bundle = new PersistableBundle(size);
+        for (int i = 0; i < size; i++) {
+            final String key = readString(in);
+            final byte type = in.readByte();
+            switch (type) {
+                case TYPE_NULL:
+                    bundle.putString(key, null);
+                    break;
+                case TYPE_STRING:
+                    bundle.putString(key, readString(in));
+                    break;
+                case TYPE_INT:
+                    bundle.putInt(key, in.readInt());
+                    break;
+                case TYPE_LONG:
+                    bundle.putLong(key, in.readLong());
+                    break;
+                case TYPE_DOUBLE:
+                    bundle.putDouble(key, in.readDouble());
+                    break;
+                case TYPE_BOOLEAN:
+                    bundle.putBoolean(key, in.readBoolean());
+                    break;
+                case TYPE_STRING_ARRAY: {
+                    final String[] array = new String[readLength(in)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = readNullableString(in);
+                    }
+                    bundle.putStringArray(key, array);
+                    break;
+                }
+                case TYPE_INT_ARRAY: {
+                    final int[] array = new int[readLength(in)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.readInt();
+                    }
+                    bundle.putIntArray(key, array);
+                    break;
+                }
+                case TYPE_LONG_ARRAY: {
+                    final long[] array = new long[readLength(in)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.readLong();
+                    }
+                    bundle.putLongArray(key, array);
+                    break;
+                }
+                case TYPE_DOUBLE_ARRAY: {
+                    final double[] array = new double[readLength(in)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.readDouble();
+                    }
+                    bundle.putDoubleArray(key, array);
+                    break;
+                }
+                case TYPE_BOOLEAN_ARRAY: {
+                    final boolean[] array = new boolean[readLength(in)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.readBoolean();
+                    }
+                    bundle.putBooleanArray(key, array);
+                    break;
+                }
+                case TYPE_BUNDLE:
+                    bundle.putPersistableBundle(key, readBundle(in));
+                    break;
+                default:
+                    throw new IOException("Unknown extras value type " + type);
+            }
+        }
+        return bundle;
+    }
+}
@@ -453,6 +453,8 @@ public class PackageManagerService extends IPackageManager.Stub
     static final int SCAN_AS_INSTANT_APP = 1<<17;
     static final int SCAN_AS_FULL_APP = 1<<18;
     static final int SCAN_AS_VIRTUAL_PRELOAD = 1<<19;
+    /** The certificates of the package have already been collected while parsing it. */
+    static final int SCAN_CERTIFICATES_COLLECTED = 1<<20;
     /** Should not be with the scan flags */
     static final int FLAGS_REMOVE_CHATTY = 1<<31;
 
@@ -914,6 +916,9 @@ public class PackageManagerService extends IPackageManager.Stub
     final ArrayMap<String, SparseArray<SharedLibraryEntry>> mStaticLibsByDeclaringPackage =
             new ArrayMap<>();
 
+    /** Number of recently resolved intents whose matching filters each resolver caches. */
+    private static final int INTENT_QUERY_CACHE_SIZE = 128;
+
     // All available activities, for your resolving pleasure.
     final ActivityIntentResolver mActivities =
             new ActivityIntentResolver();
@@ -9152,6 +9157,22 @@ public class PackageManagerService extends IPackageManager.Stub
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
                 mParallelPackageParserCallback);
 
+        // Let the parsing threads verify the certificates of every package that
+        // collectCertificatesLI() won't be able to reuse the known certificates for.
+        final ArrayMap<File, Long> knownTimeStamps = new ArrayMap<>();
+        synchronized (mPackages) {
+            for (PackageSetting ps : mSettings.mPackages.values()) {
+                if (ps.signatures.mSignatures != null && ps.signatures.mSignatures.length != 0) {
+                    knownTimeStamps.put(ps.codePath, ps.timeStamp);
+                }
+            }
+        }
+        parallelPackageParser.setCertificatePolicy((pkg, scanFile) -> {
+            final Long timeStamp = knownTimeStamps.get(scanFile);
+            return timeStamp == null
+                    || timeStamp != getCertificatesTimeStamp(pkg, scanFile);
+        });
+
         // Submit files for parsing in parallel
         int fileCount = 0;
         for (File file : files) {
@@ -9178,7 +9199,9 @@ public class PackageManagerService extends IPackageManager.Stub
                 }
                 try {
                     if (errorCode == PackageManager.INSTALL_SUCCEEDED) {
-                        scanPackageLI(parseResult.pkg, parseResult.scanFile, parseFlags, scanFlags,
+                        scanPackageLI(parseResult.pkg, parseResult.scanFile, parseFlags,
+                                parseResult.certificatesCollected
+                                        ? scanFlags | SCAN_CERTIFICATES_COLLECTED : scanFlags,
                                 currentTime, null);
                     }
                 } catch (PackageManagerException e) {
@@ -9251,12 +9274,24 @@ public class PackageManagerService extends IPackageManager.Stub
         return srcFile.lastModified();
     }
 
-    private void collectCertificatesLI(PackageSetting ps, PackageParser.Package pkg, File srcFile,
-            final int policyFlags) throws PackageManagerException {
+    /**
+     * Returns the time stamp compared against {@link PackageSetting#timeStamp} to decide
+     * whether the certificates of a package need to be collected again.
+     */
+    private long getCertificatesTimeStamp(PackageParser.Package pkg, File srcFile) {
         // When upgrading from pre-N MR1, verify the package time stamp using the package
         // directory and not the APK file.
-        final long lastModifiedTime = mIsPreNMR1Upgrade
+        return mIsPreNMR1Upgrade
                 ? new File(pkg.codePath).lastModified() : getLastModifiedTime(pkg, srcFile);
+    }
+
+    private void collectCertificatesLI(PackageSetting ps, PackageParser.Package pkg, File srcFile,
+            final int policyFlags, int scanFlags) throws PackageManagerException {
+        if ((scanFlags & SCAN_CERTIFICATES_COLLECTED) != 0 && pkg.mSignatures != null) {
+            // Verified while parsing.
+            return;
+        }
+        final long lastModifiedTime = getCertificatesTimeStamp(pkg, srcFile);
         if (ps != null
                 && ps.codePath.equals(srcFile)
                 && ps.timeStamp == lastModifiedTime
@@ -9577,7 +9612,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
 
         // Verify certificates against what was last scanned
-        collectCertificatesLI(ps, pkg, scanFile, policyFlags);
+        collectCertificatesLI(ps, pkg, scanFile, policyFlags, scanFlags);
 
         /*
          * A new system app appeared, but we already had a non-system one of the
@@ -13555,6 +13590,10 @@ public class PackageManagerService extends IPackageManager.Stub
 
     final class ActivityIntentResolver
             extends IntentResolver<PackageParser.ActivityIntentInfo, ResolveInfo> {
+        ActivityIntentResolver() {
+            enableQueryCache(INTENT_QUERY_CACHE_SIZE);
+        }
+
         public List<ResolveInfo> queryIntent(Intent intent, String resolvedType,
                 boolean defaultOnly, int userId) {
             if (!sUserManager.exists(userId)) return null;
@@ -14105,6 +14144,10 @@ public class PackageManagerService extends IPackageManager.Stub
 
     private final class ServiceIntentResolver
             extends IntentResolver<PackageParser.ServiceIntentInfo, ResolveInfo> {
+        ServiceIntentResolver() {
+            enableQueryCache(INTENT_QUERY_CACHE_SIZE);
+        }
+
         public List<ResolveInfo> queryIntent(Intent intent, String resolvedType,
                 boolean defaultOnly, int userId) {
             mFlags = defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0;
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.pm;
+
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
+
+import android.content.pm.PackageUserState;
+import android.os.FileUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Slog;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of per-package user state changes that lives next to a user's
+ * package-restrictions.xml snapshot.
+ * <p>Most package restriction writes only flip the state of a single package (enable/disable,
+ * stopped, hidden, ...), so instead of rewriting the whole snapshot we append the changed
+ * {@link PackageUserState}s here and fold them back into the snapshot once the journal grows
+ * past {@link #MAX_RECORDS}. The journal is tagged with the generation of the snapshot it
+ * applies to, so a journal left behind by an interrupted compaction is never replayed on top
+ * of a newer snapshot.</p>
+ */
+class PackageRestrictionsJournal {
+    private static final String TAG = "PackageRestrictionsJournal";
+
+    private static final int MAGIC = 0x504b524a; // PKRJ
+    private static final int VERSION = 1;
+
+    /** Number of appended records after which the journal is compacted into the snapshot. */
+    @VisibleForTesting
+    static final int MAX_RECORDS = 256;
+
+    private final File mFile;
+
+    /** Encoded user state of every package, as known to be persisted in snapshot + journal. */
+    private final ArrayMap<String, byte[]> mPersisted = new ArrayMap<>();
+    /** Serialized non-package sections of the snapshot; any change requires a full write. */
+    private byte[] mPersistedExtras;
+
+    private int mGeneration;
+    private int mRecordCount;
+    private boolean mHeaderWritten;
+    /** Whether {@link #mPersisted} mirrors what is on disk and deltas may be appended. */
+    private boolean mValid;
+
+    PackageRestrictionsJournal(File file) {
+        mFile = file;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Reads the journal records that apply to the snapshot with the given generation.
+     *
+     * @return the last journaled state of every package mentioned in the journal; empty if the
+     *         journal is missing or belongs to another snapshot generation.
+     */
+    ArrayMap<String, PackageUserState> readLPr(int snapshotGeneration) {
+        final ArrayMap<String, PackageUserState> states = new ArrayMap<>();
+        mGeneration = snapshotGeneration;
+        mRecordCount = 0;
+        mHeaderWritten = false;
+        mValid = false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Slog.w(TAG, "Ignoring journal with unknown format " + mFile);
+                return states;
+            }
+            final int generation = in.readInt();
+            if (generation != snapshotGeneration) {
+                // Left behind by a compaction that finished writing the snapshot but
+                // crashed before the journal was reset; the snapshot already has it all.
+                // The next append starts the file over.
+                mValid = true;
+                return states;
+            }
+            mHeaderWritten = true;
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != in.readInt()) {
+                    throw new IOException("Checksum mismatch in record " + mRecordCount);
+                }
+                final DataInputStream record = new DataInputStream(
+                        new ByteArrayInputStream(payload));
+                final String packageName = record.readUTF();
+                states.put(packageName, decodeState(record));
+                mRecordCount++;
+            }
+            // Only a fully readable journal can be appended to.
+            mValid = true;
+        } catch (FileNotFoundException e) {
+            // No changes since the last snapshot.
+            mValid = true;
+        } catch (IOException e) {
+            // A torn tail from a crash mid-append; keep what was readable and force a
+            // compaction on the next write so the bad tail is dropped.
+            Slog.w(TAG, "Truncated package restrictions journal " + mFile + ": " + e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return states;
+    }
+
+    /**
+     * Records the state that is now persisted, after a snapshot has been read (and the journal
+     * replayed) or written. A {@code generation} different from the current one means a new
+     * snapshot was written and the existing journal is obsolete.
+     */
+    void resetLPw(int generation, ArrayMap<String, PackageSetting> packages, int userId,
+            byte[] extras) {
+        if (generation != mGeneration) {
+            mFile.delete();
+            mGeneration = generation;
+            mRecordCount = 0;
+            mHeaderWritten = false;
+            mValid = true;
+        }
+        mPersisted.clear();
+        for (int i = packages.size() - 1; i >= 0; i--) {
+            final PackageSetting ps = packages.valueAt(i);
+            mPersisted.put(ps.name, encodeState(ps.readUserState(userId)));
+        }
+        mPersistedExtras = extras;
+        mValid &= extras != null;
+    }
+
+    /**
+     * Appends the user state of every package that changed since it was last persisted.
+     *
+     * @return {@code true} if the on-disk state is now up to date; {@code false} if the caller
+     *         must write a full snapshot instead.
+     */
+    boolean appendChangesLPw(ArrayMap<String, PackageSetting> packages, int userId,
+            byte[] extras) {
+        if (!mValid || extras == null || !Arrays.equals(mPersistedExtras, extras)) {
+            return false;
+        }
+
+        // Packages that are gone don't need a record: the snapshot entry for an unknown
+        // package is skipped on read, and a reinstall will be journaled as a new package.
+        for (int i = mPersisted.size() - 1; i >= 0; i--) {
+            if (!packages.containsKey(mPersisted.keyAt(i))) {
+                mPersisted.removeAt(i);
+            }
+        }
+
+        ArrayList<String> changedNames = null;
+        ArrayList<byte[]> changedStates = null;
+        for (int i = packages.size() - 1; i >= 0; i--) {
+            final PackageSetting ps = packages.valueAt(i);
+            final byte[] state = encodeState(ps.readUserState(userId));
+            if (!Arrays.equals(state, mPersisted.get(ps.name))) {
+                if (changedNames == null) {
+                    changedNames = new ArrayList<>();
+                    changedStates = new ArrayList<>();
+                }
+                changedNames.add(ps.name);
+                changedStates.add(state);
+            }
+        }
+        if (changedNames == null) {
+            return true;
+        }
+        if (mRecordCount + changedNames.size() > MAX_RECORDS) {
+            return false;
+        }
+
+        FileOutputStream fstr = null;
+        try {
+            fstr = new FileOutputStream(mFile, mHeaderWritten /* append */);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fstr));
+            if (!mHeaderWritten) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(mGeneration);
+            }
+            final CRC32 crc = new CRC32();
+            final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            final DataOutputStream record = new DataOutputStream(payload);
+            for (int i = 0; i < changedNames.size(); i++) {
+                payload.reset();
+                record.writeUTF(changedNames.get(i));
+                record.write(changedStates.get(i));
+                record.flush();
+                final byte[] bytes = payload.toByteArray();
+                crc.reset();
+                crc.update(bytes);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeInt((int) crc.getValue());
+            }
+            out.flush();
+            FileUtils.sync(fstr);
+            if (!mHeaderWritten) {
+                FileUtils.setPermissions(mFile.toString(),
+                        FileUtils.S_IRUSR | FileUtils.S_IWUSR
+                        | FileUtils.S_IRGRP | FileUtils.S_IWGRP,
+                        -1, -1);
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to append to " + mFile + ", falling back to snapshot", e);
+            mValid = false;
+            return false;
+        } finally {
+            IoUtils.closeQuietly(fstr);
+        }
+
+        mHeaderWritten = true;
+        mRecordCount += changedNames.size();
+        for (int i = 0; i < changedNames.size(); i++) {
+            mPersisted.put(changedNames.get(i), changedStates.get(i));
+        }
+        return true;
+    }
+
+    @VisibleForTesting
+    static byte[] encodeState(PackageUserState state) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(state.ceDataInode);
+            out.writeInt(state.enabled);
+            out.writeBoolean(state.installed);
+            out.writeBoolean(state.stopped);
+            out.writeBoolean(state.notLaunched);
+            out.writeBoolean(state.hidden);
+            out.writeBoolean(state.suspended);
+            out.writeBoolean(state.instantApp);
+            out.writeBoolean(state.virtualPreload);
+            writeString(out, state.enabled != COMPONENT_ENABLED_STATE_DEFAULT
+                    ? state.lastDisableAppCaller : null);
+            out.writeInt(state.domainVerificationStatus);
+            out.writeInt(state.appLinkGeneration);
+            out.writeInt(state.installReason);
+            writeComponents(out, state.enabledComponents);
+            writeComponents(out, state.disabledComponents);
+            out.flush();
+        } catch (IOException e) {
+            // Can't happen with an in-memory stream.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @VisibleForTesting
+    static PackageUserState decodeState(DataInputStream in) throws IOException {
+        final PackageUserState state = new PackageUserState();
+        state.ceDataInode = in.readLong();
+        state.enabled = in.readInt();
+        state.installed = in.readBoolean();
+        state.stopped = in.readBoolean();
+        state.notLaunched = in.readBoolean();
+        state.hidden = in.readBoolean();
+        state.suspended = in.readBoolean();
+        state.instantApp = in.readBoolean();
+        state.virtualPreload = in.readBoolean();
+        state.lastDisableAppCaller = readString(in);
+        state.domainVerificationStatus = in.readInt();
+        state.appLinkGeneration = in.readInt();
+        state.installReason = in.readInt();
+        state.enabledComponents = readComponents(in);
+        state.disabledComponents = readComponents(in);
+        return state;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeComponents(DataOutputStream out, ArraySet<String> components)
+            throws IOException {
+        final int size = components != null ? components.size() : 0;
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeUTF(components.valueAt(i));
+        }
+    }
+
+    private static ArraySet<String> readComponents(DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        if (size == 0) {
+            return null;
+        }
+        final ArraySet<String> components = new ArraySet<>(size);
+        for (int i = 0; i < size; i++) {
+            components.add(in.readUTF());
+        }
+        return components;
+    }
+}
@@ -36,6 +36,9 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
  * Helper class for parallel parsing of packages using {@link PackageParser}.
  * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
  * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>If a {@link CertificatePolicy} is set, the certificates of packages that need them are
+ * also collected on the pool, leaving only the commit into the package settings to the
+ * caller's thread.</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
@@ -48,6 +51,7 @@ class ParallelPackageParser implements AutoCloseable {
     private final File mCacheDir;
     private final PackageParser.Callback mPackageParserCallback;
     private volatile String mInterruptedInThread;
+    private volatile CertificatePolicy mCertificatePolicy;
 
     private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
 
@@ -63,11 +67,21 @@ class ParallelPackageParser implements AutoCloseable {
         mPackageParserCallback = callback;
     }
 
+    /**
+     * Decides on a parsing thread whether the certificates of a parsed package must be
+     * collected, or whether the scan will be able to reuse the ones already known for it.
+     * Implementations must not access state guarded by the package manager locks.
+     */
+    interface CertificatePolicy {
+        boolean needsCertificates(PackageParser.Package pkg, File scanFile);
+    }
+
     static class ParseResult {
 
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
         Throwable throwable; // Set if an error occurs during parsing
+        boolean certificatesCollected; // Set if pkg has been verified on the parsing thread
 
         @Override
         public String toString() {
@@ -75,10 +89,19 @@ class ParallelPackageParser implements AutoCloseable {
                     "pkg=" + pkg +
                     ", scanFile=" + scanFile +
                     ", throwable=" + throwable +
+                    ", certificatesCollected=" + certificatesCollected +
                     '}';
         }
     }
 
+    /**
+     * Sets the policy used to collect certificates on the parsing threads; must be called
+     * before any file is submitted.
+     */
+    public void setCertificatePolicy(CertificatePolicy policy) {
+        mCertificatePolicy = policy;
+    }
+
     /**
      * Take the parsed package from the parsing queue, waiting if necessary until the element
      * appears in the queue.
@@ -115,6 +138,7 @@ class ParallelPackageParser implements AutoCloseable {
                 pp.setCallback(mPackageParserCallback);
                 pr.scanFile = scanFile;
                 pr.pkg = parsePackage(pp, scanFile, parseFlags);
+                pr.certificatesCollected = collectCertificates(pr.pkg, scanFile, parseFlags);
             } catch (Throwable e) {
                 pr.throwable = e;
             } finally {
@@ -138,6 +162,24 @@ class ParallelPackageParser implements AutoCloseable {
         return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
     }
 
+    private boolean collectCertificates(PackageParser.Package pkg, File scanFile,
+            int parseFlags) {
+        final CertificatePolicy policy = mCertificatePolicy;
+        if (pkg == null || policy == null || !policy.needsCertificates(pkg, scanFile)) {
+            return false;
+        }
+        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel collectCertificates");
+        try {
+            PackageParser.collectCertificates(pkg, parseFlags);
+            return true;
+        } catch (PackageParser.PackageParserException e) {
+            // Collected again, and reported, by the scan.
+            return false;
+        } finally {
+            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+        }
+    }
+
     @Override
     public void close() {
         List<Runnable> unfinishedTasks = mService.shutdownNow();
@@ -101,6 +101,7 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -225,6 +226,7 @@ final class Settings {
     private static final String ATTR_DOMAIN_VERIFICATON_STATE = "domainVerificationStatus";
     private static final String ATTR_APP_LINK_GENERATION = "app-link-generation";
     private static final String ATTR_INSTALL_REASON = "install-reason";
+    private static final String ATTR_JOURNAL_GENERATION = "journal-generation";
     private static final String ATTR_INSTANT_APP = "instant-app";
     private static final String ATTR_VIRTUAL_PRELOAD = "virtual-preload";
 
@@ -279,6 +281,10 @@ final class Settings {
     /** List of packages that are blocked for uninstall for specific users */
     private final SparseArray<ArraySet<String>> mBlockUninstallPackages = new SparseArray<>();
 
+    /** Per-user journals of package state changes not yet folded into the restrictions file. */
+    private final SparseArray<PackageRestrictionsJournal> mRestrictionsJournals =
+            new SparseArray<>();
+
     // Set of restored intent-filter verification states
     private final ArrayMap<String, IntentFilterVerificationInfo> mRestoredIntentFilterVerifications =
             new ArrayMap<String, IntentFilterVerificationInfo>();
@@ -1440,6 +1446,17 @@ final class Settings {
                 "package-restrictions-backup.xml");
     }
 
+    private PackageRestrictionsJournal getPackageRestrictionsJournalLPr(int userId) {
+        PackageRestrictionsJournal journal = mRestrictionsJournals.get(userId);
+        if (journal == null) {
+            File userDir = new File(new File(mSystemDir, "users"), Integer.toString(userId));
+            journal = new PackageRestrictionsJournal(
+                    new File(userDir, "package-restrictions.journal"));
+            mRestrictionsJournals.put(userId, journal);
+        }
+        return journal;
+    }
+
     void writeAllUsersPackageRestrictionsLPr() {
         List<UserInfo> users = getAllUsers(UserManagerService.getInstance());
         if (users == null) return;
@@ -1723,6 +1740,8 @@ final class Settings {
                 return;
             }
 
+            final int journalGeneration = XmlUtils.readIntAttribute(parser,
+                    ATTR_JOURNAL_GENERATION, 0);
             int maxAppLinkGeneration = 0;
 
             int outerDepth = parser.getDepth();
@@ -1833,6 +1852,29 @@ final class Settings {
 
             str.close();
 
+            // Apply the changes journaled since the snapshot was written.
+            final PackageRestrictionsJournal journal = getPackageRestrictionsJournalLPr(userId);
+            final ArrayMap<String, PackageUserState> journaled =
+                    journal.readLPr(journalGeneration);
+            for (int i = journaled.size() - 1; i >= 0; i--) {
+                ps = mPackages.get(journaled.keyAt(i));
+                if (ps == null) {
+                    continue;
+                }
+                final PackageUserState ustate = journaled.valueAt(i);
+                ps.setUserState(userId, ustate.ceDataInode, ustate.enabled, ustate.installed,
+                        ustate.stopped, ustate.notLaunched, ustate.hidden, ustate.suspended,
+                        ustate.instantApp, ustate.virtualPreload, ustate.lastDisableAppCaller,
+                        ustate.enabledComponents, ustate.disabledComponents,
+                        ustate.domainVerificationStatus, ustate.appLinkGeneration,
+                        ustate.installReason);
+                if (ustate.appLinkGeneration > maxAppLinkGeneration) {
+                    maxAppLinkGeneration = ustate.appLinkGeneration;
+                }
+            }
+            journal.resetLPw(journalGeneration, mPackages, userId,
+                    serializeRestrictionsExtrasLPr(userId));
+
             mNextAppLinkGeneration.put(userId, maxAppLinkGeneration + 1);
 
         } catch (XmlPullParserException e) {
@@ -2058,10 +2100,47 @@ final class Settings {
         }
     }
 
+    private void writeRestrictionsExtrasLPr(XmlSerializer serializer, int userId)
+            throws IllegalArgumentException, IllegalStateException, IOException {
+        writePreferredActivitiesLPr(serializer, userId, true);
+        writePersistentPreferredActivitiesLPr(serializer, userId);
+        writeCrossProfileIntentFiltersLPr(serializer, userId);
+        writeDefaultAppsLPr(serializer, userId);
+        writeBlockUninstallPackagesLPr(serializer, userId);
+    }
+
+    /**
+     * Serializes everything in the package restrictions file other than the per-package state,
+     * so that changes to it can be detected without touching the disk. Returns {@code null}
+     * if serialization fails.
+     */
+    private byte[] serializeRestrictionsExtrasLPr(int userId) {
+        try {
+            final ByteArrayOutputStream str = new ByteArrayOutputStream();
+            final XmlSerializer serializer = new FastXmlSerializer();
+            serializer.setOutput(str, StandardCharsets.UTF_8.name());
+            serializer.startDocument(null, true);
+            writeRestrictionsExtrasLPr(serializer, userId);
+            serializer.endDocument();
+            return str.toByteArray();
+        } catch (IOException e) {
+            Slog.w(PackageManagerService.TAG, "Unable to serialize package restrictions", e);
+            return null;
+        }
+    }
+
     void writePackageRestrictionsLPr(int userId) {
         if (DEBUG_MU) {
             Log.i(TAG, "Writing package restrictions for user=" + userId);
         }
+        // If only per-package state changed, appending the delta to the journal is enough.
+        final PackageRestrictionsJournal journal = getPackageRestrictionsJournalLPr(userId);
+        final byte[] extras = serializeRestrictionsExtrasLPr(userId);
+        if (journal.appendChangesLPw(mPackages, userId, extras)) {
+            return;
+        }
+        final int journalGeneration = journal.getGeneration() + 1;
+
         // Keep the old stopped packages around until we know the new ones have
         // been successfully written.
         File userPackagesStateFile = getUserPackagesStateFile(userId);
@@ -2095,6 +2174,7 @@ final class Settings {
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
             serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
+            XmlUtils.writeIntAttribute(serializer, ATTR_JOURNAL_GENERATION, journalGeneration);
 
             for (final PackageSetting pkg : mPackages.values()) {
                 final PackageUserState ustate = pkg.readUserState(userId);
@@ -2169,11 +2249,7 @@ final class Settings {
                 serializer.endTag(null, TAG_PACKAGE);
             }
 
-            writePreferredActivitiesLPr(serializer, userId, true);
-            writePersistentPreferredActivitiesLPr(serializer, userId);
-            writeCrossProfileIntentFiltersLPr(serializer, userId);
-            writeDefaultAppsLPr(serializer, userId);
-            writeBlockUninstallPackagesLPr(serializer, userId);
+            writeRestrictionsExtrasLPr(serializer, userId);
 
             serializer.endTag(null, TAG_PACKAGE_RESTRICTIONS);
 
@@ -2191,6 +2267,9 @@ final class Settings {
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
                     -1, -1);
 
+            // The snapshot now contains everything that was journaled.
+            journal.resetLPw(journalGeneration, mPackages, userId, extras);
+
             // Done, all is good!
             return;
         } catch(java.io.IOException e) {
@@ -4280,6 +4359,8 @@ final class Settings {
         file.delete();
         file = getUserPackagesStateBackupFile(userId);
         file.delete();
+        getPackageRestrictionsJournalLPr(userId).getFile().delete();
+        mRestrictionsJournals.remove(userId);
         removeCrossProfileIntentFiltersLPw(userId);
 
         mRuntimePermissionsPersistence.onUserRemovedLPw(userId);
@@ -48,10 +48,12 @@ import static android.view.WindowManager.LayoutParams.TYPE_DRAWN_APPLICATION;
 import static android.view.WindowManager.LayoutParams.TYPE_DREAM;
 import static android.view.WindowManager.LayoutParams.TYPE_INPUT_METHOD;
 import static android.view.WindowManager.LayoutParams.TYPE_INPUT_METHOD_DIALOG;
+import static android.view.WindowManager.LayoutParams.TYPE_NAVIGATION_BAR;
 import static android.view.WindowManager.LayoutParams.TYPE_STATUS_BAR;
 import static android.view.WindowManager.LayoutParams.TYPE_SYSTEM_DIALOG;
 import static android.view.WindowManager.LayoutParams.TYPE_SYSTEM_ERROR;
 import static android.view.WindowManager.LayoutParams.TYPE_TOAST;
+import static android.view.WindowManager.LayoutParams.TYPE_VOICE_INTERACTION;
 import static android.view.WindowManager.LayoutParams.TYPE_WALLPAPER;
 import static android.view.WindowManagerPolicy.FINISH_LAYOUT_REDO_ANIM;
 import static android.view.WindowManagerPolicy.FINISH_LAYOUT_REDO_CONFIG;
@@ -116,6 +118,8 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.ArraySet;
 import android.util.DisplayMetrics;
 import android.util.MutableBoolean;
 import android.util.Slog;
@@ -177,6 +181,10 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     private boolean mTmpRecoveringMemory;
     private boolean mUpdateImeTarget;
     private boolean mTmpInitial;
+    private boolean mTmpPartialLayout;
+    private boolean mTmpPartialLayoutInvalid;
+    private int mTmpLastLayoutSeq;
+    private final ArraySet<WindowState> mTmpLaidOutWindows = new ArraySet<>();
     private int mMaxUiWidth;
 
     // Mapping from a token IBinder to a WindowToken object on this display.
@@ -269,8 +277,33 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     private Rect mBaseDisplayRect = new Rect();
     private Rect mContentRect = new Rect();
 
+    /**
+     * Whether {@link #setWindowLayoutNeeded} may lay out only the windows that asked for it,
+     * instead of every window of the display.
+     */
+    @VisibleForTesting
+    boolean mPartialLayoutEnabled =
+            SystemProperties.getBoolean("persist.sys.wm_partial_layout", false);
+
     // Accessed directly by all users.
     private boolean mLayoutNeeded;
+    // Set when only the windows with WindowState#mLayoutNeeded set need to be laid out again.
+    private boolean mPartialLayoutNeeded;
+    // Whether the last layout found a dream window, which changes how the windows behind it are
+    // laid out.
+    private boolean mLayoutFoundDream;
+    // The layout sequence of the last layout of this display.
+    private int mLastLayoutSeq = -1;
+
+    // Layout counters for dumpsys.  The pass counters cover the last call to
+    // applySurfaceChangesTransaction(), including its repeats.
+    private long mFullLayoutCount;
+    private long mPartialLayoutCount;
+    private int mPassRepeats;
+    private int mPassLayoutVisits;
+    private int mPassLaidOutWindows;
+    private int mPassPolicyVisits;
+    private int mPassSurfaceVisits;
     int pendingLayoutChanges;
     // TODO(multi-display): remove some of the usages.
     boolean isDefaultDisplay;
@@ -290,6 +323,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
     /** Save allocating when calculating rects */
     private final Rect mTmpRect = new Rect();
+    private final Rect mTmpLayoutFrame = new Rect();
     private final Rect mTmpRect2 = new Rect();
     private final RectF mTmpRectF = new RectF();
     private final Matrix mTmpMatrix = new Matrix();
@@ -495,6 +529,15 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             w -> w.mWinAnimator.prepareSurfaceLocked(true);
 
     private final Consumer<WindowState> mPerformLayout = w -> {
+        mPassLayoutVisits++;
+        final boolean affectsOthers = mTmpPartialLayout && affectsLayoutOfOtherWindows(w);
+        if (mTmpPartialLayout && !w.mLayoutAttached && !affectsOthers && canKeepFrame(w)) {
+            // Nothing this window is laid out against changed since its last layout. It still
+            // counts as laid out in this pass, so that its pending resizes get reported.
+            w.mLayoutSeq = mService.mLayoutSeq;
+            return;
+        }
+
         // Don't do layout of a window if it is not visible, or soon won't be visible, to avoid
         // wasting time and funky changes while a window is animating away.
         final boolean gone = (mTmpWindow != null && mService.mPolicy.canBeHiddenByKeyguardLw(w))
@@ -537,8 +580,19 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                 w.mLayoutNeeded = false;
                 w.prelayout();
                 final boolean firstLayout = !w.isLaidOut();
+                if (affectsOthers) {
+                    mTmpLayoutFrame.set(w.mFrame);
+                }
                 mService.mPolicy.layoutWindowLw(w, null);
                 w.mLayoutSeq = mService.mLayoutSeq;
+                mPassLaidOutWindows++;
+                if (mTmpPartialLayout) {
+                    mTmpLaidOutWindows.add(w);
+                }
+                if (affectsOthers && !mTmpLayoutFrame.equals(w.mFrame)) {
+                    // The windows that weren't laid out again may depend on this frame.
+                    mTmpPartialLayoutInvalid = true;
+                }
 
                 // If this is the first layout, we need to initialize the last inset values as
                 // otherwise we'd immediately cause an unnecessary resize.
@@ -560,7 +614,14 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     };
 
     private final Consumer<WindowState> mPerformLayoutAttached = w -> {
+        mPassLayoutVisits++;
         if (w.mLayoutAttached) {
+            if (mTmpPartialLayout && canKeepFrame(w)
+                    && !mTmpLaidOutWindows.contains(w.getParentWindow())) {
+                // Neither this window nor the window it is attached to need a new layout.
+                w.mLayoutSeq = mService.mLayoutSeq;
+                return;
+            }
             if (DEBUG_LAYOUT) Slog.v(TAG, "2ND PASS " + w + " mHaveFrame=" + w.mHaveFrame
                     + " mViewVisibility=" + w.mViewVisibility
                     + " mRelayoutCalled=" + w.mRelayoutCalled);
@@ -580,6 +641,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                 w.prelayout();
                 mService.mPolicy.layoutWindowLw(w, w.getParentWindow());
                 w.mLayoutSeq = mService.mLayoutSeq;
+                mPassLaidOutWindows++;
                 if (DEBUG_LAYOUT) Slog.v(TAG, " LAYOUT: mFrame=" + w.mFrame
                         + " mContainingFrame=" + w.mContainingFrame
                         + " mDisplayFrame=" + w.mDisplayFrame);
@@ -597,11 +659,14 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         return w.canBeImeTarget();
     };
 
-    private final Consumer<WindowState> mApplyPostLayoutPolicy =
-            w -> mService.mPolicy.applyPostLayoutPolicyLw(w, w.mAttrs, w.getParentWindow(),
-                    mService.mInputMethodTarget);
+    private final Consumer<WindowState> mApplyPostLayoutPolicy = w -> {
+        mPassPolicyVisits++;
+        mService.mPolicy.applyPostLayoutPolicyLw(w, w.mAttrs, w.getParentWindow(),
+                mService.mInputMethodTarget);
+    };
 
     private final Consumer<WindowState> mApplySurfaceChangesTransaction = w -> {
+        mPassSurfaceVisits++;
         final WindowSurfacePlacer surfacePlacer = mService.mWindowPlacerLocked;
         final boolean obscuredChanged = w.mObscured !=
                 mTmpApplySurfaceChangesTransactionState.obscured;
@@ -2145,8 +2210,18 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             pw.print("-"); pw.print(mDisplayInfo.largestNominalAppWidth);
             pw.print("x"); pw.println(mDisplayInfo.largestNominalAppHeight);
             pw.print(subPrefix + "deferred=" + mDeferredRemoval
-                    + " mLayoutNeeded=" + mLayoutNeeded);
+                    + " mLayoutNeeded=" + mLayoutNeeded
+                    + " mPartialLayoutNeeded=" + mPartialLayoutNeeded);
             pw.println(" mTouchExcludeRegion=" + mTouchExcludeRegion);
+            pw.print(subPrefix); pw.print("layouts: full="); pw.print(mFullLayoutCount);
+                    pw.print(" partial="); pw.print(mPartialLayoutCount);
+                    pw.print(mPartialLayoutEnabled ? "" : " (partial layout disabled)");
+                    pw.println();
+            pw.print(subPrefix); pw.print("last pass: repeats="); pw.print(mPassRepeats);
+                    pw.print(" layout visits="); pw.print(mPassLayoutVisits);
+                    pw.print(" laid out="); pw.print(mPassLaidOutWindows);
+                    pw.print(" policy visits="); pw.print(mPassPolicyVisits);
+                    pw.print(" surface visits="); pw.println(mPassSurfaceVisits);
 
         pw.println();
         pw.println(prefix + "Application tokens in top down Z order:");
@@ -2493,13 +2568,59 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         mLayoutNeeded = true;
     }
 
+    /**
+     * Requests a layout of the given window and of its child windows.  Unlike
+     * {@link #setLayoutNeeded}, the other windows of the display aren't laid out again when the
+     * window can't change their frames.
+     */
+    void setWindowLayoutNeeded(WindowState w) {
+        w.mLayoutNeeded = true;
+        if (mLayoutNeeded) {
+            return;
+        }
+        if (!mPartialLayoutEnabled || mLayoutFoundDream || affectsLayoutOfOtherWindows(w)) {
+            setLayoutNeeded();
+            return;
+        }
+        if (DEBUG_LAYOUT) Slog.w(TAG_WM, "setWindowLayoutNeeded: " + w + " callers="
+                + Debug.getCallers(3));
+        w.forAllWindows(child -> {
+            child.mLayoutNeeded = true;
+        }, true /* traverseTopToBottom */);
+        mPartialLayoutNeeded = true;
+    }
+
+    /**
+     * Returns whether laying out the window changes the frames of other windows, which are laid
+     * out around the input method, the voice interaction window and the system bars.
+     */
+    private boolean affectsLayoutOfOtherWindows(WindowState w) {
+        final int type = w.mAttrs.type;
+        return type == TYPE_INPUT_METHOD || type == TYPE_INPUT_METHOD_DIALOG
+                || type == TYPE_VOICE_INTERACTION || type == TYPE_STATUS_BAR
+                || type == TYPE_NAVIGATION_BAR || type == TYPE_DREAM
+                || (w.mAttrs.privateFlags & PRIVATE_FLAG_KEYGUARD) != 0
+                || w == mService.mInputMethodTarget;
+    }
+
+    /**
+     * Returns whether a partial layout can keep the frame the window got in the last layout of
+     * this display.  Windows that weren't laid out then, or have a configuration change to
+     * apply, are handled as in a full layout.
+     */
+    private boolean canKeepFrame(WindowState w) {
+        return !w.mLayoutNeeded && w.isLaidOut() && w.mLayoutSeq == mTmpLastLayoutSeq
+                && !w.isConfigChanged();
+    }
+
     private void clearLayoutNeeded() {
         if (DEBUG_LAYOUT) Slog.w(TAG_WM, "clearLayoutNeeded: callers=" + Debug.getCallers(3));
         mLayoutNeeded = false;
+        mPartialLayoutNeeded = false;
     }
 
     boolean isLayoutNeeded() {
-        return mLayoutNeeded;
+        return mLayoutNeeded || mPartialLayoutNeeded;
     }
 
     void dumpTokens(PrintWriter pw, boolean dumpAll) {
@@ -2731,6 +2852,11 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
         mTmpUpdateAllDrawn.clear();
 
+        mPassLayoutVisits = 0;
+        mPassLaidOutWindows = 0;
+        mPassPolicyVisits = 0;
+        mPassSurfaceVisits = 0;
+
         int repeats = 0;
         do {
             repeats++;
@@ -2781,6 +2907,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                         "after finishPostLayoutPolicyLw", pendingLayoutChanges);
             }
         } while (pendingLayoutChanges != 0);
+        mPassRepeats = repeats;
 
         mTmpApplySurfaceChangesTransactionState.reset();
         resetDimming();
@@ -2816,6 +2943,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         if (!isLayoutNeeded()) {
             return;
         }
+        final boolean partial = !mLayoutNeeded;
         clearLayoutNeeded();
 
         final int dw = mDisplayInfo.logicalWidth;
@@ -2839,11 +2967,20 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         int seq = mService.mLayoutSeq + 1;
         if (seq < 0) seq = 0;
         mService.mLayoutSeq = seq;
+        mTmpLastLayoutSeq = mLastLayoutSeq;
+        mLastLayoutSeq = seq;
 
         // Used to indicate that we have processed the dream window and all additional windows are
         // behind it.
         mTmpWindow = null;
         mTmpInitial = initial;
+        mTmpPartialLayout = partial;
+        mTmpPartialLayoutInvalid = false;
+        if (partial) {
+            mPartialLayoutCount++;
+        } else {
+            mFullLayoutCount++;
+        }
 
         // First perform layout of any root windows (not attached to another window).
         forAllWindows(mPerformLayout, true /* traverseTopToBottom */);
@@ -2857,6 +2994,16 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         // window they are attached to. XXX does not deal with windows that are attached to windows
         // that are themselves attached.
         forAllWindows(mPerformLayoutAttached, true /* traverseTopToBottom */);
+        mLayoutFoundDream = mTmpWindow2 != null;
+        mTmpPartialLayout = false;
+        mTmpLaidOutWindows.clear();
+
+        if (partial && mTmpPartialLayoutInvalid) {
+            if (DEBUG_LAYOUT) Slog.v(TAG, "Partial layout moved the windows others depend on");
+            setLayoutNeeded();
+            performLayout(initial, updateInputWindows);
+            return;
+        }
 
         // Window frames may have changed. Tell the input dispatcher about it.
         mService.mInputMonitor.layoutInputConsumers(dw, dh);
@@ -17,6 +17,7 @@
 package com.android.server.wm;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
 import android.util.ArrayMap;
 import android.util.LruCache;
@@ -32,11 +33,25 @@ import java.util.Map.Entry;
  */
 class TaskSnapshotCache {
 
+    /** Maximum number of reduced resolution snapshots restored from disk to keep. */
+    private static final int MAX_RESTORED_ENTRIES =
+            ActivityManager.isLowRamDeviceStatic() ? 2 : 6;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
 
+    /**
+     * Reduced resolution snapshots restored from disk, of tasks that aren't in the running cache,
+     * so that opening recents again or scrolling back doesn't read and decode them again.
+     */
+    private final LruCache<Integer, TaskSnapshot> mRestoredCache =
+            new LruCache<>(MAX_RESTORED_ENTRIES);
+    private int mRestoredHits;
+    private int mRestoredMisses;
+    private int mPrefetched;
+
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
         mService = service;
         mLoader = loader;
@@ -49,6 +64,7 @@ class TaskSnapshotCache {
         }
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
+        mRestoredCache.remove(task.mTaskId);
         mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
     }
 
@@ -64,6 +80,15 @@ class TaskSnapshotCache {
             if (entry != null) {
                 return entry.snapshot;
             }
+
+            // Then the snapshots restored from disk before.
+            if (reducedResolution) {
+                final TaskSnapshot restored = mRestoredCache.get(taskId);
+                if (restored != null) {
+                    mRestoredHits++;
+                    return restored;
+                }
+            }
         }
 
         // Try to restore from disk if asked.
@@ -81,9 +106,47 @@ class TaskSnapshotCache {
         if (snapshot == null) {
             return null;
         }
+        if (reducedResolution) {
+            synchronized (mService.mWindowMap) {
+                mRestoredMisses++;
+                putRestoredEntryLocked(taskId, snapshot);
+            }
+        }
         return snapshot;
     }
 
+    /**
+     * Restores the reduced resolution snapshots of tasks that are likely to be shown next, unless
+     * they are cached already.
+     * <p>
+     * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
+     */
+    void prefetchSnapshots(int[] taskIds, int userId) {
+        for (int taskId : taskIds) {
+            synchronized (mService.mWindowMap) {
+                if (mRunningCache.containsKey(taskId) || mRestoredCache.get(taskId) != null) {
+                    continue;
+                }
+            }
+            final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId,
+                    true /* reducedResolution */);
+            if (snapshot == null) {
+                continue;
+            }
+            synchronized (mService.mWindowMap) {
+                mPrefetched++;
+                putRestoredEntryLocked(taskId, snapshot);
+            }
+        }
+    }
+
+    private void putRestoredEntryLocked(int taskId, TaskSnapshot snapshot) {
+        // A snapshot taken while the file was being read is newer than the file.
+        if (!mRunningCache.containsKey(taskId)) {
+            mRestoredCache.put(taskId, snapshot);
+        }
+    }
+
     /**
      * Called when an app token has been removed
      */
@@ -106,6 +169,7 @@ class TaskSnapshotCache {
 
     void onTaskRemoved(int taskId) {
         removeRunningEntry(taskId);
+        mRestoredCache.remove(taskId);
     }
 
     private void removeRunningEntry(int taskId) {
@@ -126,6 +190,9 @@ class TaskSnapshotCache {
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
         }
+        pw.println(doublePrefix + "Restored entries=" + mRestoredCache.size() + "/"
+                + mRestoredCache.maxSize() + " hits=" + mRestoredHits + " misses="
+                + mRestoredMisses + " prefetched=" + mPrefetched);
     }
 
     private static final class CacheEntry {
@@ -45,6 +45,7 @@ import android.view.WindowManagerPolicy.StartingSurface;
 import com.google.android.collect.Sets;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.IoThread;
 import com.android.server.wm.TaskSnapshotSurface.SystemBarBackgroundPainter;
 
 import java.io.PrintWriter;
@@ -194,6 +195,14 @@ class TaskSnapshotController {
                 || DISABLE_FULL_SIZED_BITMAPS);
     }
 
+    /**
+     * Restores the snapshots of tasks that are likely to be shown soon on a background thread, so
+     * that {@link #getSnapshot} doesn't have to read them from disk.
+     */
+    void prefetchSnapshots(int[] taskIds, int userId) {
+        IoThread.getHandler().post(() -> mCache.prefetchSnapshots(taskIds, userId));
+    }
+
     /**
      * Creates a starting surface for {@param token} with {@param snapshot}. DO NOT HOLD THE WINDOW
      * MANAGER LOCK WHEN CALLING THIS METHOD!
@@ -65,7 +65,12 @@ class TaskSnapshotLoader {
      */
     TaskSnapshot loadTask(int taskId, int userId, boolean reducedResolution) {
         final File protoFile = mPersister.getProtoFile(taskId, userId);
-        final File bitmapFile = reducedResolution
+        final File bmpFile = reducedResolution
+                ? mPersister.getReducedResolutionBmpFile(taskId, userId)
+                : null;
+        final boolean bmp = bmpFile != null && bmpFile.exists();
+        final File bitmapFile = bmp ? bmpFile
+                : reducedResolution
                 ? mPersister.getReducedResolutionBitmapFile(taskId, userId)
                 : mPersister.getBitmapFile(taskId, userId);
         if (bitmapFile == null || !protoFile.exists() || !bitmapFile.exists()) {
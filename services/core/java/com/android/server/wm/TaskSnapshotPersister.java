@@ -27,8 +27,14 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.graphics.GraphicBuffer;
+import android.os.IThermalEventListener;
+import android.os.IThermalService;
 import android.os.Process;
+import android.os.RemoteException;
+import android.os.ServiceManager;
 import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.os.Temperature;
 import android.util.ArraySet;
 import android.util.Slog;
 
@@ -40,6 +46,9 @@ import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 
@@ -59,7 +68,25 @@ class TaskSnapshotPersister {
     private static final int QUALITY = 95;
     private static final String PROTO_EXTENSION = ".proto";
     private static final String BITMAP_EXTENSION = ".jpg";
+    private static final String BMP_EXTENSION = ".bmp";
     private static final int MAX_STORE_QUEUE_DEPTH = 2;
+    private static final String THERMAL_SERVICE = "thermalservice";
+    /** Delay between writes while the device is thermal throttling. */
+    private static final long THERMAL_THROTTLING_DELAY_MS = 2000;
+
+    /**
+     * Size of the header of BMP snapshot files: a BMP file header, a BITMAPINFOHEADER and the
+     * three color masks of BI_BITFIELDS.
+     */
+    private static final int BMP_HEADER_SIZE = 14 + 40 + 12;
+
+    /**
+     * Whether to store reduced resolution snapshots as uncompressed BMP instead of JPEG.  BMP
+     * files are several times larger, but {@link android.graphics.BitmapFactory} decodes them
+     * without decompressing anything, which is cheaper when they are loaded.
+     */
+    private static final boolean USE_BMP_REDUCED_FORMAT =
+            SystemProperties.getBoolean("persist.sys.task_snapshot_bmp", false);
 
     @GuardedBy("mLock")
     private final ArrayDeque<WriteQueueItem> mWriteQueue = new ArrayDeque<>();
@@ -69,6 +96,12 @@ class TaskSnapshotPersister {
     private boolean mQueueIdling;
     @GuardedBy("mLock")
     private boolean mPaused;
+    @GuardedBy("mLock")
+    private boolean mThermalThrottling;
+    @GuardedBy("mLock")
+    private long mThermalThrottlingDelayMs = THERMAL_THROTTLING_DELAY_MS;
+    @GuardedBy("mLock")
+    private boolean mUseBmpReducedFormat = USE_BMP_REDUCED_FORMAT;
     private boolean mStarted;
     private final Object mLock = new Object();
     private final DirectoryResolver mDirectoryResolver;
@@ -91,6 +124,26 @@ class TaskSnapshotPersister {
         if (!mStarted) {
             mStarted = true;
             mPersister.start();
+            registerThermalEventListener();
+        }
+    }
+
+    private void registerThermalEventListener() {
+        final IThermalService thermalService = IThermalService.Stub.asInterface(
+                ServiceManager.getService(THERMAL_SERVICE));
+        if (thermalService == null) {
+            return;
+        }
+        try {
+            thermalService.registerThermalEventListener(new IThermalEventListener.Stub() {
+                @Override
+                public void notifyThrottling(boolean isThrottling, Temperature temperature) {
+                    setThermalThrottling(isThrottling);
+                }
+            });
+            setThermalThrottling(thermalService.isThrottling());
+        } catch (RemoteException e) {
+            Slog.w(TAG, "Unable to register thermal event listener", e);
         }
     }
 
@@ -145,6 +198,31 @@ class TaskSnapshotPersister {
         }
     }
 
+    /**
+     * Slows down writing snapshots while the device is thermal throttling, to save the CPU time
+     * spent on compressing them.
+     */
+    @VisibleForTesting
+    void setThermalThrottling(boolean throttling) {
+        synchronized (mLock) {
+            mThermalThrottling = throttling;
+        }
+    }
+
+    @VisibleForTesting
+    void setThermalThrottlingDelay(long delayMs) {
+        synchronized (mLock) {
+            mThermalThrottlingDelayMs = delayMs;
+        }
+    }
+
+    @VisibleForTesting
+    void setUseBmpReducedFormat(boolean useBmpReducedFormat) {
+        synchronized (mLock) {
+            mUseBmpReducedFormat = useBmpReducedFormat;
+        }
+    }
+
     @TestApi
     void waitForQueueEmpty() {
         while (true) {
@@ -197,6 +275,10 @@ class TaskSnapshotPersister {
         return new File(getDirectory(userId), taskId + REDUCED_POSTFIX + BITMAP_EXTENSION);
     }
 
+    File getReducedResolutionBmpFile(int taskId, int userId) {
+        return new File(getDirectory(userId), taskId + REDUCED_POSTFIX + BMP_EXTENSION);
+    }
+
     private boolean createDirectory(int userId) {
         final File dir = getDirectory(userId);
         return dir.exists() || dir.mkdirs();
@@ -207,6 +289,7 @@ class TaskSnapshotPersister {
         final File bitmapReducedFile = getReducedResolutionBitmapFile(taskId, userId);
         protoFile.delete();
         bitmapReducedFile.delete();
+        getReducedResolutionBmpFile(taskId, userId).delete();
 
         // Low ram devices do not have a full sized file to delete
         if (!DISABLE_FULL_SIZED_BITMAPS) {
@@ -224,6 +307,7 @@ class TaskSnapshotPersister {
             android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
             while (true) {
                 WriteQueueItem next;
+                final long delayMs;
                 synchronized (mLock) {
                     if (mPaused) {
                         next = null;
@@ -233,10 +317,11 @@ class TaskSnapshotPersister {
                             next.onDequeuedLocked();
                         }
                     }
+                    delayMs = mThermalThrottling ? mThermalThrottlingDelayMs : DELAY_MS;
                 }
                 if (next != null) {
                     next.write();
-                    SystemClock.sleep(DELAY_MS);
+                    SystemClock.sleep(delayMs);
                 }
                 synchronized (mLock) {
                     final boolean writeQueueEmpty = mWriteQueue.isEmpty();
@@ -274,11 +359,13 @@ class TaskSnapshotPersister {
         private final int mTaskId;
         private final int mUserId;
         private final TaskSnapshot mSnapshot;
+        private final boolean mBmpReduced;
 
         StoreWriteQueueItem(int taskId, int userId, TaskSnapshot snapshot) {
             mTaskId = taskId;
             mUserId = userId;
             mSnapshot = snapshot;
+            mBmpReduced = mUseBmpReducedFormat;
         }
 
         @Override
@@ -340,7 +427,9 @@ class TaskSnapshotPersister {
             }
 
             final Bitmap swBitmap = bitmap.copy(Config.ARGB_8888, false /* isMutable */);
-            final File reducedFile = getReducedResolutionBitmapFile(mTaskId, mUserId);
+            final File reducedFile = mBmpReduced
+                    ? getReducedResolutionBmpFile(mTaskId, mUserId)
+                    : getReducedResolutionBitmapFile(mTaskId, mUserId);
             final Bitmap reduced = mSnapshot.isReducedResolution()
                     ? swBitmap
                     : Bitmap.createScaledBitmap(swBitmap,
@@ -348,12 +437,22 @@ class TaskSnapshotPersister {
                             (int) (bitmap.getHeight() * REDUCED_SCALE), true /* filter */);
             try {
                 FileOutputStream reducedFos = new FileOutputStream(reducedFile);
-                reduced.compress(JPEG, QUALITY, reducedFos);
+                if (mBmpReduced) {
+                    writeBmp(reduced, reducedFos);
+                } else {
+                    reduced.compress(JPEG, QUALITY, reducedFos);
+                }
                 reducedFos.close();
             } catch (IOException e) {
                 Slog.e(TAG, "Unable to open " + reducedFile +" for persisting.", e);
                 return false;
             }
+            // The loader prefers the BMP file, so don't leave one in the other format behind.
+            if (mBmpReduced) {
+                getReducedResolutionBitmapFile(mTaskId, mUserId).delete();
+            } else {
+                getReducedResolutionBmpFile(mTaskId, mUserId).delete();
+            }
 
             // For snapshots with reduced resolution, do not create or save full sized bitmaps
             if (mSnapshot.isReducedResolution()) {
@@ -373,6 +472,49 @@ class TaskSnapshotPersister {
         }
     }
 
+    /**
+     * Writes the pixels of an ARGB_8888 bitmap as a top-down, uncompressed 32 bit BMP, which
+     * {@link android.graphics.BitmapFactory} reads straight into a hardware bitmap.  Like the
+     * JPEG files, it is opaque.
+     */
+    private static void writeBmp(Bitmap bitmap, FileOutputStream fos) throws IOException {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (bitmap.getRowBytes() != width * 4) {
+            throw new IOException("Unexpected row bytes " + bitmap.getRowBytes());
+        }
+        final int imageSize = bitmap.getRowBytes() * height;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BMP_HEADER_SIZE + imageSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        // BITMAPFILEHEADER
+        buffer.put((byte) 'B').put((byte) 'M');
+        buffer.putInt(BMP_HEADER_SIZE + imageSize);
+        buffer.putInt(0);
+        buffer.putInt(BMP_HEADER_SIZE);
+        // BITMAPINFOHEADER, with a negative height for rows stored top to bottom
+        buffer.putInt(40);
+        buffer.putInt(width);
+        buffer.putInt(-height);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 32);
+        buffer.putInt(3); // BI_BITFIELDS
+        buffer.putInt(imageSize);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        // Red, green and blue masks of the pixels, which are stored as RGBA bytes
+        buffer.putInt(0x000000ff);
+        buffer.putInt(0x0000ff00);
+        buffer.putInt(0x00ff0000);
+        bitmap.copyPixelsToBuffer(buffer);
+        buffer.flip();
+        final FileChannel channel = fos.getChannel();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
     private class DeleteWriteQueueItem extends WriteQueueItem {
         private final int mTaskId;
         private final int mUserId;
@@ -424,7 +566,8 @@ class TaskSnapshotPersister {
 
         @VisibleForTesting
         int getTaskId(String fileName) {
-            if (!fileName.endsWith(PROTO_EXTENSION) && !fileName.endsWith(BITMAP_EXTENSION)) {
+            if (!fileName.endsWith(PROTO_EXTENSION) && !fileName.endsWith(BITMAP_EXTENSION)
+                    && !fileName.endsWith(BMP_EXTENSION)) {
                 return -1;
             }
             final int end = fileName.lastIndexOf('.');
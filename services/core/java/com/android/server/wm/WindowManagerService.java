@@ -2162,7 +2162,15 @@ public class WindowManagerService extends IWindowManager.Stub
                 mUnknownAppVisibilityController.notifyRelayouted(win.mAppToken);
             }
 
-            win.setDisplayLayoutNeeded();
+            if (focusMayChange || imMayMove || wallpaperMayMove || toBeDisplayed
+                    || oldVisibility != viewVisibility || flagChanges != 0
+                    || (attrChanges & ~WindowManager.LayoutParams.LAYOUT_CHANGED) != 0) {
+                win.setDisplayLayoutNeeded();
+            } else {
+                // Only the size or position of the window changed, which doesn't move the
+                // other windows.
+                dc.setWindowLayoutNeeded(win);
+            }
             win.mGivenInsetsPending = (flags & WindowManagerGlobal.RELAYOUT_INSETS_PENDING) != 0;
             Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER,
                     "relayoutWindow: updateOrientationFromAppTokens");
@@ -3811,6 +3819,14 @@ public class WindowManagerService extends IWindowManager.Stub
                 reducedResolution);
     }
 
+    /**
+     * Restores the reduced resolution snapshots of the given tasks in the background, as they are
+     * likely to be requested with {@link #getTaskSnapshot} soon.
+     */
+    public void prefetchTaskSnapshots(int[] taskIds, int userId) {
+        mTaskSnapshotController.prefetchSnapshots(taskIds, userId);
+    }
+
     /**
      * In case a task write/delete operation was lost because the system crashed, this makes sure to
      * clean up the directory to remove obsolete files.
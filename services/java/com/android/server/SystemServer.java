@@ -55,6 +55,7 @@ import com.android.internal.R;
 import com.android.internal.app.NightDisplayController;
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.notification.SystemNotificationChannels;
+import com.android.internal.os.BinderCallsStats;
 import com.android.internal.os.BinderInternal;
 import com.android.internal.util.EmergencyAffordanceManager;
 import com.android.internal.util.ConcurrentUtils;
@@ -357,6 +358,13 @@ public final class SystemServer {
             // Increase the number of binder threads in system_server
             BinderInternal.setMaxThreads(sMaxBinderThreads);
 
+            // Sample incoming binder calls, see dumpsys activity binder-stats.
+            final int binderStatsInterval =
+                    SystemProperties.getInt("persist.sys.binder_calls_stats_interval", 32);
+            if (binderStatsInterval > 0) {
+                BinderCallsStats.start(binderStatsInterval);
+            }
+
             // Prepare the main looper thread (this thread).
             android.os.Process.setThreadPriority(
                 android.os.Process.THREAD_PRIORITY_FOREGROUND);
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverTest {
+    private static final String ACTION_FOO = "com.android.server.test.FOO";
+    private static final String ACTION_BAR = "com.android.server.test.BAR";
+
+    private static class TestFilter extends IntentFilter {
+        final String packageName;
+
+        TestFilter(String packageName, String action) {
+            super(action);
+            this.packageName = packageName;
+        }
+    }
+
+    private static class TestResolver extends IntentResolver<TestFilter, TestFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, TestFilter filter) {
+            return packageName.equals(filter.packageName);
+        }
+
+        @Override
+        protected TestFilter[] newArray(int size) {
+            return new TestFilter[size];
+        }
+    }
+
+    private TestResolver mCached;
+    private TestResolver mUncached;
+
+    @Before
+    public void setUp() {
+        mCached = new TestResolver();
+        mCached.enableQueryCache(4);
+        mUncached = new TestResolver();
+    }
+
+    private void addFilter(TestFilter filter) {
+        mCached.addFilter(filter);
+        mUncached.addFilter(filter);
+    }
+
+    private void assertSameResults(Intent intent, String resolvedType, boolean defaultOnly) {
+        // Query twice so the second query is served from the cache.
+        mCached.queryIntent(intent, resolvedType, defaultOnly, 0);
+        final List<TestFilter> cached = mCached.queryIntent(intent, resolvedType, defaultOnly, 0);
+        final List<TestFilter> uncached =
+                mUncached.queryIntent(intent, resolvedType, defaultOnly, 0);
+        assertEquals(uncached, cached);
+    }
+
+    @Test
+    public void testCachedQueryMatchesUncached() {
+        final TestFilter foo = new TestFilter("a", ACTION_FOO);
+        final TestFilter fooDefault = new TestFilter("b", ACTION_FOO);
+        fooDefault.addCategory(Intent.CATEGORY_DEFAULT);
+        fooDefault.setPriority(10);
+        final TestFilter fooHttp = new TestFilter("c", ACTION_FOO);
+        fooHttp.addDataScheme("http");
+        final TestFilter bar = new TestFilter("a", ACTION_BAR);
+        addFilter(foo);
+        addFilter(fooDefault);
+        addFilter(fooHttp);
+        addFilter(bar);
+
+        assertSameResults(new Intent(ACTION_FOO), null, false);
+        assertSameResults(new Intent(ACTION_FOO), null, true);
+        assertSameResults(new Intent(ACTION_FOO).setPackage("a"), null, false);
+        assertSameResults(new Intent(ACTION_FOO, Uri.parse("http://example.com")), null, false);
+        assertSameResults(new Intent(ACTION_FOO).addCategory("unknown"), null, false);
+        assertSameResults(new Intent(ACTION_BAR), null, false);
+    }
+
+    @Test
+    public void testCacheInvalidatedOnFilterChange() {
+        final TestFilter foo = new TestFilter("a", ACTION_FOO);
+        addFilter(foo);
+        final Intent intent = new Intent(ACTION_FOO);
+        assertEquals(1, mCached.queryIntent(intent, null, false, 0).size());
+
+        final TestFilter foo2 = new TestFilter("b", ACTION_FOO);
+        mCached.addFilter(foo2);
+        assertEquals(2, mCached.queryIntent(intent, null, false, 0).size());
+
+        mCached.removeFilter(foo);
+        final List<TestFilter> results = mCached.queryIntent(intent, null, false, 0);
+        assertEquals(1, results.size());
+        assertEquals(foo2, results.get(0));
+    }
+
+    @Test
+    public void testCategoriesNotSharedWithIntent() {
+        final TestFilter foo = new TestFilter("a", ACTION_FOO);
+        foo.addCategory("known");
+        addFilter(foo);
+        final Intent intent = new Intent(ACTION_FOO).addCategory("known");
+        assertEquals(1, mCached.queryIntent(intent, null, false, 0).size());
+
+        // Mutating the queried intent must not alter the cached entry.
+        intent.addCategory("unknown");
+        assertEquals(0, mCached.queryIntent(intent, null, false, 0).size());
+        assertEquals(1, mCached.queryIntent(new Intent(ACTION_FOO).addCategory("known"),
+                null, false, 0).size());
+    }
+}
@@ -803,6 +803,96 @@ public class ActivityManagerServiceTest {
         }
     }
 
+    @Test
+    public void testReassignCachedAdjSlots() {
+        // The LRU list has the most recently used process last.
+        final ProcessRecord empty = addCachedProcess(TEST_UID, PROCESS_STATE_CACHED_EMPTY);
+        final ProcessRecord oldest = addCachedProcess(TEST_UID + 1,
+                PROCESS_STATE_CACHED_ACTIVITY);
+        final ProcessRecord middle = addCachedProcess(TEST_UID + 2,
+                PROCESS_STATE_CACHED_ACTIVITY);
+        final ProcessRecord newest = addCachedProcess(TEST_UID + 3,
+                PROCESS_STATE_CACHED_ACTIVITY);
+        final ArrayList<ProcessRecord> changed = new ArrayList<>();
+
+        // The slots a full update hands out, from the most recently used process.
+        assertTrue(mAms.reassignCachedAdjSlotsLocked(changed));
+        assertEquals(4, changed.size());
+        assertEquals(ProcessList.CACHED_APP_MIN_ADJ, newest.curAdj);
+        assertEquals(ProcessList.CACHED_APP_MIN_ADJ + 1, middle.curAdj);
+        assertEquals(ProcessList.CACHED_APP_MIN_ADJ + 3, oldest.curAdj);
+        assertEquals(ProcessList.CACHED_APP_MIN_ADJ, empty.curAdj);
+
+        // Using a process moves it to the end of the LRU list, which an incremental update
+        // alone doesn't reflect in the slots.
+        mAms.mLruProcesses.remove(oldest);
+        mAms.mLruProcesses.add(oldest);
+        changed.clear();
+        assertTrue(mAms.reassignCachedAdjSlotsLocked(changed));
+        assertEquals(3, changed.size());
+        assertFalse(changed.contains(empty));
+        assertEquals(ProcessList.CACHED_APP_MIN_ADJ, oldest.curAdj);
+        assertEquals(ProcessList.CACHED_APP_MIN_ADJ + 1, newest.curAdj);
+        assertEquals(ProcessList.CACHED_APP_MIN_ADJ + 3, middle.curAdj);
+
+        // A process that is no longer cached gives up its slot.
+        oldest.curProcState = PROCESS_STATE_RECEIVER;
+        oldest.curRawAdj = oldest.curAdj = ProcessList.FOREGROUND_APP_ADJ;
+        oldest.cachedAdjSlotted = false;
+        changed.clear();
+        assertTrue(mAms.reassignCachedAdjSlotsLocked(changed));
+        assertEquals(ProcessList.FOREGROUND_APP_ADJ, oldest.curAdj);
+        assertEquals(ProcessList.CACHED_APP_MIN_ADJ, newest.curAdj);
+        assertEquals(ProcessList.CACHED_APP_MIN_ADJ + 1, middle.curAdj);
+        assertEquals(ProcessList.CACHED_APP_MIN_ADJ, empty.curAdj);
+    }
+
+    @Test
+    public void testReassignCachedAdjSlotsKeepsInheritedAdj() {
+        final ProcessRecord other = addCachedProcess(TEST_UID, PROCESS_STATE_CACHED_ACTIVITY);
+        final ProcessRecord host = addCachedProcess(TEST_UID + 1,
+                PROCESS_STATE_CACHED_ACTIVITY);
+        final ProcessRecord client = addCachedProcess(TEST_UID + 2,
+                PROCESS_STATE_CACHED_ACTIVITY);
+        final ArrayList<ProcessRecord> changed = new ArrayList<>();
+        assertTrue(mAms.reassignCachedAdjSlotsLocked(changed));
+
+        // What a full update gives when client is bound to a service in host: host takes
+        // the adj of client instead of a slot of its own, and the slots after it don't step.
+        host.curRawAdj = host.curAdj = client.curAdj;
+        host.cachedAdjSlotted = false;
+        other.curRawAdj = other.curAdj = ProcessList.CACHED_APP_MIN_ADJ + 1;
+        final int[] fullAdjs = { other.curAdj, host.curAdj, client.curAdj };
+
+        // With nothing moved in the LRU list, an incremental update ends up the same.
+        changed.clear();
+        assertTrue(mAms.reassignCachedAdjSlotsLocked(changed));
+        assertTrue(changed.isEmpty());
+        assertEquals(fullAdjs[0], other.curAdj);
+        assertEquals(fullAdjs[1], host.curAdj);
+        assertEquals(fullAdjs[2], client.curAdj);
+
+        // Moving client to another slot changes the adj host inherits, which takes a full
+        // update.
+        mAms.mLruProcesses.remove(other);
+        mAms.mLruProcesses.add(other);
+        changed.clear();
+        assertFalse(mAms.reassignCachedAdjSlotsLocked(changed));
+        assertNotEquals(fullAdjs[2], client.curAdj);
+    }
+
+    /** Adds a cached process, left in a cached slot as a full update does. */
+    private ProcessRecord addCachedProcess(int uid, int procState) {
+        final ProcessRecord app = new ProcessRecord(mBatteryStatsImpl,
+                new ApplicationInfo(), TAG, uid);
+        app.thread = Mockito.mock(IApplicationThread.class);
+        app.curProcState = procState;
+        app.curRawAdj = app.curAdj = ProcessList.CACHED_APP_MAX_ADJ;
+        app.cachedAdjSlotted = true;
+        mAms.mLruProcesses.add(app);
+        return app;
+    }
+
     private class TestInjector extends Injector {
         private boolean mRestricted = true;
 
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+
+import android.app.AppOpsManager;
+import android.app.IApplicationThread;
+import android.content.Context;
+import android.content.IIntentReceiver;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteException;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.BatteryStatsImpl;
+import com.android.server.AppOpsService;
+import com.android.server.am.ActivityManagerService.Injector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the calls {@link BroadcastQueue} makes into registered receivers without the
+ * activity manager lock held.
+ *
+ * Run: adb shell am instrument -e class com.android.server.am.BroadcastQueueTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BroadcastQueueTest {
+    private static final String TAG = BroadcastQueueTest.class.getSimpleName();
+
+    private static final int TEST_UID = 11111;
+    private static final long TIMEOUT_MS = 5000;
+
+    @Mock private Context mContext;
+    @Mock private AppOpsService mAppOpsService;
+    @Mock private BatteryStatsImpl mBatteryStatsImpl;
+    @Mock private IIntentReceiver mReceiver;
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private ActivityManagerService mAms;
+    private BroadcastQueue mQueue;
+    private ProcessRecord mApp;
+
+    /** The actions of the broadcasts the app was sent, in the order they were sent. */
+    private final List<String> mDelivered = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mAms = new ActivityManagerService(new Injector() {
+            @Override
+            public Context getContext() {
+                return mContext;
+            }
+
+            @Override
+            public AppOpsService getAppOpsService(File file, Handler opsHandler) {
+                return mAppOpsService;
+            }
+
+            @Override
+            public Handler getUiHandler(ActivityManagerService service) {
+                return mHandler;
+            }
+        });
+        mQueue = new BroadcastQueue(mAms, mHandler, "test", 10 * 1000, false);
+
+        mApp = new ProcessRecord(mBatteryStatsImpl, new ApplicationInfo(), TAG, TEST_UID);
+        mApp.thread = Mockito.mock(IApplicationThread.class);
+        doAnswer(invocation -> {
+            synchronized (mDelivered) {
+                mDelivered.add(((Intent) invocation.getArguments()[1]).getAction());
+            }
+            return null;
+        }).when(mApp.thread).scheduleRegisteredReceiver(any(IIntentReceiver.class),
+                any(Intent.class), anyInt(), any(), any(), anyBoolean(),
+                anyBoolean(), anyInt(), anyInt());
+    }
+
+    @After
+    public void tearDown() {
+        mHandlerThread.quit();
+    }
+
+    private void deferReceive(String action) {
+        synchronized (mAms) {
+            mQueue.deferReceiveLocked(mApp, mReceiver, new Intent(action), 0, null, null,
+                    false, false, 0, null, null);
+        }
+    }
+
+    private void performReceive(String action) throws RemoteException {
+        synchronized (mAms) {
+            mQueue.performReceiveLocked(mApp, mReceiver, new Intent(action), 0, null, null,
+                    true, false, 0);
+        }
+    }
+
+    private List<String> getDelivered() {
+        synchronized (mDelivered) {
+            return new ArrayList<>(mDelivered);
+        }
+    }
+
+    private void assertNothingPending() {
+        synchronized (mAms) {
+            assertTrue(mQueue.mDeferredDeliveries.isEmpty());
+            assertFalse(mQueue.mDeliveringDeferred);
+        }
+    }
+
+    @Test
+    public void testDeferredReceivesInOrder() throws Exception {
+        deferReceive("1");
+        deferReceive("2");
+        // Can't overtake the calls queued before it.
+        performReceive("3");
+        assertTrue(getDelivered().isEmpty());
+
+        mQueue.performDeferredReceives();
+        assertEquals(Arrays.asList("1", "2", "3"), getDelivered());
+        assertNothingPending();
+
+        // Made right away once nothing is queued.
+        performReceive("4");
+        assertEquals(Arrays.asList("1", "2", "3", "4"), getDelivered());
+    }
+
+    @Test
+    public void testLockNotHeldWhileDelivering() throws Exception {
+        final CountDownLatch delivering = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final IApplicationThread thread = mApp.thread;
+        doAnswer(invocation -> {
+            delivering.countDown();
+            release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            synchronized (mDelivered) {
+                mDelivered.add(((Intent) invocation.getArguments()[1]).getAction());
+            }
+            return null;
+        }).when(thread).scheduleRegisteredReceiver(any(IIntentReceiver.class),
+                any(Intent.class), anyInt(), any(), any(), anyBoolean(),
+                anyBoolean(), anyInt(), anyInt());
+
+        deferReceive("1");
+        final Thread deliverer = new Thread(() -> mQueue.performDeferredReceives());
+        deliverer.start();
+        assertTrue(delivering.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // The lock is free while the call is stuck; what is sent meanwhile queues behind it
+        // and is made by the thread already delivering.
+        performReceive("2");
+        deferReceive("3");
+        mQueue.performDeferredReceives();
+        assertTrue(getDelivered().isEmpty());
+
+        release.countDown();
+        deliverer.join(TIMEOUT_MS);
+        assertFalse(deliverer.isAlive());
+        assertEquals(Arrays.asList("1", "2", "3"), getDelivered());
+        assertNothingPending();
+    }
+
+    @Test
+    public void testUnreachableProcessCrashed() throws Exception {
+        doThrow(new RemoteException()).when(mApp.thread).scheduleRegisteredReceiver(
+                any(IIntentReceiver.class), any(Intent.class), anyInt(), any(), any(),
+                anyBoolean(), anyBoolean(), anyInt(), anyInt());
+
+        deferReceive("1");
+        deferReceive("2");
+        mQueue.performDeferredReceives();
+
+        verify(mApp.thread, atLeastOnce()).scheduleCrash(anyString());
+        assertNothingPending();
+    }
+
+    @Test
+    public void testFailedOrderedDeliveryMovesOn() throws Exception {
+        doThrow(new RemoteException()).when(mApp.thread).scheduleRegisteredReceiver(
+                any(IIntentReceiver.class), any(Intent.class), anyInt(), any(), any(),
+                anyBoolean(), anyBoolean(), anyInt(), anyInt());
+        final ReceiverList receiverList = new ReceiverList(mAms, mApp, 0, TEST_UID, 0,
+                mReceiver);
+        final BroadcastFilter filter = new BroadcastFilter(new IntentFilter(), receiverList,
+                TAG, null, TEST_UID, 0, false, false);
+        final BroadcastRecord r = new BroadcastRecord(mQueue, new Intent("2"), null, TAG, 0,
+                TEST_UID, false, null, null, AppOpsManager.OP_NONE, null,
+                new ArrayList<>(Arrays.asList(filter)), null, 0, null, null, true, false, false,
+                0);
+        // Keeps the next broadcast from being processed on the handler thread.
+        final CountDownLatch release = new CountDownLatch(1);
+        mHandler.post(() -> {
+            try {
+                release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+            }
+        });
+        try {
+            deferReceive("1");
+            synchronized (mAms) {
+                // Where deliverToRegisteredReceiverLocked() leaves a broadcast waiting on a
+                // receiver it queued behind another call.
+                r.receiver = mReceiver.asBinder();
+                r.curFilter = filter;
+                r.curApp = mApp;
+                receiverList.curBroadcast = r;
+                r.state = BroadcastRecord.CALL_DONE_RECEIVE;
+                mQueue.deferReceiveLocked(mApp, mReceiver, new Intent(r.intent), 0, null, null,
+                        true, false, 0, r, filter);
+            }
+            mQueue.performDeferredReceives();
+
+            synchronized (mAms) {
+                assertEquals(BroadcastRecord.IDLE, r.state);
+                assertNull(r.curFilter);
+                assertNull(receiverList.curBroadcast);
+                assertTrue(mQueue.mBroadcastsScheduled);
+            }
+            assertNothingPending();
+        } finally {
+            // Drops the scheduled broadcast message before letting the handler go.
+            mHandlerThread.quit();
+            release.countDown();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.database.IContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.server.content.ContentService.ObserverCall;
+import com.android.server.content.ContentService.ObserverDispatcher;
+import com.android.server.content.ContentService.ObserverNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * bit FrameworksServicesTests:com.android.server.content.ObserverDispatcherTest
+ */
+@SmallTest
+public class ObserverDispatcherTest extends AndroidTestCase {
+    private static final long BATCH_WINDOW_MS = 5;
+    private static final long TIMEOUT_MS = 5000;
+
+    private static final Uri URI = Uri.parse("content://c/");
+
+    /** Records the callbacks, one string per callback. */
+    static class TestObserver extends IContentObserver.Stub {
+        final List<String> mCalls = new ArrayList<>();
+
+        @Override
+        public synchronized void onChange(boolean selfUpdate, Uri uri, int userId) {
+            mCalls.add(selfUpdate + ":" + uri);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onChangeBatch(boolean selfUpdate, Uri[] uris, int userId) {
+            mCalls.add(selfUpdate + ":" + Arrays.toString(uris));
+            notifyAll();
+        }
+
+        synchronized List<String> awaitCalls(int count) throws InterruptedException {
+            final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+            while (mCalls.size() < count && SystemClock.uptimeMillis() < deadline) {
+                wait(deadline - SystemClock.uptimeMillis());
+            }
+            return new ArrayList<>(mCalls);
+        }
+    }
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private ObserverNode mRoot;
+    private ObserverDispatcher mDispatcher;
+    private TestObserver mObserver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("ObserverDispatcherTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mRoot = new ObserverNode("");
+        mDispatcher = new ObserverDispatcher(mRoot, mThread.getLooper(), BATCH_WINDOW_MS);
+        mObserver = new TestObserver();
+        mRoot.addObserverLocked(URI, mObserver, true, mRoot, 0, 0, UserHandle.myUserId());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    /** Keeps the dispatcher's looper busy until the returned latch is released. */
+    private CountDownLatch blockLooper() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.post(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        return latch;
+    }
+
+    private void notifyChange(String path, boolean selfChange) {
+        final ArrayList<ObserverCall> calls = new ArrayList<>();
+        mRoot.collectObserversLocked(URI, 0, selfChange ? mObserver : null, true, 0,
+                UserHandle.myUserId(), calls);
+        assertEquals(1, calls.size());
+        mDispatcher.dispatch(calls.get(0), Uri.withAppendedPath(URI, path),
+                UserHandle.myUserId());
+    }
+
+    public void testDeliveredInOrder() throws Exception {
+        final CountDownLatch latch = blockLooper();
+        notifyChange("1", false);
+        notifyChange("2", false);
+        notifyChange("3", false);
+        // Can't be batched with the two before it, which get flushed.
+        notifyChange("4", true);
+        // Let the batch window pass while the flush is still queued.
+        SystemClock.sleep(BATCH_WINDOW_MS * 2);
+        latch.countDown();
+
+        assertEquals(Arrays.asList(
+                "false:content://c/1",
+                "false:[content://c/2, content://c/3]",
+                "true:content://c/4"),
+                mObserver.awaitCalls(3));
+    }
+
+    public void testPendingDroppedOnRemove() throws Exception {
+        final CountDownLatch latch = blockLooper();
+        notifyChange("1", false);
+        notifyChange("2", false);
+        mDispatcher.removeObserver(mObserver);
+        latch.countDown();
+
+        // Nothing is delivered, though the batch window has long passed once this runs.
+        SystemClock.sleep(BATCH_WINDOW_MS * 2);
+        mHandler.runWithScissors(() -> { }, TIMEOUT_MS);
+        assertTrue(mObserver.awaitCalls(0).isEmpty());
+
+        // Notifications that follow are delivered right away again.
+        notifyChange("3", false);
+        assertEquals(Arrays.asList("false:content://c/3"), mObserver.awaitCalls(1));
+    }
+}
@@ -19,6 +19,7 @@ package com.android.server.content;
 import java.util.ArrayList;
 
 import android.database.ContentObserver;
+import android.database.IContentObserver;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
@@ -103,4 +104,37 @@ public class ObserverNodeTest extends AndroidTestCase {
             calls.clear();
         }
     }
+
+    public void testRemoveObserver() {
+        final int myUserHandle = UserHandle.myUserId();
+
+        ObserverNode root = new ObserverNode("");
+        Uri[] uris = new Uri[] {
+            Uri.parse("content://c/a/1/"),
+            Uri.parse("content://c/a/2/"),
+            Uri.parse("content://c/b/"),
+        };
+        IContentObserver[] observers = new IContentObserver[uris.length];
+        for (int i = 0; i < uris.length; i++) {
+            observers[i] = new TestObserver().getContentObserver();
+            root.addObserverLocked(uris[i], observers[i], true, root, 0, 0, myUserHandle);
+        }
+
+        ArrayList<ObserverCall> calls = new ArrayList<ObserverCall>();
+        root.collectObserversLocked(Uri.parse("content://c/"), 0, null, false, 0,
+                myUserHandle, calls);
+        assertEquals(3, calls.size());
+        calls.clear();
+
+        assertFalse(root.removeObserverLocked(observers[0]));
+        root.collectObserversLocked(Uri.parse("content://c/"), 0, null, false, 0,
+                myUserHandle, calls);
+        assertEquals(2, calls.size());
+        calls.clear();
+        root.collectObserversLocked(uris[0], 0, null, false, 0, myUserHandle, calls);
+        assertEquals(0, calls.size());
+
+        assertFalse(root.removeObserverLocked(observers[1]));
+        assertTrue(root.removeObserverLocked(observers[2]));
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.server.job.JobStore.JobSet;
+import com.android.server.job.controllers.JobStatus;
+
+/**
+ * Compares the time taken to serialize and parse the persisted jobs in the legacy xml format
+ * and the binary format. Results are logged under {@link #TAG}.
+ */
+@LargeTest
+public class JobStorePerfTest extends AndroidTestCase {
+    private static final String TAG = "JobStorePerfTest";
+    private static final String TEST_PREFIX = "_perftest_";
+
+    private static final int ITERATIONS = 5;
+    private static final int BASE_UID = 10000;
+
+    private JobStore mJobStore;
+    private ComponentName mComponent;
+
+    @Override
+    public void setUp() throws Exception {
+        final Context context = new RenamingDelegatingContext(getContext(), TEST_PREFIX);
+        mJobStore = JobStore.initAndGetForTesting(context, context.getFilesDir());
+        mComponent = new ComponentName(getContext().getPackageName(), "StubJobService");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mJobStore.clear();
+        mJobStore.writeStatusToDiskForTesting();
+    }
+
+    public void testPersist1kJobs() {
+        populate(1000);
+        runComparison(1000);
+    }
+
+    public void testPersist10kJobs() {
+        populate(10000);
+        runComparison(10000);
+    }
+
+    private void populate(int count) {
+        for (int i = 0; i < count; i++) {
+            final PersistableBundle extras = new PersistableBundle();
+            extras.putString("account", "user" + i + "@example.com");
+            extras.putString("authority", "com.example.sync" + (i % 17));
+            extras.putBoolean("SyncManagerJob", true);
+            extras.putLong("expectedRuntime", i * 1000L);
+            final JobInfo.Builder b = new JobInfo.Builder(i, mComponent)
+                    .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                    .setExtras(extras)
+                    .setPersisted(true);
+            if (i % 3 == 0) {
+                b.setPeriodic(24 * 60 * 60 * 1000L);
+            } else {
+                b.setMinimumLatency(60 * 1000L).setOverrideDeadline(60 * 60 * 1000L);
+            }
+            mJobStore.add(JobStatus.createFromJobInfo(b.build(), BASE_UID + (i % 50), null,
+                    0, null));
+        }
+    }
+
+    private void runComparison(int count) {
+        final long[] xml = measure(false, count);
+        final long[] binary = measure(true, count);
+        Log.i(TAG, count + " jobs: xml write=" + xml[0] + "us read=" + xml[1]
+                + "us, binary write=" + binary[0] + "us read=" + binary[1] + "us");
+    }
+
+    /** @return average write and read times in microseconds. */
+    private long[] measure(boolean binary, int expectedCount) {
+        mJobStore.setUseBinaryFormatForTesting(binary);
+        long writeNanos = 0;
+        long readNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            mJobStore.writeStatusToDiskForTesting();
+            writeNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+            final JobSet jobSet = new JobSet();
+            start = SystemClock.elapsedRealtimeNanos();
+            mJobStore.readJobMapFromDisk(jobSet, true);
+            readNanos += SystemClock.elapsedRealtimeNanos() - start;
+            assertEquals("Incorrect # of persisted jobs.", expectedCount, jobSet.size());
+        }
+        return new long[] { writeNanos / ITERATIONS / 1000, readNanos / ITERATIONS / 1000 };
+    }
+}
@@ -15,6 +15,8 @@ import android.util.Pair;
 import com.android.server.job.JobStore.JobSet;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.File;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -152,6 +154,29 @@ public class JobStoreTest extends AndroidTestCase {
         JobStatus loaded = jobStatusSet.getAllJobs().iterator().next();
         assertTasksEqual(task, loaded.getJob());
     }
+    public void testWritingTaskWithLongExtras() throws Exception {
+        // Longer than modified UTF-8 can encode.
+        final char[] chars = new char[70 * 1024];
+        Arrays.fill(chars, '\u00e9');
+        final String value = new String(chars);
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString("long", value);
+        extras.putStringArray("array", new String[] { value });
+        final JobInfo task = new Builder(8, mComponent)
+                .setPersisted(true)
+                .setExtras(extras)
+                .build();
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(task, SOME_UID, null, -1, null));
+        Thread.sleep(IO_WAIT);
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        final JobInfo loaded = jobStatusSet.getAllJobs().iterator().next().getJob();
+        assertEquals(value, loaded.getExtras().getString("long"));
+        assertEquals(value, loaded.getExtras().getStringArray("array")[0]);
+    }
+
     public void testWritingTaskWithSourcePackage() throws Exception {
         JobInfo.Builder b = new Builder(8, mComponent)
                 .setRequiresDeviceIdle(true)
@@ -267,6 +292,50 @@ public class JobStoreTest extends AndroidTestCase {
         assertEquals("Wrong job persisted.", 43, jobStatus.getJobId());
     }
 
+    /**
+     * Test that jobs persisted in the legacy xml format are read back and migrated to the binary
+     * format on the next write.
+     */
+    public void testMigrationFromXml() throws Exception {
+        final File jobDir = new File(new File(mTestContext.getFilesDir(), "system"), "job");
+        final File xmlFile = new File(jobDir, "jobs.xml");
+        final File binaryFile = new File(jobDir, "jobs.bin");
+
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString("account", "foo@example.com");
+        extras.putLongArray("times", new long[] { 1, 2, 3 });
+        final JobInfo task = new Builder(27, mComponent)
+                .setRequiresCharging(true)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setOverrideDeadline(30000L)
+                .setExtras(extras)
+                .setPersisted(true)
+                .build();
+        final JobStatus js = JobStatus.createFromJobInfo(task, SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.setUseBinaryFormatForTesting(false);
+        mTaskStoreUnderTest.add(js);
+        mTaskStoreUnderTest.writeStatusToDiskForTesting();
+        assertTrue("Xml jobs file not written.", xmlFile.exists());
+        assertFalse("Binary jobs file written.", binaryFile.exists());
+
+        mTaskStoreUnderTest.setUseBinaryFormatForTesting(true);
+        JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of migrated tasks.", 1, jobStatusSet.size());
+        assertTasksEqual(task, jobStatusSet.getAllJobs().get(0).getJob());
+
+        mTaskStoreUnderTest.writeStatusToDiskForTesting();
+        assertFalse("Xml jobs file not removed after migration.", xmlFile.exists());
+        assertTrue("Binary jobs file not written.", binaryFile.exists());
+        jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        final JobStatus loaded = jobStatusSet.getAllJobs().get(0);
+        assertTasksEqual(task, loaded.getJob());
+        compareTimestampsSubjectToIoLatency("Late run-times not the same after read.",
+                js.getLatestRunTimeElapsed(), loaded.getLatestRunTimeElapsed());
+    }
+
     /**
      * Helper function to throw an error if the provided task and TaskStatus objects are not equal.
      */
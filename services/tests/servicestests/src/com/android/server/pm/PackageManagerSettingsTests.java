@@ -176,6 +176,50 @@ public class PackageManagerSettingsTests {
         assertThat(hasEnabled, is(false));
     }
 
+    @Test
+    public void testPackageRestrictionsJournal() {
+        writeOldFiles();
+        Settings settings =
+                new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        settings.writePackageRestrictionsLPr(0);
+        final File restrictionsFile = new File(InstrumentationRegistry.getContext().getFilesDir(),
+                "system/users/0/package-restrictions.xml");
+        final long snapshotModified = restrictionsFile.lastModified();
+
+        // A single state change is journaled instead of rewriting the snapshot
+        PackageSetting ps = settings.getPackageLPr(PACKAGE_NAME_1);
+        ps.setEnabled(COMPONENT_ENABLED_STATE_DISABLED, 0, "journal.test");
+        ps.setStopped(true, 0);
+        settings.writePackageRestrictionsLPr(0);
+        final File journalFile = new File(InstrumentationRegistry.getContext().getFilesDir(),
+                "system/users/0/package-restrictions.journal");
+        assertThat(journalFile.exists(), is(true));
+        assertThat(restrictionsFile.lastModified(), is(snapshotModified));
+
+        // Reading back replays the journal on top of the snapshot
+        settings = new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        ps = settings.getPackageLPr(PACKAGE_NAME_1);
+        assertThat(ps.getEnabled(0), is(COMPONENT_ENABLED_STATE_DISABLED));
+        assertThat(ps.getStopped(0), is(true));
+        assertThat(ps.getLastDisabledAppCaller(0), is("journal.test"));
+        ps = settings.getPackageLPr(PACKAGE_NAME_2);
+        assertThat(ps.getEnabled(0), is(COMPONENT_ENABLED_STATE_DISABLED_USER));
+
+        // Growing the journal past its limit folds it back into the snapshot
+        ps = settings.getPackageLPr(PACKAGE_NAME_1);
+        for (int i = 0; i <= PackageRestrictionsJournal.MAX_RECORDS; i++) {
+            ps.setStopped(i % 2 == 0, 0);
+            settings.writePackageRestrictionsLPr(0);
+        }
+        assertThat(journalFile.length() < 4096, is(true));
+        final boolean stopped = ps.getStopped(0);
+        settings = new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1).getStopped(0), is(stopped));
+    }
+
     private static final String PACKAGE_NAME = "com.android.bar";
     private static final String REAL_PACKAGE_NAME = "com.android.foo";
     private static final String PARENT_PACKAGE_NAME = "com.android.bar.parent";
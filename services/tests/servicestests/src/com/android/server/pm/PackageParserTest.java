@@ -26,6 +26,7 @@ import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
 import android.content.pm.Signature;
 import android.os.Bundle;
+import android.os.FileUtils;
 import android.os.Parcel;
 import android.support.test.runner.AndroidJUnit4;
 import android.test.suitebuilder.annotation.MediumTest;
@@ -109,6 +110,28 @@ public class PackageParserTest {
         assertEquals("android", pkg.packageName);
     }
 
+    @Test
+    public void testParse_cacheKeyedOnPath() throws Exception {
+        final File cacheDir = new File(mTmpDir, "cache");
+        final File apk1 = new File(new File(mTmpDir, "one"), FRAMEWORK.getName());
+        final File apk2 = new File(new File(mTmpDir, "two"), FRAMEWORK.getName());
+        assertTrue(cacheDir.mkdir());
+        assertTrue(apk1.getParentFile().mkdir());
+        assertTrue(apk2.getParentFile().mkdir());
+        assertTrue(FileUtils.copyFile(FRAMEWORK, apk1));
+        assertTrue(FileUtils.copyFile(FRAMEWORK, apk2));
+
+        PackageParser pp = new CachePackageNameParser();
+        pp.setCacheDir(cacheDir);
+        pp.parsePackage(apk1, 0 /* parseFlags */, true /* useCaches */);
+        assertEquals("cache_android",
+                pp.parsePackage(apk1, 0 /* parseFlags */, true /* useCaches */).packageName);
+
+        // Both files map to the same cache key, but the entry was created from the other one.
+        assertEquals("android",
+                pp.parsePackage(apk2, 0 /* parseFlags */, true /* useCaches */).packageName);
+    }
+
     @Test
     public void test_serializePackage() throws Exception {
         PackageParser pp = new PackageParser();
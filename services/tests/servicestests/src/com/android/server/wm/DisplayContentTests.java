@@ -29,6 +29,7 @@ import static android.view.WindowManager.LayoutParams.TYPE_VOICE_INTERACTION;
 
 import static com.android.server.wm.WindowContainer.POSITION_TOP;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Ignore;
@@ -42,6 +43,7 @@ import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.DisplayMetrics;
+import android.util.MergedConfiguration;
 import android.util.SparseIntArray;
 import android.view.MotionEvent;
 
@@ -428,6 +430,53 @@ public class DisplayContentTests extends WindowTestsBase {
                 SCREEN_ORIENTATION_LANDSCAPE, dc.getOrientation());
     }
 
+    @Test
+    public void testPartialLayout() throws Exception {
+        final WindowState resized = createWindow(null, TYPE_APPLICATION, "resized");
+        final WindowState other = createWindow(null, TYPE_APPLICATION, "other");
+        final WindowState attached = createWindow(other, TYPE_APPLICATION_ATTACHED_DIALOG,
+                "attached");
+        final MergedConfiguration config = new MergedConfiguration();
+        for (WindowState w : Arrays.asList(resized, other, attached)) {
+            w.mRelayoutCalled = true;
+            w.getMergedConfiguration(config);
+            w.setLastReportedMergedConfiguration(config);
+        }
+        final TestWindowManagerPolicy policy = (TestWindowManagerPolicy) sWm.mPolicy;
+        final boolean partialLayoutEnabled = mDisplayContent.mPartialLayoutEnabled;
+        mDisplayContent.mPartialLayoutEnabled = true;
+        try {
+            mDisplayContent.setLayoutNeeded();
+            mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+            assertTrue(policy.laidOutWindows.contains(other));
+
+            // Only the relaid-out window is laid out again, but the others count as laid out
+            // in this pass so that their pending resizes are reported.
+            policy.laidOutWindows.clear();
+            mDisplayContent.setWindowLayoutNeeded(resized);
+            assertTrue(mDisplayContent.isLayoutNeeded());
+            mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+            assertTrue(policy.laidOutWindows.contains(resized));
+            assertFalse(policy.laidOutWindows.contains(other));
+            assertFalse(policy.laidOutWindows.contains(attached));
+            for (WindowState w : Arrays.asList(resized, other, attached)) {
+                assertEquals(sWm.mLayoutSeq, w.mLayoutSeq);
+            }
+
+            // A window with a configuration change to apply isn't skipped, and neither are the
+            // windows attached to it.
+            other.setLastReportedMergedConfiguration(new MergedConfiguration());
+            policy.laidOutWindows.clear();
+            mDisplayContent.setWindowLayoutNeeded(resized);
+            mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+            assertTrue(policy.laidOutWindows.contains(other));
+            assertTrue(policy.laidOutWindows.contains(attached));
+        } finally {
+            mDisplayContent.mPartialLayoutEnabled = partialLayoutEnabled;
+            policy.laidOutWindows.clear();
+        }
+    }
+
     private static void verifySizes(DisplayContent displayContent, int expectedBaseWidth,
                              int expectedBaseHeight, int expectedBaseDensity) {
         assertEquals(displayContent.mBaseDisplayWidth, expectedBaseWidth);
@@ -19,7 +19,9 @@ package com.android.server.wm;
 import static android.view.WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 
+import android.app.ActivityManager.TaskSnapshot;
 import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
@@ -108,4 +110,44 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
         assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
                 true /* restoreFromDisk */, false /* reducedResolution */));
     }
+
+    @Test
+    public void testReduced_restoredCached() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        final int taskId = window.getTask().mTaskId;
+        mPersister.persistSnapshot(taskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        final TaskSnapshot restored = mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */);
+        assertNotNull(restored);
+
+        // Reduced resolution requests are served from memory now.
+        assertSame(restored, mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+
+        // Until a new snapshot is taken.
+        final TaskSnapshot snapshot = createSnapshot();
+        mCache.putSnapshot(window.getTask(), snapshot);
+        mCache.onAppRemoved(window.mAppToken);
+        assertNull(mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        final int taskId = window.getTask().mTaskId;
+        mPersister.persistSnapshot(taskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        assertNull(mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+
+        mCache.prefetchSnapshots(new int[] { taskId }, sWm.mCurrentUserId);
+        assertNotNull(mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+
+        mCache.onTaskRemoved(taskId);
+        assertNull(mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+    }
 }
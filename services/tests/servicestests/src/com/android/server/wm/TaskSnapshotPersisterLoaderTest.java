@@ -138,6 +138,50 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
         assertEquals(12, removeObsoleteFilesQueueItem.getTaskId("12.proto"));
         assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1.jpg"));
         assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1_reduced.jpg"));
+        assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1_reduced.bmp"));
+    }
+
+    @Test
+    public void testPersistAndLoadBmpReducedSnapshot() {
+        mPersister.setUseBmpReducedFormat(true);
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        final File[] files = new File[] { new File(sFilesDir.getPath() + "/snapshots/1.proto"),
+                new File(sFilesDir.getPath() + "/snapshots/1.jpg"),
+                new File(sFilesDir.getPath() + "/snapshots/1_reduced.bmp")};
+        final File[] nonExistsFiles = new File[] {
+                new File(sFilesDir.getPath() + "/snapshots/1_reduced.jpg"),
+        };
+        assertTrueForFiles(files, File::exists, " must exist");
+        assertTrueForFiles(nonExistsFiles, file -> !file.exists(), " must not exist");
+        final TaskSnapshot snapshot = mLoader.loadTask(1, mTestUserId, true /* reduced */);
+        assertNotNull(snapshot);
+        assertTrue(snapshot.isReducedResolution());
+        assertEquals(TEST_INSETS, snapshot.getContentInsets());
+        final int reducedSize = (int) (100 * TaskSnapshotPersister.REDUCED_SCALE);
+        assertEquals(reducedSize, snapshot.getSnapshot().getWidth());
+        assertEquals(reducedSize, snapshot.getSnapshot().getHeight());
+
+        // Going back to JPEG replaces the BMP file.
+        mPersister.setUseBmpReducedFormat(false);
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        assertTrue(new File(sFilesDir.getPath() + "/snapshots/1_reduced.jpg").exists());
+        assertFalse(new File(sFilesDir.getPath() + "/snapshots/1_reduced.bmp").exists());
+        assertNotNull(mLoader.loadTask(1, mTestUserId, true /* reduced */));
+    }
+
+    @Test
+    public void testThermalThrottling() {
+        // Long enough to tell apart from the 100ms between unthrottled writes.
+        mPersister.setThermalThrottlingDelay(300);
+        mPersister.setThermalThrottling(true);
+        long ms = SystemClock.elapsedRealtime();
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.persistSnapshot(2, mTestUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        mPersister.setThermalThrottling(false);
+        assertTrue(SystemClock.elapsedRealtime() - ms > 500);
     }
 
     @Test